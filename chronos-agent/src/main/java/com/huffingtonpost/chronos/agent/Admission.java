@@ -0,0 +1,205 @@
+package com.huffingtonpost.chronos.agent;
+
+import com.huffingtonpost.chronos.model.PlannedJob;
+import com.huffingtonpost.chronos.model.QueuedJob;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decides which queued jobs the AgentConsumer may start.
+ *
+ * Every job counts against the key of its driver, against the key of the
+ * job itself and, when it was queued for a backfill, against the key of the
+ * backfill. Any key can be given a maximum of jobs in flight. Jobs whose
+ * keys are at their maximum stay in the queue.
+ *
+ * Free slots are shared between driver keys by start-time fair queuing: a
+ * key with weight 2 is handed twice as many slots as a key with weight 1
+ * while both have jobs waiting, and a key that had nothing queued gets no
+ * credit for the time it was idle. Within a key jobs start in queue order.
+ */
+public class Admission {
+
+  public static final int DEFAULT_WEIGHT = 1;
+  public static final String NO_DRIVER = "none";
+
+  private final Map<String, Integer> maxInFlight = new ConcurrentHashMap<>();
+  private final Map<String, Integer> weights = new ConcurrentHashMap<>();
+  private final Map<String, Integer> inFlight = new HashMap<>();
+  private final Map<String, Double> finishTags = new HashMap<>();
+  private double virtualTime = 0;
+
+  public static String driverKey(String driverName) {
+    return "driver." + (driverName == null ? NO_DRIVER : driverName);
+  }
+
+  public static String jobKey(long jobId) {
+    return "job." + jobId;
+  }
+
+  public static String backfillKey(long backfillId) {
+    return "backfill." + backfillId;
+  }
+
+  /**
+   * @return the key slots are shared between, the one of the driver
+   */
+  public static String flowOf(PlannedJob pj) {
+    return driverKey(pj.getJobSpec().getDriver());
+  }
+
+  public static List<String> keysOf(PlannedJob pj) {
+    if (pj.getBackfillId() != null) {
+      return Arrays.asList(flowOf(pj), jobKey(pj.getJobSpec().getId()),
+        backfillKey(pj.getBackfillId()));
+    }
+    return Arrays.asList(flowOf(pj), jobKey(pj.getJobSpec().getId()));
+  }
+
+  public void setMaxInFlight(String key, int max) {
+    maxInFlight.put(key, max);
+  }
+
+  public void removeMaxInFlight(String key) {
+    maxInFlight.remove(key);
+  }
+
+  public void setWeight(String key, int weight) {
+    if (weight < 1) {
+      throw new IllegalArgumentException("weight must be at least 1");
+    }
+    weights.put(key, weight);
+  }
+
+  /**
+   * @return whether any limit or weight was set, without them jobs are
+   * simply started in queue order
+   */
+  public boolean isEnabled() {
+    return !maxInFlight.isEmpty() || !weights.isEmpty();
+  }
+
+  public synchronized int getInFlight(String key) {
+    Integer count = inFlight.get(key);
+    return count == null ? 0 : count;
+  }
+
+  /**
+   * @return whether key has a maximum and is at it
+   */
+  public synchronized boolean isAtMax(String key) {
+    Integer max = maxInFlight.get(key);
+    return max != null && getInFlight(key) >= max;
+  }
+
+  public synchronized boolean hasCapacity(PlannedJob pj) {
+    return fits(pj, inFlight);
+  }
+
+  public synchronized void started(PlannedJob pj) {
+    for (String key : keysOf(pj)) {
+      inFlight.put(key, getInFlight(key) + 1);
+    }
+  }
+
+  public synchronized void finished(PlannedJob pj) {
+    for (String key : keysOf(pj)) {
+      int count = getInFlight(key) - 1;
+      if (count > 0) {
+        inFlight.put(key, count);
+      } else {
+        inFlight.remove(key);
+      }
+    }
+  }
+
+  private boolean fits(PlannedJob pj, Map<String, Integer> counts) {
+    for (String key : keysOf(pj)) {
+      Integer max = maxInFlight.get(key);
+      Integer count = counts.get(key);
+      if (max != null && (count == null ? 0 : count) >= max) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int weightOf(String key) {
+    Integer weight = weights.get(key);
+    return weight == null ? DEFAULT_WEIGHT : weight;
+  }
+
+  /**
+   * @param queued the candidates, oldest first
+   * @param slots how many jobs may be started
+   * @return the jobs to start, in the order they were picked
+   */
+  public synchronized List<QueuedJob> select(List<QueuedJob> queued,
+                                             int slots) {
+    List<QueuedJob> toRet = new ArrayList<>();
+    Map<String, Deque<QueuedJob>> flows = new LinkedHashMap<>();
+    for (QueuedJob qj : queued) {
+      String flow = flowOf(qj.getPlannedJob());
+      Deque<QueuedJob> waiting = flows.get(flow);
+      if (waiting == null) {
+        waiting = new ArrayDeque<>();
+        flows.put(flow, waiting);
+      }
+      waiting.add(qj);
+    }
+    Map<String, Integer> counts = new HashMap<>(inFlight);
+    while (toRet.size() < slots && !flows.isEmpty()) {
+      String next = null;
+      QueuedJob nextJob = null;
+      double nextStart = 0;
+      for (Iterator<Map.Entry<String, Deque<QueuedJob>>> it =
+             flows.entrySet().iterator(); it.hasNext(); ) {
+        Map.Entry<String, Deque<QueuedJob>> flow = it.next();
+        QueuedJob head = firstThatFits(flow.getValue(), counts);
+        if (head == null) {
+          it.remove();
+          continue;
+        }
+        Double finish = finishTags.get(flow.getKey());
+        double start = Math.max(virtualTime, finish == null ? 0 : finish);
+        if (next == null || start < nextStart) {
+          next = flow.getKey();
+          nextJob = head;
+          nextStart = start;
+        }
+      }
+      if (next == null) {
+        break;
+      }
+      flows.get(next).remove(nextJob);
+      virtualTime = nextStart;
+      finishTags.put(next, nextStart + 1.0 / weightOf(next));
+      for (String key : keysOf(nextJob.getPlannedJob())) {
+        Integer count = counts.get(key);
+        counts.put(key, (count == null ? 0 : count) + 1);
+      }
+      toRet.add(nextJob);
+    }
+    return toRet;
+  }
+
+  private QueuedJob firstThatFits(Deque<QueuedJob> waiting,
+                                  Map<String, Integer> counts) {
+    for (QueuedJob qj : waiting) {
+      if (fits(qj.getPlannedJob(), counts)) {
+        return qj;
+      }
+    }
+    return null;
+  }
+
+}
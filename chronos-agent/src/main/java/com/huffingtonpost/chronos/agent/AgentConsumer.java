@@ -1,14 +1,20 @@
 package com.huffingtonpost.chronos.agent;
 
+import com.huffingtonpost.chronos.model.Backfill;
 import com.huffingtonpost.chronos.model.JobDao;
 import com.huffingtonpost.chronos.model.JobSpec;
 import com.huffingtonpost.chronos.model.MailInfo;
+import com.huffingtonpost.chronos.model.PendingRetry;
 import com.huffingtonpost.chronos.model.PlannedJob;
+import com.huffingtonpost.chronos.model.QueueListener;
+import com.huffingtonpost.chronos.model.QueuedJob;
 import com.huffingtonpost.chronos.model.SupportedDriver;
 import com.huffingtonpost.chronos.util.CoverageIgnore;
 import com.huffingtonpost.chronos.util.SendMail;
 
 import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 
 import javax.mail.Session;
 
@@ -17,38 +23,74 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.*;
 import java.util.Map.Entry;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This component pulls elements from the work queue and launches a
  * thread(Callable) to execute it.
  * AgentDriver -> Queue <- AgentConsumer -> [Callable & robRun entry]
  *
+ * Several agents can share one database, every run is owned by the agent
+ * that created it under a lease.
  */
-public class AgentConsumer extends Stoppable {
+public class AgentConsumer extends Stoppable
+    implements QueueListener, RunListener {
   public static Logger LOG = Logger.getLogger(AgentConsumer.class);
 
   public int SLEEP_FOR = 10 * 1000;
+  public int POLL_FOR = 1000;
+  public int RECONCILE_EVERY = 5 * 60 * 1000;
+  public static final long RECONCILE_LOOKBACK = 24 * 60 * 60 * 1000L;
+  public int AGE_QUEUE_EVERY = 10 * 60 * 1000;
+  public int MAX_QUEUE_RAISE = 6;
+  public int LEASE_FOR = 2 * 60 * 1000;
+  public int PIPELINE_PRIORITY = 100;
 
   private final JobDao dao;
   private final Thread me;
-  public final ThreadPoolExecutor executor;
+  public volatile ThreadPoolExecutor executor;
+  private volatile ThreadFactory jobThreadFactory = JobThreads.PLATFORM;
+  private final Semaphore jobPermits;
+  private final Admission admission = new Admission();
+  private volatile boolean admissionBlocked = false;
+  private final Set<Long> cappedBackfills = new HashSet<>();
+  private volatile boolean pipelines = false;
+  public final static int QUEUE_WINDOW = 1000;
+  private final AtomicInteger inFlight = new AtomicInteger(0);
+  private final Object dispatchLock = new Object();
+  private boolean wakeRequested = false;
+  private final Queue<CallableJob> failedRuns =
+    new ConcurrentLinkedQueue<>();
+  private long lastReconciled = 0;
+  private long lastAged = 0;
+  private long lastReaped = 0;
+  private final Map<Long, CallableJob> ownRuns = new ConcurrentHashMap<>();
 
   /**
-   * rerunPool - this pool is used for handling the timeout
-   *             (waitBeforeRetrySeconds) before jobs are enqueued
+   * rerunPool - resubmits failed jobs once their retry delay has passed.
+   *             Retries that are waiting do not use a thread.
+   * leasePool - renews the leases of the runs of this agent, apart from the
+   *             consumer thread so a slow dispatch does not let them expire.
    */
-  private final ExecutorService rerunPool;
-  private final long waitBeforeRetrySeconds;
+  private final ScheduledExecutorService rerunPool;
+  private final ScheduledExecutorService leasePool;
+  private volatile RetryPolicy retryPolicy;
   private static int minAttemptsForNotification = 1;
   public static int maxReruns;
-  private static final List<PlannedJob> pendingReruns =
-    Collections.synchronizedList(new ArrayList<PlannedJob>());
+  private final Set<PlannedJob> pendingReruns =
+    Collections.synchronizedSet(new HashSet<PlannedJob>());
   private String reportRootPath = null;
 
   private final String hostname;
@@ -76,14 +118,112 @@ public class AgentConsumer extends Stoppable {
     this.numOfConcurrentReruns = numOfConcurrentReruns;
     AgentConsumer.maxReruns = maxReruns;
     this.drivers = drivers;
-    this.waitBeforeRetrySeconds = waitBeforeRetrySeconds;
+    this.retryPolicy = RetryPolicy.fixed(1000L * waitBeforeRetrySeconds);
     AgentConsumer.minAttemptsForNotification = minAttemptsForNotification;
     me = new Thread(this);
-    rerunPool = Executors.newFixedThreadPool(this.numOfConcurrentReruns);
-    executor = new ThreadPoolExecutor(this.numOfConcurrentJobs,
-                                      this.numOfConcurrentJobs,
-                                      0L, TimeUnit.MILLISECONDS,
-                                      new LinkedBlockingQueue<Runnable>());
+    rerunPool = Executors.newScheduledThreadPool(this.numOfConcurrentReruns);
+    leasePool = Executors.newSingleThreadScheduledExecutor();
+    jobPermits = new Semaphore(this.numOfConcurrentJobs, true);
+    executor = newExecutor(false);
+    if (dao.getOwnerId() == null) {
+      dao.setOwnerId(hostname + ":" + UUID.randomUUID());
+    }
+    dao.addQueueListener(this);
+  }
+
+  private ThreadPoolExecutor newExecutor(boolean virtual) {
+    if (virtual) {
+      // a new virtual thread per job, the permits bound how many run
+      return new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                                    0L, TimeUnit.MILLISECONDS,
+                                    new SynchronousQueue<Runnable>(),
+                                    jobThreadFactory) {
+        @Override
+        protected void afterExecute(Runnable r, Throwable t) {
+          super.afterExecute(r, t);
+          inFlight.decrementAndGet();
+          wakeUp();
+        }
+      };
+    }
+    return new ThreadPoolExecutor(this.numOfConcurrentJobs,
+                                  this.numOfConcurrentJobs,
+                                  0L, TimeUnit.MILLISECONDS,
+                                  new LinkedBlockingQueue<Runnable>()) {
+      @Override
+      protected void afterExecute(Runnable r, Throwable t) {
+        super.afterExecute(r, t);
+        inFlight.decrementAndGet();
+        wakeUp();
+      }
+    };
+  }
+
+  /**
+   * Runs every job, and the threads that read the output of scripts, on a
+   * virtual thread instead of a pool of numOfConcurrentJobs platform
+   * threads. Either way at most numOfConcurrentJobs jobs run at once. Has to
+   * be called before any job is submitted.
+   *
+   * The agent is still compiled for java 7, so this needs the agent to run
+   * on a JDK 21 or later runtime, see JobThreads.
+   *
+   * @throws UnsupportedOperationException when the runtime is older than
+   * JDK 21
+   */
+  public synchronized void setVirtualThreads(boolean virtual) {
+    if (virtual == isVirtualThreads()) {
+      return;
+    }
+    if (inFlight.get() > 0) {
+      throw new IllegalStateException(
+        "Cannot change the thread mode while jobs are running");
+    }
+    jobThreadFactory = virtual ? JobThreads.virtual("chronos-job-") :
+      JobThreads.PLATFORM;
+    ThreadPoolExecutor previous = executor;
+    executor = newExecutor(virtual);
+    previous.shutdown();
+    LOG.info("Running jobs on " + (virtual ? "virtual" : "platform") +
+      " threads");
+  }
+
+  public boolean isVirtualThreads() {
+    return jobThreadFactory != JobThreads.PLATFORM;
+  }
+
+  /**
+   * Limits how many jobs of driverName run at once, below
+   * numOfConcurrentJobs.
+   */
+  public void setMaxConcurrentJobs(String driverName, int maxConcurrentJobs) {
+    admission.setMaxInFlight(Admission.driverKey(driverName),
+      maxConcurrentJobs);
+  }
+
+  /**
+   * Runs the descendants of queued jobs as pipelines instead of queueing
+   * each of them once its parent finished. A descendant is queued at
+   * PIPELINE_PRIORITY as soon as its parents ended the way it asks for, so
+   * independent paths run in parallel and a pipeline takes about as long as
+   * its slowest path of jobs.
+   */
+  public void setPipelines(boolean pipelines) {
+    this.pipelines = pipelines;
+  }
+
+  public boolean isPipelines() {
+    return pipelines;
+  }
+
+  /**
+   * Where limits and weights by driver or job are set. Once any is set, jobs
+   * are no longer taken from the queue in order: a job only starts when its
+   * driver and job are below their limits, and free slots are shared fairly
+   * between drivers.
+   */
+  public Admission getAdmission() {
+    return admission;
   }
 
   /***
@@ -97,106 +237,610 @@ public class AgentConsumer extends Stoppable {
     return reportRootPath;
   }
 
+  public RetryPolicy getRetryPolicy() {
+    return retryPolicy;
+  }
+
+  /**
+   * Defaults to a fixed delay of waitBeforeRetrySeconds.
+   */
+  public void setRetryPolicy(RetryPolicy retryPolicy) {
+    this.retryPolicy = retryPolicy;
+  }
+
   public void init() {
-    LOG.info("Cleaning previously running jobs...");
-    cleanupPreviouslyRunningJobs(dao, dao.getRunningJobs());
-    LOG.info("Finished cleaning previously running jobs...");
+    LOG.info("Reaping runs of agents that are gone...");
+    reapExpiredLeases();
+    LOG.info("Finished reaping runs of agents that are gone...");
+    leasePool.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        renewLeases();
+      }
+    }, LEASE_FOR / 4, LEASE_FOR / 4, TimeUnit.MILLISECONDS);
+    schedulePendingRetries();
     me.start();
   }
 
-  public static void cleanupPreviouslyRunningJobs(
-      JobDao dao, Map<Long, CallableJob> jobRuns) {
-    for (Entry<Long, CallableJob> job : jobRuns.entrySet()) {
-      CallableJob value = job.getValue();
-      value.getFinish().set(System.currentTimeMillis());
-      dao.updateJobRun(value);
+  /**
+   * Schedules the retries that were pending when the last consumer stopped.
+   */
+  public void schedulePendingRetries() {
+    List<PendingRetry> retries = dao.getPendingRetries();
+    for (PendingRetry retry : retries) {
+      if (pendingReruns.add(retry.getPlannedJob())) {
+        scheduleRetry(retry, true);
+      }
+    }
+    if (!retries.isEmpty()) {
+      LOG.info(String.format("Rescheduled %d pending retries",
+        retries.size()));
     }
   }
 
   public void doRun() {
-    List<PlannedJob> queue = dao.getQueue(null);
-    boolean zeroInQueue = queue.size() == 0;
-    int running = dao.getRunningJobs().size();
-    boolean maxJobsRunning = running >= numOfConcurrentJobs;
-    if (zeroInQueue || maxJobsRunning) {
-      if (zeroInQueue) {
-        LOG.debug("Job queue is empty. Sleeping...");
-      }
-      if (maxJobsRunning) {
-        LOG.debug("Max # of concurrent jobs running. Sleeping...");
-      }
-      try {
-        Thread.sleep(SLEEP_FOR);
-      } catch (InterruptedException e) {
-        LOG.error(e);
+    synchronized (dispatchLock) {
+      wakeRequested = false;
+    }
+    int dispatched = 0;
+    admissionBlocked = false;
+    if (System.currentTimeMillis() - lastReaped >= LEASE_FOR / 4) {
+      reapExpiredLeases();
+    }
+    if (AGE_QUEUE_EVERY > 0 &&
+        System.currentTimeMillis() - lastAged >= AGE_QUEUE_EVERY) {
+      ageQueue();
+    }
+    if (hasFreeSlot()) {
+      capBackfills();
+    }
+    while (hasFreeSlot()) {
+      int slots = numOfConcurrentJobs - inFlight.get();
+      List<QueuedJob> batch = admission.isEnabled() ?
+        dequeueFairly(slots) : dao.removeQueuedJobs(slots);
+      if (batch.isEmpty()) {
+        break;
       }
-    } else {
-      PlannedJob toRun;
-      while (executor.getActiveCount() < numOfConcurrentJobs &&
-             (toRun = dao.removeFromQueue()) != null) {
+      long now = System.currentTimeMillis();
+      for (QueuedJob qj : batch) {
+        PlannedJob toRun = qj.getPlannedJob();
+        if (qj.getInsertTime() != null) {
+          reporter.histogram("chronos.agentconsumer.queuewait.priority." +
+            toRun.getJobSpec().getPriority(),
+            now - qj.getInsertTime().getMillis());
+        }
+        if (pipelines) {
+          startPipeline(toRun);
+        }
         CallableJob cj = assembleCallableJob(toRun, START_ATTEMPT_NUM);
         submitJob(cj);
+        dispatched++;
+      }
+    }
+    List<CallableJob> failed = new ArrayList<>();
+    for (CallableJob cj; (cj = failedRuns.poll()) != null; ) {
+      failed.add(cj);
+    }
+    List<CallableJob> reconciled = new ArrayList<>();
+    if (System.currentTimeMillis() - lastReconciled >= RECONCILE_EVERY) {
+      reconciled.addAll(reconcileFailedRuns());
+    }
+    if (!failed.isEmpty() || !reconciled.isEmpty()) {
+      List<CallableJob> ended;
+      synchronized (pendingReruns) {
+        ended = handleReruns(failed, AgentConsumer.maxReruns);
+        handleReruns(reconciled, AgentConsumer.maxReruns);
+      }
+      // reconciled runs were handed on when they finished, or are reaped
+      // and handed on by the agent that reaped them
+      for (CallableJob cj : ended) {
+        if (cj.getPlannedJob().getPipelineId() != null) {
+          pipelineRunEnded(cj);
+        }
+      }
+    }
+    if (dispatched == 0) {
+      if (hasFreeSlot()) {
+        LOG.debug("Job queue is empty. Waiting...");
+      } else {
+        LOG.debug("Max # of concurrent jobs running. Waiting...");
+      }
+      awaitWork();
+    }
+  }
+
+  private boolean hasFreeSlot() {
+    return inFlight.get() < numOfConcurrentJobs;
+  }
+
+  /**
+   * Removes the queued jobs admission picks for the free slots from the
+   * queue, and reports the queue depth and queue wait time by driver.
+   */
+  private List<QueuedJob> dequeueFairly(int slots) {
+    // the runs of a backfill at its cap could otherwise fill the window
+    // and hide everything queued behind them
+    Set<Long> atMax = new HashSet<>();
+    for (Long id : cappedBackfills) {
+      if (admission.isAtMax(Admission.backfillKey(id))) {
+        atMax.add(id);
+      }
+    }
+    List<QueuedJob> queued = dao.getQueuedJobs(QUEUE_WINDOW, atMax);
+    Map<String, Integer> depth = new HashMap<>();
+    for (QueuedJob qj : queued) {
+      String flow = Admission.flowOf(qj.getPlannedJob());
+      depth.put(flow, depth.containsKey(flow) ? depth.get(flow) + 1 : 1);
+    }
+    for (Entry<String, Integer> entry : depth.entrySet()) {
+      reporter.histogram("chronos.agentconsumer.queued." + entry.getKey(),
+        entry.getValue());
+    }
+    List<QueuedJob> selected = admission.select(queued, slots);
+    if (selected.isEmpty()) {
+      // everything queued waits for its driver or job, jobs finishing
+      // wake the consumer up again
+      admissionBlocked = !queued.isEmpty();
+      return Collections.emptyList();
+    }
+    Map<PlannedJob, QueuedJob> byJob = new LinkedHashMap<>();
+    for (QueuedJob qj : selected) {
+      byJob.put(qj.getPlannedJob(), qj);
+    }
+    List<QueuedJob> claimed = new ArrayList<>();
+    long now = System.currentTimeMillis();
+    for (PlannedJob pj : dao.removeFromQueue(byJob.keySet())) {
+      QueuedJob qj = byJob.get(pj);
+      if (qj == null) {
+        qj = new QueuedJob(pj, null);
+      } else if (qj.getInsertTime() != null) {
+        reporter.histogram("chronos.agentconsumer.queuewait." +
+          Admission.flowOf(pj), now - qj.getInsertTime().getMillis());
+      }
+      claimed.add(qj);
+    }
+    return claimed;
+  }
+
+  /**
+   * Plans the pipeline pj is the root of, unless no job depends on it or it
+   * runs for a backfill that leaves out children.
+   */
+  private void startPipeline(PlannedJob pj) {
+    if (pj.getPipelineId() != null) {
+      return;
+    }
+    try {
+      if (pj.getBackfillId() != null) {
+        Backfill backfill = dao.getBackfill(pj.getBackfillId());
+        if (backfill == null || !backfill.isIncludeChildren()) {
+          return;
+        }
+      }
+      Pipeline pipeline = new Pipeline(UUID.randomUUID().toString(), pj,
+        dao.getJobs(), System.currentTimeMillis());
+      if (pipeline.size() > 1) {
+        pj.setPipelineId(pipeline.getId());
+        reporter.mark("chronos.agentconsumer.pipeline.started");
+      }
+    } catch (RuntimeException ex) {
+      LOG.error("Could not plan the pipeline of " + pj, ex);
+    }
+  }
+
+  /**
+   * Plans the pipeline of cj again from its runs, with cj ended for good,
+   * and queues the jobs that are ready now, along with the children of cj
+   * that are not part of it. The children of cj are queued like outside a
+   * pipeline when it cannot be planned. Planning from the database lets any
+   * agent carry a pipeline on after a restart or a reaped run.
+   */
+  private void pipelineRunEnded(CallableJob cj) {
+    PlannedJob pj = cj.getPlannedJob();
+    String pipelineId = pj.getPipelineId();
+    Pipeline pipeline = null;
+    List<PlannedJob> ready = new ArrayList<>();
+    Set<Long> started = new HashSet<>();
+    try {
+      Map<Long, CallableJob> latest = new LinkedHashMap<>();
+      PlannedJob root = null;
+      long startedAt = 0;
+      for (CallableJob run : dao.getPipelineRuns(pipelineId).values()) {
+        PlannedJob runOf = run.getPlannedJob();
+        if (root == null) {
+          root = new PlannedJob(runOf.getJobSpec(), runOf.getReplaceTime());
+          root.setBackfillId(pj.getBackfillId());
+          startedAt = run.getStart().get();
+        }
+        latest.remove(runOf.getJobSpec().getId());
+        latest.put(runOf.getJobSpec().getId(), run);
+      }
+      if (root != null) {
+        pipeline = new Pipeline(pipelineId, root, dao.getJobs(), startedAt);
+        for (Entry<Long, CallableJob> entry : latest.entrySet()) {
+          CallableJob run = entry.getValue();
+          started.add(entry.getKey());
+          if (run.getJobId().equals(cj.getJobId())) {
+            run = cj;
+          } else if (run.getFinish().get() == 0 ||
+                     !isLastAttempt(run, AgentConsumer.maxReruns)) {
+            continue;
+          }
+          ready.addAll(pipeline.ended(entry.getKey(), !isJobFailed(run)));
+        }
       }
+    } catch (RuntimeException ex) {
+      LOG.error("Could not plan pipeline " + pipelineId, ex);
+      pipeline = null;
     }
-    synchronized (pendingReruns) {
-      handleReruns(
-        new ArrayList<>(getFailedQueries(LIMIT_JOB_RUNS).values()),
-              AgentConsumer.maxReruns, this.waitBeforeRetrySeconds);
+    if (pipeline == null) {
+      cj.queueChildren(Collections.<Long>emptySet());
+      return;
+    }
+    cj.queueChildren(pipeline.getJobIds());
+    List<PlannedJob> toQueue = new ArrayList<>();
+    for (PlannedJob aJob : ready) {
+      if (!started.contains(aJob.getJobSpec().getId())) {
+        toQueue.add(aJob);
+      }
+    }
+    try {
+      if (!toQueue.isEmpty()) {
+        dao.queuePipelineJobs(pipelineId, toQueue, pipelinePriority(pj));
+      }
+      // a pipeline that queued none of its jobs has nothing to forget
+      boolean skippedAll = pipeline.getSkipped() == pipeline.size() - 1;
+      if (pipeline.isDone() &&
+          (dao.endPipeline(pipelineId) || skippedAll)) {
+        long took = System.currentTimeMillis() - pipeline.getStartedAt();
+        reporter.histogram("chronos.agentconsumer.pipeline.duration", took);
+        LOG.info(String.format("Pipeline %s of %s ended %s in %d ms, %d of " +
+          "%d jobs skipped", pipeline.getId(),
+          pipeline.getRoot().getJobSpec().getName(),
+          pipeline.isSuccess() ? "successfully" : "with failures", took,
+          pipeline.getSkipped(), pipeline.size()));
+      }
+    } catch (RuntimeException ex) {
+      LOG.error("Could not queue the ready jobs of pipeline " + pipelineId,
+        ex);
+    }
+  }
+
+  /**
+   * @return the priority the jobs of the pipeline pj runs in are queued
+   * at, the one of its backfill when it runs for a backfill
+   */
+  private int pipelinePriority(PlannedJob pj) {
+    if (pj.getBackfillId() != null) {
+      Backfill backfill = dao.getBackfill(pj.getBackfillId());
+      if (backfill != null) {
+        return backfill.getPriority();
+      }
     }
+    return PIPELINE_PRIORITY;
   }
 
-  private void handleReruns(final List<CallableJob> failed,
-      final int maxReruns, final long waitBeforeRerun) {
-    Collections.reverse(failed); // start with latest
+  /**
+   * Caps the backfills that still have runs queued at their maxInFlight
+   * through the Admission, so a backfill does not take every free slot, and
+   * lifts the caps of the ones that have none left. Every agent keeps the
+   * caps on its own, so with several agents up to agents * maxInFlight runs
+   * of a backfill run at the same time.
+   */
+  private void capBackfills() {
+    try {
+      Set<Long> active = new HashSet<>();
+      for (Backfill backfill : dao.getBackfills(true)) {
+        active.add(backfill.getId());
+        admission.setMaxInFlight(Admission.backfillKey(backfill.getId()),
+          backfill.getMaxInFlight());
+      }
+      for (Iterator<Long> it = cappedBackfills.iterator(); it.hasNext(); ) {
+        Long id = it.next();
+        if (!active.contains(id)) {
+          admission.removeMaxInFlight(Admission.backfillKey(id));
+          it.remove();
+        }
+      }
+      cappedBackfills.addAll(active);
+    } catch (RuntimeException ex) {
+      LOG.error("Could not look up backfills", ex);
+    }
+  }
+
+  /**
+   * Renews the leases of the runs of this agent, every LEASE_FOR / 4 millis
+   * on leasePool.
+   *
+   * @return the number of runs of this agent that are still running but
+   * were not renewed, as another agent reaped them
+   */
+  int renewLeases() {
+    // a run counts once its finish is set in memory, which is before it is
+    // written, so a run finishing meanwhile is never taken for lost
+    List<CallableJob> running = new ArrayList<>();
+    for (CallableJob cj : ownRuns.values()) {
+      if (cj.getFinish().get() == 0) {
+        running.add(cj);
+      }
+    }
+    try {
+      int renewed = dao.renewLeases(new DateTime());
+      int expected = 0;
+      for (CallableJob cj : running) {
+        if (cj.getFinish().get() == 0) {
+          expected++;
+        }
+      }
+      if (renewed < expected) {
+        LOG.warn(String.format("Renewed the leases of %d of %d runs, the " +
+          "others were taken over by another agent", renewed, expected));
+        reporter.mark("chronos.agentconsumer.leaselost");
+        return expected - renewed;
+      }
+    } catch (RuntimeException ex) {
+      LOG.error("Could not renew run leases", ex);
+    }
+    return 0;
+  }
+
+  /**
+   * Finishes the runs of agents that did not renew their leases for
+   * LEASE_FOR millis. Those are handed to the retry handling like any other
+   * failed run. Their first agent can no longer write them, and leaves their
+   * children and retries to this agent.
+   */
+  private void reapExpiredLeases() {
+    long now = System.currentTimeMillis();
+    try {
+      lastReaped = now;
+      for (CallableJob cj : dao.reapExpiredLeases(
+             new DateTime(now - LEASE_FOR), LIMIT_JOB_RUNS).values()) {
+        reporter.mark("chronos.agentconsumer.leaseexpired");
+        runFinished(cj);
+      }
+    } catch (RuntimeException ex) {
+      LOG.error("Could not reap expired leases", ex);
+    }
+  }
+
+  /**
+   * Raises the priority of the jobs that waited in the queue for
+   * AGE_QUEUE_EVERY millis since they were queued or last raised, by at
+   * most MAX_QUEUE_RAISE in all. Queued jobs are taken by priority, then
+   * earliest deadline, then in the order they were queued, so this lets low
+   * priority jobs still get to run.
+   */
+  private void ageQueue() {
+    long now = System.currentTimeMillis();
+    try {
+      dao.ageQueue(new DateTime(now - AGE_QUEUE_EVERY), MAX_QUEUE_RAISE);
+      lastAged = now;
+    } catch (RuntimeException ex) {
+      LOG.error("Could not age the queue", ex);
+    }
+  }
+
+  /**
+   * Wakes up the consumer thread if it is waiting for work. Called as soon
+   * as a job is queued through the same JobDao or a running job finishes.
+   */
+  public void wakeUp() {
+    synchronized (dispatchLock) {
+      wakeRequested = true;
+      dispatchLock.notifyAll();
+    }
+  }
+
+  @Override
+  public void jobQueued(PlannedJob pj) {
+    wakeUp();
+  }
+
+  /**
+   * Takes the runs of the jobs this consumer runs as they finish, so their
+   * failures are retried without rescanning job_runs.
+   */
+  @Override
+  public void runFinished(CallableJob cj) {
+    if (isJobFailed(cj)) {
+      // whether a failed run ended for good is up to handleReruns
+      failedRuns.add(cj);
+      wakeUp();
+    } else if (cj.getPlannedJob().getPipelineId() != null) {
+      pipelineRunEnded(cj);
+    }
+  }
+
+  /**
+   * Looks for failed runs this consumer was not handed, e.g. the ones of a
+   * previous process, every RECONCILE_EVERY millis so they are retried too.
+   *
+   * @return the failed runs that finished since shortly before the last
+   * reconciliation, or within RECONCILE_LOOKBACK on the first one. Reads
+   * LIMIT_JOB_RUNS at a time from the last finish seen until the window is
+   * exhausted.
+   */
+  private Collection<CallableJob> reconcileFailedRuns() {
+    long now = System.currentTimeMillis();
+    long since = lastReconciled == 0 ? now - RECONCILE_LOOKBACK :
+      lastReconciled - RECONCILE_EVERY;
+    Map<Long, CallableJob> found = new LinkedHashMap<>();
+    try {
+      while (true) {
+        Map<Long, CallableJob> page =
+          dao.getFailedJobRuns(new DateTime(since), LIMIT_JOB_RUNS);
+        found.putAll(page);
+        if (page.size() < LIMIT_JOB_RUNS) {
+          break;
+        }
+        long lastFinish = 0;
+        for (CallableJob cj : page.values()) {
+          lastFinish = cj.getFinish().get();
+        }
+        // runs finishing in the same milli as the last one may be past the
+        // limit, so read that milli again and leave when no page moves on
+        if (lastFinish - 1 <= since) {
+          LOG.warn(String.format("More than %d runs failed at %d, " +
+            "reconciling the first of them", LIMIT_JOB_RUNS, lastFinish));
+          since = lastFinish;
+        } else {
+          since = lastFinish - 1;
+        }
+      }
+      lastReconciled = now;
+    } catch (RuntimeException ex) {
+      LOG.error("Could not look for failed runs", ex);
+    }
+    return found.values();
+  }
+
+  /**
+   * Waits for at most SLEEP_FOR millis until wakeUp() is called, or until a
+   * slot is free and the queue is not empty. The queue may be filled by
+   * another process, so its size is probed every POLL_FOR millis.
+   */
+  private void awaitWork() {
+    long deadline = System.currentTimeMillis() + SLEEP_FOR;
+    while (isAlive) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        return;
+      }
+      synchronized (dispatchLock) {
+        if (wakeRequested) {
+          return;
+        }
+        try {
+          dispatchLock.wait(Math.min(remaining, POLL_FOR));
+        } catch (InterruptedException e) {
+          LOG.error(e);
+          return;
+        }
+        if (wakeRequested) {
+          return;
+        }
+      }
+      if (hasFreeSlot() && !admissionBlocked && dao.getQueueSize() > 0) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * @return whether cj is not retried, because it did not fail, its job
+   * does not rerun or it was the last of maxReruns attempts
+   */
+  private static boolean isLastAttempt(CallableJob cj, int maxReruns) {
+    return !isJobFailed(cj) ||
+      !cj.getPlannedJob().getJobSpec().getShouldRerun() ||
+      cj.getAttemptNumber() >= maxReruns;
+  }
+
+  /**
+   * Schedules a retry of every failed run that is not its last attempt.
+   *
+   * @return the runs that were the last attempt of their job
+   */
+  private List<CallableJob> handleReruns(final List<CallableJob> failed,
+      final int maxReruns) {
+    List<CallableJob> ended = new ArrayList<>();
     for (final CallableJob cj : failed) {
       final PlannedJob pj = cj.getPlannedJob();
       final String jobName = pj.getJobSpec().getName();
-      if (!pj.getJobSpec().getShouldRerun()) {
+      if (isLastAttempt(cj, maxReruns)) {
+        ended.add(cj);
         continue;
       }
 
-      boolean alreadyRan = false;
-      synchronized (pendingReruns) {
-        if (pendingReruns.contains(pj)) {
-          alreadyRan = true;
-        }
-      }
-      if (alreadyRan) {
+      if (pendingReruns.contains(pj)) {
         LOG.debug(String.format("Already submitted a version of: %s", jobName));
         continue;
       }
+      final int attempt = cj.getAttemptNumber();
+      if (pendingReruns.add(pj)) {
+        long delay = retryPolicy.getDelayMillis(attempt);
+        PendingRetry retry = new PendingRetry(pj, attempt + 1,
+          new DateTime().withZone(DateTimeZone.UTC).plus(delay));
+        boolean persisted = false;
+        try {
+          dao.addPendingRetry(retry);
+          persisted = true;
+        } catch (RuntimeException ex) {
+          LOG.error("Could not save pending retry of " + jobName +
+            ", it will not survive a restart", ex);
+        }
+        LOG.info(String.format("Retrying %s in %d seconds", jobName,
+          delay / 1000));
+        reporter.mark("chronos.agentconsumer.rerunscheduled");
+        scheduleRetry(retry, persisted);
+      }
+    }
+    return ended;
+  }
+
+  /**
+   * @param persisted whether the retry is saved in the database, where it
+   * has to be claimed before it runs
+   */
+  private void scheduleRetry(final PendingRetry retry,
+                             final boolean persisted) {
+    long delay = Math.max(0,
+      retry.getDueTime().getMillis() - System.currentTimeMillis());
+    try {
+      rerunPool.schedule(new Runnable() {
+        @Override
+        public void run() {
+          runRetry(retry, persisted);
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException ex) {
+      LOG.info("Not scheduling retry, the consumer is stopping: " + retry);
+      pendingReruns.remove(retry.getPlannedJob());
+    }
+  }
+
+  /**
+   * Resubmits the retry unless the consumer is stopping, in which case it
+   * stays saved for the next consumer, or that attempt already ran. While
+   * its driver or job is at its limit it is tried again every POLL_FOR
+   * millis. A saved retry only runs on the agent that deletes it, as every
+   * agent sharing the database schedules it.
+   */
+  private void runRetry(final PendingRetry retry, final boolean persisted) {
+    PlannedJob pj = retry.getPlannedJob();
+    if (!isAlive) {
+      pendingReruns.remove(pj);
+      return;
+    }
+    boolean deferred = false;
+    try {
       CallableJob latest = getLatestMatching(pj, LIMIT_JOB_RUNS);
-      if (latest != null) {
-        final int attempt = latest.getAttemptNumber();
-        boolean notMaxed = attempt < maxReruns;
-        boolean latestFailed = latest.isDone() && !latest.isRunning() &&
-          latest.isFailed();
-        if (latestFailed && notMaxed) {
-          synchronized (pendingReruns) {
-            pendingReruns.add(pj);
+      if (latest != null &&
+          latest.getAttemptNumber() >= retry.getAttemptNumber()) {
+        LOG.info("Retry already ran: " + retry);
+        dao.deletePendingRetry(pj);
+      } else if (!admission.hasCapacity(pj)) {
+        // its driver or job is at its limit, try again shortly
+        rerunPool.schedule(new Runnable() {
+          @Override
+          public void run() {
+            runRetry(retry, persisted);
           }
-          Thread aRerun = new Thread() {
-            @Override
-            public void run() {
-              try {
-                LOG.info(
-                  String.format("Sleeping for %d seconds before retrying %s",
-                    waitBeforeRerun, jobName));
-                Thread.sleep(1000L * waitBeforeRerun);
-              } catch (InterruptedException e) {
-                LOG.info("rerunning job was interrupted...");
-              } finally {
-                final CallableJob toResubmit =
-                  assembleCallableJob(pj, attempt + 1);
-                submitJob(toResubmit);
-                synchronized (pendingReruns) {
-                  pendingReruns.remove(pj);
-                }
-              }
-            }
-          };
-          rerunPool.submit(aRerun);
-        }
+        }, POLL_FOR, TimeUnit.MILLISECONDS);
+        deferred = true;
+        return;
+      } else if (!persisted || dao.deletePendingRetry(pj) > 0) {
+        submitJob(assembleCallableJob(pj, retry.getAttemptNumber()));
+      } else {
+        // another agent sharing the database claimed it first
+        LOG.info("Retry taken by another agent: " + retry);
+      }
+    } catch (RuntimeException ex) {
+      LOG.error("Could not rerun " + pj.getJobSpec().getName(), ex);
+    } finally {
+      if (!deferred) {
+        pendingReruns.remove(pj);
       }
     }
   }
@@ -222,11 +866,50 @@ public class AgentConsumer extends Stoppable {
   }
 
   public void submitJob(final CallableJob cj) {
+    cj.setRunListener(this);
+    cj.setThreadFactory(jobThreadFactory);
     dao.createJobRun(cj);
-    final Future<Void> future = executor.submit(cj);
+    ownRuns.put(cj.getJobId(), cj);
+    inFlight.incrementAndGet();
+    admission.started(cj.getPlannedJob());
+    try {
+      executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          return callWithPermits(cj);
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      // the executor is shut down, the run never starts
+      admission.finished(cj.getPlannedJob());
+      inFlight.decrementAndGet();
+      ownRuns.remove(cj.getJobId());
+      cj.setStatus(CallableJob.Status.FAIL.code);
+      cj.setExceptionMessage("Not run, the consumer is stopping");
+      cj.getFinish().set(System.currentTimeMillis());
+      dao.updateJobRun(cj);
+      throw ex;
+    }
     reporter.mark("chronos.agentconsumer.submitted");
   }
 
+  private Void callWithPermits(CallableJob cj) throws Exception {
+    try {
+      long begin = System.currentTimeMillis();
+      jobPermits.acquire();
+      try {
+        reporter.histogram("chronos.agentconsumer.permitwait",
+          System.currentTimeMillis() - begin);
+        return cj.call();
+      } finally {
+        jobPermits.release();
+      }
+    } finally {
+      ownRuns.remove(cj.getJobId());
+      admission.finished(cj.getPlannedJob());
+    }
+  }
+
   @Override
   public void run() {
     while (isAlive) {
@@ -241,9 +924,13 @@ public class AgentConsumer extends Stoppable {
   @Override
   public void close() throws IOException {
     super.close();
+    wakeUp();
     try {
-      rerunPool.shutdown();
+      // retries that are not due yet stay saved for the next consumer
+      rerunPool.shutdownNow();
       rerunPool.awaitTermination(1, TimeUnit.SECONDS);
+      leasePool.shutdownNow();
+      leasePool.awaitTermination(1, TimeUnit.SECONDS);
       executor.shutdown();
       executor.awaitTermination(1, TimeUnit.SECONDS);
     } catch (InterruptedException e) {
@@ -356,7 +1043,8 @@ public class AgentConsumer extends Stoppable {
 
   synchronized public CallableJob getLatestMatching(PlannedJob pj, int limit) {
     Map<Long, CallableJob> toRet = new TreeMap<>();
-    Map<Long, CallableJob> runs = dao.getJobRuns(null, limit);
+    Map<Long, CallableJob> runs =
+      dao.getJobRuns(pj.getJobSpec().getId(), limit);
     for (Entry<Long, CallableJob> entry : runs.entrySet()) {
       Long key = entry.getKey();
       CallableJob value = entry.getValue();
@@ -1,6 +1,7 @@
 package com.huffingtonpost.chronos.agent;
 
 import com.huffingtonpost.chronos.model.JobDao;
+import com.huffingtonpost.chronos.model.JobListener;
 import com.huffingtonpost.chronos.model.JobSpec;
 import com.huffingtonpost.chronos.model.PlannedJob;
 import com.huffingtonpost.chronos.util.CronExpression;
@@ -8,13 +9,58 @@ import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 
-public class AgentDriver extends Stoppable {
+/**
+ * Enqueues scheduled jobs when they are due. The jobs are kept in a
+ * JobSchedule that is updated as jobs are created, updated and deleted
+ * through the same JobDao, and is fully reloaded every RELOAD_EVERY millis
+ * to pick up changes made by other processes. Between ticks the driver
+ * sleeps until the earliest job is due, or for at most SLEEP_FOR millis
+ * rounded down to a minute boundary.
+ *
+ * The last evaluated minute is persisted after every tick. Fire times that
+ * were missed, while the driver was paused or after a restart, are handled
+ * according to the CatchUpPolicy, LATEST unless set. Only fire times within
+ * the last maxCatchUpMinutes are caught up on, so a long outage does not
+ * flood the queue.
+ *
+ * Of all drivers sharing a database only the elected leader evaluates the
+ * schedule. The leader renews its lease of LEADER_LEASE millis on every
+ * tick and ticks at least every LEADER_LEASE / 3 millis. The other drivers
+ * try to take over as often, so a leader that is gone is replaced within
+ * about LEADER_LEASE millis. Every leadership gets a higher fencing token
+ * and the leader's writes only apply while its token is current, so a
+ * deposed leader that has not noticed yet cannot enqueue jobs.
+ */
+public class AgentDriver extends Stoppable implements JobListener {
   public static Logger LOG = Logger.getLogger(AgentDriver.class);
 
+  public int RELOAD_EVERY = 10 * 60 * 1000;
+  public int LEADER_LEASE = 15 * 1000;
+  private static final long MINUTE = 60 * 1000;
+
+  public static final int DEFAULT_MAX_CATCH_UP_MINUTES = 24 * 60;
+
+  private CatchUpPolicy catchUpPolicy = CatchUpPolicy.LATEST;
+  private int maxCatchUpMinutes = DEFAULT_MAX_CATCH_UP_MINUTES;
+
   private final JobDao dao;
 
+  private final JobSchedule schedule = new JobSchedule();
+
+  private final Object scheduleLock = new Object();
+  private boolean wakeRequested = false;
+
+  private final String candidateId;
+  private volatile Long fencingToken = null;
+  private boolean leaderElection = true;
+
   private final Thread me;
 
   private final Reporting reporting;
@@ -22,7 +68,10 @@ public class AgentDriver extends Stoppable {
   public AgentDriver(JobDao dao, Reporting reporting) {
     this.dao = dao;
     this.reporting = reporting;
+    candidateId = ManagementFactory.getRuntimeMXBean().getName() + ":" +
+      UUID.randomUUID();
     me = new Thread(this);
+    dao.addJobListener(this);
   }
 
   public void init(){
@@ -38,33 +87,280 @@ public class AgentDriver extends Stoppable {
     return next.equals(now);
   }
 
+  public CatchUpPolicy getCatchUpPolicy() {
+    return catchUpPolicy;
+  }
+
+  public void setCatchUpPolicy(CatchUpPolicy catchUpPolicy) {
+    this.catchUpPolicy = catchUpPolicy;
+  }
+
+  public int getMaxCatchUpMinutes() {
+    return maxCatchUpMinutes;
+  }
+
+  /**
+   * @param maxCatchUpMinutes how far back missed fire times are caught up
+   * on, older ones are skipped whatever the CatchUpPolicy
+   */
+  public void setMaxCatchUpMinutes(int maxCatchUpMinutes) {
+    if (maxCatchUpMinutes < 1) {
+      throw new IllegalArgumentException(
+        "maxCatchUpMinutes must be at least 1");
+    }
+    this.maxCatchUpMinutes = maxCatchUpMinutes;
+  }
+
+  /**
+   * @param leaderElection false when this is the only driver using its
+   * database, it then evaluates the schedule without holding a lease
+   */
+  public void setLeaderElection(boolean leaderElection) {
+    this.leaderElection = leaderElection;
+  }
+
+  public boolean isLeader() {
+    return !leaderElection || fencingToken != null;
+  }
+
+  public String getCandidateId() {
+    return candidateId;
+  }
+
   public void doRun() {
+    synchronized (scheduleLock) {
+      wakeRequested = false;
+    }
+    boolean resume = false;
+    if (leaderElection) {
+      Long previous = fencingToken;
+      if (!holdLeadership()) {
+        await(LEADER_LEASE / 3);
+        return;
+      }
+      // a new leader picks up where the previous one left off
+      resume = previous == null || !previous.equals(fencingToken);
+    }
+    if (resume) {
+      // fire times armed during an earlier term may have been handled by
+      // another leader since
+      schedule.clear();
+    }
     DateTime now = Utils.getCurrentTime();
-    List<JobSpec> jobs = dao.getJobs();
-    for (JobSpec aJob : jobs) {
-      if (shouldJobRun(aJob, now)) {
-        LOG.info("Adding job to queue:" + aJob);
-        dao.addToQueue(new PlannedJob(aJob, now));
+    DateTime loadedAt = schedule.getLoadedAt();
+    if (loadedAt == null) {
+      DateTime after = now.minusMinutes(1);
+      DateTime lastEvaluated = dao.getLastEvaluated();
+      if (lastEvaluated != null && (lastEvaluated.isAfter(after) ||
+          catchUpPolicy != CatchUpPolicy.NONE)) {
+        LOG.info("Resuming after last evaluated time " + lastEvaluated);
+        after = lastEvaluated;
+        DateTime earliest = now.minusMinutes(maxCatchUpMinutes);
+        if (after.isBefore(earliest)) {
+          LOG.warn(String.format("Skipping fire times before %s, more " +
+            "than %d minutes ago", earliest, maxCatchUpMinutes));
+          after = earliest;
+        }
       }
+      schedule.load(dao.getJobs(), after, now);
+    } else if (!now.isBefore(loadedAt.plusMillis(RELOAD_EVERY))) {
+      schedule.load(dao.getJobs(), now.minusMinutes(1), now);
     }
+    for (JobSchedule.Fire fire : selectFires(schedule.pollDue(now), now)) {
+      JobSpec aJob = fire.getJobSpec();
+      LOG.info("Adding job to queue:" + aJob + " for " + fire.getFireTime());
+      try {
+        PlannedJob pj = new PlannedJob(aJob, fire.getFireTime());
+        Long token = fencingToken;
+        if (token == null) {
+          dao.addToQueue(pj);
+        } else {
+          dao.addToQueue(pj, token);
+        }
+      } catch (RuntimeException ex) {
+        LOG.error("Could not enqueue job " + aJob.getId() + " for " +
+          fire.getFireTime(), ex);
+      }
+    }
+    Long token = fencingToken;
+    if (token == null) {
+      dao.setLastEvaluated(now);
+    } else if (!dao.setLastEvaluated(now, token)) {
+      LOG.warn("Lost driver leadership " + token + " while evaluating");
+      loseLeadership();
+    }
+    awaitNextFire();
+  }
+
+  /**
+   * Renews the leadership of this driver, or tries to become the leader.
+   *
+   * @return whether this driver leads
+   */
+  private boolean holdLeadership() {
+    long now = System.currentTimeMillis();
+    DateTime leaseUntil = new DateTime(now + LEADER_LEASE);
     try {
-      LOG.info(String.format("Sleeping for %d seconds...", (SLEEP_FOR / 1000)));
-      Thread.sleep(SLEEP_FOR);
-    } catch (InterruptedException e) {
-      e.printStackTrace();
+      Long token = fencingToken;
+      if (token != null) {
+        if (dao.renewLeadership(candidateId, token, leaseUntil)) {
+          return true;
+        }
+        LOG.warn("Lost driver leadership " + token);
+        reporting.mark("chronos.agentdriver.leadershiplost");
+        loseLeadership();
+      }
+      token = dao.acquireLeadership(candidateId, new DateTime(now),
+        leaseUntil);
+      if (token != null) {
+        LOG.info("Became the driver leader with fencing token " + token);
+        reporting.mark("chronos.agentdriver.leadershipacquired");
+        fencingToken = token;
+        return true;
+      }
+    } catch (RuntimeException ex) {
+      LOG.error("Could not hold driver leadership", ex);
     }
+    return false;
+  }
+
+  /**
+   * Forgets the leadership and the schedule armed under it, so jobChanged
+   * stops re-arming jobs until this driver leads again.
+   */
+  private void loseLeadership() {
+    fencingToken = null;
+    schedule.clear();
+  }
+
+  /**
+   * Applies the catch-up policy to the fires that are due at now. Fires
+   * before now were missed.
+   */
+  private List<JobSchedule.Fire> selectFires(List<JobSchedule.Fire> due,
+                                             DateTime now) {
+    if (catchUpPolicy == CatchUpPolicy.ALL) {
+      return due;
+    }
+    List<JobSchedule.Fire> toRet = new ArrayList<>();
+    if (catchUpPolicy == CatchUpPolicy.LATEST) {
+      Map<Long, JobSchedule.Fire> latest = new LinkedHashMap<>();
+      for (JobSchedule.Fire fire : due) {
+        latest.remove(fire.getJobSpec().getId());
+        latest.put(fire.getJobSpec().getId(), fire);
+      }
+      toRet.addAll(latest.values());
+    } else {
+      for (JobSchedule.Fire fire : due) {
+        if (fire.getFireTime().equals(now)) {
+          toRet.add(fire);
+        }
+      }
+    }
+    if (toRet.size() < due.size()) {
+      LOG.warn(String.format("Skipped %d missed runs",
+        due.size() - toRet.size()));
+    }
+    return toRet;
+  }
+
+  /**
+   * Waits until the earliest scheduled job is due, or until the schedule
+   * changes. When nothing is due sooner the driver still wakes up after at
+   * most SLEEP_FOR millis, on a minute boundary when SLEEP_FOR is at least a
+   * minute.
+   */
+  private void awaitNextFire() {
+    long current = System.currentTimeMillis();
+    long deadline = current + SLEEP_FOR;
+    if (SLEEP_FOR >= MINUTE) {
+      deadline -= deadline % MINUTE;
+    }
+    DateTime next = schedule.getNextFireTime();
+    if (next != null) {
+      deadline = Math.min(deadline, next.getMillis());
+    }
+    if (leaderElection) {
+      // renew the lease well before it runs out
+      deadline = Math.min(deadline, current + LEADER_LEASE / 3);
+    }
+    long wait = deadline - current;
+    if (wait <= 0) {
+      return;
+    }
+    LOG.info(String.format("Sleeping for %d seconds...", (wait / 1000)));
+    await(wait);
+  }
+
+  private void await(long wait) {
+    if (wait <= 0) {
+      return;
+    }
+    synchronized (scheduleLock) {
+      if (wakeRequested) {
+        return;
+      }
+      try {
+        scheduleLock.wait(wait);
+      } catch (InterruptedException e) {
+        LOG.error(e);
+      }
+    }
+  }
+
+  public void wakeUp() {
+    synchronized (scheduleLock) {
+      wakeRequested = true;
+      scheduleLock.notifyAll();
+    }
+  }
+
+  @Override
+  public void jobChanged(long id) {
+    if (schedule.getLoadedAt() == null) {
+      return;
+    }
+    JobSpec aJob = dao.getJob(id);
+    if (aJob == null) {
+      schedule.remove(id);
+    } else {
+      schedule.put(aJob, Utils.getCurrentTime().minusMinutes(1));
+    }
+    wakeUp();
+  }
+
+  @Override
+  public void jobDeleted(long id) {
+    schedule.remove(id);
+    wakeUp();
   }
 
   @Override
   public void run() {
     while (isAlive) {
-      doRun();
+      try {
+        doRun();
+      } catch (RuntimeException ex) {
+        LOG.error("Exception when running driver:", ex);
+        // a due fire would make doRun fail again right away
+        await(LEADER_LEASE / 3);
+      }
     }
   }
 
   @Override
   public void close() throws IOException {
     super.close();
+    wakeUp();
+    Long token = fencingToken;
+    if (token != null) {
+      fencingToken = null;
+      try {
+        dao.releaseLeadership(candidateId, token);
+      } catch (RuntimeException ex) {
+        LOG.error("Could not release driver leadership " + token, ex);
+      }
+    }
     if (dao != null) {
       dao.close();
     }
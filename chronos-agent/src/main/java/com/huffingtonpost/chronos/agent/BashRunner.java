@@ -5,6 +5,7 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.concurrent.ThreadFactory;
 
 import com.huffingtonpost.chronos.persist.BackendException;
 
@@ -15,11 +16,19 @@ public class BashRunner {
   Runtime rt;
   StreamConsumer stdout;
   StreamConsumer stderr;
+  ThreadFactory threadFactory = JobThreads.PLATFORM;
   
   public void init() {
     rt = Runtime.getRuntime();
   }
 
+  /**
+   * @param threadFactory creates the threads that read stdout and stderr
+   */
+  public void setThreadFactory(ThreadFactory threadFactory) {
+    this.threadFactory = threadFactory;
+  }
+
   public void clean() {
     if (stdout != null) {
       try {
@@ -47,14 +56,16 @@ public class BashRunner {
       Process p = pb.start();
       stdout = new StreamConsumer(p.getInputStream());
       stderr = new StreamConsumer(p.getErrorStream());
+      Thread stdoutThread = threadFactory.newThread(stdout);
+      Thread stderrThread = threadFactory.newThread(stderr);
       
-      stdout.start();
-      stderr.start();
+      stdoutThread.start();
+      stderrThread.start();
       
       exitStatus = p.waitFor();
 
-      stdout.join();
-      stderr.join();
+      stdoutThread.join();
+      stderrThread.join();
 
       stdout.close();
       stderr.close();
@@ -72,7 +83,7 @@ public class BashRunner {
     return stderr.getStream().toString();
   }
   
-  private class StreamConsumer extends Thread implements Closeable {
+  private class StreamConsumer implements Runnable, Closeable {
     InputStream is;
     StringBuilder sb;
     private volatile boolean running = true;
@@ -1,16 +1,22 @@
 package com.huffingtonpost.chronos.agent;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.huffingtonpost.chronos.model.Backfill;
 import com.huffingtonpost.chronos.model.JobDao;
 import com.huffingtonpost.chronos.model.JobSpec;
 import com.huffingtonpost.chronos.model.MailInfo;
 import com.huffingtonpost.chronos.model.PlannedJob;
+import com.huffingtonpost.chronos.model.RunStateListener;
 import com.huffingtonpost.chronos.persist.BackendException;
 import org.apache.log4j.Logger;
 
 import javax.mail.Session;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
@@ -43,6 +49,10 @@ public abstract class CallableJob implements Callable<Void> {
   protected Session session;
   protected MailInfo mailInfo;
   protected int attemptNumber;
+  @JsonIgnore
+  protected RunListener runListener;
+  @JsonIgnore
+  protected ThreadFactory threadFactory = JobThreads.PLATFORM;
   
   public void begin() {
     String jobName = plannedJob.getJobSpec().getName();
@@ -71,11 +81,62 @@ public abstract class CallableJob implements Callable<Void> {
     finish.set(System.currentTimeMillis());
     reporting.histogram("chronos.query." + jobName + "." + "querytime",
         finish.get() - start.get());
-    dao.updateJobRun(this);
+    dao.finishJobRun(this, new RunStateListener() {
+      @Override
+      public void stateWritten(boolean held) {
+        handOff(held);
+      }
+    });
+  }
+
+  /**
+   * Queues the children of the run and tells the RunListener it finished,
+   * once its finish is written.
+   *
+   * @param held false when another agent reaped the run
+   */
+  private void handOff(boolean held) {
+    String jobName = plannedJob.getJobSpec().getName();
+    if (!held) {
+      // another agent reaped the run and retries it, nothing that follows
+      // the run must happen twice
+      LOG.warn(String.format("Lost the lease of run %d of %s", jobId,
+        jobName));
+      reporting.mark("chronos.query." + jobName + "." + "leaselost");
+      return;
+    }
+    if (plannedJob.getPipelineId() == null || runListener == null) {
+      queueChildren(Collections.<Long>emptySet());
+    }
+    if (runListener != null) {
+      runListener.runFinished(this);
+    }
+  }
+
+  /**
+   * Queues the children that run after how this run ended, but the ones in
+   * leaveOut. The children of a run in a pipeline are queued once its last
+   * attempt ended, by the RunListener.
+   */
+  void queueChildren(Collection<Long> leaveOut) {
     final Long jobId = plannedJob.getJobSpec().getId();
-    List<JobSpec> children = dao.getChildren(jobId);
-    for (JobSpec aChild : children) {
-      dao.addToQueue(new PlannedJob(aChild, plannedJob.getReplaceTime()));
+    List<PlannedJob> toQueue = new ArrayList<>();
+    for (JobSpec aChild : dao.getChildren(jobId)) {
+      if (!leaveOut.contains(aChild.getId()) &&
+          aChild.getRunOn().runsAfter(isSuccess())) {
+        toQueue.add(new PlannedJob(aChild, plannedJob.getReplaceTime()));
+      }
+    }
+    if (plannedJob.getBackfillId() == null) {
+      for (PlannedJob aChild : toQueue) {
+        dao.addToQueue(aChild);
+      }
+    } else if (!toQueue.isEmpty()) {
+      // children of a backfill run are only rerun as part of the backfill
+      Backfill backfill = dao.getBackfill(plannedJob.getBackfillId());
+      if (backfill != null && backfill.isIncludeChildren()) {
+        dao.queueBackfill(backfill, toQueue);
+      }
     }
   }
 
@@ -115,6 +176,27 @@ public abstract class CallableJob implements Callable<Void> {
     return plannedJob;
   }
 
+  @JsonIgnore
+  public RunListener getRunListener() {
+    return runListener;
+  }
+
+  public void setRunListener(RunListener runListener) {
+    this.runListener = runListener;
+  }
+
+  @JsonIgnore
+  public ThreadFactory getThreadFactory() {
+    return threadFactory;
+  }
+
+  /**
+   * @param threadFactory creates the threads the job starts itself
+   */
+  public void setThreadFactory(ThreadFactory threadFactory) {
+    this.threadFactory = threadFactory;
+  }
+
   public void setReplacedCode() {
     Long id = plannedJob.getJobSpec().getId();
     JobSpec currJob = dao.getJob(id);
@@ -167,4 +249,27 @@ public abstract class CallableJob implements Callable<Void> {
   public int getAttemptNumber() {
     return attemptNumber;
   }
+
+  /**
+   * Rebuilds a run that was read back from the columns of job_runs. The run
+   * has no dao and cannot be called, but can be inspected and saved again.
+   */
+  public static CallableJob restore(PlannedJob plannedJob, int attemptNumber) {
+    CallableJob toRet =
+      plannedJob.getJobSpec().getType() == JobSpec.JobType.Script ?
+        new CallableScript() : new CallableQuery();
+    toRet.plannedJob = plannedJob;
+    toRet.attemptNumber = attemptNumber;
+    toRet.restoreReplacedCode();
+    return toRet;
+  }
+
+  /**
+   * Recomputes what the constructors derive from the planned job.
+   */
+  protected void restoreReplacedCode() {
+    String code = plannedJob.getJobSpec().getCode();
+    replacedCode = code == null ? null :
+      QueryReplaceUtil.replaceDateValues(code, plannedJob.getReplaceTime());
+  }
 }
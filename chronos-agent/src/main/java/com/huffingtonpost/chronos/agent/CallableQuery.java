@@ -16,12 +16,10 @@ import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
-import javax.mail.util.ByteArrayDataSource;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.StringWriter;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.List;
@@ -44,6 +42,7 @@ public class CallableQuery extends CallableJob implements Callable<Void>  {
   public static final String NULL = "NULL";
   public static final String QUERY_SPLITTER = ";";
   private static final long MAX_RESULTS_IN_BODY = 500;
+  private static int reportFetchSize = 1000;
 
   private String reportRootPath = null;
   
@@ -102,13 +101,22 @@ public class CallableQuery extends CallableJob implements Callable<Void>  {
         throw new BackendException(ex);
       }
       if (replacedReportQuery != null && !replacedReportQuery.isEmpty()) {
-        PersistentResultSet results = doReportStep(conn, replacedReportQuery);
-        String content = createMessageContent (results, currJob, this.getReplacedReportQuery());
-        DataSource attachment = createAttachment(results);
-        if (reportRootPath != null) {
-          writeReportToLocal(results, reportRootPath, plannedJob);
+        InlineHtmlSink inline = new InlineHtmlSink(MAX_RESULTS_IN_BODY);
+        try (SpooledAttachmentSink attachment = new SpooledAttachmentSink();
+             LocalReportSink local = reportRootPath == null ? null :
+               createLocalSink(getJobReportFile(reportRootPath, plannedJob),
+                 currJob.getReportFormat())) {
+          List<ReportSink> sinks = new ArrayList<>();
+          sinks.add(inline);
+          sinks.add(attachment);
+          if (local != null) {
+            sinks.add(local);
+          }
+          doReportStep(conn, replacedReportQuery, sinks);
+          String content =
+            createMessageContent(inline.getHtml(), this.getReplacedReportQuery());
+          sendEmail(mailInfo, attachment.getDataSource(), content, currJob);
         }
-        sendEmail(mailInfo, attachment, content, currJob);
       }
     } catch (Exception ex) {
       throw new RuntimeException(ex);
@@ -124,57 +132,85 @@ public class CallableQuery extends CallableJob implements Callable<Void>  {
 
   public static String getJobReportPath(String reportJobPath, PlannedJob plannedJob) {
     String dt = COMPLETED_DT_FMT.print(plannedJob.getReplaceTime());
-    return reportJobPath + File.separator + dt + ".tsv";
+    return reportJobPath + File.separator + dt +
+      plannedJob.getJobSpec().getReportFormat().getExtension();
   }
 
-  @VisibleForTesting
-  public static void writeReportToLocal(PersistentResultSet result, String rootPath, PlannedJob plannedJob) {
-    String reportJobPath = getJobReportDir(rootPath, plannedJob);
-    String reportPath = getJobReportPath(reportJobPath, plannedJob);
+  public static File getJobReportFile(String rootPath, PlannedJob plannedJob) {
+    return new File(getJobReportPath(getJobReportDir(rootPath, plannedJob),
+      plannedJob));
+  }
 
-    //ensure dir exists
-    boolean dirCreated = new File(reportJobPath).mkdirs();
+  public static LocalReportSink createLocalSink(File file,
+                                                ReportFormat format) {
+    switch (format) {
+      case TSV_GZIP:
+        return new TsvFileSink(file, true);
+      case BINARY:
+        return new TypedBinarySink(file);
+      default:
+        return new TsvFileSink(file);
+    }
+  }
 
-    FileWriter fw = null;
-    BufferedWriter bw = null;
-    try {
-      fw = new FileWriter(new File(reportPath));
-      bw = new BufferedWriter(fw);
-      for (String columnName : result.getColumnNames()) {
-        bw.write(columnName);
-        bw.write(TAB);
+  /**
+   * Sets how many rows are fetched per round trip while streaming a report.
+   * MySQL only honours it with useCursorFetch=true on the connection url.
+   */
+  public static void setReportFetchSize(int fetchSize) {
+    reportFetchSize = fetchSize;
+  }
+
+  /**
+   * Passes a result set that is already in memory to a sink.
+   */
+  public static void feed(PersistentResultSet results, ReportSink sink)
+      throws IOException {
+    sink.start(results.getColumnNames(), results.getColumnTypes());
+    for (List<Object> line : results.getData()) {
+      sink.row(line.toArray());
+    }
+    sink.finish();
+  }
+
+  /**
+   * Reads rs once and passes each row to every sink.
+   */
+  public static void streamReport(ResultSet rs, List<ReportSink> sinks)
+      throws SQLException, IOException {
+    ResultSetMetaData rsmd = rs.getMetaData();
+    int columnCount = rsmd.getColumnCount();
+    List<String> columnNames = new ArrayList<>();
+    List<String> columnTypes = new ArrayList<>();
+    for (int i = 1 ; i <= columnCount ; i++) {
+      columnNames.add(rsmd.getColumnName(i));
+      columnTypes.add(rsmd.getColumnTypeName(i));
+    }
+    for (ReportSink sink : sinks) {
+      sink.start(columnNames, columnTypes);
+    }
+    Object[] row = new Object[columnCount];
+    while (rs.next()) {
+      for (int i = 1 ; i <= columnCount ; i++) {
+        row[i - 1] = rs.getObject(i);
       }
-      bw.write(ENTER);
-
-      for (List<Object> line : result.getData()) {
-        for (Object element : line) {
-          if (element == null) {
-            bw.write(NULL);
-          } else {
-            bw.write(element.toString());
-          }
-          bw.write(TAB);
-        }
-        bw.write(ENTER);
+      for (ReportSink sink : sinks) {
+        sink.row(row);
       }
+    }
+    for (ReportSink sink : sinks) {
+      sink.finish();
+    }
+  }
 
+  @VisibleForTesting
+  public static void writeReportToLocal(PersistentResultSet result, String rootPath, PlannedJob plannedJob) {
+    try (LocalReportSink sink =
+           createLocalSink(getJobReportFile(rootPath, plannedJob),
+             plannedJob.getJobSpec().getReportFormat())) {
+      feed(result, sink);
     } catch (IOException e) {
-      LOG.error("Cannot write file in " + reportPath + ". Dirs created: " + dirCreated);
-    } finally {
-      if (bw != null) {
-        try {
-          bw.close();
-        } catch (IOException e) {
-          LOG.error(e);
-        }
-      }
-      if (fw != null) {
-        try {
-          fw.close();
-        } catch (IOException e) {
-          LOG.error(e);
-        }
-      }
+      LOG.error(e);
     }
   }
 
@@ -221,9 +257,15 @@ public class CallableQuery extends CallableJob implements Callable<Void>  {
   @VisibleForTesting
   public static String createMessageContent(PersistentResultSet results, JobSpec spec,
                                              String replacedReportQuery) {
+    return createMessageContent(createInlineResults(results, spec),
+      replacedReportQuery);
+  }
+
+  private static String createMessageContent(CharSequence inlineResults,
+                                             String replacedReportQuery) {
     StringBuilder sb = new StringBuilder();
     sb.append("<br>");
-    sb.append(createInlineResults(results, spec));
+    sb.append(inlineResults);
     sb.append("<br>");
     sb.append("<pre> Query: " + replacedReportQuery + "</pre>");
     sb.append("<br>");
@@ -232,81 +274,34 @@ public class CallableQuery extends CallableJob implements Callable<Void>  {
   }
 
   public static StringBuilder createInlineResults(PersistentResultSet results, JobSpec spec) {
-    StringBuilder sb = new StringBuilder();
-    sb.append("<table border='1' cellspacing='0' cellpadding='2' align='center' style='width:100%'>\n");
-      sb.append("<tr>\n");
-      for (int i = 0 ; i < results.getColumnNames().size() ; i++) {
-        sb.append("<th style='padding: 5px'>");
-        sb.append(results.getColumnNames().get(i));
-        sb.append("</th>\n");
-      }
-      sb.append("</tr>\n");
-      long rowsInEmail = results.getData().size() > MAX_RESULTS_IN_BODY ?
-              MAX_RESULTS_IN_BODY : results.getData().size();
-      for (int i = 0 ; i < rowsInEmail ; i++) {
-        sb.append("<tr>\n");
-        for (int j = 0 ; j < results.getData().get(i).size() ; j++) {
-          sb.append("<td style='padding: 5px'>");
-          sb.append(results.getData().get(i).get(j));
-          sb.append("</td>\n");
-        }
-        sb.append("</tr>\n");
-      } 
-    sb.append("</table>\n");
-    return sb;
-  }
-
-  public static String makeAttachmentText(PersistentResultSet results) {
-    StringBuilder sb = new StringBuilder();
-    for (int i = 0 ; i < results.getColumnNames().size() ; i++) {
-      sb.append(results.getColumnNames().get(i))
-        .append("(").append(results.getColumnTypes().get(i)).append(")");
-      if (i != results.getColumnNames().size() - 1) {
-        sb.append('\t');
-      }
-    }
-    sb.append('\n');
-    for (int i = 0 ; i < results.getData().size() ; i++) {
-      for (int j = 0 ; j < results.getData().get(i).size() ; j++) {
-        sb.append(results.getData().get(i).get(j));
-        if (j != results.getData().get(i).size() - 1) {
-          sb.append('\t');
-        }
-      }
-      sb.append('\n');
+    InlineHtmlSink sink = new InlineHtmlSink(MAX_RESULTS_IN_BODY);
+    try {
+      feed(results, sink);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
     }
-    return sb.toString();
+    return sink.getHtml();
   }
 
-  @CoverageIgnore
-  private static DataSource createAttachment(PersistentResultSet results) {
+  public static String makeAttachmentText(PersistentResultSet results) {
+    StringWriter sw = new StringWriter();
     try {
-      String text = makeAttachmentText(results);
-      DataSource source = new ByteArrayDataSource(text, TSV);
-      return source;
+      feed(results, new SpooledAttachmentSink(sw));
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
+    return sw.toString();
   }
 
-  private PersistentResultSet doReportStep(Connection conn, String replacedReportQuery) throws SQLException {
-    PersistentResultSet r = new PersistentResultSet();
-    try (Statement statement = conn.createStatement();
-            ResultSet rs = statement.executeQuery(replacedReportQuery)) {
-      ResultSetMetaData rsmd = rs.getMetaData();
-      for (int i=1;i <= rsmd.getColumnCount(); i++) {
-        r.getColumnNames().add(rsmd.getColumnName(i));
-        r.getColumnTypes().add(rsmd.getColumnTypeName(i));
-      }
-      while (rs.next()) {
-        List<Object> row = new ArrayList<>();
-        for (int i = 1 ; i <= rsmd.getColumnCount() ; i++) {
-          row.add(rs.getObject(i));
-        }
-        r.getData().add(row);
+  private void doReportStep(Connection conn, String replacedReportQuery,
+                            List<ReportSink> sinks)
+      throws SQLException, IOException {
+    try (Statement statement = conn.createStatement()) {
+      statement.setFetchSize(reportFetchSize);
+      try (ResultSet rs = statement.executeQuery(replacedReportQuery)) {
+        streamReport(rs, sinks);
       }
     }
-    return r;
   }
 
   private void doStep(JobSpec jobSpec, String query, Statement statement) throws SQLException {
@@ -328,9 +323,9 @@ public class CallableQuery extends CallableJob implements Callable<Void>  {
 
   private Connection getConnectionForJobSpec(JobSpec jobSpec) {
     try {
-      Class.forName(driver.getDriverName());
-      return DriverManager.getConnection(driver.getConnectionUrl(), jobSpec.getUser(), jobSpec.getPassword());
-    } catch (ClassNotFoundException | SQLException e) {
+      return dao.getConnectionPools().getConnection(driver,
+        jobSpec.getUser(), jobSpec.getPassword());
+    } catch (SQLException e) {
       throw new RuntimeException(e);
     }
   }
@@ -341,6 +336,15 @@ public class CallableQuery extends CallableJob implements Callable<Void>  {
 
   public String getReplacedReportQuery() { return replacedReportQuery; }
 
+  @Override
+  protected void restoreReplacedCode() {
+    super.restoreReplacedCode();
+    String resultQuery = plannedJob.getJobSpec().getResultQuery();
+    replacedReportQuery = resultQuery == null ? null :
+      QueryReplaceUtil.replaceDateValues(resultQuery,
+        plannedJob.getReplaceTime());
+  }
+
   @Override
   public String toString() {
     StringBuilder builder = new StringBuilder();
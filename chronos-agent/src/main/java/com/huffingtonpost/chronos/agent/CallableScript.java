@@ -44,6 +44,7 @@ public class CallableScript extends CallableJob {
     String jobName = plannedJob.getJobSpec().getName();
     String aCommand = replacedCode;
     try {
+      runner.setThreadFactory(threadFactory);
       int exitCode = runner.exec(aCommand);
       if (exitCode == BashRunner.SUCCESS) {
         reporting.mark("chronos.query." + jobName + "." + "passed");
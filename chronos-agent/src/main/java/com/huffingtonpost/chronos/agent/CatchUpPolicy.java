@@ -0,0 +1,15 @@
+package com.huffingtonpost.chronos.agent;
+
+/**
+ * What the AgentDriver does with fire times it missed, e.g. because it was
+ * paused or not running. Either way only the fire times within its
+ * maxCatchUpMinutes are considered.
+ */
+public enum CatchUpPolicy {
+  /** Enqueue every missed fire time. */
+  ALL,
+  /** Enqueue only the latest missed fire time of each job. */
+  LATEST,
+  /** Skip missed fire times. */
+  NONE
+}
@@ -0,0 +1,58 @@
+package com.huffingtonpost.chronos.agent;
+
+import java.util.List;
+
+/**
+ * Renders the first maxRows rows of a report as an HTML table for the body
+ * of the result email.
+ */
+public class InlineHtmlSink implements ReportSink {
+
+  private final long maxRows;
+  private final StringBuilder sb = new StringBuilder();
+  private long rows = 0;
+
+  public InlineHtmlSink(long maxRows) {
+    this.maxRows = maxRows;
+  }
+
+  @Override
+  public void start(List<String> columnNames, List<String> columnTypes) {
+    sb.append("<table border='1' cellspacing='0' cellpadding='2' align='center' style='width:100%'>\n");
+    sb.append("<tr>\n");
+    for (String columnName : columnNames) {
+      sb.append("<th style='padding: 5px'>");
+      sb.append(columnName);
+      sb.append("</th>\n");
+    }
+    sb.append("</tr>\n");
+  }
+
+  @Override
+  public void row(Object[] values) {
+    if (rows >= maxRows) {
+      return;
+    }
+    rows++;
+    sb.append("<tr>\n");
+    for (Object value : values) {
+      sb.append("<td style='padding: 5px'>");
+      sb.append(value);
+      sb.append("</td>\n");
+    }
+    sb.append("</tr>\n");
+  }
+
+  @Override
+  public void finish() {
+    sb.append("</table>\n");
+  }
+
+  public StringBuilder getHtml() {
+    return sb;
+  }
+
+  @Override
+  public void close() {
+  }
+}
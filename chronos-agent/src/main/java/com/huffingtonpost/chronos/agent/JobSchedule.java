@@ -0,0 +1,208 @@
+package com.huffingtonpost.chronos.agent;
+
+import com.huffingtonpost.chronos.model.JobSpec;
+import com.huffingtonpost.chronos.util.CronExpression;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * In-memory index of the scheduled jobs ordered by their next fire time.
+ * Each job's cron string is parsed once when it is armed, and polling for
+ * due jobs only touches the jobs that are due, so the AgentDriver does not
+ * need to evaluate every job every minute.
+ *
+ * Entries that are replaced or removed are only marked as cancelled and are
+ * dropped when they reach the head of the heap.
+ */
+public class JobSchedule {
+  public static Logger LOG = Logger.getLogger(JobSchedule.class);
+
+  /**
+   * A job that was due at fireTime.
+   */
+  public static class Fire {
+    private final JobSpec jobSpec;
+    private final DateTime fireTime;
+
+    public Fire(JobSpec jobSpec, DateTime fireTime) {
+      this.jobSpec = jobSpec;
+      this.fireTime = fireTime;
+    }
+
+    public JobSpec getJobSpec() {
+      return jobSpec;
+    }
+
+    public DateTime getFireTime() {
+      return fireTime;
+    }
+  }
+
+  private static class Entry {
+    private final JobSpec jobSpec;
+    private final CronExpression ce;
+    private DateTime nextFire;
+    private DateTime lastFired;
+    private boolean cancelled = false;
+
+    private Entry(JobSpec jobSpec, CronExpression ce) {
+      this.jobSpec = jobSpec;
+      this.ce = ce;
+    }
+  }
+
+  private static final Comparator<Entry> BY_NEXT_FIRE =
+    new Comparator<Entry>() {
+      @Override
+      public int compare(Entry a, Entry b) {
+        int cmp = a.nextFire.compareTo(b.nextFire);
+        if (cmp != 0) {
+          return cmp;
+        }
+        return Long.compare(a.jobSpec.getId(), b.jobSpec.getId());
+      }
+    };
+
+  private final Map<Long, Entry> entries = new HashMap<>();
+  private final PriorityQueue<Entry> byNextFire =
+    new PriorityQueue<>(64, BY_NEXT_FIRE);
+  private DateTime loadedAt = null;
+
+  public static boolean isScheduled(JobSpec aJob) {
+    return aJob.getParent() == null && aJob.isEnabled() &&
+      aJob.getCronString() != null;
+  }
+
+  /**
+   * Replaces the whole index with jobs, keeping the entries of jobs that
+   * have not changed since they were armed. New and changed jobs are armed
+   * for their first fire time after the given instant.
+   */
+  public synchronized void load(List<JobSpec> jobs, DateTime after,
+                                DateTime now) {
+    Set<Long> seen = new HashSet<>();
+    for (JobSpec aJob : jobs) {
+      seen.add(aJob.getId());
+      put(aJob, after);
+    }
+    for (Long id : new ArrayList<>(entries.keySet())) {
+      if (!seen.contains(id)) {
+        remove(id);
+      }
+    }
+    loadedAt = now;
+  }
+
+  /**
+   * Empties the index. The next load arms every job afresh instead of
+   * keeping the fire times of the entries it had.
+   */
+  public synchronized void clear() {
+    for (Entry entry : entries.values()) {
+      entry.cancelled = true;
+    }
+    entries.clear();
+    byNextFire.clear();
+    loadedAt = null;
+  }
+
+  public synchronized DateTime getLoadedAt() {
+    return loadedAt;
+  }
+
+  /**
+   * Arms aJob for its first fire time after the given instant, or after the
+   * time it last fired if that is later, so a job is never fired twice for
+   * the same minute.
+   */
+  public synchronized void put(JobSpec aJob, DateTime after) {
+    Entry existing = entries.get(aJob.getId());
+    if (existing != null && !existing.cancelled &&
+        sameVersion(existing.jobSpec, aJob)) {
+      return;
+    }
+    remove(aJob.getId());
+    if (!isScheduled(aJob)) {
+      return;
+    }
+    if (existing != null && existing.lastFired != null &&
+        existing.lastFired.isAfter(after)) {
+      after = existing.lastFired;
+    }
+    Entry entry;
+    try {
+      entry = new Entry(aJob,
+        CronExpression.createWithoutSeconds(aJob.getCronString()));
+      entry.nextFire = entry.ce.nextTimeAfter(after);
+    } catch (IllegalArgumentException ex) {
+      LOG.warn("Not scheduling job " + aJob.getId() + ": " + ex.getMessage());
+      return;
+    }
+    entry.lastFired = existing == null ? null : existing.lastFired;
+    entries.put(aJob.getId(), entry);
+    byNextFire.add(entry);
+  }
+
+  public synchronized void remove(long id) {
+    Entry existing = entries.remove(id);
+    if (existing != null) {
+      existing.cancelled = true;
+    }
+  }
+
+  public synchronized DateTime getNextFireTime() {
+    Entry head = peek();
+    return head == null ? null : head.nextFire;
+  }
+
+  /**
+   * Removes and returns every fire at or before now, in fire time order,
+   * re-arming each job for its following fire time.
+   */
+  public synchronized List<Fire> pollDue(DateTime now) {
+    List<Fire> toRet = new ArrayList<>();
+    Entry head;
+    while ((head = peek()) != null && !head.nextFire.isAfter(now)) {
+      byNextFire.poll();
+      toRet.add(new Fire(head.jobSpec, head.nextFire));
+      head.lastFired = head.nextFire;
+      try {
+        head.nextFire = head.ce.nextTimeAfter(head.nextFire);
+        byNextFire.add(head);
+      } catch (IllegalArgumentException ex) {
+        LOG.warn("Job " + head.jobSpec.getId() + " will not fire again: " +
+          ex.getMessage());
+        entries.remove(head.jobSpec.getId());
+      }
+    }
+    return toRet;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  private Entry peek() {
+    Entry head = byNextFire.peek();
+    while (head != null && head.cancelled) {
+      byNextFire.poll();
+      head = byNextFire.peek();
+    }
+    return head;
+  }
+
+  private static boolean sameVersion(JobSpec a, JobSpec b) {
+    return a.getLastModified() != null &&
+      a.getLastModified().equals(b.getLastModified());
+  }
+
+}
@@ -0,0 +1,69 @@
+package com.huffingtonpost.chronos.agent;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads jobs and their stream pumps run on. On a JDK with
+ * virtual threads (21 and later) these can be virtual, so jobs that spend
+ * their time waiting on JDBC or a process do not each hold an OS thread.
+ *
+ * The virtual thread API is looked up reflectively, the agent still builds
+ * and runs on older JDKs where only platform threads are available.
+ */
+public class JobThreads {
+
+  public static final ThreadFactory PLATFORM = new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      return new Thread(r);
+    }
+  };
+
+  private static final Method OF_VIRTUAL;
+  private static final Method BUILDER_NAME;
+  private static final Method BUILDER_FACTORY;
+
+  static {
+    Method ofVirtual = null;
+    Method name = null;
+    Method factory = null;
+    try {
+      Class<?> builder = Class.forName("java.lang.Thread$Builder");
+      ofVirtual = Thread.class.getMethod("ofVirtual");
+      name = builder.getMethod("name", String.class, long.class);
+      factory = builder.getMethod("factory");
+    } catch (ClassNotFoundException | NoSuchMethodException ex) {
+      ofVirtual = null;
+    }
+    OF_VIRTUAL = ofVirtual;
+    BUILDER_NAME = name;
+    BUILDER_FACTORY = factory;
+  }
+
+  public static boolean isVirtualSupported() {
+    return OF_VIRTUAL != null;
+  }
+
+  /**
+   * @return a factory of virtual threads named prefix followed by a counter
+   * @throws UnsupportedOperationException when the JDK has no virtual threads
+   */
+  public static ThreadFactory virtual(String prefix) {
+    if (!isVirtualSupported()) {
+      throw new UnsupportedOperationException(
+        "Virtual threads need JDK 21 or later, running on " +
+        System.getProperty("java.version"));
+    }
+    try {
+      Object builder = OF_VIRTUAL.invoke(null);
+      builder = BUILDER_NAME.invoke(builder, prefix, 0L);
+      return (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+    } catch (IllegalAccessException | InvocationTargetException ex) {
+      throw new UnsupportedOperationException(
+        "Could not create virtual threads", ex);
+    }
+  }
+
+}
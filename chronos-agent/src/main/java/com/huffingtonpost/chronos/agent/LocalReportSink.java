@@ -0,0 +1,145 @@
+package com.huffingtonpost.chronos.agent;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Base for sinks that save a report under the report root path. The report
+ * is written through a buffered FileChannel to a hidden temporary file next
+ * to the target, which is renamed to the target once the report is complete,
+ * so readers never see a partial report.
+ *
+ * A failure to write is logged and the rest of the report is dropped, it does
+ * not fail the job. The temporary file is then deleted, as it is when the
+ * sink is closed before finish().
+ */
+public abstract class LocalReportSink implements ReportSink {
+  public static Logger LOG = Logger.getLogger(LocalReportSink.class);
+
+  public static final String TEMP_PREFIX = ".";
+  public static final String TEMP_SUFFIX = ".tmp";
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final File file;
+  private final boolean gzip;
+  private Path temp = null;
+  private FileChannel channel = null;
+  private OutputStream out = null;
+
+  protected LocalReportSink(File file, boolean gzip) {
+    this.file = file;
+    this.gzip = gzip;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  protected abstract void writeStart(OutputStream out,
+    List<String> columnNames, List<String> columnTypes) throws IOException;
+
+  protected abstract void writeRow(Object[] values) throws IOException;
+
+  /**
+   * Flushes anything the subclass buffers on top of the stream.
+   */
+  protected abstract void writeFinish() throws IOException;
+
+  @Override
+  public void start(List<String> columnNames, List<String> columnTypes) {
+    boolean dirCreated = file.getParentFile().mkdirs();
+    try {
+      temp = new File(file.getParentFile(),
+        TEMP_PREFIX + file.getName() + TEMP_SUFFIX).toPath();
+      channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+      out = new BufferedOutputStream(Channels.newOutputStream(channel),
+        BUFFER_SIZE);
+      if (gzip) {
+        out = new GZIPOutputStream(out, BUFFER_SIZE);
+      }
+      writeStart(out, columnNames, columnTypes);
+    } catch (IOException e) {
+      LOG.error("Cannot write file in " + file + ". Dirs created: " +
+        dirCreated, e);
+      close();
+    }
+  }
+
+  @Override
+  public void row(Object[] values) {
+    if (out == null) {
+      return;
+    }
+    try {
+      writeRow(values);
+    } catch (IOException e) {
+      LOG.error("Cannot write file in " + file, e);
+      close();
+    }
+  }
+
+  @Override
+  public void finish() {
+    if (out == null) {
+      return;
+    }
+    try {
+      writeFinish();
+      out.close();
+      out = null;
+      channel = null;
+      try {
+        Files.move(temp, file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+      temp = null;
+    } catch (IOException e) {
+      LOG.error("Cannot write file in " + file, e);
+      close();
+    }
+  }
+
+  @Override
+  public void close() {
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        LOG.error(e);
+      }
+      out = null;
+    }
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        LOG.error(e);
+      }
+      channel = null;
+    }
+    if (temp != null) {
+      try {
+        Files.deleteIfExists(temp);
+      } catch (IOException e) {
+        LOG.error(e);
+      }
+      temp = null;
+    }
+  }
+}
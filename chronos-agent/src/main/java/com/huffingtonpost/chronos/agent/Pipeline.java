@@ -0,0 +1,278 @@
+package com.huffingtonpost.chronos.agent;
+
+import com.huffingtonpost.chronos.model.JobSpec;
+import com.huffingtonpost.chronos.model.PlannedJob;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * One run of a job and its descendants for the same replace time, planned
+ * from the current jobs and the runs of the pipeline so far.
+ *
+ * The pipeline holds every job reachable from the root through the parent
+ * of a job or its dependsOn. A job is ready once all its parents have
+ * ended. It runs if every parent ended the way its runOn asks for,
+ * otherwise it is skipped together with the jobs that depend on it.
+ *
+ * A job with a parent the root does not reach would also be part of the
+ * pipelines of its other roots and run once for each. It is left out, with
+ * the jobs that depend on it, and queued by its parent like outside a
+ * pipeline. Jobs that depend on each other in a cycle are left out too.
+ */
+public class Pipeline {
+  public static Logger LOG = Logger.getLogger(Pipeline.class);
+
+  private final String id;
+  private final PlannedJob root;
+  private final long startedAt;
+  private final Map<Long, JobSpec> jobs = new LinkedHashMap<>();
+  private final Map<Long, List<Long>> parents = new HashMap<>();
+  private final Map<Long, List<Long>> children = new HashMap<>();
+  private final Map<Long, Boolean> outcomes = new HashMap<>();
+  private final Set<Long> skipped = new HashSet<>();
+
+  /**
+   * @param allJobs the current version of every job, of which the ones
+   * reachable from the root of the pipeline are taken
+   */
+  public Pipeline(String id, PlannedJob root, List<JobSpec> allJobs,
+                  long startedAt) {
+    this.id = id;
+    this.root = root;
+    this.startedAt = startedAt;
+    Map<Long, List<JobSpec>> dependents = new HashMap<>();
+    for (JobSpec aJob : allJobs) {
+      for (Long parent : parentsOf(aJob)) {
+        List<JobSpec> list = dependents.get(parent);
+        if (list == null) {
+          list = new ArrayList<>();
+          dependents.put(parent, list);
+        }
+        list.add(aJob);
+      }
+    }
+    long rootId = root.getJobSpec().getId();
+    jobs.put(rootId, root.getJobSpec());
+    Deque<Long> toVisit = new ArrayDeque<>();
+    toVisit.add(rootId);
+    while (!toVisit.isEmpty()) {
+      List<JobSpec> found = dependents.get(toVisit.poll());
+      if (found == null) {
+        continue;
+      }
+      for (JobSpec aJob : found) {
+        if (!jobs.containsKey(aJob.getId())) {
+          jobs.put(aJob.getId(), aJob);
+          toVisit.add(aJob.getId());
+        }
+      }
+    }
+    dropPartlyReached(rootId);
+    for (JobSpec aJob : jobs.values()) {
+      List<Long> inPipeline = new ArrayList<>();
+      if (aJob.getId() != rootId) {
+        for (Long parent : parentsOf(aJob)) {
+          if (jobs.containsKey(parent) && !inPipeline.contains(parent)) {
+            inPipeline.add(parent);
+          }
+        }
+      }
+      parents.put(aJob.getId(), inPipeline);
+      children.put(aJob.getId(), new ArrayList<Long>());
+    }
+    for (Map.Entry<Long, List<Long>> entry : parents.entrySet()) {
+      for (Long parent : entry.getValue()) {
+        children.get(parent).add(entry.getKey());
+      }
+    }
+    dropCycles(rootId);
+  }
+
+  private static List<Long> parentsOf(JobSpec aJob) {
+    List<Long> toRet = new ArrayList<>();
+    if (aJob.getParent() != null) {
+      toRet.add(aJob.getParent());
+    }
+    if (aJob.getDependsOn() != null) {
+      toRet.addAll(aJob.getDependsOn());
+    }
+    return toRet;
+  }
+
+  /**
+   * Leaves out the jobs with a parent outside the pipeline, until every
+   * parent of every job but the root is in it.
+   */
+  private void dropPartlyReached(long rootId) {
+    boolean dropped = true;
+    while (dropped) {
+      dropped = false;
+      for (JobSpec aJob : new ArrayList<>(jobs.values())) {
+        if (aJob.getId() == rootId) {
+          continue;
+        }
+        for (Long parent : parentsOf(aJob)) {
+          if (!jobs.containsKey(parent)) {
+            LOG.info(String.format("Leaving %s out of pipeline %s, it also " +
+              "depends on job %d", aJob.getName(), id, parent));
+            jobs.remove(aJob.getId());
+            dropped = true;
+            break;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Leaves out the jobs that can never become ready because they depend on
+   * themselves, directly or not.
+   */
+  private void dropCycles(long rootId) {
+    Map<Long, Integer> waitingOn = new HashMap<>();
+    for (Map.Entry<Long, List<Long>> entry : parents.entrySet()) {
+      waitingOn.put(entry.getKey(), entry.getValue().size());
+    }
+    Set<Long> ordered = new HashSet<>();
+    Deque<Long> free = new ArrayDeque<>();
+    free.add(rootId);
+    while (!free.isEmpty()) {
+      Long next = free.poll();
+      ordered.add(next);
+      for (Long child : children.get(next)) {
+        int left = waitingOn.get(child) - 1;
+        waitingOn.put(child, left);
+        if (left == 0) {
+          free.add(child);
+        }
+      }
+    }
+    for (Long jobId : new ArrayList<>(jobs.keySet())) {
+      if (!ordered.contains(jobId)) {
+        LOG.warn(String.format("Leaving %s out of pipeline %s, it depends " +
+          "on itself", jobs.get(jobId).getName(), id));
+        jobs.remove(jobId);
+        parents.remove(jobId);
+        children.remove(jobId);
+      }
+    }
+    for (List<Long> list : children.values()) {
+      list.retainAll(jobs.keySet());
+    }
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public PlannedJob getRoot() {
+    return root;
+  }
+
+  public long getStartedAt() {
+    return startedAt;
+  }
+
+  /**
+   * @return how many jobs the pipeline runs at most, the root included
+   */
+  public int size() {
+    return jobs.size();
+  }
+
+  public boolean contains(long jobId) {
+    return jobs.containsKey(jobId);
+  }
+
+  public Set<Long> getJobIds() {
+    return Collections.unmodifiableSet(jobs.keySet());
+  }
+
+  /**
+   * Records how the last attempt of jobId ended.
+   *
+   * @return the jobs that are ready to run now, planned for the replace time
+   * of the pipeline
+   */
+  public synchronized List<PlannedJob> ended(long jobId, boolean success) {
+    if (!jobs.containsKey(jobId) || isEnded(jobId)) {
+      return Collections.emptyList();
+    }
+    outcomes.put(jobId, success);
+    List<PlannedJob> toRet = new ArrayList<>();
+    Deque<Long> toCheck = new ArrayDeque<>(children.get(jobId));
+    while (!toCheck.isEmpty()) {
+      Long child = toCheck.poll();
+      if (isEnded(child) || !allEnded(parents.get(child))) {
+        continue;
+      }
+      JobSpec aJob = jobs.get(child);
+      boolean runs = true;
+      for (Long parent : parents.get(child)) {
+        if (skipped.contains(parent) ||
+            !aJob.getRunOn().runsAfter(outcomes.get(parent))) {
+          runs = false;
+        }
+      }
+      if (runs) {
+        PlannedJob pj = new PlannedJob(aJob, root.getReplaceTime());
+        pj.setPipelineId(id);
+        pj.setBackfillId(root.getBackfillId());
+        toRet.add(pj);
+      } else {
+        LOG.info(String.format("Skipping %s in pipeline %s", aJob.getName(),
+          id));
+        skipped.add(child);
+        toCheck.addAll(children.get(child));
+      }
+    }
+    return toRet;
+  }
+
+  private boolean isEnded(Long jobId) {
+    return outcomes.containsKey(jobId) || skipped.contains(jobId);
+  }
+
+  private boolean allEnded(List<Long> jobIds) {
+    for (Long jobId : jobIds) {
+      if (!isEnded(jobId)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return whether every job of the pipeline ran or was skipped
+   */
+  public synchronized boolean isDone() {
+    return outcomes.size() + skipped.size() == jobs.size();
+  }
+
+  /**
+   * @return whether every job of the pipeline that ran succeeded
+   */
+  public synchronized boolean isSuccess() {
+    return !outcomes.containsValue(false);
+  }
+
+  public synchronized int getSkipped() {
+    return skipped.size();
+  }
+
+  @Override
+  public String toString() {
+    return "<Pipeline - id:" + id + ", root:" + root + ", jobs:" +
+      jobs.keySet() + ">";
+  }
+}
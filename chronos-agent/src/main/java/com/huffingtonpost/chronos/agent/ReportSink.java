@@ -0,0 +1,24 @@
+package com.huffingtonpost.chronos.agent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Receives the rows of a report query one at a time, so a report can be
+ * written to several destinations in a single pass without holding it in
+ * memory. The values array passed to row() is reused between rows.
+ */
+public interface ReportSink extends Closeable {
+
+  void start(List<String> columnNames, List<String> columnTypes)
+    throws IOException;
+
+  void row(Object[] values) throws IOException;
+
+  /**
+   * Called once all rows have been passed to row().
+   */
+  void finish() throws IOException;
+
+}
@@ -0,0 +1,106 @@
+package com.huffingtonpost.chronos.agent;
+
+import java.util.Random;
+
+/**
+ * How long the AgentConsumer waits before rerunning a failed job.
+ */
+public abstract class RetryPolicy {
+
+  /**
+   * @param failedAttempt the attempt number of the run that failed, starting
+   * at AgentConsumer.START_ATTEMPT_NUM
+   * @return the delay before the next attempt
+   */
+  public abstract long getDelayMillis(int failedAttempt);
+
+  public static RetryPolicy fixed(long delayMillis) {
+    return new Fixed(delayMillis);
+  }
+
+  /**
+   * The delay doubles after every failed attempt, up to maxDelayMillis.
+   */
+  public static RetryPolicy exponential(long initialDelayMillis,
+                                        long maxDelayMillis) {
+    return new Exponential(initialDelayMillis, maxDelayMillis);
+  }
+
+  /**
+   * A random delay between (1 - jitter) times and the delay of policy, so
+   * jobs that failed together are not all retried at once.
+   */
+  public static RetryPolicy jittered(RetryPolicy policy, double jitter) {
+    return new Jittered(policy, jitter);
+  }
+
+  public static class Fixed extends RetryPolicy {
+    private final long delayMillis;
+
+    public Fixed(long delayMillis) {
+      this.delayMillis = delayMillis;
+    }
+
+    @Override
+    public long getDelayMillis(int failedAttempt) {
+      return delayMillis;
+    }
+
+    @Override
+    public String toString() {
+      return "<Fixed - delayMillis:" + delayMillis + ">";
+    }
+  }
+
+  public static class Exponential extends RetryPolicy {
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+
+    public Exponential(long initialDelayMillis, long maxDelayMillis) {
+      this.initialDelayMillis = initialDelayMillis;
+      this.maxDelayMillis = maxDelayMillis;
+    }
+
+    @Override
+    public long getDelayMillis(int failedAttempt) {
+      int doublings = Math.max(0,
+        failedAttempt - AgentConsumer.START_ATTEMPT_NUM);
+      long delay = initialDelayMillis;
+      for (int i = 0; i < doublings && delay < maxDelayMillis; i++) {
+        delay *= 2;
+      }
+      return Math.min(delay, maxDelayMillis);
+    }
+
+    @Override
+    public String toString() {
+      return "<Exponential - initialDelayMillis:" + initialDelayMillis +
+        ", maxDelayMillis:" + maxDelayMillis + ">";
+    }
+  }
+
+  public static class Jittered extends RetryPolicy {
+    private final RetryPolicy policy;
+    private final double jitter;
+    private final Random random = new Random();
+
+    public Jittered(RetryPolicy policy, double jitter) {
+      if (jitter < 0 || jitter > 1) {
+        throw new IllegalArgumentException("jitter must be between 0 and 1");
+      }
+      this.policy = policy;
+      this.jitter = jitter;
+    }
+
+    @Override
+    public long getDelayMillis(int failedAttempt) {
+      long delay = policy.getDelayMillis(failedAttempt);
+      return delay - (long) (delay * jitter * random.nextDouble());
+    }
+
+    @Override
+    public String toString() {
+      return "<Jittered - policy:" + policy + ", jitter:" + jitter + ">";
+    }
+  }
+}
@@ -0,0 +1,11 @@
+package com.huffingtonpost.chronos.agent;
+
+/**
+ * Notified by a CallableJob once it has finished running and its final state
+ * has been written, from the thread of the run journal when there is one.
+ */
+public interface RunListener {
+
+  void runFinished(CallableJob cj);
+
+}
@@ -0,0 +1,248 @@
+package com.huffingtonpost.chronos.agent;
+
+import com.huffingtonpost.chronos.model.JobDao;
+import com.huffingtonpost.chronos.model.PlannedJob;
+import com.huffingtonpost.chronos.model.ReportFormat;
+import com.huffingtonpost.chronos.persist.WithSql;
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps job_runs small by deleting runs that are older than maxAgeDays, that
+ * are beyond the newest keepPerJob runs of their job, or both. Running jobs
+ * are never deleted.
+ *
+ * Every SLEEP_FOR millis expired runs are deleted in batches of at most
+ * batchSize rows, and at most maxBatches batches, so a large backlog is
+ * worked off over several passes without long running statements. When an
+ * archive directory is set every batch is first written to a compressed
+ * file there, and is only deleted once that file is complete. Archived runs
+ * keep the code of their job and the callable_job JSON they can be restored
+ * from.
+ */
+public class RunRetention extends Stoppable {
+  public static Logger LOG = Logger.getLogger(RunRetention.class);
+
+  public static final String ARCHIVE_PREFIX = "job_runs-";
+  public static final List<String> ARCHIVE_COLUMNS = Arrays.asList("id",
+    "job_id", "name", "replaceTime", "attemptNumber", "status", "start",
+    "finish", "exception", "code", "callable_job");
+  public static final List<String> ARCHIVE_TYPES = Arrays.asList("BIGINT",
+    "BIGINT", "VARCHAR", "TIMESTAMP", "INTEGER", "INTEGER", "TIMESTAMP",
+    "TIMESTAMP", "VARCHAR", "VARCHAR", "VARCHAR");
+  private static final DateTimeFormatter ARCHIVE_TIME =
+    DateTimeFormat.forPattern("yyyyMMdd-HHmmss-SSS").withZoneUTC();
+
+  private final JobDao dao;
+  private final Reporting reporting;
+  private final Thread me;
+
+  private volatile int maxAgeDays = 0;
+  private volatile int keepPerJob = 0;
+  private volatile int batchSize = 1000;
+  private volatile int maxBatches = 100;
+  private volatile File archiveDir = null;
+  private volatile ReportFormat archiveFormat = ReportFormat.BINARY;
+
+  private final Object sleepLock = new Object();
+  private final AtomicLong lastReclaimed = new AtomicLong(0);
+  private final AtomicLong lastDurationMillis = new AtomicLong(0);
+  private final AtomicLong totalReclaimed = new AtomicLong(0);
+
+  public RunRetention(JobDao dao, Reporting reporting) {
+    this.dao = dao;
+    this.reporting = reporting;
+    this.SLEEP_FOR = 60 * 60 * 1000;
+    me = new Thread(this);
+  }
+
+  public void init() {
+    me.start();
+  }
+
+  /**
+   * @param maxAgeDays runs not updated for longer are deleted, 0 disables
+   */
+  public void setMaxAgeDays(int maxAgeDays) {
+    this.maxAgeDays = maxAgeDays;
+  }
+
+  public int getMaxAgeDays() {
+    return maxAgeDays;
+  }
+
+  /**
+   * @param keepPerJob how many of the newest runs of every job are kept, 0
+   * disables
+   */
+  public void setKeepPerJob(int keepPerJob) {
+    this.keepPerJob = keepPerJob;
+  }
+
+  public int getKeepPerJob() {
+    return keepPerJob;
+  }
+
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  public void setMaxBatches(int maxBatches) {
+    this.maxBatches = maxBatches;
+  }
+
+  /**
+   * @param archiveDir where expired runs are saved before they are deleted,
+   * or null to only delete them
+   */
+  public void setArchiveDir(File archiveDir) {
+    this.archiveDir = archiveDir;
+  }
+
+  public void setArchiveFormat(ReportFormat archiveFormat) {
+    this.archiveFormat =
+      archiveFormat == null ? ReportFormat.BINARY : archiveFormat;
+  }
+
+  public long getLastReclaimed() {
+    return lastReclaimed.get();
+  }
+
+  public long getLastDurationMillis() {
+    return lastDurationMillis.get();
+  }
+
+  public long getTotalReclaimed() {
+    return totalReclaimed.get();
+  }
+
+  /**
+   * Deletes, and archives, up to maxBatches batches of expired runs.
+   *
+   * @return how many runs were deleted
+   */
+  public int purge() {
+    long begin = System.currentTimeMillis();
+    DateTime before = maxAgeDays > 0 ?
+      new DateTime().withZone(DateTimeZone.UTC).minusDays(maxAgeDays) : null;
+    int deleted = 0;
+    for (int batch = 0; batch < maxBatches && isAlive; batch++) {
+      Map<Long, CallableJob> expired =
+        dao.getExpiredJobRuns(before, keepPerJob, batchSize);
+      if (expired.isEmpty()) {
+        break;
+      }
+      if (archiveDir != null && !archive(expired)) {
+        break;
+      }
+      deleted += dao.deleteJobRuns(expired.keySet());
+      if (expired.size() < batchSize) {
+        break;
+      }
+    }
+    long took = System.currentTimeMillis() - begin;
+    lastReclaimed.set(deleted);
+    lastDurationMillis.set(took);
+    totalReclaimed.addAndGet(deleted);
+    reporting.histogram("chronos.retention.reclaimed", deleted);
+    reporting.histogram("chronos.retention.time", took);
+    LOG.info(String.format("Deleted %d expired job runs in %d ms", deleted,
+      took));
+    return deleted;
+  }
+
+  /**
+   * @return whether the runs were saved to a new file in the archive dir
+   */
+  private boolean archive(Map<Long, CallableJob> expired) {
+    Long first = expired.keySet().iterator().next();
+    File file = new File(archiveDir, ARCHIVE_PREFIX +
+      ARCHIVE_TIME.print(new DateTime()) + "-" + first +
+      archiveFormat.getExtension());
+    try (LocalReportSink sink =
+           CallableQuery.createLocalSink(file, archiveFormat)) {
+      sink.start(ARCHIVE_COLUMNS, ARCHIVE_TYPES);
+      Object[] values = new Object[ARCHIVE_COLUMNS.size()];
+      for (Map.Entry<Long, CallableJob> entry : expired.entrySet()) {
+        CallableJob cj = entry.getValue();
+        PlannedJob pj = cj.getPlannedJob();
+        int i = 0;
+        values[i++] = entry.getKey();
+        values[i++] = pj.getJobSpec().getId();
+        values[i++] = pj.getJobSpec().getName();
+        values[i++] = pj.getReplaceTime() == null ? null :
+          new Timestamp(pj.getReplaceTime().getMillis());
+        values[i++] = cj.getAttemptNumber();
+        values[i++] = cj.getStatus().get();
+        values[i++] = new Timestamp(cj.getStart().get());
+        values[i++] = new Timestamp(cj.getFinish().get());
+        values[i++] = cj.getExceptionMessage().get();
+        values[i++] = pj.getJobSpec().getCode();
+        values[i++] = WithSql.jobRunToJson(cj);
+        sink.row(values);
+      }
+      sink.finish();
+    } catch (IOException ex) {
+      // without finish the sink leaves no file, which is reported below
+      LOG.error("Could not archive expired job runs to " + file, ex);
+    }
+    if (!file.exists()) {
+      LOG.error("Could not archive expired job runs to " + file +
+        ", not deleting them");
+      reporting.mark("chronos.retention.archivefailed");
+      return false;
+    }
+    LOG.info(String.format("Archived %d job runs to %s", expired.size(),
+      file));
+    return true;
+  }
+
+  @Override
+  public void doRun() {
+    if (maxAgeDays > 0 || keepPerJob > 0) {
+      try {
+        purge();
+      } catch (RuntimeException ex) {
+        LOG.error("Could not delete expired job runs", ex);
+        reporting.mark("chronos.retention.failed");
+      }
+    }
+    synchronized (sleepLock) {
+      if (!isAlive) {
+        return;
+      }
+      try {
+        sleepLock.wait(SLEEP_FOR);
+      } catch (InterruptedException e) {
+        LOG.error(e);
+      }
+    }
+  }
+
+  @Override
+  public void run() {
+    while (isAlive) {
+      doRun();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    super.close();
+    synchronized (sleepLock) {
+      sleepLock.notifyAll();
+    }
+  }
+
+}
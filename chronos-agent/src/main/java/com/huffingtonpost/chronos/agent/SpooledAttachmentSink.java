@@ -0,0 +1,93 @@
+package com.huffingtonpost.chronos.agent;
+
+import org.apache.log4j.Logger;
+
+import javax.activation.DataSource;
+import javax.activation.FileDataSource;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Spools the email attachment of a report to a temporary file, with a
+ * name(type) header and tab separated fields. The file is deleted on close.
+ * The same format can also be written to any other Writer.
+ */
+public class SpooledAttachmentSink implements ReportSink {
+  public static Logger LOG = Logger.getLogger(SpooledAttachmentSink.class);
+
+  public static final String CONTENT_TYPE =
+    CallableQuery.TSV + "; charset=UTF-8";
+
+  private final File file;
+  private final Writer writer;
+
+  public SpooledAttachmentSink() throws IOException {
+    file = File.createTempFile("chronos-report", ".tsv");
+    writer = new BufferedWriter(new OutputStreamWriter(
+      new FileOutputStream(file), StandardCharsets.UTF_8));
+  }
+
+  public SpooledAttachmentSink(Writer writer) {
+    this.file = null;
+    this.writer = writer;
+  }
+
+  @Override
+  public void start(List<String> columnNames, List<String> columnTypes)
+      throws IOException {
+    for (int i = 0 ; i < columnNames.size() ; i++) {
+      writer.write(columnNames.get(i) + "(" + columnTypes.get(i) + ")");
+      if (i != columnNames.size() - 1) {
+        writer.write('\t');
+      }
+    }
+    writer.write('\n');
+  }
+
+  @Override
+  public void row(Object[] values) throws IOException {
+    for (int i = 0 ; i < values.length ; i++) {
+      writer.write(String.valueOf(values[i]));
+      if (i != values.length - 1) {
+        writer.write('\t');
+      }
+    }
+    writer.write('\n');
+  }
+
+  @Override
+  public void finish() throws IOException {
+    writer.close();
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public DataSource getDataSource() {
+    return new FileDataSource(file) {
+      @Override
+      public String getContentType() {
+        return CONTENT_TYPE;
+      }
+    };
+  }
+
+  @Override
+  public void close() {
+    try {
+      writer.close();
+    } catch (IOException e) {
+      LOG.error(e);
+    }
+    if (file != null && !file.delete()) {
+      LOG.warn("Could not delete " + file);
+    }
+  }
+}
@@ -0,0 +1,57 @@
+package com.huffingtonpost.chronos.agent;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writes a report to a local TSV file, optionally gzipped, every field
+ * followed by a tab.
+ */
+public class TsvFileSink extends LocalReportSink {
+
+  private Writer writer = null;
+
+  public TsvFileSink(File file) {
+    this(file, false);
+  }
+
+  public TsvFileSink(File file, boolean gzip) {
+    super(file, gzip);
+  }
+
+  @Override
+  protected void writeStart(OutputStream out, List<String> columnNames,
+                            List<String> columnTypes) throws IOException {
+    writer = new BufferedWriter(
+      new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    for (String columnName : columnNames) {
+      writer.write(columnName);
+      writer.write(CallableQuery.TAB);
+    }
+    writer.write(CallableQuery.ENTER);
+  }
+
+  @Override
+  protected void writeRow(Object[] values) throws IOException {
+    for (Object element : values) {
+      if (element == null) {
+        writer.write(CallableQuery.NULL);
+      } else {
+        writer.write(element.toString());
+      }
+      writer.write(CallableQuery.TAB);
+    }
+    writer.write(CallableQuery.ENTER);
+  }
+
+  @Override
+  protected void writeFinish() throws IOException {
+    writer.flush();
+  }
+}
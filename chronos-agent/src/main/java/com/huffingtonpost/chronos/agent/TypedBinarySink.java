@@ -0,0 +1,180 @@
+package com.huffingtonpost.chronos.agent;
+
+import com.huffingtonpost.chronos.model.PersistentResultSet;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Writes a report to a local gzipped file of typed values, which is smaller
+ * than TSV and can be read back without parsing text.
+ *
+ * The file starts with MAGIC, a version byte, the number of columns and the
+ * name and type name of every column. Every row is a ROW byte followed by a
+ * tag byte and value per column, and the file ends with an END byte. Integral
+ * values are stored as longs, floating point values as doubles and dates and
+ * times as epoch millis.
+ */
+public class TypedBinarySink extends LocalReportSink {
+
+  public static final int MAGIC = 0x43485242; // CHRB
+  public static final byte VERSION = 1;
+
+  private static final byte END = 0;
+  private static final byte ROW = 1;
+
+  private static final byte NULL = 0;
+  private static final byte LONG = 1;
+  private static final byte DOUBLE = 2;
+  private static final byte BOOLEAN = 3;
+  private static final byte TIMESTAMP = 4;
+  private static final byte DECIMAL = 5;
+  private static final byte BYTES = 6;
+  private static final byte STRING = 7;
+
+  private DataOutputStream data = null;
+
+  public TypedBinarySink(File file) {
+    super(file, true);
+  }
+
+  @Override
+  protected void writeStart(OutputStream out, List<String> columnNames,
+                            List<String> columnTypes) throws IOException {
+    data = new DataOutputStream(out);
+    data.writeInt(MAGIC);
+    data.writeByte(VERSION);
+    data.writeInt(columnNames.size());
+    for (int i = 0; i < columnNames.size(); i++) {
+      writeString(columnNames.get(i));
+      writeString(columnTypes.get(i));
+    }
+  }
+
+  @Override
+  protected void writeRow(Object[] values) throws IOException {
+    data.writeByte(ROW);
+    for (Object value : values) {
+      if (value == null) {
+        data.writeByte(NULL);
+      } else if (value instanceof Long || value instanceof Integer ||
+                 value instanceof Short || value instanceof Byte) {
+        data.writeByte(LONG);
+        data.writeLong(((Number) value).longValue());
+      } else if (value instanceof Double || value instanceof Float) {
+        data.writeByte(DOUBLE);
+        data.writeDouble(((Number) value).doubleValue());
+      } else if (value instanceof Boolean) {
+        data.writeByte(BOOLEAN);
+        data.writeBoolean((Boolean) value);
+      } else if (value instanceof Date) {
+        data.writeByte(TIMESTAMP);
+        data.writeLong(((Date) value).getTime());
+      } else if (value instanceof BigDecimal) {
+        data.writeByte(DECIMAL);
+        writeString(((BigDecimal) value).toString());
+      } else if (value instanceof byte[]) {
+        data.writeByte(BYTES);
+        data.writeInt(((byte[]) value).length);
+        data.write((byte[]) value);
+      } else {
+        data.writeByte(STRING);
+        writeString(value.toString());
+      }
+    }
+  }
+
+  @Override
+  protected void writeFinish() throws IOException {
+    data.writeByte(END);
+    data.flush();
+  }
+
+  private void writeString(String s) throws IOException {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    data.writeInt(bytes.length);
+    data.write(bytes);
+  }
+
+  /**
+   * Reads a report written by this sink back into memory. Dates and times
+   * are returned as Timestamps.
+   */
+  public static PersistentResultSet read(File file) throws IOException {
+    try (InputStream in = new GZIPInputStream(
+      new BufferedInputStream(new FileInputStream(file)))) {
+      return read(in);
+    }
+  }
+
+  public static PersistentResultSet read(InputStream in) throws IOException {
+    DataInputStream data = new DataInputStream(in);
+    if (data.readInt() != MAGIC) {
+      throw new IOException("Not a typed binary report");
+    }
+    byte version = data.readByte();
+    if (version != VERSION) {
+      throw new IOException("Unsupported report version " + version);
+    }
+    PersistentResultSet toRet = new PersistentResultSet();
+    int columnCount = data.readInt();
+    for (int i = 0; i < columnCount; i++) {
+      toRet.getColumnNames().add(readString(data));
+      toRet.getColumnTypes().add(readString(data));
+    }
+    while (data.readByte() == ROW) {
+      List<Object> row = new ArrayList<>(columnCount);
+      for (int i = 0; i < columnCount; i++) {
+        row.add(readValue(data));
+      }
+      toRet.getData().add(row);
+    }
+    return toRet;
+  }
+
+  private static Object readValue(DataInputStream data) throws IOException {
+    byte tag = data.readByte();
+    switch (tag) {
+      case NULL:
+        return null;
+      case LONG:
+        return data.readLong();
+      case DOUBLE:
+        return data.readDouble();
+      case BOOLEAN:
+        return data.readBoolean();
+      case TIMESTAMP:
+        return new Timestamp(data.readLong());
+      case DECIMAL:
+        return new BigDecimal(readString(data));
+      case BYTES: {
+        byte[] bytes = new byte[data.readInt()];
+        data.readFully(bytes);
+        return bytes;
+      }
+      case STRING:
+        return readString(data);
+      default:
+        throw new IOException("Unknown value tag " + tag);
+    }
+  }
+
+  private static String readString(DataInputStream data) throws IOException {
+    byte[] bytes = new byte[data.readInt()];
+    data.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,183 @@
+package com.huffingtonpost.chronos.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.huffingtonpost.chronos.util.CronExpression;
+
+/**
+ * A rerun of a job for every replace time from start up to, but not
+ * including, end. The replace times follow the cron string of the job, or
+ * are stepMinutes apart when that is set.
+ *
+ * The runs of a backfill are queued at once, with a priority below the one
+ * of the job, and at most maxInFlight of them run at the same time on each
+ * agent, so up to agents * maxInFlight across agents sharing a queue. With
+ * includeChildren the children of the job are queued as part of the
+ * backfill as their parent runs finish, otherwise only the job is rerun.
+ */
+public class Backfill {
+
+  public static final int DEFAULT_MAX_IN_FLIGHT = 1;
+  public static final int MAX_RUNS = 10000;
+
+  private Long id;
+  private long jobId;
+  @JsonDeserialize(using=DateTimeDeserializer.class)
+  private DateTime start;
+  @JsonDeserialize(using=DateTimeDeserializer.class)
+  private DateTime end;
+  private Integer stepMinutes;
+  private boolean includeChildren = false;
+  private Integer priority;
+  private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+  private DateTime createTime;
+  private int queued;
+
+  public Backfill() {
+  }
+
+  public Backfill(long jobId, DateTime start, DateTime end) {
+    this.jobId = jobId;
+    this.start = start;
+    this.end = end;
+  }
+
+  /**
+   * @param cronString the cron string of the job, only used when
+   * stepMinutes is not set
+   * @return the replace times of the backfill, in order
+   * @throws IllegalArgumentException when the range is empty, there is no
+   * way to step through it or it holds more than MAX_RUNS replace times
+   */
+  public List<DateTime> getReplaceTimes(String cronString) {
+    if (start == null || end == null || !start.isBefore(end)) {
+      throw new IllegalArgumentException("start must be before end");
+    }
+    if (stepMinutes == null && cronString == null) {
+      throw new IllegalArgumentException(
+        "stepMinutes is needed for a job without a cron string");
+    }
+    if (stepMinutes != null && stepMinutes < 1) {
+      throw new IllegalArgumentException("stepMinutes must be at least 1");
+    }
+    DateTime from = start.withZone(DateTimeZone.UTC)
+      .withSecondOfMinute(0).withMillisOfSecond(0);
+    if (from.isBefore(start)) {
+      from = from.plusMinutes(1);
+    }
+    CronExpression ce = stepMinutes == null ?
+      CronExpression.createWithoutSeconds(cronString) : null;
+    List<DateTime> toRet = new ArrayList<>();
+    DateTime next = ce == null ? from : ce.nextTimeAfter(from.minusSeconds(1));
+    while (next.isBefore(end)) {
+      if (toRet.size() == MAX_RUNS) {
+        throw new IllegalArgumentException(String.format(
+          "A backfill can not be more than %d runs", MAX_RUNS));
+      }
+      toRet.add(next);
+      next = ce == null ? next.plusMinutes(stepMinutes) :
+        ce.nextTimeAfter(next);
+    }
+    return toRet;
+  }
+
+  public Long getId() {
+    return id;
+  }
+
+  public void setId(Long id) {
+    this.id = id;
+  }
+
+  public long getJobId() {
+    return jobId;
+  }
+
+  public void setJobId(long jobId) {
+    this.jobId = jobId;
+  }
+
+  public DateTime getStart() {
+    return start;
+  }
+
+  public void setStart(DateTime start) {
+    this.start = start;
+  }
+
+  public DateTime getEnd() {
+    return end;
+  }
+
+  public void setEnd(DateTime end) {
+    this.end = end;
+  }
+
+  public Integer getStepMinutes() {
+    return stepMinutes;
+  }
+
+  public void setStepMinutes(Integer stepMinutes) {
+    this.stepMinutes = stepMinutes;
+  }
+
+  public boolean isIncludeChildren() {
+    return includeChildren;
+  }
+
+  public void setIncludeChildren(boolean includeChildren) {
+    this.includeChildren = includeChildren;
+  }
+
+  /**
+   * @return the queue priority of the runs, one below the priority of the
+   * job unless set
+   */
+  public Integer getPriority() {
+    return priority;
+  }
+
+  public void setPriority(Integer priority) {
+    this.priority = priority;
+  }
+
+  public int getMaxInFlight() {
+    return maxInFlight;
+  }
+
+  public void setMaxInFlight(int maxInFlight) {
+    this.maxInFlight = maxInFlight;
+  }
+
+  public DateTime getCreateTime() {
+    return createTime;
+  }
+
+  public void setCreateTime(DateTime createTime) {
+    this.createTime = createTime;
+  }
+
+  /**
+   * @return how many runs of the backfill are still queued
+   */
+  public int getQueued() {
+    return queued;
+  }
+
+  public void setQueued(int queued) {
+    this.queued = queued;
+  }
+
+  @Override
+  public String toString() {
+    return "<Backfill - id:" + id + ", jobId:" + jobId + ", start:" + start +
+      ", end:" + end + ", stepMinutes:" + stepMinutes + ", includeChildren:" +
+      includeChildren + ", priority:" + priority + ", maxInFlight:" +
+      maxInFlight + ", queued:" + queued + ">";
+  }
+}
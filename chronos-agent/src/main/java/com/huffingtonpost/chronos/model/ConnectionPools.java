@@ -0,0 +1,201 @@
+package com.huffingtonpost.chronos.model;
+
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pooled connections to the databases jobs run against, one pool per
+ * SupportedDriver and credential pair. Settings apply to pools created after
+ * they are changed.
+ *
+ * By default the pools do not limit how many connections are open at once,
+ * that is up to the AgentConsumer, and keep up to maxIdle returned
+ * connections for reuse. A reused connection has its open transaction
+ * rolled back and is switched back to the catalog its pool's connections
+ * start in, so USE in one job does not carry over into the next. Variables
+ * changed with SET do carry over, setMaxIdle(0) for drivers whose jobs
+ * depend on them.
+ */
+public class ConnectionPools implements Closeable {
+
+  public static Logger LOG = Logger.getLogger(ConnectionPools.class);
+
+  private final Map<List<String>, BasicDataSource> pools =
+    new ConcurrentHashMap<>();
+  private final ConcurrentMap<List<String>, String> catalogs =
+    new ConcurrentHashMap<>();
+  private final Map<String, AtomicLong> borrowed = new ConcurrentHashMap<>();
+  private final Map<String, String> validationQueries =
+    new ConcurrentHashMap<>();
+
+  private int maxTotal = -1;
+  private int maxIdle = 8;
+  private long maxWaitMillis = 60 * 1000;
+  private long minEvictableIdleTimeMillis = 5 * 60 * 1000;
+  private long timeBetweenEvictionRunsMillis = 60 * 1000;
+  private volatile boolean closed = false;
+
+  public Connection getConnection(SupportedDriver driver, String user,
+                                  String password) throws SQLException {
+    if (closed) {
+      throw new SQLException("Connection pools are closed");
+    }
+    List<String> key = Arrays.asList(driver.getName(),
+      driver.getConnectionUrl(), user, password);
+    BasicDataSource ds = pools.get(key);
+    if (ds == null) {
+      synchronized (pools) {
+        ds = pools.get(key);
+        if (ds == null) {
+          ds = createPool(driver, user, password);
+          pools.put(key, ds);
+          if (!borrowed.containsKey(driver.getName())) {
+            borrowed.put(driver.getName(), new AtomicLong(0));
+          }
+          LOG.info(String.format("Created connection pool for %s as %s",
+            driver.getName(), user));
+        }
+      }
+    }
+    Connection conn = ds.getConnection();
+    try {
+      resetCatalog(key, conn);
+    } catch (SQLException ex) {
+      conn.close();
+      throw ex;
+    }
+    borrowed.get(driver.getName()).incrementAndGet();
+    return conn;
+  }
+
+  /**
+   * Remembers the catalog of the first connection of a pool, which is new,
+   * and switches every connection borrowed after it back to that catalog.
+   */
+  private void resetCatalog(List<String> key, Connection conn)
+      throws SQLException {
+    String catalog = catalogs.get(key);
+    if (catalog == null) {
+      catalog = conn.getCatalog();
+      // drivers without catalogs are never switched
+      catalogs.putIfAbsent(key, catalog == null ? "" : catalog);
+    } else if (!catalog.isEmpty()) {
+      conn.setCatalog(catalog);
+    }
+  }
+
+  private BasicDataSource createPool(SupportedDriver driver, String user,
+                                     String password) {
+    BasicDataSource ds = new BasicDataSource();
+    ds.setDriverClassName(driver.getDriverName());
+    ds.setUrl(driver.getConnectionUrl());
+    ds.setUsername(user);
+    ds.setPassword(password);
+    ds.setMaxTotal(maxTotal);
+    ds.setMaxIdle(maxIdle);
+    ds.setMaxWaitMillis(maxWaitMillis);
+    ds.setRollbackOnReturn(true);
+    // the catalog a job switched to with USE is only seen by the driver
+    ds.setCacheState(false);
+    ds.setMinEvictableIdleTimeMillis(minEvictableIdleTimeMillis);
+    ds.setTimeBetweenEvictionRunsMillis(timeBetweenEvictionRunsMillis);
+    String validationQuery = validationQueries.get(driver.getName());
+    // without a validation query dbcp falls back to Connection.isValid,
+    // which not every driver (e.g. Hive) implements
+    ds.setTestOnBorrow(validationQuery != null);
+    if (validationQuery != null) {
+      ds.setValidationQuery(validationQuery);
+      ds.setTestWhileIdle(true);
+    }
+    return ds;
+  }
+
+  /**
+   * @return for every driver name the number of pools, active and idle
+   * connections and the total number of connections borrowed.
+   */
+  public Map<String, Map<String, Long>> getStats() {
+    Map<String, Map<String, Long>> toRet = new TreeMap<>();
+    for (Map.Entry<List<String>, BasicDataSource> e : pools.entrySet()) {
+      String name = e.getKey().get(0);
+      Map<String, Long> stats = toRet.get(name);
+      if (stats == null) {
+        stats = new TreeMap<>();
+        stats.put("pools", 0L);
+        stats.put("active", 0L);
+        stats.put("idle", 0L);
+        stats.put("borrowed", borrowed.get(name).get());
+        toRet.put(name, stats);
+      }
+      stats.put("pools", stats.get("pools") + 1);
+      stats.put("active", stats.get("active") + e.getValue().getNumActive());
+      stats.put("idle", stats.get("idle") + e.getValue().getNumIdle());
+    }
+    return toRet;
+  }
+
+  /**
+   * @param maxTotal the most connections a pool has open, a negative value
+   * for no limit. Jobs wait up to maxWaitMillis for a connection beyond it.
+   */
+  public void setMaxTotal(int maxTotal) {
+    this.maxTotal = maxTotal;
+  }
+
+  /**
+   * @param maxIdle the most returned connections a pool keeps for reuse, 0
+   * to close every connection once it is returned
+   */
+  public void setMaxIdle(int maxIdle) {
+    this.maxIdle = maxIdle;
+  }
+
+  public void setMaxWaitMillis(long maxWaitMillis) {
+    this.maxWaitMillis = maxWaitMillis;
+  }
+
+  public void setMinEvictableIdleTimeMillis(long minEvictableIdleTimeMillis) {
+    this.minEvictableIdleTimeMillis = minEvictableIdleTimeMillis;
+  }
+
+  public void setTimeBetweenEvictionRunsMillis(
+      long timeBetweenEvictionRunsMillis) {
+    this.timeBetweenEvictionRunsMillis = timeBetweenEvictionRunsMillis;
+  }
+
+  /**
+   * Validates connections of the named driver with query before they are
+   * handed out and while they are idle.
+   */
+  public void setValidationQuery(String driverName, String query) {
+    validationQueries.put(driverName, query);
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    synchronized (pools) {
+      for (BasicDataSource ds : pools.values()) {
+        try {
+          ds.close();
+        } catch (SQLException e) {
+          LOG.error(e);
+        }
+      }
+      pools.clear();
+      catalogs.clear();
+    }
+  }
+
+}
@@ -1,11 +1,15 @@
 package com.huffingtonpost.chronos.model;
 
 import com.huffingtonpost.chronos.agent.CallableJob;
+import com.huffingtonpost.chronos.agent.Reporting;
 import com.huffingtonpost.chronos.persist.BackendException;
+import com.huffingtonpost.chronos.persist.RunJournal;
+import org.joda.time.DateTime;
 
 import javax.sql.DataSource;
 import java.io.Closeable;
 import java.sql.SQLException;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -20,29 +24,204 @@ public interface JobDao extends Closeable {
   void updateJob(JobSpec jobSpec);
 
   void deleteJob(long id);
+
+  void addJobListener(JobListener listener);
   
   List<JobSpec> getJobs();
   
   JobSpec getJob(long id);
 
+  ConnectionPools getConnectionPools();
+
+  JobSpecCache getJobCache();
+
+  /**
+   * Where the dao reports its cache hits, misses and evictions.
+   */
+  void setReporting(Reporting reporting);
+
+  /**
+   * Journals run updates and writes them behind instead of updating runs
+   * synchronously. Must be set before init(), which replays the journal.
+   */
+  void setRunJournal(RunJournal runJournal);
+
   List<Map<String, String>> getJobResults(JobSpec jobSpec, int limit)
    throws SQLException, InstantiationException, IllegalAccessException, ClassNotFoundException;
 
   List<PlannedJob> getQueue(Long id);
 
-  void addToQueue(PlannedJob aJob);
+  /**
+   * @return whether the job was queued, it is not when it is queued already
+   */
+  boolean addToQueue(PlannedJob aJob);
+
+  /**
+   * Queues the job as the driver leader of fencingToken. A deposed leader
+   * queues nothing.
+   *
+   * @return whether the job was queued
+   */
+  boolean addToQueue(PlannedJob aJob, long fencingToken);
 
   PlannedJob removeFromQueue();
 
+  List<PlannedJob> removeFromQueue(int max);
+
+  /**
+   * Like removeFromQueue(int), keeping when each job was queued.
+   */
+  List<QueuedJob> removeQueuedJobs(int max);
+
+  /**
+   * @return up to limit of the queued jobs, first in queue order, leaving
+   * out the runs of the given backfills
+   */
+  List<QueuedJob> getQueuedJobs(int limit,
+    Collection<Long> leaveOutBackfills);
+
+  /**
+   * Removes the given jobs from the queue.
+   *
+   * @return the jobs that were removed, leaving out the ones no longer
+   * queued because another agent dequeued them
+   */
+  List<PlannedJob> removeFromQueue(Collection<PlannedJob> jobs);
+
+  /**
+   * Queues the jobs that are ready in the pipeline pipelineId at priority.
+   * Every job is queued at most once per pipeline, even when agents find
+   * it ready at the same time. A job that is queued already outside any
+   * pipeline is taken into this one.
+   *
+   * @return the jobs that were queued or taken into the pipeline
+   */
+  List<PlannedJob> queuePipelineJobs(String pipelineId, List<PlannedJob> jobs,
+    int priority);
+
+  /**
+   * Forgets which jobs were queued for a pipeline that is done.
+   *
+   * @return false when they were forgotten already
+   */
+  boolean endPipeline(String pipelineId);
+
+  /**
+   * Raises the priority of queued jobs that waited since before agedBefore
+   * without being raised, so low priority jobs are not starved. A job is
+   * raised at most maxRaise above the priority it was queued at, runs of a
+   * backfill are not raised.
+   *
+   * @return the number of jobs raised
+   */
+  int ageQueue(DateTime agedBefore, int maxRaise);
+
+  int getQueueSize();
+
+  /**
+   * Queues a run of the job of backfill for each of its replace times, in
+   * one batch. Its priority defaults to one below the one of the job.
+   *
+   * @return the saved backfill, with the number of runs that were queued
+   * @throws IllegalArgumentException when the job does not exist or the
+   * backfill has no replace times or too many
+   */
+  Backfill queueBackfill(Backfill backfill);
+
+  /**
+   * Queues jobs as runs of backfill, e.g. the children of one of its runs.
+   *
+   * @return the jobs that were queued
+   */
+  List<PlannedJob> queueBackfill(Backfill backfill, List<PlannedJob> jobs);
+
+  Backfill getBackfill(long id);
+
+  /**
+   * @param active whether to leave out the backfills none of whose runs are
+   * queued anymore
+   */
+  List<Backfill> getBackfills(boolean active);
+
+  void addQueueListener(QueueListener listener);
+
   Map<Long, CallableJob> getJobRuns(Long id, int limit);
   
   Map<Long, CallableJob> getRunningJobs();
 
+  /**
+   * @return the runs of the pipeline run, keyed by run id, in the order
+   * they were started
+   */
+  Map<Long, CallableJob> getPipelineRuns(String pipelineId);
+
   long createJobRun(CallableJob cq);
 
-  void updateJobRun(CallableJob cq);
+  /**
+   * @return false when another agent reaped the run since its lease
+   * expired, a journaled state is taken to still be held
+   */
+  boolean updateJobRun(CallableJob cq);
+
+  /**
+   * Writes the state of a finished run, then calls listener, from the
+   * thread of the run journal when the state was journaled.
+   */
+  void finishJobRun(CallableJob cq, RunStateListener listener);
+
+  /**
+   * @return at most limit runs, oldest first, that were last updated before
+   * before or are beyond the newest keepPerJob runs of their job
+   */
+  Map<Long, CallableJob> getExpiredJobRuns(DateTime before, int keepPerJob,
+    int limit);
+
+  /**
+   * @return at most limit runs, in order of finish, that failed and finished
+   * after finishedAfter, and are the latest run of their job and replace
+   * time. Runs of every owner are included, owners change when an agent
+   * restarts, and a retry they lead to only runs on the agent that claims
+   * it.
+   */
+  Map<Long, CallableJob> getFailedJobRuns(DateTime finishedAfter, int limit);
+
+  int deleteJobRuns(Collection<Long> ids);
+
+  /**
+   * @param ownerId the owner of the runs created through this dao, unique
+   * among the agents sharing the database
+   */
+  void setOwnerId(String ownerId);
+
+  String getOwnerId();
+
+  /**
+   * Moves the heartbeat of the unfinished runs of this owner to heartbeat.
+   *
+   * @return the number of runs renewed
+   */
+  int renewLeases(DateTime heartbeat);
+
+  /**
+   * Finishes at most limit running runs of other owners whose heartbeat is
+   * older than heartbeatBefore, as their agent is gone, and takes them over.
+   *
+   * @return the runs reaped by this call
+   */
+  Map<Long, CallableJob> reapExpiredLeases(DateTime heartbeatBefore,
+    int limit);
 
   int cancelJob(PlannedJob pj);
+
+  /**
+   * Saves a retry so it survives a restart, replacing any pending retry of
+   * the same planned job.
+   */
+  void addPendingRetry(PendingRetry retry);
+
+  List<PendingRetry> getPendingRetries();
+
+  int deletePendingRetry(PlannedJob pj);
   
   List<JobSpec> getJobVersions(long id);
 
@@ -50,6 +229,39 @@ public interface JobDao extends Closeable {
 
   List<JobSpec> getChildren(long id);
 
+  /**
+   * @return every current job indexed by id and parent, read in one query
+   * and cached like the jobs themselves. The graph is shared, its jobs must
+   * not be modified.
+   */
+  JobGraph getJobGraph();
+
   JobNode getTree(long id, String parent);
 
+  DateTime getLastEvaluated();
+
+  void setLastEvaluated(DateTime dt);
+
+  /**
+   * @return whether it was set, it is not when the driver leadership moved
+   * on from fencingToken
+   */
+  boolean setLastEvaluated(DateTime dt, long fencingToken);
+
+  /**
+   * Makes candidate the driver leader until leaseUntil, unless another
+   * candidate holds a lease that lasts beyond now.
+   *
+   * @return the fencing token of the leadership, or null
+   */
+  Long acquireLeadership(String candidate, DateTime now, DateTime leaseUntil);
+
+  /**
+   * @return false when candidate lost the leadership of fencingToken
+   */
+  boolean renewLeadership(String candidate, long fencingToken,
+    DateTime leaseUntil);
+
+  void releaseLeadership(String candidate, long fencingToken);
+
 }
@@ -1,75 +1,169 @@
 package com.huffingtonpost.chronos.model;
 
 import com.huffingtonpost.chronos.agent.CallableJob;
+import com.huffingtonpost.chronos.agent.NoReporting;
+import com.huffingtonpost.chronos.agent.Reporting;
 import com.huffingtonpost.chronos.persist.BackendException;
+import com.huffingtonpost.chronos.persist.RunJournal;
 import com.huffingtonpost.chronos.persist.WithSql;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 
+import java.io.IOException;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class JobDaoImpl extends WithSql implements JobDao {
 
   public static Logger LOG = Logger.getLogger(JobDaoImpl.class);
 
   private List<SupportedDriver> drivers;
+  private final ConnectionPools connectionPools = new ConnectionPools();
+  private final JobSpecCache jobCache = new JobSpecCache();
+  private final List<QueueListener> queueListeners =
+    new CopyOnWriteArrayList<>();
+  private final List<JobListener> jobListeners =
+    new CopyOnWriteArrayList<>();
+  private Reporting reporting = new NoReporting();
+  private volatile RunJournal runJournal = null;
 
   @Override
   public void init() throws BackendException {
+    jobCache.clear();
     initBackend();
+    if (runJournal != null) {
+      try {
+        runJournal.open(this, reporting);
+      } catch (IOException ex) {
+        throw new BackendException(ex);
+      }
+    }
     LOG.info("Backend initalized");
   }
 
   public void setDrivers(List<SupportedDriver> drivers) {
     this.drivers = drivers;
   }
+
+  public ConnectionPools getConnectionPools() {
+    return connectionPools;
+  }
+
+  public JobSpecCache getJobCache() {
+    return jobCache;
+  }
+
+  public void setReporting(Reporting reporting) {
+    this.reporting = reporting;
+    jobCache.setReporting(reporting);
+  }
+
+  public void setRunJournal(RunJournal runJournal) {
+    this.runJournal = runJournal;
+  }
+
+  /**
+   * Writes pending run updates, so reads of runs see them.
+   */
+  private void flushRunJournal() throws BackendException {
+    RunJournal journal = runJournal;
+    if (journal != null && journal.isOpen()) {
+      journal.flush();
+    }
+  }
+
+  @Override
+  public void close() {
+    if (runJournal != null) {
+      try {
+        runJournal.close();
+      } catch (IOException ex) {
+        LOG.error("Could not close the run journal", ex);
+      }
+    }
+    connectionPools.close();
+    super.close();
+  }
   
   public long createJob(JobSpec jobSpec) {
     long id = -1L;
     try {
       id = super.createJob(jobSpec);
       jobSpec.setId(id);
+      jobCache.invalidate(id);
       LOG.info("Created job:" + jobSpec.getName() + " with id: " + jobSpec.getId());
     } catch (BackendException e) {
       throw new RuntimeException("Exception when creating job:" + e.getMessage());
     }
+    for (JobListener listener : jobListeners) {
+      listener.jobChanged(id);
+    }
     return id;
   }
 
   public void updateJob(JobSpec jobSpec) {
     try {
       super.updateJob(jobSpec);
+      jobCache.invalidate(jobSpec.getId());
       LOG.info("Updated job:" + jobSpec.getName());
     } catch (BackendException e) {
       throw new RuntimeException("Exception when updating job:" + e.getMessage());
     }
+    for (JobListener listener : jobListeners) {
+      listener.jobChanged(jobSpec.getId());
+    }
   }
 
   public void deleteJob(long id) {
     try {
       super.deleteJob(id);
+      jobCache.invalidate(id);
       LOG.info("Deleted job:" + id);
     } catch (BackendException e) {
       throw new RuntimeException("Exception when deleting job:" + e.getMessage());
     }
+    for (JobListener listener : jobListeners) {
+      listener.jobDeleted(id);
+    }
+  }
+
+  public void addJobListener(JobListener listener) {
+    jobListeners.add(listener);
   }
 
   public List<JobSpec> getJobs() {
+    List<JobSpec> cached = jobCache.getJobs();
+    if (cached != null) {
+      return cached;
+    }
+    long generation = jobCache.getGeneration();
     try {
-      return super.getJobs();
+      List<JobSpec> toRet = super.getJobs();
+      jobCache.putJobs(toRet, generation);
+      return toRet;
     } catch (BackendException e) {
       throw new RuntimeException("Exception when getting jobs:" + e);
     }
   }
 
   public JobSpec getJob(long id) {
+    JobSpec cached = jobCache.getJob(id);
+    if (cached != null) {
+      return cached;
+    }
+    long generation = jobCache.getGeneration();
     try {
-      return super.getJob(id);
+      JobSpec toRet = super.getJob(id);
+      if (toRet != null) {
+        jobCache.putJob(toRet, generation);
+      }
+      return toRet;
     } catch (BackendException e) {
       throw new RuntimeException("Exception when getting job:" + e);
     }
@@ -89,14 +183,11 @@ public class JobDaoImpl extends WithSql implements JobDao {
       throw new RuntimeException("Limit must be positive silly!");
     }
     SupportedDriver d = SupportedDriver.getSupportedDriverFromString(jobSpec.getDriver(), drivers);
-    Class.forName(d.getDriverName()).newInstance(); // load the database driver class
-    Connection conn = DriverManager.getConnection(d.getConnectionUrl());
-    Statement statement = conn.createStatement();
-    ResultSet rs = null;
     List<Map<String,String>> toRet = new ArrayList<Map<String,String>>();
-    try {
-      rs = statement.executeQuery(
-          jobSpec.makeResultQuery(limit, d.getResultQuery()));
+    try (Connection conn = connectionPools.getConnection(d, null, null);
+         Statement statement = conn.createStatement();
+         ResultSet rs = statement.executeQuery(
+           jobSpec.makeResultQuery(limit, d.getResultQuery()))) {
       ResultSetMetaData rsmd = rs.getMetaData();
       int numberOfColumns = rsmd.getColumnCount();
       while (rs.next()) {
@@ -110,10 +201,6 @@ public class JobDaoImpl extends WithSql implements JobDao {
       }
     } catch (IllegalArgumentException ex) {
       LOG.error("Couldn't process result set: " + ex.getMessage());
-    } finally {
-      if (rs != null) {
-        rs.close();
-      }
     }
     return toRet;
   }
@@ -127,15 +214,125 @@ public class JobDaoImpl extends WithSql implements JobDao {
     }
   }
 
-  public void addToQueue(PlannedJob aJob) {
+  public boolean addToQueue(PlannedJob aJob) {
     try {
-      super.addToQueue(aJob);
-      LOG.info("Queued job:" + aJob.getJobSpec().getName());
+      return queued(aJob, super.addToQueue(aJob));
     } catch (BackendException e) {
       throw new RuntimeException("Exception when queueing job:" + e.getMessage());
     }
   }
 
+  public boolean addToQueue(PlannedJob aJob, long fencingToken) {
+    try {
+      return queued(aJob, super.addToQueue(aJob, fencingToken));
+    } catch (BackendException e) {
+      throw new RuntimeException("Exception when queueing job:" + e.getMessage());
+    }
+  }
+
+  private boolean queued(PlannedJob aJob, boolean queued) {
+    if (!queued) {
+      LOG.info("Not queued job:" + aJob.getJobSpec().getName());
+      return false;
+    }
+    LOG.info("Queued job:" + aJob.getJobSpec().getName());
+    for (QueueListener listener : queueListeners) {
+      listener.jobQueued(aJob);
+    }
+    return true;
+  }
+
+  public Backfill queueBackfill(Backfill backfill) {
+    JobSpec aJob = getJob(backfill.getJobId());
+    if (aJob == null) {
+      throw new IllegalArgumentException(
+        "No job with id " + backfill.getJobId());
+    }
+    if (backfill.getMaxInFlight() < 1) {
+      throw new IllegalArgumentException("maxInFlight must be at least 1");
+    }
+    List<PlannedJob> toQueue = new ArrayList<>();
+    for (DateTime replaceTime :
+           backfill.getReplaceTimes(aJob.getCronString())) {
+      toQueue.add(new PlannedJob(aJob, replaceTime));
+    }
+    if (toQueue.isEmpty()) {
+      throw new IllegalArgumentException(
+        "No replace times between start and end");
+    }
+    if (backfill.getPriority() == null) {
+      backfill.setPriority(aJob.getPriority() - 1);
+    }
+    try {
+      super.createBackfill(backfill);
+    } catch (BackendException e) {
+      throw new RuntimeException("Exception when creating backfill:" + e.getMessage());
+    }
+    backfill.setQueued(queueBackfill(backfill, toQueue).size());
+    return backfill;
+  }
+
+  public List<PlannedJob> queueBackfill(Backfill backfill,
+                                        List<PlannedJob> jobs) {
+    try {
+      List<PlannedJob> toRet = super.queueBackfill(backfill, jobs);
+      LOG.info(String.format("Queued %d runs of backfill %d", toRet.size(),
+        backfill.getId()));
+      for (PlannedJob pj : toRet) {
+        for (QueueListener listener : queueListeners) {
+          listener.jobQueued(pj);
+        }
+      }
+      return toRet;
+    } catch (BackendException e) {
+      throw new RuntimeException("Exception when queueing backfill:" + e.getMessage());
+    }
+  }
+
+  public List<PlannedJob> queuePipelineJobs(String pipelineId,
+      List<PlannedJob> jobs, int priority) {
+    try {
+      List<PlannedJob> toRet =
+        super.queuePipelineJobs(pipelineId, jobs, priority);
+      for (PlannedJob pj : toRet) {
+        for (QueueListener listener : queueListeners) {
+          listener.jobQueued(pj);
+        }
+      }
+      return toRet;
+    } catch (BackendException e) {
+      throw new RuntimeException("Exception when queueing pipeline jobs:" + e.getMessage());
+    }
+  }
+
+  public boolean endPipeline(String pipelineId) {
+    try {
+      return super.endPipeline(pipelineId);
+    } catch (BackendException e) {
+      throw new RuntimeException("Exception when ending pipeline:" + e.getMessage());
+    }
+  }
+
+  public Backfill getBackfill(long id) {
+    try {
+      return super.getBackfill(id);
+    } catch (BackendException e) {
+      throw new RuntimeException("Exception when getting backfill:" + e.getMessage());
+    }
+  }
+
+  public List<Backfill> getBackfills(boolean active) {
+    try {
+      return super.getBackfills(active);
+    } catch (BackendException e) {
+      throw new RuntimeException("Exception when getting backfills:" + e.getMessage());
+    }
+  }
+
+  public void addQueueListener(QueueListener listener) {
+    queueListeners.add(listener);
+  }
+
   public PlannedJob removeFromQueue() {
     try {
       return super.removeFromQueue();
@@ -144,8 +341,58 @@ public class JobDaoImpl extends WithSql implements JobDao {
     }
   }
 
+  public List<PlannedJob> removeFromQueue(int max) {
+    try {
+      return super.removeFromQueue(max);
+    } catch (BackendException e) {
+      throw new RuntimeException("Exception when dequeueing jobs:" + e.getMessage());
+    }
+  }
+
+  public List<QueuedJob> removeQueuedJobs(int max) {
+    try {
+      return super.removeQueuedJobs(max);
+    } catch (BackendException e) {
+      throw new RuntimeException("Exception when dequeueing jobs:" + e.getMessage());
+    }
+  }
+
+  public List<QueuedJob> getQueuedJobs(int limit,
+      Collection<Long> leaveOutBackfills) {
+    try {
+      return super.getQueuedJobs(limit, leaveOutBackfills);
+    } catch (BackendException e) {
+      throw new RuntimeException("Exception when getting queued jobs: " + e.getMessage());
+    }
+  }
+
+  public List<PlannedJob> removeFromQueue(Collection<PlannedJob> jobs) {
+    try {
+      return super.removeFromQueue(jobs);
+    } catch (BackendException e) {
+      throw new RuntimeException("Exception when removing from queue: " + e.getMessage());
+    }
+  }
+
+  public int ageQueue(DateTime agedBefore, int maxRaise) {
+    try {
+      return super.ageQueue(agedBefore, maxRaise);
+    } catch (BackendException e) {
+      throw new RuntimeException("Exception when aging queue: " + e.getMessage());
+    }
+  }
+
+  public int getQueueSize() {
+    try {
+      return super.getQueueSize();
+    } catch (BackendException e) {
+      throw new RuntimeException("Exception when getting queue size:" + e.getMessage());
+    }
+  }
+
   public Map<Long, CallableJob> getJobRuns(Long id, int limit) {
     try {
+      flushRunJournal();
       return super.getJobRuns(id, limit);
     } catch (BackendException e) {
       throw new RuntimeException("Exception when getting jobRuns: " + e.getMessage());
@@ -154,12 +401,22 @@ public class JobDaoImpl extends WithSql implements JobDao {
 
   public Map<Long, CallableJob> getRunningJobs() {
     try {
+      flushRunJournal();
       return super.getRunningJobs();
     } catch (BackendException e) {
       throw new RuntimeException("Exception when getting running jobs: " + e.getMessage());
     }
   }
 
+  public Map<Long, CallableJob> getPipelineRuns(String pipelineId) {
+    try {
+      flushRunJournal();
+      return super.getPipelineRuns(pipelineId);
+    } catch (BackendException e) {
+      throw new RuntimeException("Exception when getting pipeline runs: " + e.getMessage());
+    }
+  }
+
   public long createJobRun(CallableJob cq) {
     try {
       long jobId = createJobRun(new DateTime().withZone(DateTimeZone.UTC), cq);
@@ -171,15 +428,119 @@ public class JobDaoImpl extends WithSql implements JobDao {
     }
   }
 
-  public void updateJobRun(CallableJob cq) {
+  /**
+   * Journals the state of the run when there is a run journal, otherwise,
+   * or when the append fails, writes it straight away.
+   */
+  public boolean updateJobRun(CallableJob cq) {
+    DateTime now = new DateTime().withZone(DateTimeZone.UTC);
+    RunJournal journal = runJournal;
+    if (journal != null && journal.append(RunState.of(now, cq))) {
+      LOG.debug("Journaled jobRun: " + cq.getJobId());
+      return true;
+    }
+    return writeJobRun(now, cq);
+  }
+
+  /**
+   * Journals the state of a finished run like updateJobRun. The journal
+   * calls listener once it wrote the state, so other agents, and the
+   * reaping of expired leases, see the finish before anything follows it.
+   */
+  public void finishJobRun(CallableJob cq, RunStateListener listener) {
+    DateTime now = new DateTime().withZone(DateTimeZone.UTC);
+    RunJournal journal = runJournal;
+    if (journal != null && journal.append(RunState.of(now, cq), listener)) {
+      LOG.debug("Journaled finished jobRun: " + cq.getJobId());
+      return;
+    }
+    listener.stateWritten(writeJobRun(now, cq));
+  }
+
+  private boolean writeJobRun(DateTime now, CallableJob cq) {
     try {
-      updateJobRun(new DateTime().withZone(DateTimeZone.UTC), cq);
+      // the states journaled before must not be written after this one
+      flushRunJournal();
+      boolean held = updateJobRun(now, cq);
       LOG.debug("Updated jobRun: " + cq.getJobId());
+      return held;
     } catch (BackendException e) {
       throw new RuntimeException("Exception when updating jobRun: " + e.getMessage());
     }
   }
 
+  public Map<Long, CallableJob> getFailedJobRuns(DateTime finishedAfter,
+      int limit) {
+    try {
+      flushRunJournal();
+      return super.getFailedJobRuns(finishedAfter, limit);
+    } catch (BackendException e) {
+      throw new RuntimeException("Exception when getting failed jobRuns: " + e.getMessage());
+    }
+  }
+
+  public Map<Long, CallableJob> getExpiredJobRuns(DateTime before,
+      int keepPerJob, int limit) {
+    try {
+      flushRunJournal();
+      return super.getExpiredJobRuns(before, keepPerJob, limit);
+    } catch (BackendException e) {
+      throw new RuntimeException("Exception when getting expired jobRuns: " + e.getMessage());
+    }
+  }
+
+  public int renewLeases(DateTime heartbeat) {
+    try {
+      // a run only looks alive to other agents with its state written
+      flushRunJournal();
+      return super.renewLeases(heartbeat);
+    } catch (BackendException e) {
+      throw new RuntimeException("Exception when renewing leases: " + e.getMessage());
+    }
+  }
+
+  public Map<Long, CallableJob> reapExpiredLeases(DateTime heartbeatBefore,
+      int limit) {
+    try {
+      flushRunJournal();
+      return super.reapExpiredLeases(heartbeatBefore, limit);
+    } catch (BackendException e) {
+      throw new RuntimeException("Exception when reaping expired leases: " + e.getMessage());
+    }
+  }
+
+  public int deleteJobRuns(Collection<Long> ids) {
+    try {
+      return super.deleteJobRuns(ids);
+    } catch (BackendException e) {
+      throw new RuntimeException("Exception when deleting jobRuns: " + e.getMessage());
+    }
+  }
+
+  public void addPendingRetry(PendingRetry retry) {
+    try {
+      super.addPendingRetry(retry);
+    } catch (BackendException e) {
+      throw new RuntimeException("Exception when adding pending retry: " + e.getMessage());
+    }
+  }
+
+  public List<PendingRetry> getPendingRetries() {
+    try {
+      return super.getPendingRetries();
+    } catch (BackendException e) {
+      throw new RuntimeException("Exception when getting pending retries: " + e.getMessage());
+    }
+  }
+
+  public int deletePendingRetry(PlannedJob pj) {
+    try {
+      return super.deletePendingRetry(pj);
+    } catch (BackendException e) {
+      throw new RuntimeException("Exception when deleting pending retry: " + e.getMessage());
+    }
+  }
+
   public int cancelJob(PlannedJob pj) {
     try {
       int cancelled = deleteFromQueue(pj);
@@ -192,20 +553,82 @@ public class JobDaoImpl extends WithSql implements JobDao {
   }
 
   public List<JobSpec> getChildren(long id) {
+    List<JobSpec> cached = jobCache.getChildren(id);
+    if (cached != null) {
+      return cached;
+    }
+    long generation = jobCache.getGeneration();
     try {
-      return super.getChildren(id);
+      List<JobSpec> toRet = super.getChildren(id);
+      jobCache.putChildren(id, toRet, generation);
+      return toRet;
     } catch (BackendException e) {
       throw new RuntimeException("Exception when getting children:" + e);
     }
   }
 
-  public JobNode getTree(long id, String parent) {
-    JobSpec aJob = getJob(id);
-    JobNode toRet = new JobNode(aJob.getName(), parent);
-    for (JobSpec child : getChildren(id)) {
-      JobNode jn = getTree(child.getId(), aJob.getName());
-      toRet.getChildren().add(jn);
+  public JobGraph getJobGraph() {
+    JobGraph cached = jobCache.getGraph();
+    if (cached != null) {
+      return cached;
     }
+    long generation = jobCache.getGeneration();
+    JobGraph toRet = new JobGraph(getJobs());
+    jobCache.putGraph(toRet, generation);
     return toRet;
   }
+
+  public JobNode getTree(long id, String parent) {
+    return getJobGraph().getTree(id, parent);
+  }
+
+  public DateTime getLastEvaluated() {
+    try {
+      return super.getLastEvaluated();
+    } catch (BackendException e) {
+      throw new RuntimeException("Exception when getting last evaluated time:" + e);
+    }
+  }
+
+  public void setLastEvaluated(DateTime dt) {
+    try {
+      super.setLastEvaluated(dt);
+    } catch (BackendException e) {
+      throw new RuntimeException("Exception when setting last evaluated time:" + e);
+    }
+  }
+
+  public boolean setLastEvaluated(DateTime dt, long fencingToken) {
+    try {
+      return super.setLastEvaluated(dt, fencingToken);
+    } catch (BackendException e) {
+      throw new RuntimeException("Exception when setting last evaluated time:" + e);
+    }
+  }
+
+  public Long acquireLeadership(String candidate, DateTime now,
+      DateTime leaseUntil) {
+    try {
+      return super.acquireLeadership(candidate, now, leaseUntil);
+    } catch (BackendException e) {
+      throw new RuntimeException("Exception when acquiring leadership:" + e);
+    }
+  }
+
+  public boolean renewLeadership(String candidate, long fencingToken,
+      DateTime leaseUntil) {
+    try {
+      return super.renewLeadership(candidate, fencingToken, leaseUntil);
+    } catch (BackendException e) {
+      throw new RuntimeException("Exception when renewing leadership:" + e);
+    }
+  }
+
+  public void releaseLeadership(String candidate, long fencingToken) {
+    try {
+      super.releaseLeadership(candidate, fencingToken);
+    } catch (BackendException e) {
+      throw new RuntimeException("Exception when releasing leadership:" + e);
+    }
+  }
 }
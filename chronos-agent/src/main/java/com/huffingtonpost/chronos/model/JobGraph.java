@@ -0,0 +1,85 @@
+package com.huffingtonpost.chronos.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The current version of every job indexed by id and by parent, built from
+ * one read of all jobs so trees and projections of them can be walked in
+ * memory instead of querying the children of every job.
+ *
+ * Children are kept in the order of the list the graph was built from, by
+ * name like getChildren. The graph is shared once cached, the JobSpecs in
+ * it must not be modified.
+ */
+public class JobGraph {
+
+  private final Map<Long, JobSpec> jobs = new LinkedHashMap<>();
+  private final Map<Long, List<JobSpec>> children = new HashMap<>();
+
+  public JobGraph(List<JobSpec> allJobs) {
+    for (JobSpec aJob : allJobs) {
+      jobs.put(aJob.getId(), aJob);
+      if (aJob.getParent() != null) {
+        List<JobSpec> list = children.get(aJob.getParent());
+        if (list == null) {
+          list = new ArrayList<>();
+          children.put(aJob.getParent(), list);
+        }
+        list.add(aJob);
+      }
+    }
+  }
+
+  /**
+   * @return every job, in the order the graph was built from
+   */
+  public List<JobSpec> getJobs() {
+    return Collections.unmodifiableList(new ArrayList<>(jobs.values()));
+  }
+
+  public JobSpec getJob(long id) {
+    return jobs.get(id);
+  }
+
+  public List<JobSpec> getChildren(long id) {
+    List<JobSpec> toRet = children.get(id);
+    return toRet == null ? Collections.<JobSpec>emptyList() :
+      Collections.unmodifiableList(toRet);
+  }
+
+  /**
+   * @return the tree of the job and its descendants, or null when there is
+   * no job with that id
+   */
+  public JobNode getTree(long id, String parent) {
+    JobSpec aJob = jobs.get(id);
+    if (aJob == null) {
+      return null;
+    }
+    return getTree(aJob, parent, new HashSet<Long>());
+  }
+
+  private JobNode getTree(JobSpec aJob, String parent, Set<Long> path) {
+    JobNode toRet = new JobNode(aJob.getName(), parent);
+    path.add(aJob.getId());
+    for (JobSpec child : getChildren(aJob.getId())) {
+      // a job that is its own ancestor would otherwise never end the tree
+      if (!path.contains(child.getId())) {
+        toRet.getChildren().add(getTree(child, aJob.getName(), path));
+      }
+    }
+    path.remove(aJob.getId());
+    return toRet;
+  }
+
+  public int size() {
+    return jobs.size();
+  }
+}
@@ -0,0 +1,13 @@
+package com.huffingtonpost.chronos.model;
+
+/**
+ * Notified by the JobDao whenever a job is created, updated or deleted so
+ * that in-memory views of the jobs table can be kept up to date.
+ */
+public interface JobListener {
+
+  void jobChanged(long id);
+
+  void jobDeleted(long id);
+
+}
@@ -10,6 +10,7 @@ import java.util.Objects;
 public class JobSpec {
   static final long serialVersionUID = 3L;
   public static Logger LOG = Logger.getLogger(JobSpec.class);
+  public static final int DEFAULT_PRIORITY = 0;
 
   public enum JobType {
     Query("query"),
@@ -20,6 +21,20 @@ public class JobSpec {
     }
   }
 
+  /**
+   * Which outcome of its parents a child job runs after. A child whose
+   * parents did not end that way is skipped, and so are its children.
+   */
+  public enum RunOn {
+    ALWAYS,
+    SUCCESS,
+    FAILURE;
+
+    public boolean runsAfter(boolean parentSucceeded) {
+      return this == ALWAYS || (this == SUCCESS) == parentSucceeded;
+    }
+  }
+
   private JobType jobType;
   private long id;
   private String user;
@@ -37,10 +52,43 @@ public class JobSpec {
   private List<String> statusEmail = new ArrayList<>();
   private DateTime lastModified;
   private Long parent;
+  private ReportFormat reportFormat = ReportFormat.TSV;
+  private int priority = DEFAULT_PRIORITY;
+  private Integer deadlineMinutes;
+  private RunOn runOn = RunOn.ALWAYS;
+  private List<Long> dependsOn = new ArrayList<>();
 
   public JobSpec(){
     
   }
+
+  public JobSpec(JobSpec other) {
+    this.jobType = other.jobType;
+    this.id = other.id;
+    this.user = other.user;
+    this.password = other.password;
+    this.name = other.name;
+    this.description = other.description;
+    this.code = other.code;
+    this.resultTable = other.resultTable;
+    this.cronString = other.cronString;
+    this.driver = other.driver;
+    this.enabled = other.enabled;
+    this.shouldRerun = other.shouldRerun;
+    this.resultQuery = other.resultQuery;
+    this.resultEmail = other.resultEmail == null ? null :
+      new ArrayList<>(other.resultEmail);
+    this.statusEmail = other.statusEmail == null ? null :
+      new ArrayList<>(other.statusEmail);
+    this.lastModified = other.lastModified;
+    this.parent = other.parent;
+    this.reportFormat = other.reportFormat;
+    this.priority = other.priority;
+    this.deadlineMinutes = other.deadlineMinutes;
+    this.runOn = other.runOn;
+    this.dependsOn = other.dependsOn == null ? null :
+      new ArrayList<>(other.dependsOn);
+  }
   
   public String makeResultQuery(int limit, String resultQuery) {
     return String.format(resultQuery, this.resultTable, limit);
@@ -65,7 +113,9 @@ public class JobSpec {
       ", resultTable:" + resultTable + ", driver:" + driver +
       ", enabled:" + enabled + ", shouldRerun:" + shouldRerun +
       ", statusEmail:" + statusEmail + ", lastModified:" + lastModified +
-      ", parent:" + parent + ">";
+      ", parent:" + parent + ", reportFormat:" + reportFormat +
+      ", priority:" + priority + ", deadlineMinutes:" + deadlineMinutes +
+      ", runOn:" + runOn + ", dependsOn:" + dependsOn + ">";
   }
 
   @Override
@@ -73,7 +123,8 @@ public class JobSpec {
     return Objects.hash(name, description, code,
                         resultTable, cronString, driver, enabled, shouldRerun,
                         resultQuery, resultEmail, statusEmail, jobType,
-                        parent);
+                        parent, reportFormat, priority, deadlineMinutes,
+                        runOn, dependsOn);
   }
   
   @Override
@@ -96,7 +147,12 @@ public class JobSpec {
              Objects.equals(resultEmail, other.resultEmail) &&
              Objects.equals(statusEmail, other.statusEmail) &&
              Objects.equals(jobType, other.jobType) &&
-             Objects.equals(parent, other.parent)
+             Objects.equals(parent, other.parent) &&
+             Objects.equals(reportFormat, other.reportFormat) &&
+             Objects.equals(priority, other.priority) &&
+             Objects.equals(deadlineMinutes, other.deadlineMinutes) &&
+             Objects.equals(runOn, other.runOn) &&
+             Objects.equals(dependsOn, other.dependsOn)
              ;
     }
     return false;
@@ -254,4 +310,55 @@ public class JobSpec {
     this.parent = parent;
   }
 
+  public ReportFormat getReportFormat() {
+    return reportFormat;
+  }
+
+  public void setReportFormat(ReportFormat reportFormat) {
+    this.reportFormat = reportFormat == null ? ReportFormat.TSV : reportFormat;
+  }
+
+  /**
+   * @return higher priorities are taken from the queue first
+   */
+  public int getPriority() {
+    return priority;
+  }
+
+  public void setPriority(int priority) {
+    this.priority = priority;
+  }
+
+  /**
+   * @return minutes after the replaceTime of a run by which it should have
+   * started, or null when it has no deadline
+   */
+  public Integer getDeadlineMinutes() {
+    return deadlineMinutes;
+  }
+
+  public void setDeadlineMinutes(Integer deadlineMinutes) {
+    this.deadlineMinutes = deadlineMinutes;
+  }
+
+  public RunOn getRunOn() {
+    return runOn;
+  }
+
+  public void setRunOn(RunOn runOn) {
+    this.runOn = runOn == null ? RunOn.ALWAYS : runOn;
+  }
+
+  /**
+   * @return the jobs besides the parent that a run of this job waits for
+   * when they run in the same pipeline
+   */
+  public List<Long> getDependsOn() {
+    return dependsOn;
+  }
+
+  public void setDependsOn(List<Long> dependsOn) {
+    this.dependsOn = dependsOn == null ? new ArrayList<Long>() : dependsOn;
+  }
+
 }
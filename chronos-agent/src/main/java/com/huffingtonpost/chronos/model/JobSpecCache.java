@@ -0,0 +1,248 @@
+package com.huffingtonpost.chronos.model;
+
+import com.huffingtonpost.chronos.agent.NoReporting;
+import com.huffingtonpost.chronos.agent.Reporting;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches the latest version of every job, the list of all jobs, the
+ * JobGraph built from it and the children of every job, so dispatching a
+ * job does not need to run the latest-version self-joins each time.
+ *
+ * Writes made through the owning JobDao invalidate the cache immediately.
+ * Writes made by other processes are only picked up once entries are older
+ * than the TTL. A read that started before an invalidation is not cached,
+ * and a job is never replaced with an older version than the cached one.
+ *
+ * JobSpecs are mutable, so copies are stored and handed out.
+ */
+public class JobSpecCache {
+
+  public static final String METRIC_PREFIX = "chronos.jobcache.";
+
+  private static class Entry<T> {
+    private final T value;
+    private final long loadedAt;
+
+    private Entry(T value, long loadedAt) {
+      this.value = value;
+      this.loadedAt = loadedAt;
+    }
+  }
+
+  private final Map<Long, Entry<JobSpec>> jobs =
+    new LinkedHashMap<Long, Entry<JobSpec>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(
+          Map.Entry<Long, Entry<JobSpec>> eldest) {
+        if (size() > maxSize) {
+          reporting.mark(METRIC_PREFIX + "eviction");
+          return true;
+        }
+        return false;
+      }
+    };
+  private final Map<Long, Entry<List<JobSpec>>> children = new HashMap<>();
+  private Entry<List<JobSpec>> all = null;
+  private Entry<JobGraph> graph = null;
+  private long generation = 0;
+
+  private volatile long ttlMillis = 60 * 1000;
+  private volatile int maxSize = 10000;
+  private volatile Reporting reporting = new NoReporting();
+
+  /**
+   * @param ttlMillis how long entries are used for, 0 disables the cache
+   */
+  public void setTtlMillis(long ttlMillis) {
+    this.ttlMillis = ttlMillis;
+    clear();
+  }
+
+  public long getTtlMillis() {
+    return ttlMillis;
+  }
+
+  public void setMaxSize(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  public void setReporting(Reporting reporting) {
+    this.reporting = reporting;
+  }
+
+  /**
+   * @return a token to pass to the put methods, taken before reading from
+   * the database
+   */
+  public synchronized long getGeneration() {
+    return generation;
+  }
+
+  public synchronized JobSpec getJob(long id) {
+    Entry<JobSpec> entry = jobs.get(id);
+    if (entry != null && isExpired(entry)) {
+      jobs.remove(id);
+      reporting.mark(METRIC_PREFIX + "eviction");
+      entry = null;
+    }
+    if (entry == null) {
+      reporting.mark(METRIC_PREFIX + "miss");
+      return null;
+    }
+    reporting.mark(METRIC_PREFIX + "hit");
+    return new JobSpec(entry.value);
+  }
+
+  public synchronized void putJob(JobSpec aJob, long readGeneration) {
+    if (readGeneration != generation || ttlMillis <= 0) {
+      return;
+    }
+    store(aJob, System.currentTimeMillis());
+  }
+
+  private void store(JobSpec aJob, long now) {
+    Entry<JobSpec> existing = jobs.get(aJob.getId());
+    if (existing != null && !isExpired(existing) &&
+        existing.value.getLastModified() != null &&
+        aJob.getLastModified() != null &&
+        existing.value.getLastModified().isAfter(aJob.getLastModified())) {
+      return;
+    }
+    jobs.put(aJob.getId(), new Entry<>(new JobSpec(aJob), now));
+  }
+
+  public synchronized List<JobSpec> getJobs() {
+    if (all != null && isExpired(all)) {
+      all = null;
+      reporting.mark(METRIC_PREFIX + "eviction");
+    }
+    if (all == null) {
+      reporting.mark(METRIC_PREFIX + "miss");
+      return null;
+    }
+    reporting.mark(METRIC_PREFIX + "hit");
+    return copy(all.value);
+  }
+
+  /**
+   * Caches the list of all jobs and every job in it.
+   */
+  public synchronized void putJobs(List<JobSpec> toCache,
+                                   long readGeneration) {
+    if (readGeneration != generation || ttlMillis <= 0) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    all = new Entry<>(copy(toCache), now);
+    for (JobSpec aJob : toCache) {
+      store(aJob, now);
+    }
+  }
+
+  /**
+   * @return the cached graph, which is shared and not copied
+   */
+  public synchronized JobGraph getGraph() {
+    if (graph != null && isExpired(graph)) {
+      graph = null;
+      reporting.mark(METRIC_PREFIX + "eviction");
+    }
+    if (graph == null) {
+      reporting.mark(METRIC_PREFIX + "miss");
+      return null;
+    }
+    reporting.mark(METRIC_PREFIX + "hit");
+    return graph.value;
+  }
+
+  /**
+   * Caches a graph built from copies of every job, so it can be shared.
+   */
+  public synchronized void putGraph(JobGraph toCache, long readGeneration) {
+    if (readGeneration != generation || ttlMillis <= 0) {
+      return;
+    }
+    graph = new Entry<>(toCache, System.currentTimeMillis());
+  }
+
+  public synchronized List<JobSpec> getChildren(long id) {
+    Entry<List<JobSpec>> entry = children.get(id);
+    if (entry != null && isExpired(entry)) {
+      children.remove(id);
+      reporting.mark(METRIC_PREFIX + "eviction");
+      entry = null;
+    }
+    if (entry == null) {
+      reporting.mark(METRIC_PREFIX + "miss");
+      return null;
+    }
+    reporting.mark(METRIC_PREFIX + "hit");
+    return copy(entry.value);
+  }
+
+  public synchronized void putChildren(long id, List<JobSpec> toCache,
+                                       long readGeneration) {
+    if (readGeneration != generation || ttlMillis <= 0) {
+      return;
+    }
+    if (children.size() >= maxSize) {
+      evictExpiredChildren();
+    }
+    if (children.size() < maxSize) {
+      children.put(id, new Entry<>(copy(toCache), System.currentTimeMillis()));
+    }
+  }
+
+  /**
+   * Drops the job as well as the job list, the graph and all children
+   * lists, which the job may have joined or left.
+   */
+  public synchronized void invalidate(long id) {
+    generation++;
+    jobs.remove(id);
+    children.clear();
+    all = null;
+    graph = null;
+  }
+
+  public synchronized void clear() {
+    generation++;
+    jobs.clear();
+    children.clear();
+    all = null;
+    graph = null;
+  }
+
+  public synchronized int size() {
+    return jobs.size();
+  }
+
+  private void evictExpiredChildren() {
+    Iterator<Entry<List<JobSpec>>> it = children.values().iterator();
+    while (it.hasNext()) {
+      if (isExpired(it.next())) {
+        it.remove();
+        reporting.mark(METRIC_PREFIX + "eviction");
+      }
+    }
+  }
+
+  private boolean isExpired(Entry<?> entry) {
+    return System.currentTimeMillis() - entry.loadedAt >= ttlMillis;
+  }
+
+  private static List<JobSpec> copy(List<JobSpec> jobs) {
+    List<JobSpec> toRet = new ArrayList<>(jobs.size());
+    for (JobSpec aJob : jobs) {
+      toRet.add(new JobSpec(aJob));
+    }
+    return toRet;
+  }
+}
@@ -0,0 +1,38 @@
+package com.huffingtonpost.chronos.model;
+
+import org.joda.time.DateTime;
+
+/**
+ * A failed run that will be run again as attemptNumber at dueTime.
+ */
+public class PendingRetry {
+
+  private final PlannedJob plannedJob;
+  private final int attemptNumber;
+  private final DateTime dueTime;
+
+  public PendingRetry(PlannedJob plannedJob, int attemptNumber,
+                      DateTime dueTime) {
+    this.plannedJob = plannedJob;
+    this.attemptNumber = attemptNumber;
+    this.dueTime = dueTime;
+  }
+
+  public PlannedJob getPlannedJob() {
+    return plannedJob;
+  }
+
+  public int getAttemptNumber() {
+    return attemptNumber;
+  }
+
+  public DateTime getDueTime() {
+    return dueTime;
+  }
+
+  @Override
+  public String toString() {
+    return "<PendingRetry - plannedJob:" + plannedJob + ", attemptNumber:" +
+      attemptNumber + ", dueTime:" + dueTime + ">";
+  }
+}
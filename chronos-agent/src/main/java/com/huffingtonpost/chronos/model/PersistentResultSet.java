@@ -3,6 +3,10 @@ package com.huffingtonpost.chronos.model;
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * A result set held in memory. Reports are streamed to ReportSinks instead,
+ * this is only meant for small results that are already materialized.
+ */
 public class PersistentResultSet {
   private List<String> columnNames;
   private List<String> columnTypes;
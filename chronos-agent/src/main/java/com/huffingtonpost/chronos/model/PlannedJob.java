@@ -4,6 +4,7 @@ import java.util.Objects;
 
 import org.joda.time.DateTime;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 
 public class PlannedJob implements Comparable<PlannedJob> {
@@ -11,6 +12,15 @@ public class PlannedJob implements Comparable<PlannedJob> {
   private JobSpec jobSpec;
   @JsonDeserialize(using=DateTimeDeserializer.class)
   private DateTime replaceTime;
+  /**
+   * The backfill the job was queued for, if any. The identity of a planned
+   * job is its job and replace time.
+   */
+  private Long backfillId;
+  /**
+   * The pipeline run the job runs in, if any, neither part of its identity.
+   */
+  private String pipelineId;
   
   public PlannedJob() {
   }
@@ -28,6 +38,32 @@ public class PlannedJob implements Comparable<PlannedJob> {
     return replaceTime;
   }
 
+  public Long getBackfillId() {
+    return backfillId;
+  }
+
+  public void setBackfillId(Long backfillId) {
+    this.backfillId = backfillId;
+  }
+
+  public String getPipelineId() {
+    return pipelineId;
+  }
+
+  public void setPipelineId(String pipelineId) {
+    this.pipelineId = pipelineId;
+  }
+
+  /**
+   * @return replaceTime plus the deadlineMinutes of the job, or null when the
+   * job has no deadline
+   */
+  @JsonIgnore
+  public DateTime getDeadline() {
+    Integer minutes = jobSpec.getDeadlineMinutes();
+    return minutes == null ? null : replaceTime.plusMinutes(minutes);
+  }
+
   @Override
   public int hashCode() {
     return Objects.hash(jobSpec, replaceTime);
@@ -0,0 +1,11 @@
+package com.huffingtonpost.chronos.model;
+
+/**
+ * Notified by the JobDao whenever a PlannedJob is added to the queue so a
+ * consumer in the same process can dispatch it without waiting to poll.
+ */
+public interface QueueListener {
+
+  void jobQueued(PlannedJob pj);
+
+}
@@ -0,0 +1,31 @@
+package com.huffingtonpost.chronos.model;
+
+import org.joda.time.DateTime;
+
+/**
+ * A PlannedJob waiting in the queue since insertTime.
+ */
+public class QueuedJob {
+
+  private final PlannedJob plannedJob;
+  private final DateTime insertTime;
+
+  public QueuedJob(PlannedJob plannedJob, DateTime insertTime) {
+    this.plannedJob = plannedJob;
+    this.insertTime = insertTime;
+  }
+
+  public PlannedJob getPlannedJob() {
+    return plannedJob;
+  }
+
+  public DateTime getInsertTime() {
+    return insertTime;
+  }
+
+  @Override
+  public String toString() {
+    return "<QueuedJob - plannedJob:" + plannedJob + ", insertTime:" +
+      insertTime + ">";
+  }
+}
@@ -0,0 +1,23 @@
+package com.huffingtonpost.chronos.model;
+
+/**
+ * How the report of a query job is saved under the report root path.
+ */
+public enum ReportFormat {
+  TSV(".tsv"),
+  TSV_GZIP(".tsv.gz"),
+  /**
+   * Gzipped stream of typed values, see TypedBinarySink.
+   */
+  BINARY(".bin.gz");
+
+  private final String extension;
+
+  ReportFormat(String extension) {
+    this.extension = extension;
+  }
+
+  public String getExtension() {
+    return extension;
+  }
+}
@@ -0,0 +1,64 @@
+package com.huffingtonpost.chronos.model;
+
+import com.huffingtonpost.chronos.agent.CallableJob;
+import org.joda.time.DateTime;
+
+/**
+ * The part of a job run that changes after the run was created: its status,
+ * exception message, start and finish, as of dt.
+ */
+public class RunState {
+
+  private final long runId;
+  private final long dt;
+  private final int status;
+  private final String exceptionMessage;
+  private final long start;
+  private final long finish;
+
+  public RunState(long runId, long dt, int status, String exceptionMessage,
+                  long start, long finish) {
+    this.runId = runId;
+    this.dt = dt;
+    this.status = status;
+    this.exceptionMessage = exceptionMessage;
+    this.start = start;
+    this.finish = finish;
+  }
+
+  public static RunState of(DateTime dt, CallableJob cj) {
+    return new RunState(cj.getJobId(), dt.getMillis(), cj.getStatus().get(),
+      cj.getExceptionMessage() != null ? cj.getExceptionMessage().get() : "",
+      cj.getStart().get(), cj.getFinish().get());
+  }
+
+  public long getRunId() {
+    return runId;
+  }
+
+  public long getDt() {
+    return dt;
+  }
+
+  public int getStatus() {
+    return status;
+  }
+
+  public String getExceptionMessage() {
+    return exceptionMessage;
+  }
+
+  public long getStart() {
+    return start;
+  }
+
+  public long getFinish() {
+    return finish;
+  }
+
+  @Override
+  public String toString() {
+    return "<RunState - runId:" + runId + ", dt:" + dt + ", status:" + status +
+      ", start:" + start + ", finish:" + finish + ">";
+  }
+}
@@ -0,0 +1,16 @@
+package com.huffingtonpost.chronos.model;
+
+/**
+ * Notified once the state of a finished run has been written to the
+ * backend, so whatever follows the run only happens after other agents can
+ * see it finished.
+ */
+public interface RunStateListener {
+
+  /**
+   * @param held false when another agent reaped the run since its lease
+   * expired, the state was then not written
+   */
+  void stateWritten(boolean held);
+
+}
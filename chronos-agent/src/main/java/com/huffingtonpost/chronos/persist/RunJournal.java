@@ -0,0 +1,446 @@
+package com.huffingtonpost.chronos.persist;
+
+import com.huffingtonpost.chronos.agent.NoReporting;
+import com.huffingtonpost.chronos.agent.Reporting;
+import com.huffingtonpost.chronos.agent.Stoppable;
+import com.huffingtonpost.chronos.model.RunState;
+import com.huffingtonpost.chronos.model.RunStateListener;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Write-behind for job run state. Updates are appended to a local journal
+ * file, and synced to disk, before append returns, and are written to the
+ * backend in a single batch by a background thread every SLEEP_FOR millis,
+ * or as soon as batchSize runs are pending. Only the latest state of every
+ * run is written. The listener appended with a state, usually the one of a
+ * finished run, is called by the thread that wrote it.
+ *
+ * Once everything in the journal has been written to the backend the file
+ * is truncated, or rewritten with the still pending states when it grows
+ * past compactAtBytes. When the journal is opened, states left in the file
+ * by a process that did not shut down cleanly are replayed. A record that
+ * was only partly written is discarded with everything after it. Their
+ * listeners are gone, so a finish that is replayed hands nothing off, and
+ * until it is replayed the run looks unfinished and its lease expires.
+ *
+ * Every record is a length, the encoded state and a CRC32 of the state.
+ */
+public class RunJournal extends Stoppable {
+  private static Logger LOG = Logger.getLogger(RunJournal.class);
+
+  public static final String METRIC_PREFIX = "chronos.runjournal.";
+  private static final int MAX_RECORD = 16 * 1024 * 1024;
+
+  private final File file;
+  private final Object flushLock = new Object();
+  private final Object signal = new Object();
+  private final Map<Long, RunState> pending = new LinkedHashMap<>();
+  private final Map<Long, RunStateListener> listeners = new HashMap<>();
+
+  private volatile boolean sync = true;
+  private volatile int batchSize = 500;
+  private volatile long compactAtBytes = 16 * 1024 * 1024;
+
+  private WithBackend backend = null;
+  private Reporting reporting = new NoReporting();
+  private FileChannel channel = null;
+  private Thread me = null;
+
+  public RunJournal(File file) {
+    this.file = file;
+    this.SLEEP_FOR = 200;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * @param sync whether every append waits for the journal to reach the
+   * disk, without it appends survive a crash of the process but not of the
+   * machine
+   */
+  public void setSync(boolean sync) {
+    this.sync = sync;
+  }
+
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  public void setCompactAtBytes(long compactAtBytes) {
+    this.compactAtBytes = compactAtBytes;
+  }
+
+  public synchronized boolean isOpen() {
+    return channel != null;
+  }
+
+  public synchronized int getPendingCount() {
+    return pending.size();
+  }
+
+  /**
+   * Replays the journal into backend and starts writing appended states to
+   * it.
+   */
+  public void open(WithBackend backend, Reporting reporting)
+      throws IOException {
+    synchronized (this) {
+      if (channel != null) {
+        return;
+      }
+      this.backend = backend;
+      this.reporting = reporting;
+      file.getAbsoluteFile().getParentFile().mkdirs();
+      long valid = replay();
+      channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+      if (channel.size() > valid) {
+        LOG.warn(String.format("Discarding %d bytes of partly written "
+          + "records in %s", channel.size() - valid, file));
+        channel.truncate(valid);
+      }
+      channel.position(valid);
+      if (!pending.isEmpty()) {
+        LOG.info(String.format("Replaying %d job run states from %s",
+          pending.size(), file));
+      }
+      isAlive = true;
+    }
+    try {
+      flush();
+    } catch (BackendException | RuntimeException ex) {
+      LOG.error("Could not replay job run states, will retry", ex);
+    }
+    synchronized (this) {
+      me = new Thread(this, "RunJournal");
+      me.setDaemon(true);
+      me.start();
+    }
+  }
+
+  /**
+   * @return whether the state was journaled, when it was not the caller has
+   * to write it to the backend itself
+   */
+  public boolean append(RunState state) {
+    return append(state, null);
+  }
+
+  /**
+   * @param listener called once the state, or a later one of the same run,
+   * is written
+   * @return whether the state was journaled, when it was not the caller has
+   * to write it to the backend and call listener itself
+   */
+  public boolean append(RunState state, RunStateListener listener) {
+    ByteBuffer record = encode(state);
+    boolean full;
+    synchronized (this) {
+      if (channel == null) {
+        return false;
+      }
+      try {
+        while (record.hasRemaining()) {
+          channel.write(record);
+        }
+        if (sync) {
+          channel.force(false);
+        }
+      } catch (IOException ex) {
+        LOG.error("Could not append to " + file, ex);
+        reporting.mark(METRIC_PREFIX + "appendfailed");
+        return false;
+      }
+      pending.remove(state.getRunId());
+      pending.put(state.getRunId(), state);
+      if (listener != null) {
+        listeners.put(state.getRunId(), listener);
+      }
+      full = pending.size() >= batchSize;
+    }
+    reporting.mark(METRIC_PREFIX + "appended");
+    if (full) {
+      wakeUp();
+    }
+    return true;
+  }
+
+  /**
+   * Writes all pending states to the backend, then truncates or compacts
+   * the journal, and calls the listeners of the states written.
+   */
+  public void flush() throws BackendException {
+    Map<Long, RunStateListener> toCall = new LinkedHashMap<>();
+    Set<Long> lost;
+    synchronized (flushLock) {
+      List<RunState> toWrite;
+      synchronized (this) {
+        if (pending.isEmpty()) {
+          return;
+        }
+        toWrite = new ArrayList<>(pending.values());
+      }
+      long begin = System.currentTimeMillis();
+      lost = new HashSet<>(backend.updateJobRunStates(toWrite));
+      if (!lost.isEmpty()) {
+        // reaped by another agent, which finished and retries them
+        LOG.warn("Lost the lease of runs " + lost);
+        reporting.mark(METRIC_PREFIX + "leaselost");
+      }
+      reporting.histogram(METRIC_PREFIX + "batch", toWrite.size());
+      reporting.histogram(METRIC_PREFIX + "flushtime",
+        System.currentTimeMillis() - begin);
+      synchronized (this) {
+        for (RunState written : toWrite) {
+          if (pending.get(written.getRunId()) == written) {
+            pending.remove(written.getRunId());
+            RunStateListener listener = listeners.remove(written.getRunId());
+            if (listener != null) {
+              toCall.put(written.getRunId(), listener);
+            }
+          }
+        }
+        try {
+          compact();
+        } catch (IOException ex) {
+          LOG.error("Could not compact " + file, ex);
+        }
+      }
+    }
+    for (Map.Entry<Long, RunStateListener> entry : toCall.entrySet()) {
+      try {
+        entry.getValue().stateWritten(!lost.contains(entry.getKey()));
+      } catch (RuntimeException ex) {
+        LOG.error("Could not hand off run " + entry.getKey(), ex);
+      }
+    }
+  }
+
+  private void compact() throws IOException {
+    if (channel == null) {
+      return;
+    }
+    if (pending.isEmpty()) {
+      channel.truncate(0);
+      return;
+    }
+    if (channel.size() < compactAtBytes) {
+      return;
+    }
+    Path temp = new File(file.getAbsoluteFile().getParentFile(),
+      "." + file.getName() + ".tmp").toPath();
+    try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+           StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      for (RunState state : pending.values()) {
+        ByteBuffer record = encode(state);
+        while (record.hasRemaining()) {
+          out.write(record);
+        }
+      }
+      out.force(false);
+    }
+    channel.close();
+    channel = null;
+    try {
+      try {
+        Files.move(temp, file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      // the compacted journal, or the original one if the move failed
+      Files.deleteIfExists(temp);
+      FileChannel reopened = FileChannel.open(file.toPath(),
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+      try {
+        reopened.position(reopened.size());
+      } catch (IOException ex) {
+        reopened.close();
+        throw ex;
+      }
+      channel = reopened;
+    }
+    LOG.info(String.format("Compacted %s to %d states", file,
+      pending.size()));
+  }
+
+  /**
+   * Reads the states in the journal into pending.
+   *
+   * @return the length of the complete records at the start of the file
+   */
+  private long replay() throws IOException {
+    if (!file.exists()) {
+      return 0;
+    }
+    long valid = 0;
+    try (DataInputStream in = new DataInputStream(
+           new BufferedInputStream(new FileInputStream(file)))) {
+      while (true) {
+        int length = in.readInt();
+        if (length <= 0 || length > MAX_RECORD) {
+          break;
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        long crc = in.readLong();
+        if (crc != checksum(payload)) {
+          break;
+        }
+        RunState state = decode(ByteBuffer.wrap(payload));
+        pending.remove(state.getRunId());
+        pending.put(state.getRunId(), state);
+        valid += 4 + length + 8;
+      }
+    } catch (EOFException ignore) {
+    }
+    return valid;
+  }
+
+  private static ByteBuffer encode(RunState state) {
+    byte[] exception = state.getExceptionMessage() == null ? null :
+      state.getExceptionMessage().getBytes(StandardCharsets.UTF_8);
+    int length = 8 * 4 + 4 + 4 + (exception == null ? 0 : exception.length);
+    ByteBuffer payload = ByteBuffer.allocate(length);
+    payload.putLong(state.getRunId());
+    payload.putLong(state.getDt());
+    payload.putInt(state.getStatus());
+    payload.putLong(state.getStart());
+    payload.putLong(state.getFinish());
+    if (exception == null) {
+      payload.putInt(-1);
+    } else {
+      payload.putInt(exception.length);
+      payload.put(exception);
+    }
+    ByteBuffer record = ByteBuffer.allocate(4 + length + 8);
+    record.putInt(length);
+    record.put(payload.array());
+    record.putLong(checksum(payload.array()));
+    record.flip();
+    return record;
+  }
+
+  private static RunState decode(ByteBuffer payload) {
+    long runId = payload.getLong();
+    long dt = payload.getLong();
+    int status = payload.getInt();
+    long start = payload.getLong();
+    long finish = payload.getLong();
+    int length = payload.getInt();
+    String exception = null;
+    if (length >= 0) {
+      byte[] bytes = new byte[length];
+      payload.get(bytes);
+      exception = new String(bytes, StandardCharsets.UTF_8);
+    }
+    return new RunState(runId, dt, status, exception, start, finish);
+  }
+
+  private static long checksum(byte[] payload) {
+    CRC32 crc = new CRC32();
+    crc.update(payload, 0, payload.length);
+    return crc.getValue();
+  }
+
+  public void wakeUp() {
+    synchronized (signal) {
+      signal.notifyAll();
+    }
+  }
+
+  /**
+   * Waits for SLEEP_FOR millis, or until batchSize states are pending, then
+   * flushes. open has already flushed what was replayed.
+   */
+  @Override
+  public void doRun() {
+    synchronized (signal) {
+      if (isAlive && getPendingCount() < batchSize) {
+        try {
+          signal.wait(SLEEP_FOR);
+        } catch (InterruptedException e) {
+          LOG.error(e);
+        }
+      }
+    }
+    if (!isAlive) {
+      return;
+    }
+    try {
+      flush();
+    } catch (BackendException | RuntimeException ex) {
+      LOG.error("Could not write job run states, will retry", ex);
+      reporting.mark(METRIC_PREFIX + "flushfailed");
+    }
+  }
+
+  @Override
+  public void run() {
+    while (isAlive) {
+      doRun();
+    }
+  }
+
+  /**
+   * Stops the background thread and writes what is still pending. States
+   * that cannot be written stay in the journal for the next open.
+   */
+  @Override
+  public void close() throws IOException {
+    Thread thread;
+    synchronized (this) {
+      if (channel == null) {
+        return;
+      }
+      thread = me;
+    }
+    super.close();
+    wakeUp();
+    if (thread != null) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        LOG.error(e);
+      }
+    }
+    try {
+      flush();
+    } catch (BackendException | RuntimeException ex) {
+      LOG.error("Could not write job run states, leaving them in " + file,
+        ex);
+    }
+    synchronized (this) {
+      channel.close();
+      channel = null;
+      pending.clear();
+    }
+  }
+
+}
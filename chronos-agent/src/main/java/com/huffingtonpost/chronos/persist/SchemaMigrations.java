@@ -0,0 +1,407 @@
+package com.huffingtonpost.chronos.persist;
+
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.huffingtonpost.chronos.persist.WithSql.backfillTableName;
+import static com.huffingtonpost.chronos.persist.WithSql.driverStateTableName;
+import static com.huffingtonpost.chronos.persist.WithSql.jobCurrentTableName;
+import static com.huffingtonpost.chronos.persist.WithSql.jobRunTableName;
+import static com.huffingtonpost.chronos.persist.WithSql.jobTableName;
+import static com.huffingtonpost.chronos.persist.WithSql.pipelineJobTableName;
+import static com.huffingtonpost.chronos.persist.WithSql.queueTableName;
+import static com.huffingtonpost.chronos.persist.WithSql.retryTableName;
+
+/**
+ * Versioned changes to the schema, applied in order when the backend starts.
+ * Applied versions are recorded in schema_version.
+ *
+ * Every migration must be idempotent. Databases created before versioning
+ * was introduced run all of them against tables that may already be up to
+ * date, and agents starting at the same time may apply the same migration
+ * concurrently. Schema changes are made by appending a migration to
+ * MIGRATIONS, never by editing one that has been released.
+ */
+public class SchemaMigrations {
+
+  private static Logger LOG = Logger.getLogger(SchemaMigrations.class);
+  public static String schemaVersionTableName = "schema_version";
+
+  public static abstract class Migration {
+    private final int version;
+    private final String description;
+
+    public Migration(int version, String description) {
+      this.version = version;
+      this.description = description;
+    }
+
+    public int getVersion() {
+      return version;
+    }
+
+    public String getDescription() {
+      return description;
+    }
+
+    public abstract void apply(Connection conn) throws SQLException;
+  }
+
+  public static final List<Migration> MIGRATIONS = Arrays.asList(
+    new Migration(1, "Create job_runs, jobs and torun_queue") {
+      @Override
+      public void apply(Connection conn) throws SQLException {
+        execute(conn, String.format("CREATE TABLE IF NOT EXISTS %s "
+          + "(id BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY, dt DATETIME, callable_job TEXT, "
+          + "name TEXT, `code` TEXT, status INTEGER, exception TEXT,"
+          + "start DATETIME, finish DATETIME,"
+          + "callable_job_id BIGINT NOT NULL)", jobRunTableName));
+        execute(conn, String.format("CREATE TABLE IF NOT EXISTS %s "
+          + "(id BIGINT NOT NULL AUTO_INCREMENT, user VARCHAR(100), password VARCHAR(100),"
+          + "name VARCHAR(100), description VARCHAR(250), jobType VARCHAR(100), "
+          + "`code` TEXT, resultQuery TEXT, resultTable VARCHAR(100), "
+          + "cronString VARCHAR(250), "
+          + "driver VARCHAR(100), enabled BIT, "
+          + "shouldRerun BIT, resultEmail TEXT, statusEmail TEXT, lastModified DATETIME, "
+          + "parent BIGINT DEFAULT NULL, PRIMARY KEY (id, lastModified))",
+          jobTableName));
+        execute(conn, String.format("CREATE TABLE IF NOT EXISTS %s "
+          + "(job_id BIGINT, job_lastModified DATETIME, replaceTime DATETIME, "
+          + "insertTime DATETIME DEFAULT CURRENT_TIMESTAMP, "
+          + "PRIMARY KEY (job_id, job_lastModified, replaceTime), "
+          + "FOREIGN KEY (job_id, job_lastModified) "
+          + "REFERENCES %s(id, lastModified) "
+          + "ON DELETE CASCADE)",
+          queueTableName, jobTableName));
+      }
+    },
+    new Migration(2, "Create driver_state") {
+      @Override
+      public void apply(Connection conn) throws SQLException {
+        execute(conn, String.format("CREATE TABLE IF NOT EXISTS %s "
+          + "(name VARCHAR(100) NOT NULL PRIMARY KEY, lastEvaluated DATETIME)",
+          driverStateTableName));
+      }
+    },
+    new Migration(3, "Add jobs.reportFormat") {
+      @Override
+      public void apply(Connection conn) throws SQLException {
+        addColumnIfMissing(conn, jobTableName, "reportFormat",
+          "VARCHAR(20) DEFAULT NULL");
+      }
+    },
+    new Migration(4, "Create and backfill jobs_current") {
+      @Override
+      public void apply(Connection conn) throws SQLException {
+        // points at the latest version of every job, so it can be looked up
+        // without aggregating over the whole version history
+        execute(conn, String.format("CREATE TABLE IF NOT EXISTS %s "
+          + "(id BIGINT NOT NULL PRIMARY KEY, lastModified DATETIME NOT NULL, "
+          + "parent BIGINT DEFAULT NULL, "
+          + "INDEX %s_parent (parent), "
+          + "FOREIGN KEY (id, lastModified) "
+          + "REFERENCES %s(id, lastModified) "
+          + "ON DELETE CASCADE)",
+          jobCurrentTableName, jobCurrentTableName, jobTableName));
+        int backfilled = execute(conn, String.format("INSERT INTO %s "
+          + "(id, lastModified, parent) "
+          + "SELECT a.id, a.lastModified, a.parent FROM %s a "
+          + "INNER JOIN "
+            + "(SELECT id, MAX(lastModified) AS MaxModified "
+            + "FROM %s "
+            + "GROUP BY id) b "
+          + "ON a.id = b.id "
+          + "AND a.lastModified = b.MaxModified "
+          + "WHERE NOT EXISTS (SELECT 1 FROM %s c WHERE c.id = a.id)",
+          jobCurrentTableName, jobTableName, jobTableName,
+          jobCurrentTableName));
+        LOG.info(String.format("Backfilled %d rows of %s", backfilled,
+          jobCurrentTableName));
+      }
+    },
+    new Migration(5, "Index job_runs and torun_queue") {
+      @Override
+      public void apply(Connection conn) throws SQLException {
+        // getJobRuns for one job and for all jobs, newest first
+        createIndexIfMissing(conn, jobRunTableName, "job_runs_job_dt",
+          "callable_job_id, dt");
+        createIndexIfMissing(conn, jobRunTableName, "job_runs_dt", "dt");
+        // getRunningJobs: finish = ? AND start > ?
+        createIndexIfMissing(conn, jobRunTableName, "job_runs_finish_start",
+          "finish, start");
+        // dequeueing in insertion order
+        createIndexIfMissing(conn, queueTableName, "torun_queue_insert",
+          "insertTime");
+      }
+    },
+    new Migration(6, "Add native run columns to job_runs") {
+      @Override
+      public void apply(Connection conn) throws SQLException {
+        // runs reference the version of their job instead of embedding it
+        // in callable_job, which is only kept for rows written before
+        addColumnIfMissing(conn, jobRunTableName, "job_lastModified",
+          "DATETIME DEFAULT NULL");
+        addColumnIfMissing(conn, jobRunTableName, "replaceTime",
+          "DATETIME DEFAULT NULL");
+        addColumnIfMissing(conn, jobRunTableName, "attemptNumber",
+          "INTEGER DEFAULT NULL");
+      }
+    },
+    new Migration(7, "Create pending_retries") {
+      @Override
+      public void apply(Connection conn) throws SQLException {
+        execute(conn, String.format("CREATE TABLE IF NOT EXISTS %s "
+          + "(job_id BIGINT, job_lastModified DATETIME, replaceTime DATETIME, "
+          + "attemptNumber INTEGER NOT NULL, dueTime DATETIME NOT NULL, "
+          + "pipelineId VARCHAR(36) DEFAULT NULL, "
+          + "PRIMARY KEY (job_id, job_lastModified, replaceTime), "
+          + "FOREIGN KEY (job_id, job_lastModified) "
+          + "REFERENCES %s(id, lastModified) "
+          + "ON DELETE CASCADE)",
+          retryTableName, jobTableName));
+      }
+    },
+    new Migration(8, "Index job_runs by job and replace time") {
+      @Override
+      public void apply(Connection conn) throws SQLException {
+        // getFailedJobRuns: whether a later run of the same job and
+        // replace time exists
+        createIndexIfMissing(conn, jobRunTableName, "job_runs_job_replace",
+          "callable_job_id, replaceTime, id");
+      }
+    },
+    new Migration(9, "Add job priorities and queue deadlines") {
+      @Override
+      public void apply(Connection conn) throws SQLException {
+        addColumnIfMissing(conn, jobTableName, "priority",
+          "INTEGER NOT NULL DEFAULT 0");
+        addColumnIfMissing(conn, jobTableName, "deadlineMinutes",
+          "INTEGER DEFAULT NULL");
+        // queuePriority starts at the priority of the job and is raised as
+        // the row ages, jobs without a deadline get WithSql.NO_DEADLINE so
+        // they sort after every real one
+        addColumnIfMissing(conn, queueTableName, "queuePriority",
+          "INTEGER NOT NULL DEFAULT 0");
+        // the priority a job was queued at, aging stops a bounded number of
+        // steps above it
+        addColumnIfMissing(conn, queueTableName, "basePriority",
+          "INTEGER NOT NULL DEFAULT 0");
+        addColumnIfMissing(conn, queueTableName, "deadline",
+          "DATETIME NOT NULL DEFAULT '" + WithSql.NO_DEADLINE + "'");
+        addColumnIfMissing(conn, queueTableName, "agedAt",
+          "DATETIME DEFAULT NULL");
+        // dequeueing by priority, then earliest deadline, then insertion
+        createIndexIfMissing(conn, queueTableName, "torun_queue_priority",
+          "queuePriority DESC, deadline, insertTime");
+      }
+    },
+    new Migration(10, "Add run leases to job_runs") {
+      @Override
+      public void apply(Connection conn) throws SQLException {
+        // the agent running a job renews its heartbeat, other agents only
+        // finish runs whose heartbeat is older than the lease
+        addColumnIfMissing(conn, jobRunTableName, "owner",
+          "VARCHAR(255) DEFAULT NULL");
+        addColumnIfMissing(conn, jobRunTableName, "heartbeat",
+          "DATETIME DEFAULT NULL");
+        createIndexIfMissing(conn, jobRunTableName, "job_runs_owner",
+          "owner, finish");
+        createIndexIfMissing(conn, jobRunTableName, "job_runs_finish_heartbeat",
+          "finish, heartbeat");
+      }
+    },
+    new Migration(11, "Add driver leadership to driver_state") {
+      @Override
+      public void apply(Connection conn) throws SQLException {
+        // the driver row doubles as the lock the AgentDrivers elect their
+        // leader with, fencingToken grows with every new leader
+        addColumnIfMissing(conn, driverStateTableName, "leader",
+          "VARCHAR(255) DEFAULT NULL");
+        addColumnIfMissing(conn, driverStateTableName, "leaseUntil",
+          "DATETIME DEFAULT NULL");
+        addColumnIfMissing(conn, driverStateTableName, "fencingToken",
+          "BIGINT NOT NULL DEFAULT 0");
+      }
+    },
+    new Migration(12, "Create backfills") {
+      @Override
+      public void apply(Connection conn) throws SQLException {
+        execute(conn, String.format("CREATE TABLE IF NOT EXISTS %s "
+          + "(id BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY, "
+          + "job_id BIGINT NOT NULL, rangeStart DATETIME NOT NULL, "
+          + "rangeEnd DATETIME NOT NULL, stepMinutes INTEGER DEFAULT NULL, "
+          + "includeChildren BIT NOT NULL, priority INTEGER NOT NULL, "
+          + "maxInFlight INTEGER NOT NULL, createTime DATETIME NOT NULL)",
+          backfillTableName));
+        // queued runs of a backfill, counted to tell which are still active
+        addColumnIfMissing(conn, queueTableName, "backfill_id",
+          "BIGINT DEFAULT NULL");
+        createIndexIfMissing(conn, queueTableName, "torun_queue_backfill",
+          "backfill_id");
+      }
+    },
+    new Migration(13, "Add pipeline edges, pipeline runs and queued pipeline jobs") {
+      @Override
+      public void apply(Connection conn) throws SQLException {
+        addColumnIfMissing(conn, jobTableName, "runOn",
+          "VARCHAR(20) NOT NULL DEFAULT 'ALWAYS'");
+        addColumnIfMissing(conn, jobTableName, "dependsOn",
+          "TEXT DEFAULT NULL");
+        // every run of a pipeline carries the id of the pipeline run
+        addColumnIfMissing(conn, jobRunTableName, "pipelineId",
+          "VARCHAR(36) DEFAULT NULL");
+        createIndexIfMissing(conn, jobRunTableName, "job_runs_pipeline",
+          "pipelineId");
+        // jobs a pipeline made ready wait in the queue, and retries of its
+        // runs stay part of it, on whichever agent they run
+        addColumnIfMissing(conn, queueTableName, "pipelineId",
+          "VARCHAR(36) DEFAULT NULL");
+        // the jobs queued for a pipeline so far, so each is queued once
+        execute(conn, String.format("CREATE TABLE IF NOT EXISTS %s "
+          + "(pipelineId VARCHAR(36) NOT NULL, job_id BIGINT NOT NULL, "
+          + "PRIMARY KEY (pipelineId, job_id))", pipelineJobTableName));
+      }
+    }
+  );
+
+  /**
+   * Applies every migration that is not recorded in schema_version yet.
+   */
+  public static void migrate(Connection conn) throws SQLException {
+    execute(conn, String.format("CREATE TABLE IF NOT EXISTS %s "
+      + "(version INTEGER NOT NULL PRIMARY KEY, description VARCHAR(250), "
+      + "appliedAt DATETIME)", schemaVersionTableName));
+    Set<Integer> applied = getAppliedVersions(conn);
+    for (Migration m : MIGRATIONS) {
+      if (applied.contains(m.getVersion())) {
+        continue;
+      }
+      LOG.info(String.format("Applying schema migration %d: %s",
+        m.getVersion(), m.getDescription()));
+      m.apply(conn);
+      PreparedStatement stat =
+        conn.prepareStatement(String.format("INSERT INTO %s "
+          + "(version, description, appliedAt) VALUES (?, ?, ?)",
+          schemaVersionTableName));
+      try {
+        int i = 1;
+        stat.setInt(i++, m.getVersion());
+        stat.setString(i++, m.getDescription());
+        stat.setTimestamp(i++, new Timestamp(System.currentTimeMillis()));
+        stat.executeUpdate();
+      } catch (SQLException ex) {
+        if (!getAppliedVersions(conn).contains(m.getVersion())) {
+          throw ex;
+        }
+        LOG.info(String.format("Schema migration %d was recorded by another "
+          + "process", m.getVersion()));
+      } finally {
+        stat.close();
+      }
+    }
+  }
+
+  public static Set<Integer> getAppliedVersions(Connection conn)
+      throws SQLException {
+    Set<Integer> toRet = new HashSet<>();
+    Statement stat = conn.createStatement();
+    try {
+      ResultSet rs = stat.executeQuery(
+        String.format("SELECT version FROM %s", schemaVersionTableName));
+      while (rs.next()) {
+        toRet.add(rs.getInt(1));
+      }
+      rs.close();
+    } finally {
+      stat.close();
+    }
+    return toRet;
+  }
+
+  public static int getLatestVersion() {
+    return MIGRATIONS.get(MIGRATIONS.size() - 1).getVersion();
+  }
+
+  private static int execute(Connection conn, String sql)
+      throws SQLException {
+    Statement stat = conn.createStatement();
+    try {
+      return stat.executeUpdate(sql);
+    } finally {
+      stat.close();
+    }
+  }
+
+  private static boolean hasColumn(Connection conn, String table,
+      String column) throws SQLException {
+    Statement stat = conn.createStatement();
+    try {
+      ResultSetMetaData md =
+        stat.executeQuery(String.format("SELECT * FROM %s WHERE 1 = 0", table))
+          .getMetaData();
+      for (int i = 1; i <= md.getColumnCount(); i++) {
+        if (md.getColumnName(i).equalsIgnoreCase(column)) {
+          return true;
+        }
+      }
+      return false;
+    } finally {
+      stat.close();
+    }
+  }
+
+  private static void addColumnIfMissing(Connection conn, String table,
+      String column, String definition) throws SQLException {
+    if (hasColumn(conn, table, column)) {
+      return;
+    }
+    LOG.info(String.format("Adding column %s to %s", column, table));
+    execute(conn, String.format("ALTER TABLE %s ADD COLUMN %s %s",
+      table, column, definition));
+  }
+
+  private static boolean hasIndex(Connection conn, String table,
+      String index) throws SQLException {
+    DatabaseMetaData md = conn.getMetaData();
+    List<String> names = new ArrayList<>(Arrays.asList(table,
+      table.toUpperCase(), table.toLowerCase()));
+    for (String name : names) {
+      ResultSet rs = md.getIndexInfo(conn.getCatalog(), null, name, false,
+        true);
+      try {
+        while (rs.next()) {
+          if (index.equalsIgnoreCase(rs.getString("INDEX_NAME"))) {
+            return true;
+          }
+        }
+      } finally {
+        rs.close();
+      }
+    }
+    return false;
+  }
+
+  private static void createIndexIfMissing(Connection conn, String table,
+      String index, String columns) throws SQLException {
+    if (hasIndex(conn, table, index)) {
+      return;
+    }
+    LOG.info(String.format("Creating index %s on %s (%s)", index, table,
+      columns));
+    execute(conn, String.format("CREATE INDEX %s ON %s (%s)", index, table,
+      columns));
+  }
+}
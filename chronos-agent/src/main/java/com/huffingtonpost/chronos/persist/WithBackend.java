@@ -1,12 +1,17 @@
 package com.huffingtonpost.chronos.persist;
 
 import com.huffingtonpost.chronos.agent.CallableJob;
+import com.huffingtonpost.chronos.model.Backfill;
 import com.huffingtonpost.chronos.model.JobSpec;
+import com.huffingtonpost.chronos.model.PendingRetry;
 import com.huffingtonpost.chronos.model.PlannedJob;
+import com.huffingtonpost.chronos.model.QueuedJob;
+import com.huffingtonpost.chronos.model.RunState;
 import org.joda.time.DateTime;
 
 import javax.sql.DataSource;
 import java.io.Closeable;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -28,7 +33,27 @@ public interface WithBackend extends Closeable {
 
   public long createJobRun(DateTime dt, CallableJob cq) throws BackendException;
 
-  public void updateJobRun(DateTime dt, CallableJob cq) throws BackendException;
+  public boolean updateJobRun(DateTime dt, CallableJob cq)
+    throws BackendException;
+
+  public List<Long> updateJobRunStates(Collection<RunState> states)
+    throws BackendException;
+
+  public Map<Long, CallableJob> getExpiredJobRuns(DateTime before,
+    int keepPerJob, int limit) throws BackendException;
+
+  public Map<Long, CallableJob> getPipelineRuns(String pipelineId)
+    throws BackendException;
+
+  public Map<Long, CallableJob> getFailedJobRuns(DateTime finishedAfter,
+    int limit) throws BackendException;
+
+  public int deleteJobRuns(Collection<Long> ids) throws BackendException;
+
+  public int renewLeases(DateTime heartbeat) throws BackendException;
+
+  public Map<Long, CallableJob> reapExpiredLeases(DateTime heartbeatBefore,
+    int limit) throws BackendException;
 
   public List<JobSpec> getJobVersions(long id) throws BackendException;
 
@@ -36,11 +61,65 @@ public interface WithBackend extends Closeable {
   
   public List<PlannedJob> getQueue(Long id) throws BackendException;
   
-  public void addToQueue(PlannedJob aJob) throws BackendException;
+  public boolean addToQueue(PlannedJob aJob) throws BackendException;
+
+  public boolean addToQueue(PlannedJob aJob, long fencingToken)
+    throws BackendException;
 
   public PlannedJob removeFromQueue() throws BackendException;
 
+  public List<PlannedJob> removeFromQueue(int max) throws BackendException;
+
+  public List<QueuedJob> removeQueuedJobs(int max) throws BackendException;
+
+  public List<QueuedJob> getQueuedJobs(int limit,
+    Collection<Long> leaveOutBackfills) throws BackendException;
+
+  public List<PlannedJob> removeFromQueue(Collection<PlannedJob> jobs)
+    throws BackendException;
+
+  public List<PlannedJob> queuePipelineJobs(String pipelineId,
+    List<PlannedJob> jobs, int priority) throws BackendException;
+
+  public boolean endPipeline(String pipelineId) throws BackendException;
+
+  public int ageQueue(DateTime agedBefore, int maxRaise)
+    throws BackendException;
+
+  public int getQueueSize() throws BackendException;
+
   public int deleteFromQueue(PlannedJob pj) throws BackendException;
 
+  public List<PlannedJob> queueBackfill(Backfill backfill,
+    List<PlannedJob> jobs) throws BackendException;
+
+  public long createBackfill(Backfill backfill) throws BackendException;
+
+  public Backfill getBackfill(long id) throws BackendException;
+
+  public List<Backfill> getBackfills(boolean active) throws BackendException;
+
+  public void addPendingRetry(PendingRetry retry) throws BackendException;
+
+  public List<PendingRetry> getPendingRetries() throws BackendException;
+
+  public int deletePendingRetry(PlannedJob pj) throws BackendException;
+
   public List<JobSpec> getChildren(long id) throws BackendException;
+
+  public DateTime getLastEvaluated() throws BackendException;
+
+  public void setLastEvaluated(DateTime dt) throws BackendException;
+
+  public boolean setLastEvaluated(DateTime dt, long fencingToken)
+    throws BackendException;
+
+  public Long acquireLeadership(String candidate, DateTime now,
+    DateTime leaseUntil) throws BackendException;
+
+  public boolean renewLeadership(String candidate, long fencingToken,
+    DateTime leaseUntil) throws BackendException;
+
+  public void releaseLeadership(String candidate, long fencingToken)
+    throws BackendException;
 }
@@ -9,9 +9,14 @@ import com.fasterxml.jackson.databind.util.ISO8601DateFormat;
 import com.fasterxml.jackson.datatype.joda.JodaModule;
 import com.huffingtonpost.chronos.agent.CallableJob;
 import com.huffingtonpost.chronos.agent.PolymorphicCallableJobMixin;
+import com.huffingtonpost.chronos.model.Backfill;
 import com.huffingtonpost.chronos.model.JobSpec;
 import com.huffingtonpost.chronos.model.JobSpec.JobType;
+import com.huffingtonpost.chronos.model.PendingRetry;
 import com.huffingtonpost.chronos.model.PlannedJob;
+import com.huffingtonpost.chronos.model.QueuedJob;
+import com.huffingtonpost.chronos.model.ReportFormat;
+import com.huffingtonpost.chronos.model.RunState;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
@@ -20,6 +25,7 @@ import javax.sql.DataSource;
 import java.io.IOException;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -34,11 +40,27 @@ public class WithSql implements WithBackend {
     .addMixIn(CallableJob.class, PolymorphicCallableJobMixin.class);
   
   private DataSource ds;
+  private volatile Boolean skipLocked = null;
+  private volatile Long versionResolution = null;
+  private volatile boolean storeRunJson = false;
+  private volatile String ownerId = null;
 
   private static Logger LOG = Logger.getLogger(WithSql.class);
   public static String jobRunTableName = "job_runs";
   public static String jobTableName = "jobs";
+  public static String jobCurrentTableName = "jobs_current";
   public static String queueTableName = "torun_queue";
+  public static String driverStateTableName = "driver_state";
+  public static String retryTableName = "pending_retries";
+  public static String backfillTableName = "backfills";
+  public static String pipelineJobTableName = "pipeline_jobs";
+  private static final String DRIVER_STATE_NAME = "driver";
+  /**
+   * The deadline of queued jobs that have none, later than any real one.
+   */
+  public static final String NO_DEADLINE = "9999-12-31 00:00:00";
+  public static final String LEASE_EXPIRED =
+    "The agent running this job stopped renewing its lease";
 
   public void initBackend() {
     try {
@@ -75,47 +97,106 @@ public class WithSql implements WithBackend {
 
   private void initDbConnection() throws SQLException {
     Connection conn = newConnection();
-    PreparedStatement jobRuns =
-      conn.prepareStatement(String.format("CREATE TABLE IF NOT EXISTS %s "
-        + "(id BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY, dt DATETIME, callable_job TEXT, "
-        + "name TEXT, `code` TEXT, status INTEGER, exception TEXT,"
-        + "start DATETIME, finish DATETIME,"
-        + "callable_job_id BIGINT NOT NULL)", jobRunTableName));
-    jobRuns.execute();
-    jobRuns.close();
-
-    PreparedStatement jobs =
-      conn.prepareStatement(String.format("CREATE TABLE IF NOT EXISTS %s "
-        + "(id BIGINT NOT NULL AUTO_INCREMENT, user VARCHAR(100), password VARCHAR(100),"
-        + "name VARCHAR(100), description VARCHAR(250), jobType VARCHAR(100), "
-        + "`code` TEXT, resultQuery TEXT, resultTable VARCHAR(100), "
-        + "cronString VARCHAR(250), "
-        + "driver VARCHAR(100), enabled BIT, "
-        + "shouldRerun BIT, resultEmail TEXT, statusEmail TEXT, lastModified DATETIME, "
-        + "parent BIGINT DEFAULT NULL, PRIMARY KEY (id, lastModified))",
-        jobTableName));
-    jobs.execute();
-    jobs.close();
-
-    PreparedStatement queue =
-      conn.prepareStatement(String.format("CREATE TABLE IF NOT EXISTS %s "
-        + "(job_id BIGINT, job_lastModified DATETIME, replaceTime DATETIME, "
-        + "insertTime DATETIME DEFAULT CURRENT_TIMESTAMP, "
-        + "PRIMARY KEY (job_id, job_lastModified, replaceTime), "
-        + "FOREIGN KEY (job_id, job_lastModified) "
-        + "REFERENCES %s(id, lastModified) "
-        + "ON DELETE CASCADE)",
-        queueTableName, jobTableName));
-    queue.execute();
-    queue.close();
-
-    conn.close();
+    try {
+      SchemaMigrations.migrate(conn);
+    } finally {
+      conn.close();
+    }
   }
-  
+
+  /**
+   * Whether the database can lock the queue rows it dequeues with FOR
+   * UPDATE OF ... SKIP LOCKED, found out by running such a query once. The
+   * product name and version tell too little, MariaDB reports itself as
+   * MySQL with its own version numbers.
+   */
+  private boolean supportsSkipLocked() {
+    if (skipLocked == null) {
+      Connection conn = null;
+      Statement stat = null;
+      boolean supported;
+      try {
+        conn = newConnection();
+        stat = conn.createStatement();
+        stat.executeQuery(String.format("SELECT t1.job_id FROM %s AS t1 "
+          + "JOIN %s AS t2 ON t1.job_id = t2.id "
+          + "AND t1.job_lastModified = t2.lastModified "
+          + "WHERE 1 = 0 FOR UPDATE OF t1 SKIP LOCKED",
+          queueTableName, jobTableName)).close();
+        supported = true;
+      } catch (SQLException ex) {
+        supported = false;
+      } finally {
+        closeConnections(conn, stat);
+      }
+      skipLocked = supported;
+      LOG.info("Dequeueing with SKIP LOCKED: " + skipLocked);
+    }
+    return skipLocked;
+  }
+
   private String objToString(Object obj) throws IOException {
     return OBJECT_MAPPER.writeValueAsString(obj);
   }
 
+  /**
+   * @return the run as the callable_job JSON it is stored as
+   */
+  public static String jobRunToJson(CallableJob cj) throws IOException {
+    return OBJECT_MAPPER.writeValueAsString(cj);
+  }
+
+  /**
+   * @param storeRunJson whether runs are also saved as a callable_job JSON
+   * blob, which is only needed by readers older than the native columns
+   */
+  public void setStoreRunJson(boolean storeRunJson) {
+    this.storeRunJson = storeRunJson;
+  }
+
+  public boolean getStoreRunJson() {
+    return storeRunJson;
+  }
+
+  /**
+   * @param ownerId written as the owner of the runs this process creates,
+   * it should be different for every agent sharing the database
+   */
+  public void setOwnerId(String ownerId) {
+    this.ownerId = ownerId;
+  }
+
+  public String getOwnerId() {
+    return ownerId;
+  }
+
+  /**
+   * Sets the columns shared by createJobRun and updateJobRun. A run is
+   * stored as a reference to the version of its job plus its own state,
+   * falling back to the JSON blob when the version is unknown.
+   */
+  private int setJobRunColumns(PreparedStatement stat, DateTime dt,
+      CallableJob cj) throws SQLException, IOException {
+    JobSpec aJob = cj.getPlannedJob().getJobSpec();
+    boolean withJson = storeRunJson || aJob.getLastModified() == null;
+    DateTime replaceTime = cj.getPlannedJob().getReplaceTime();
+    int i = 1;
+    stat.setTimestamp(i++, new Timestamp(dt.getMillis()));
+    stat.setString(i++, withJson ? objToString(cj) : null);
+    stat.setString(i++, aJob.getName());
+    stat.setString(i++, withJson ? aJob.getCode() : null);
+    stat.setInt(i++, cj.getStatus().get());
+    stat.setString(i++, cj.getExceptionMessage() != null ? cj.getExceptionMessage().get() : "");
+    stat.setTimestamp(i++, new Timestamp(cj.getStart().get()));
+    stat.setTimestamp(i++, new Timestamp(cj.getFinish().get()));
+    stat.setTimestamp(i++, aJob.getLastModified() == null ? null :
+      new Timestamp(aJob.getLastModified().getMillis()));
+    stat.setTimestamp(i++, replaceTime == null ? null :
+      new Timestamp(replaceTime.getMillis()));
+    stat.setInt(i++, cj.getAttemptNumber());
+    return i;
+  }
+
   public long createJobRun(DateTime dt, CallableJob cj) throws BackendException {
     long key = -1L;
     Connection conn = null;
@@ -124,19 +205,16 @@ public class WithSql implements WithBackend {
       conn = newConnection();
       stat =
         conn.prepareStatement(
-          String.format("INSERT INTO %s (dt, callable_job, name, `code`, status, exception, start, finish, callable_job_id) "
-            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)", jobRunTableName),
+          String.format("INSERT INTO %s (dt, callable_job, name, `code`, status, exception, start, finish, "
+            + "job_lastModified, replaceTime, attemptNumber, callable_job_id, "
+            + "owner, heartbeat, pipelineId) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)", jobRunTableName),
                         Statement.RETURN_GENERATED_KEYS);
-      int i = 1;
-      stat.setTimestamp(i++, new Timestamp(dt.getMillis()));
-      stat.setString(i++, objToString(cj));
-      stat.setString(i++, cj.getPlannedJob().getJobSpec().getName());
-      stat.setString(i++, cj.getPlannedJob().getJobSpec().getCode());
-      stat.setInt(i++, cj.getStatus().get());
-      stat.setString(i++, cj.getExceptionMessage() != null ? cj.getExceptionMessage().get() : "");
-      stat.setTimestamp(i++, new Timestamp(cj.getStart().get()));
-      stat.setTimestamp(i++, new Timestamp(cj.getFinish().get()));
+      int i = setJobRunColumns(stat, dt, cj);
       stat.setLong(i++, cj.getPlannedJob().getJobSpec().getId());
+      stat.setString(i++, ownerId);
+      stat.setTimestamp(i++, new Timestamp(new DateTime().getMillis()));
+      stat.setString(i++, cj.getPlannedJob().getPipelineId());
       
       int rows = stat.executeUpdate();
       
@@ -154,7 +232,14 @@ public class WithSql implements WithBackend {
     return key;
   }
 
-  public void updateJobRun(DateTime dt, CallableJob cj) throws BackendException {
+  /**
+   * Updates a run owned by this process.
+   *
+   * @return false when the run is not owned by this process anymore, because
+   * another agent reaped it once its lease expired
+   */
+  public boolean updateJobRun(DateTime dt, CallableJob cj)
+      throws BackendException {
     Connection conn = null;
     PreparedStatement stat = null;
     try {
@@ -162,26 +247,144 @@ public class WithSql implements WithBackend {
       stat =
         conn.prepareStatement(
           String.format("UPDATE %s SET dt = ?, callable_job = ?, name = ?, `code` = ?, status = ?, exception = ?,"
-            + " start = ?, finish = ? WHERE id = ?", jobRunTableName));
-      int i = 1;
-      stat.setTimestamp(i++, new Timestamp(dt.getMillis()));
-      stat.setString(i++, objToString(cj));
-      stat.setString(i++, cj.getPlannedJob().getJobSpec().getName());
-      stat.setString(i++, cj.getPlannedJob().getJobSpec().getCode());
-      stat.setInt(i++, cj.getStatus().get());
-      stat.setString(i++, cj.getExceptionMessage() != null ? cj.getExceptionMessage().get() : "");
-      stat.setTimestamp(i++, new Timestamp(cj.getStart().get()));
-      stat.setTimestamp(i++, new Timestamp(cj.getFinish().get()));
+            + " start = ?, finish = ?, job_lastModified = ?, replaceTime = ?, attemptNumber = ?"
+            + " WHERE id = ? AND " + ownerIs(), jobRunTableName));
+      int i = setJobRunColumns(stat, dt, cj);
       stat.setLong(i++, cj.getJobId());
+      setOwner(stat, i);
       int rows = stat.executeUpdate();
       LOG.info(String.format("Rows updated: %d", rows));
+      return rows > 0;
     } catch (SQLException | IOException ex) {
       throw new BackendException(ex);
     } finally {
       closeConnections(conn, stat);
     }
   }
-  
+
+  /**
+   * Updates the state of many runs in one batch and transaction. Only the
+   * columns in RunState are written, so with storeRunJson the callable_job
+   * blob keeps the state the run was created or last fully updated with.
+   * A state does not apply to a run that already finished later, so a state
+   * written late never undoes a finish, or to a run another agent reaped.
+   *
+   * @return the ids of the runs the states did not apply to
+   */
+  public List<Long> updateJobRunStates(Collection<RunState> states)
+      throws BackendException {
+    List<Long> toRet = new ArrayList<>();
+    if (states.isEmpty()) {
+      return toRet;
+    }
+    Connection conn = null;
+    PreparedStatement stat = null;
+    try {
+      conn = newConnection();
+      conn.setAutoCommit(false);
+      stat =
+        conn.prepareStatement(
+          String.format("UPDATE %s SET dt = ?, status = ?, exception = ?,"
+            + " start = ?, finish = ? WHERE id = ? AND finish <= ? AND "
+            + ownerIs(), jobRunTableName));
+      for (RunState state : states) {
+        int i = 1;
+        stat.setTimestamp(i++, new Timestamp(state.getDt()));
+        stat.setInt(i++, state.getStatus());
+        stat.setString(i++, state.getExceptionMessage() != null ? state.getExceptionMessage() : "");
+        stat.setTimestamp(i++, new Timestamp(state.getStart()));
+        stat.setTimestamp(i++, new Timestamp(state.getFinish()));
+        stat.setLong(i++, state.getRunId());
+        stat.setTimestamp(i++, new Timestamp(state.getFinish()));
+        setOwner(stat, i);
+        stat.addBatch();
+      }
+      int[] rows = stat.executeBatch();
+      conn.commit();
+      int c = 0;
+      for (RunState state : states) {
+        if (c < rows.length && rows[c++] == 0) {
+          toRet.add(state.getRunId());
+        }
+      }
+      LOG.info(String.format("Job run states updated: %d",
+        states.size() - toRet.size()));
+    } catch (SQLException ex) {
+      rollback(conn);
+      throw new BackendException(ex);
+    } finally {
+      closeConnections(conn, stat);
+    }
+    return toRet;
+  }
+
+  /**
+   * @return the condition a run of this process meets, its parameter, if
+   * any, is set by setOwner
+   */
+  private String ownerIs() {
+    return ownerId == null ? "owner IS NULL" : "owner = ?";
+  }
+
+  /**
+   * @return the index of the first parameter after the owner
+   */
+  private int setOwner(PreparedStatement stat, int i) throws SQLException {
+    if (ownerId != null) {
+      stat.setString(i++, ownerId);
+    }
+    return i;
+  }
+
+  /**
+   * Selects runs together with the version of the job they ran, which is
+   * missing when the job has been deleted since or the run predates the
+   * native columns.
+   */
+  private static String selectJobRuns(String where) {
+    return String.format("SELECT r.id AS run_id, r.callable_job_id AS run_job_id, "
+      + "r.name AS run_name, r.callable_job AS run_callable_job, "
+      + "r.status AS run_status, r.exception AS run_exception, "
+      + "r.start AS run_start, r.finish AS run_finish, "
+      + "r.replaceTime, r.attemptNumber, r.pipelineId, j.* "
+      + "FROM %s r LEFT JOIN %s j ON j.id = r.callable_job_id "
+      + "AND j.lastModified = r.job_lastModified "
+      + where, jobRunTableName, jobTableName);
+  }
+
+  private static CallableJob parseJobRun(ResultSet rs)
+      throws SQLException, IOException {
+    CallableJob cj;
+    String json = rs.getString("run_callable_job");
+    if (rs.getTimestamp("lastModified") != null) {
+      cj = CallableJob.restore(parsePlannedJob(rs), rs.getInt("attemptNumber"));
+    } else if (json != null) {
+      cj = OBJECT_MAPPER.readValue(json.getBytes(), CallableJob.class);
+    } else {
+      JobSpec aJob = new JobSpec();
+      aJob.setId(rs.getLong("run_job_id"));
+      aJob.setName(rs.getString("run_name"));
+      Timestamp replaceTime = rs.getTimestamp("replaceTime");
+      cj = CallableJob.restore(new PlannedJob(aJob, replaceTime == null ? null :
+          new DateTime(replaceTime).withZone(DateTimeZone.UTC)),
+        rs.getInt("attemptNumber"));
+    }
+    cj.setStatus(rs.getInt("run_status"));
+    String exception = rs.getString("run_exception");
+    if (exception != null) {
+      cj.setExceptionMessage(exception);
+    }
+    Timestamp start = rs.getTimestamp("run_start");
+    cj.getStart().set(start == null ? 0 : start.getTime());
+    Timestamp finish = rs.getTimestamp("run_finish");
+    cj.getFinish().set(finish == null ? 0 : finish.getTime());
+    String pipelineId = rs.getString("pipelineId");
+    if (pipelineId != null && cj.getPlannedJob() != null) {
+      cj.getPlannedJob().setPipelineId(pipelineId);
+    }
+    return cj;
+  }
+
   public Map<Long, CallableJob> getJobRuns(Long id, int limit) throws BackendException {
     Map<Long, CallableJob> toRet = new LinkedHashMap<>();
     Connection conn = null;
@@ -190,11 +393,11 @@ public class WithSql implements WithBackend {
       conn = newConnection();
       String idWhere = "";
       if (id != null) {
-        idWhere = "WHERE callable_job_id = ? ";
+        idWhere = "WHERE r.callable_job_id = ? ";
       }
       stat =
         conn.prepareStatement(
-          String.format("SELECT * FROM %s "+idWhere+"ORDER BY dt DESC limit ?", jobRunTableName));
+          selectJobRuns(idWhere) + "ORDER BY r.dt DESC limit ?");
       int i = 1;
       if (id != null) {
         stat.setLong(i++, id);
@@ -202,10 +405,9 @@ public class WithSql implements WithBackend {
       stat.setInt(i++, limit);
       ResultSet rs = stat.executeQuery();
       while (rs.next()) {
-        long anId = rs.getLong("id");
-        long cjId = rs.getLong("callable_job_id");
-        CallableJob cj = OBJECT_MAPPER.readValue(
-            rs.getString("callable_job").getBytes(), CallableJob.class);
+        long anId = rs.getLong("run_id");
+        long cjId = rs.getLong("run_job_id");
+        CallableJob cj = parseJobRun(rs);
         cj.setJobId(cjId);
         toRet.put(anId, cj);
       }
@@ -221,6 +423,37 @@ public class WithSql implements WithBackend {
     return toRet;
   }
 
+  /**
+   * @return the runs of the pipeline run, keyed by run id, in the order
+   * they were started
+   */
+  public Map<Long, CallableJob> getPipelineRuns(String pipelineId)
+      throws BackendException {
+    Map<Long, CallableJob> toRet = new LinkedHashMap<>();
+    Connection conn = null;
+    PreparedStatement stat = null;
+    try {
+      conn = newConnection();
+      stat =
+        conn.prepareStatement(
+          selectJobRuns("WHERE r.pipelineId = ? ") + "ORDER BY r.id ASC");
+      stat.setString(1, pipelineId);
+      ResultSet rs = stat.executeQuery();
+      while (rs.next()) {
+        long id = rs.getLong("run_id");
+        CallableJob cj = parseJobRun(rs);
+        cj.setJobId(id);
+        toRet.put(id, cj);
+      }
+      rs.close();
+    } catch (SQLException | IOException ex) {
+      throw new BackendException(ex);
+    } finally {
+      closeConnections(conn, stat);
+    }
+    return toRet;
+  }
+
   public Map<Long, CallableJob> getRunningJobs() throws BackendException {
     Map<Long, CallableJob> toRet = new LinkedHashMap<>();
     Connection conn = null;
@@ -229,15 +462,15 @@ public class WithSql implements WithBackend {
       conn = newConnection();
       stat =
         conn.prepareStatement(
-          String.format("SELECT * FROM %s WHERE start > ? AND finish = ? ORDER BY dt DESC", jobRunTableName));
+          selectJobRuns("WHERE r.start > ? AND r.finish = ? ")
+            + "ORDER BY r.dt DESC");
       int i = 1;
       stat.setTimestamp(i++, new Timestamp(0L));
       stat.setTimestamp(i++, new Timestamp(0L));
       ResultSet rs = stat.executeQuery();
       while (rs.next()) {
-        long id = rs.getLong("id");
-        CallableJob cj = OBJECT_MAPPER.readValue(
-            rs.getString("callable_job").getBytes(), CallableJob.class);
+        long id = rs.getLong("run_id");
+        CallableJob cj = parseJobRun(rs);
         cj.setJobId(id);
         toRet.put(id, cj);
       }
@@ -253,6 +486,230 @@ public class WithSql implements WithBackend {
     return toRet;
   }
 
+  /**
+   * @param before runs last updated before this are expired, unless null
+   * @param keepPerJob runs beyond the newest keepPerJob of their job are
+   * expired, unless 0
+   * @return at most limit expired runs keyed by run id, oldest first. Running
+   * jobs never expire.
+   */
+  public Map<Long, CallableJob> getExpiredJobRuns(DateTime before,
+      int keepPerJob, int limit) throws BackendException {
+    Map<Long, CallableJob> toRet = new LinkedHashMap<>();
+    if (before == null && keepPerJob <= 0) {
+      return toRet;
+    }
+    List<String> conditions = new ArrayList<>();
+    if (before != null) {
+      conditions.add("r.dt < ?");
+    }
+    if (keepPerJob > 0) {
+      conditions.add(String.format("(SELECT COUNT(*) FROM %s n "
+        + "WHERE n.callable_job_id = r.callable_job_id "
+        + "AND (n.dt > r.dt OR (n.dt = r.dt AND n.id > r.id))) >= ?",
+        jobRunTableName));
+    }
+    StringBuilder where = new StringBuilder(
+      "WHERE NOT (r.start > ? AND r.finish = ?) AND (");
+    for (int c = 0; c < conditions.size(); c++) {
+      where.append(c == 0 ? "" : " OR ").append(conditions.get(c));
+    }
+    where.append(") ");
+    Connection conn = null;
+    PreparedStatement stat = null;
+    try {
+      conn = newConnection();
+      stat = conn.prepareStatement(selectJobRuns(where.toString())
+        + "ORDER BY r.dt ASC, r.id ASC limit ?");
+      int i = 1;
+      stat.setTimestamp(i++, new Timestamp(0L));
+      stat.setTimestamp(i++, new Timestamp(0L));
+      if (before != null) {
+        stat.setTimestamp(i++, new Timestamp(before.getMillis()));
+      }
+      if (keepPerJob > 0) {
+        stat.setInt(i++, keepPerJob);
+      }
+      stat.setInt(i++, limit);
+      ResultSet rs = stat.executeQuery();
+      while (rs.next()) {
+        long id = rs.getLong("run_id");
+        CallableJob cj = parseJobRun(rs);
+        cj.setJobId(id);
+        toRet.put(id, cj);
+      }
+      rs.close();
+    } catch (SQLException | IOException ex) {
+      throw new BackendException(ex);
+    } finally {
+      closeConnections(conn, stat);
+    }
+    return toRet;
+  }
+
+  public Map<Long, CallableJob> getFailedJobRuns(DateTime finishedAfter,
+      int limit) throws BackendException {
+    Map<Long, CallableJob> toRet = new LinkedHashMap<>();
+    Connection conn = null;
+    PreparedStatement stat = null;
+    try {
+      conn = newConnection();
+      stat = conn.prepareStatement(selectJobRuns(String.format(
+          "WHERE r.finish > ? AND r.start > ? AND r.status <> ? "
+          + "AND r.replaceTime IS NOT NULL AND NOT EXISTS (SELECT 1 FROM %s n "
+          + "WHERE n.callable_job_id = r.callable_job_id "
+          + "AND n.replaceTime = r.replaceTime AND n.id > r.id) ",
+          jobRunTableName))
+        + "ORDER BY r.finish ASC, r.id ASC limit ?");
+      int i = 1;
+      stat.setTimestamp(i++, new Timestamp(finishedAfter.getMillis()));
+      stat.setTimestamp(i++, new Timestamp(0L));
+      stat.setInt(i++, CallableJob.Status.SUCCESS.code);
+      stat.setInt(i++, limit);
+      ResultSet rs = stat.executeQuery();
+      while (rs.next()) {
+        long id = rs.getLong("run_id");
+        CallableJob cj = parseJobRun(rs);
+        cj.setJobId(id);
+        toRet.put(id, cj);
+      }
+      rs.close();
+    } catch (SQLException | IOException ex) {
+      throw new BackendException(ex);
+    } finally {
+      closeConnections(conn, stat);
+    }
+    return toRet;
+  }
+
+  /**
+   * Renews the lease of the unfinished runs owned by this process.
+   *
+   * @return the number of runs renewed
+   */
+  public int renewLeases(DateTime heartbeat) throws BackendException {
+    if (ownerId == null) {
+      return 0;
+    }
+    Connection conn = null;
+    PreparedStatement stat = null;
+    try {
+      conn = newConnection();
+      stat =
+        conn.prepareStatement(
+          String.format("UPDATE %s SET heartbeat = ? "
+            + "WHERE owner = ? AND finish = ?", jobRunTableName));
+      int i = 1;
+      stat.setTimestamp(i++, new Timestamp(heartbeat.getMillis()));
+      stat.setString(i++, ownerId);
+      stat.setTimestamp(i++, new Timestamp(0L));
+      return stat.executeUpdate();
+    } catch (SQLException ex) {
+      throw new BackendException(ex);
+    } finally {
+      closeConnections(conn, stat);
+    }
+  }
+
+  /**
+   * Finishes at most limit running runs, oldest first, that are owned by
+   * other processes and were last renewed before heartbeatBefore, and makes
+   * this process their owner. Runs without a heartbeat count from their
+   * start. When agents reap at the same time every run goes to one of them.
+   *
+   * @return the reaped runs keyed by run id
+   */
+  public Map<Long, CallableJob> reapExpiredLeases(DateTime heartbeatBefore,
+      int limit) throws BackendException {
+    Map<Long, CallableJob> toRet = new LinkedHashMap<>();
+    Connection conn = null;
+    PreparedStatement stat = null;
+    PreparedStatement reapStat = null;
+    try {
+      conn = newConnection();
+      stat = conn.prepareStatement(selectJobRuns(
+          "WHERE r.start > ? AND r.finish = ? "
+          + "AND COALESCE(r.heartbeat, r.start) < ? "
+          + "AND (r.owner IS NULL OR r.owner <> ?) ")
+        + "ORDER BY r.id ASC limit ?");
+      int i = 1;
+      stat.setTimestamp(i++, new Timestamp(0L));
+      stat.setTimestamp(i++, new Timestamp(0L));
+      stat.setTimestamp(i++, new Timestamp(heartbeatBefore.getMillis()));
+      stat.setString(i++, ownerId == null ? "" : ownerId);
+      stat.setInt(i++, limit);
+      Map<Long, CallableJob> expired = new LinkedHashMap<>();
+      ResultSet rs = stat.executeQuery();
+      while (rs.next()) {
+        long id = rs.getLong("run_id");
+        CallableJob cj = parseJobRun(rs);
+        cj.setJobId(id);
+        expired.put(id, cj);
+      }
+      rs.close();
+
+      reapStat =
+        conn.prepareStatement(
+          String.format("UPDATE %s SET owner = ?, finish = ?, exception = ? "
+            + "WHERE id = ? AND finish = ? "
+            + "AND COALESCE(heartbeat, start) < ?", jobRunTableName));
+      for (Map.Entry<Long, CallableJob> run : expired.entrySet()) {
+        long finish = System.currentTimeMillis();
+        i = 1;
+        reapStat.setString(i++, ownerId);
+        reapStat.setTimestamp(i++, new Timestamp(finish));
+        reapStat.setString(i++, LEASE_EXPIRED);
+        reapStat.setLong(i++, run.getKey());
+        reapStat.setTimestamp(i++, new Timestamp(0L));
+        reapStat.setTimestamp(i++, new Timestamp(heartbeatBefore.getMillis()));
+        if (reapStat.executeUpdate() > 0) {
+          CallableJob cj = run.getValue();
+          cj.getFinish().set(finish);
+          cj.setExceptionMessage(LEASE_EXPIRED);
+          toRet.put(run.getKey(), cj);
+        }
+      }
+      if (!toRet.isEmpty()) {
+        LOG.info(String.format("Reaped runs with expired leases: %s",
+          toRet.keySet()));
+      }
+    } catch (SQLException | IOException ex) {
+      throw new BackendException(ex);
+    } finally {
+      closeConnections(null, stat);
+      closeConnections(conn, reapStat);
+    }
+    return toRet;
+  }
+
+  public int deleteJobRuns(Collection<Long> ids) throws BackendException {
+    if (ids.isEmpty()) {
+      return 0;
+    }
+    StringBuilder params = new StringBuilder();
+    for (int c = 0; c < ids.size(); c++) {
+      params.append(c == 0 ? "?" : ", ?");
+    }
+    Connection conn = null;
+    PreparedStatement stat = null;
+    try {
+      conn = newConnection();
+      stat = conn.prepareStatement(String.format(
+        "DELETE FROM %s WHERE id IN (%s)", jobRunTableName, params));
+      int i = 1;
+      for (Long id : ids) {
+        stat.setLong(i++, id);
+      }
+      int rows = stat.executeUpdate();
+      LOG.info(String.format("Rows deleted: %d", rows));
+      return rows;
+    } catch (SQLException ex) {
+      throw new BackendException(ex);
+    } finally {
+      closeConnections(conn, stat);
+    }
+  }
+
   @Override
   public void close() {
   }
@@ -265,14 +722,16 @@ public class WithSql implements WithBackend {
     PreparedStatement stat = null;
     try {
       conn = newConnection();
+      conn.setAutoCommit(false);
       stat =
         conn.prepareStatement(
           String.format("INSERT INTO %s (user, password, name, "
             + "description, jobType, `code`, resultQuery, resultTable, "
             + "cronString, driver, "
             + "enabled, shouldRerun, resultEmail, statusEmail, lastModified, "
-            + "parent) "
-            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)", jobTableName),
+            + "parent, reportFormat, priority, deadlineMinutes, runOn, "
+            + "dependsOn) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)", jobTableName),
             Statement.RETURN_GENERATED_KEYS);
       int i = 1;
       stat.setString(i++, job.getUser());
@@ -297,6 +756,11 @@ public class WithSql implements WithBackend {
           new Timestamp(job.getLastModified().getMillis());
       stat.setTimestamp(i++, ts);
       stat.setObject(i++, job.getParent(), Types.BIGINT);
+      stat.setString(i++, job.getReportFormat().name());
+      stat.setInt(i++, job.getPriority());
+      stat.setObject(i++, job.getDeadlineMinutes(), Types.INTEGER);
+      stat.setString(i++, job.getRunOn().name());
+      stat.setString(i++, objToString(job.getDependsOn()));
 
       int rows = stat.executeUpdate();
       ResultSet rs = stat.getGeneratedKeys();
@@ -304,8 +768,11 @@ public class WithSql implements WithBackend {
           key = rs.getLong(1);
       }
       rs.close();
+      setCurrentVersion(conn, key, ts, job.getParent());
+      conn.commit();
       LOG.info(String.format("Rows updated: %d", rows));
     } catch (SQLException | IOException ex) {
+      rollback(conn);
       throw new BackendException(ex);
     } finally {
       closeConnections(conn, stat);
@@ -313,6 +780,62 @@ public class WithSql implements WithBackend {
     return key;
   }
 
+  /**
+   * @return the lastModified of a new version of the job, later than its
+   * current version as stored. A version saved within the resolution of the
+   * column, a second for a MySQL DATETIME, would otherwise collide with the
+   * one it replaces on (id, lastModified).
+   */
+  private Timestamp nextVersion(Connection conn, long id)
+      throws SQLException {
+    long resolution = getVersionResolution(conn);
+    long toRet = new DateTime().getMillis();
+    // stored as is rather than rounded up by the database
+    toRet -= toRet % resolution;
+    PreparedStatement stat =
+      conn.prepareStatement(
+        String.format("SELECT lastModified FROM %s WHERE id = ?",
+          jobCurrentTableName));
+    try {
+      stat.setLong(1, id);
+      ResultSet rs = stat.executeQuery();
+      if (rs.next()) {
+        long current = rs.getTimestamp(1).getTime();
+        if (current >= toRet) {
+          toRet = current - current % resolution + resolution;
+        }
+      }
+      rs.close();
+    } finally {
+      stat.close();
+    }
+    return new Timestamp(toRet);
+  }
+
+  /**
+   * @return the millis jobs.lastModified keeps, from the fractional digits
+   * of the column
+   */
+  private long getVersionResolution(Connection conn) throws SQLException {
+    if (versionResolution == null) {
+      Statement stat = conn.createStatement();
+      try {
+        ResultSet rs = stat.executeQuery(String.format(
+          "SELECT lastModified FROM %s WHERE 1 = 0", jobTableName));
+        int scale = rs.getMetaData().getScale(1);
+        rs.close();
+        long resolution = 1;
+        for (int digits = Math.max(scale, 0); digits < 3; digits++) {
+          resolution *= 10;
+        }
+        versionResolution = resolution;
+      } finally {
+        stat.close();
+      }
+    }
+    return versionResolution;
+  }
+
   @Override
   public void updateJob(JobSpec job)
     throws BackendException {
@@ -320,14 +843,16 @@ public class WithSql implements WithBackend {
     PreparedStatement stat = null;
     try {
       conn = newConnection();
+      conn.setAutoCommit(false);
       stat =
         conn.prepareStatement(
           String.format("INSERT INTO %s (id, user, password, name, "
             + "description, jobType, `code`, resultQuery, resultTable, "
             + "cronString, driver, "
             + "enabled, shouldRerun, resultEmail, statusEmail, lastModified, "
-            + "parent) "
-            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) ", jobTableName),
+            + "parent, reportFormat, priority, deadlineMinutes, runOn, "
+            + "dependsOn) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) ", jobTableName),
           Statement.RETURN_GENERATED_KEYS);
       int i = 1;
       stat.setLong(i++, job.getId());
@@ -347,19 +872,65 @@ public class WithSql implements WithBackend {
        objToString(job.getResultEmail()));
       stat.setString(i++,
        objToString(job.getStatusEmail()));
-      Timestamp ts = new Timestamp(new DateTime().getMillis());
+      Timestamp ts = nextVersion(conn, job.getId());
       stat.setTimestamp(i++, ts);
       stat.setObject(i++, job.getParent(), Types.BIGINT);
+      stat.setString(i++, job.getReportFormat().name());
+      stat.setInt(i++, job.getPriority());
+      stat.setObject(i++, job.getDeadlineMinutes(), Types.INTEGER);
+      stat.setString(i++, job.getRunOn().name());
+      stat.setString(i++, objToString(job.getDependsOn()));
 
       int rows = stat.executeUpdate();
+      setCurrentVersion(conn, job.getId(), ts, job.getParent());
+      conn.commit();
       LOG.info(String.format("Rows updated: %d", rows));
     } catch (SQLException | IOException ex) {
+      rollback(conn);
       throw new BackendException(ex);
     } finally {
       closeConnections(conn, stat);
     }
   }
 
+  /**
+   * Points the job at the version saved at lastModified, unless it already
+   * points at a later one.
+   */
+  private void setCurrentVersion(Connection conn, long id,
+      Timestamp lastModified, Long parent) throws SQLException {
+    PreparedStatement update =
+      conn.prepareStatement(
+        String.format("UPDATE %s SET lastModified = ?, parent = ? "
+          + "WHERE id = ? AND lastModified < ?", jobCurrentTableName));
+    PreparedStatement insert = null;
+    try {
+      int i = 1;
+      update.setTimestamp(i++, lastModified);
+      update.setObject(i++, parent, Types.BIGINT);
+      update.setLong(i++, id);
+      update.setTimestamp(i++, lastModified);
+      if (update.executeUpdate() > 0) {
+        return;
+      }
+      insert =
+        conn.prepareStatement(
+          String.format("INSERT INTO %s (id, lastModified, parent) "
+            + "SELECT ?, ?, ? FROM DUAL "
+            + "WHERE NOT EXISTS (SELECT 1 FROM %s WHERE id = ?)",
+            jobCurrentTableName, jobCurrentTableName));
+      i = 1;
+      insert.setLong(i++, id);
+      insert.setTimestamp(i++, lastModified);
+      insert.setObject(i++, parent, Types.BIGINT);
+      insert.setLong(i++, id);
+      insert.executeUpdate();
+    } finally {
+      closeConnections(null, update);
+      closeConnections(null, insert);
+    }
+  }
+
   @Override
   public void deleteJob(long id)
     throws BackendException {
@@ -417,6 +988,24 @@ public class WithSql implements WithBackend {
       new DateTime(rs.getTimestamp("lastModified")).withZone(DateTimeZone.UTC);
     job.setLastModified(lm);
     job.setParent((Long)rs.getObject("parent"));
+    String reportFormat = rs.getString("reportFormat");
+    job.setReportFormat(
+      reportFormat == null ? null : ReportFormat.valueOf(reportFormat));
+    job.setPriority(rs.getInt("priority"));
+    int deadlineMinutes = rs.getInt("deadlineMinutes");
+    job.setDeadlineMinutes(rs.wasNull() ? null : deadlineMinutes);
+    String runOn = rs.getString("runOn");
+    job.setRunOn(runOn == null ? null : JobSpec.RunOn.valueOf(runOn));
+    String dependsOn = rs.getString("dependsOn");
+    if (dependsOn != null) {
+      try {
+        job.setDependsOn((List<Long>)
+          OBJECT_MAPPER.readValue(dependsOn,
+            new TypeReference<List<Long>>(){}));
+      } catch (IOException e) {
+          LOG.error("Failed to parse dependsOn:", e);
+      }
+    }
     return job;
   }
 
@@ -430,14 +1019,11 @@ public class WithSql implements WithBackend {
       conn = newConnection();
       stat =
         conn.prepareStatement(
-          String.format("SELECT a.* FROM %s a " +
-            "INNER JOIN " +
-              "(SELECT id, MAX(lastModified) AS MaxModified " +
-              "FROM %s WHERE id = ? " +
-              "GROUP BY id) b " +
-            "ON a.id = b.id " +
-            "AND a.lastModified = b.MaxModified " +
-            "ORDER BY a.id ASC", jobTableName, jobTableName));
+          String.format("SELECT a.* FROM %s c " +
+            "INNER JOIN %s a " +
+            "ON a.id = c.id " +
+            "AND a.lastModified = c.lastModified " +
+            "WHERE c.id = ?", jobCurrentTableName, jobTableName));
       int i = 1;
       stat.setLong(i++, id);
       ResultSet rs = stat.executeQuery();
@@ -489,14 +1075,11 @@ public class WithSql implements WithBackend {
       conn = newConnection();
       stat =
         conn.prepareStatement(
-          String.format("SELECT a.* FROM %s a " +
-            "INNER JOIN " +
-              "(SELECT id, MAX(lastModified) AS MaxModified " +
-              "FROM %s " +
-              "GROUP BY id) b " +
-            "ON a.id = b.id " +
-            "AND a.lastModified = b.MaxModified " +
-            "ORDER BY a.name ASC", jobTableName, jobTableName));
+          String.format("SELECT a.* FROM %s c " +
+            "INNER JOIN %s a " +
+            "ON a.id = c.id " +
+            "AND a.lastModified = c.lastModified " +
+            "ORDER BY a.name ASC", jobCurrentTableName, jobTableName));
       ResultSet rs = stat.executeQuery();
       while (rs != null && rs.next()) {
         toRet.add(parseJob(rs));
@@ -520,15 +1103,12 @@ public class WithSql implements WithBackend {
       conn = newConnection();
       stat =
         conn.prepareStatement(
-          String.format("SELECT a.* FROM %s a " +
-            "INNER JOIN " +
-            "(SELECT id, MAX(lastModified) AS MaxModified " +
-            "FROM %s " +
-            "GROUP BY id) b " +
-            "ON a.id = b.id " +
-            "AND a.lastModified = b.MaxModified " +
-            "WHERE a.parent = ? " +
-            "ORDER BY a.name ASC", jobTableName, jobTableName));
+          String.format("SELECT a.* FROM %s c " +
+            "INNER JOIN %s a " +
+            "ON a.id = c.id " +
+            "AND a.lastModified = c.lastModified " +
+            "WHERE c.parent = ? " +
+            "ORDER BY a.name ASC", jobCurrentTableName, jobTableName));
       int i = 1;
       stat.setLong(i++, id);
       ResultSet rs = stat.executeQuery();
@@ -551,6 +1131,34 @@ public class WithSql implements WithBackend {
     return new PlannedJob(parseJob(rs), replaceTime);
   }
 
+  /**
+   * Parses a row of the queue joined with its job.
+   */
+  private static PlannedJob parseQueueRow(ResultSet rs) throws SQLException {
+    PlannedJob toRet = parsePlannedJob(rs);
+    long backfillId = rs.getLong("backfill_id");
+    if (!rs.wasNull()) {
+      toRet.setBackfillId(backfillId);
+    }
+    toRet.setPipelineId(rs.getString("pipelineId"));
+    return toRet;
+  }
+
+  private static QueuedJob parseQueuedJob(ResultSet rs) throws SQLException {
+    Timestamp insertTime = rs.getTimestamp("insertTime");
+    return new QueuedJob(parseQueueRow(rs), insertTime == null ?
+      null : new DateTime(insertTime).withZone(DateTimeZone.UTC));
+  }
+
+  /**
+   * Queued jobs are taken by priority, raised as they age, then by earliest
+   * deadline, then in insertion order.
+   */
+  private static String queueOrder(String alias) {
+    return String.format("%1$squeuePriority DESC, %1$sdeadline ASC, "
+      + "%1$sinsertTime ASC", alias);
+  }
+
   public List<PlannedJob> getQueue(Long id) throws BackendException {
     List<PlannedJob> toRet = new ArrayList<>();
     Connection conn = null;
@@ -567,7 +1175,7 @@ public class WithSql implements WithBackend {
             + "JOIN %s t2 ON t1.job_id = t2.id "
             + "AND t1.job_lastModified = t2.lastModified "
             + idPiece
-            + "ORDER BY t1.insertTime ASC",
+            + "ORDER BY " + queueOrder("t1."),
             queueTableName, jobTableName));
       int i = 1;
       if (id != null) {
@@ -575,7 +1183,7 @@ public class WithSql implements WithBackend {
       }
       ResultSet rs = stat.executeQuery();
       while (rs != null && rs.next()) {
-        PlannedJob pj = parsePlannedJob(rs);
+        PlannedJob pj = parseQueueRow(rs);
         toRet.add(pj);
       }
       rs.close();
@@ -587,44 +1195,416 @@ public class WithSql implements WithBackend {
     return toRet;
   }
 
-  public void addToQueue(PlannedJob aJob) throws BackendException {
+  public int getQueueSize() throws BackendException {
+    int toRet = 0;
     Connection conn = null;
     PreparedStatement stat = null;
     try {
       conn = newConnection();
       stat =
         conn.prepareStatement(
-          String.format("INSERT INTO %s "
-            + "(job_id, job_lastModified, replaceTime) "
-            + "VALUES (?, ?, ?)", queueTableName),
-            Statement.RETURN_GENERATED_KEYS);
-      int i = 1;
-      stat.setLong(i++, aJob.getJobSpec().getId());
-      Timestamp lm =
-        new Timestamp(aJob.getJobSpec().getLastModified().getMillis());
-      stat.setTimestamp(i++, lm);
-      Timestamp rt =
-        new Timestamp(aJob.getReplaceTime().getMillis());
-      stat.setTimestamp(i++, rt);
-      
-      int rows = stat.executeUpdate();
-      LOG.info(String.format("Rows updated: %d", rows));
+          String.format("SELECT COUNT(*) FROM %s", queueTableName));
+      ResultSet rs = stat.executeQuery();
+      if (rs != null && rs.next()) {
+        toRet = rs.getInt(1);
+      }
+      rs.close();
     } catch (SQLException ex) {
       throw new BackendException(ex);
     } finally {
       closeConnections(conn, stat);
     }
+    return toRet;
   }
-  
-  @Override
-  public int deleteFromQueue(PlannedJob pj)
-    throws BackendException {
-    int toRet = 0;
+
+  /**
+   * @return whether the job was queued, it is not when it is queued already
+   */
+  public boolean addToQueue(PlannedJob aJob) throws BackendException {
+    return insertIntoQueue(aJob, null);
+  }
+
+  /**
+   * Queues the job unless it is queued already, or the driver leadership
+   * moved on from fencingToken.
+   *
+   * @return whether the job was queued
+   */
+  public boolean addToQueue(PlannedJob aJob, long fencingToken)
+      throws BackendException {
+    return insertIntoQueue(aJob, fencingToken);
+  }
+
+  private boolean insertIntoQueue(PlannedJob aJob, Long fencingToken)
+      throws BackendException {
     Connection conn = null;
     PreparedStatement stat = null;
     try {
       conn = newConnection();
-      stat =
+      stat = conn.prepareStatement(queueInsert(fencingToken != null));
+      int i = setQueueRow(stat, aJob, aJob.getJobSpec().getPriority(), null);
+      if (fencingToken != null) {
+        stat.setString(i++, DRIVER_STATE_NAME);
+        stat.setLong(i++, fencingToken);
+      }
+      
+      int rows = stat.executeUpdate();
+      LOG.info(String.format("Rows updated: %d", rows));
+      return rows > 0;
+    } catch (SQLException ex) {
+      if (isDuplicateKey(ex)) {
+        // queued by someone else since the NOT EXISTS was evaluated
+        LOG.info("Already queued: " + aJob);
+        return false;
+      }
+      throw new BackendException(ex);
+    } finally {
+      closeConnections(conn, stat);
+    }
+  }
+
+  /**
+   * Queues the jobs as runs of backfill, at its priority, in one batch.
+   * Jobs that are queued already are left out.
+   *
+   * @return the jobs that were queued
+   */
+  public List<PlannedJob> queueBackfill(Backfill backfill,
+                                        List<PlannedJob> jobs)
+      throws BackendException {
+    List<PlannedJob> toRet = new ArrayList<>();
+    if (jobs.isEmpty()) {
+      return toRet;
+    }
+    Connection conn = null;
+    PreparedStatement stat = null;
+    try {
+      conn = newConnection();
+      conn.setAutoCommit(false);
+      stat = conn.prepareStatement(queueInsert(false));
+      for (PlannedJob pj : jobs) {
+        pj.setBackfillId(backfill.getId());
+        setQueueRow(stat, pj, backfill.getPriority(), backfill.getId());
+        stat.addBatch();
+      }
+      int[] rows;
+      try {
+        rows = stat.executeBatch();
+        conn.commit();
+      } catch (SQLException ex) {
+        if (!isDuplicateKey(ex) && !isDuplicateKey(ex.getNextException())) {
+          throw ex;
+        }
+        // some were queued by someone else since the NOT EXISTS was
+        // evaluated, the rest is queued one by one
+        rollback(conn);
+        conn.setAutoCommit(true);
+        rows = new int[jobs.size()];
+        for (int i = 0; i < jobs.size(); i++) {
+          setQueueRow(stat, jobs.get(i), backfill.getPriority(),
+            backfill.getId());
+          try {
+            rows[i] = stat.executeUpdate();
+          } catch (SQLException dupe) {
+            if (!isDuplicateKey(dupe)) {
+              throw dupe;
+            }
+          }
+        }
+      }
+      for (int i = 0; i < rows.length; i++) {
+        if (rows[i] > 0 || rows[i] == Statement.SUCCESS_NO_INFO) {
+          toRet.add(jobs.get(i));
+        }
+      }
+      LOG.info(String.format("Queued %d of %d runs of backfill %d",
+        toRet.size(), jobs.size(), backfill.getId()));
+    } catch (SQLException ex) {
+      rollback(conn);
+      throw new BackendException(ex);
+    } finally {
+      closeConnections(conn, stat);
+    }
+    return toRet;
+  }
+
+  /**
+   * Queues the jobs of pipelineId at priority, leaving out the ones that
+   * were queued for the pipeline before, by this process or another one. A
+   * job already queued for the same replace time outside any pipeline, e.g.
+   * by the schedule or a backfill, is taken into the pipeline instead. One
+   * queued for another pipeline is left out of this one.
+   *
+   * @return the jobs that were queued or taken into the pipeline
+   */
+  public List<PlannedJob> queuePipelineJobs(String pipelineId,
+      List<PlannedJob> jobs, int priority) throws BackendException {
+    List<PlannedJob> toRet = new ArrayList<>();
+    if (jobs.isEmpty()) {
+      return toRet;
+    }
+    Connection conn = null;
+    PreparedStatement keyStat = null;
+    PreparedStatement stat = null;
+    PreparedStatement adoptStat = null;
+    PreparedStatement unkeyStat = null;
+    try {
+      conn = newConnection();
+      conn.setAutoCommit(false);
+      keyStat = conn.prepareStatement(String.format("INSERT INTO %s "
+        + "(pipelineId, job_id) SELECT ?, ? FROM DUAL WHERE NOT EXISTS "
+        + "(SELECT 1 FROM %s WHERE pipelineId = ? AND job_id = ?)",
+        pipelineJobTableName, pipelineJobTableName));
+      stat = conn.prepareStatement(queueInsert(false));
+      adoptStat = conn.prepareStatement(String.format("UPDATE %s "
+        + "SET pipelineId = ? WHERE job_id = ? AND job_lastModified = ? "
+        + "AND replaceTime = ? AND pipelineId IS NULL", queueTableName));
+      unkeyStat = conn.prepareStatement(String.format("DELETE FROM %s "
+        + "WHERE pipelineId = ? AND job_id = ?", pipelineJobTableName));
+      for (PlannedJob pj : jobs) {
+        long jobId = pj.getJobSpec().getId();
+        int i = 1;
+        keyStat.setString(i++, pipelineId);
+        keyStat.setLong(i++, jobId);
+        keyStat.setString(i++, pipelineId);
+        keyStat.setLong(i++, jobId);
+        try {
+          if (keyStat.executeUpdate() == 0) {
+            continue;
+          }
+        } catch (SQLException ex) {
+          if (isDuplicateKey(ex)) {
+            // queued for the pipeline since the NOT EXISTS was evaluated
+            continue;
+          }
+          throw ex;
+        }
+        String previous = pj.getPipelineId();
+        pj.setPipelineId(pipelineId);
+        setQueueRow(stat, pj, priority, pj.getBackfillId());
+        if (stat.executeUpdate() == 0 && !adoptQueued(adoptStat, pj)) {
+          // the run that is queued reports to another pipeline, this one
+          // must not wait for it
+          LOG.warn(String.format("Leaving %s out of pipeline %s, it is " +
+            "queued for another pipeline", pj.getJobSpec().getName(),
+            pipelineId));
+          pj.setPipelineId(previous);
+          unkeyStat.setString(1, pipelineId);
+          unkeyStat.setLong(2, jobId);
+          unkeyStat.executeUpdate();
+          continue;
+        }
+        toRet.add(pj);
+      }
+      conn.commit();
+      LOG.info(String.format("Queued %d of %d jobs of pipeline %s",
+        toRet.size(), jobs.size(), pipelineId));
+    } catch (SQLException ex) {
+      rollback(conn);
+      throw new BackendException(ex);
+    } finally {
+      closeConnections(null, keyStat);
+      closeConnections(null, adoptStat);
+      closeConnections(null, unkeyStat);
+      closeConnections(conn, stat);
+    }
+    return toRet;
+  }
+
+  /**
+   * Sets the pipeline of pj on the queue row of the same job and replace
+   * time, if that row has no pipeline yet.
+   *
+   * @return whether the row was taken into the pipeline
+   */
+  private static boolean adoptQueued(PreparedStatement adoptStat,
+                                     PlannedJob pj) throws SQLException {
+    int i = 1;
+    adoptStat.setString(i++, pj.getPipelineId());
+    adoptStat.setLong(i++, pj.getJobSpec().getId());
+    adoptStat.setTimestamp(i++,
+      new Timestamp(pj.getJobSpec().getLastModified().getMillis()));
+    adoptStat.setTimestamp(i++, new Timestamp(pj.getReplaceTime().getMillis()));
+    return adoptStat.executeUpdate() > 0;
+  }
+
+  /**
+   * Forgets which jobs were queued for the pipeline once it is done.
+   *
+   * @return false when they were forgotten already
+   */
+  public boolean endPipeline(String pipelineId) throws BackendException {
+    Connection conn = null;
+    PreparedStatement stat = null;
+    try {
+      conn = newConnection();
+      stat = conn.prepareStatement(String.format(
+        "DELETE FROM %s WHERE pipelineId = ?", pipelineJobTableName));
+      stat.setString(1, pipelineId);
+      return stat.executeUpdate() > 0;
+    } catch (SQLException ex) {
+      throw new BackendException(ex);
+    } finally {
+      closeConnections(conn, stat);
+    }
+  }
+
+  /**
+   * Inserts a job into the queue unless it is queued already. The fenced
+   * insert also needs the driver leadership to be at the given token.
+   */
+  private static String queueInsert(boolean fenced) {
+    String fence = !fenced ? "" :
+      String.format("AND EXISTS (SELECT 1 FROM %s "
+        + "WHERE name = ? AND fencingToken = ?)", driverStateTableName);
+    return String.format("INSERT INTO %s "
+      + "(job_id, job_lastModified, replaceTime, queuePriority, "
+      + "basePriority, deadline, backfill_id, pipelineId) "
+      + "SELECT ?, ?, ?, ?, ?, ?, ?, ? FROM DUAL "
+      + "WHERE NOT EXISTS (SELECT 1 FROM %s WHERE job_id = ? "
+      + "AND job_lastModified = ? AND replaceTime = ?) "
+      + fence, queueTableName, queueTableName);
+  }
+
+  /**
+   * @return the index of the first parameter after the row
+   */
+  private static int setQueueRow(PreparedStatement stat, PlannedJob aJob,
+                                 int priority, Long backfillId)
+      throws SQLException {
+    int i = 1;
+    stat.setLong(i++, aJob.getJobSpec().getId());
+    Timestamp lm =
+      new Timestamp(aJob.getJobSpec().getLastModified().getMillis());
+    stat.setTimestamp(i++, lm);
+    Timestamp rt =
+      new Timestamp(aJob.getReplaceTime().getMillis());
+    stat.setTimestamp(i++, rt);
+    stat.setInt(i++, priority);
+    stat.setInt(i++, priority);
+    DateTime deadline = aJob.getDeadline();
+    stat.setTimestamp(i++, deadline == null ?
+      Timestamp.valueOf(NO_DEADLINE) : new Timestamp(deadline.getMillis()));
+    stat.setObject(i++, backfillId, Types.BIGINT);
+    stat.setString(i++, aJob.getPipelineId());
+    stat.setLong(i++, aJob.getJobSpec().getId());
+    stat.setTimestamp(i++, lm);
+    stat.setTimestamp(i++, rt);
+    return i;
+  }
+
+  private static boolean isDuplicateKey(SQLException ex) {
+    if (ex == null) {
+      return false;
+    }
+    // H2 and MySQL respectively
+    return "23505".equals(ex.getSQLState()) || ex.getErrorCode() == 1062;
+  }
+  
+  /**
+   * Saves the retry, replacing any pending retry of the same planned job.
+   */
+  public void addPendingRetry(PendingRetry retry) throws BackendException {
+    PlannedJob pj = retry.getPlannedJob();
+    Connection conn = null;
+    PreparedStatement stat = null;
+    try {
+      conn = newConnection();
+      conn.setAutoCommit(false);
+      deletePendingRetry(conn, pj);
+      stat =
+        conn.prepareStatement(
+          String.format("INSERT INTO %s "
+            + "(job_id, job_lastModified, replaceTime, attemptNumber, dueTime, "
+            + "pipelineId) VALUES (?, ?, ?, ?, ?, ?)", retryTableName));
+      int i = 1;
+      stat.setLong(i++, pj.getJobSpec().getId());
+      stat.setTimestamp(i++,
+        new Timestamp(pj.getJobSpec().getLastModified().getMillis()));
+      stat.setTimestamp(i++, new Timestamp(pj.getReplaceTime().getMillis()));
+      stat.setInt(i++, retry.getAttemptNumber());
+      stat.setTimestamp(i++, new Timestamp(retry.getDueTime().getMillis()));
+      stat.setString(i++, pj.getPipelineId());
+      int rows = stat.executeUpdate();
+      conn.commit();
+      LOG.info(String.format("Rows updated: %d", rows));
+    } catch (SQLException ex) {
+      rollback(conn);
+      throw new BackendException(ex);
+    } finally {
+      closeConnections(conn, stat);
+    }
+  }
+
+  public List<PendingRetry> getPendingRetries() throws BackendException {
+    List<PendingRetry> toRet = new ArrayList<>();
+    Connection conn = null;
+    PreparedStatement stat = null;
+    try {
+      conn = newConnection();
+      stat =
+        conn.prepareStatement(
+          String.format("SELECT * FROM %s AS t1 "
+            + "JOIN %s t2 ON t1.job_id = t2.id "
+            + "AND t1.job_lastModified = t2.lastModified "
+            + "ORDER BY t1.dueTime ASC",
+            retryTableName, jobTableName));
+      ResultSet rs = stat.executeQuery();
+      while (rs.next()) {
+        DateTime dueTime =
+          new DateTime(rs.getTimestamp("dueTime")).withZone(DateTimeZone.UTC);
+        PlannedJob pj = parsePlannedJob(rs);
+        pj.setPipelineId(rs.getString("pipelineId"));
+        toRet.add(new PendingRetry(pj, rs.getInt("attemptNumber"), dueTime));
+      }
+      rs.close();
+    } catch (SQLException ex) {
+      throw new BackendException(ex);
+    } finally {
+      closeConnections(conn, stat);
+    }
+    return toRet;
+  }
+
+  public int deletePendingRetry(PlannedJob pj) throws BackendException {
+    Connection conn = null;
+    try {
+      conn = newConnection();
+      return deletePendingRetry(conn, pj);
+    } catch (SQLException ex) {
+      throw new BackendException(ex);
+    } finally {
+      closeConnections(conn, null);
+    }
+  }
+
+  private static int deletePendingRetry(Connection conn, PlannedJob pj)
+      throws SQLException {
+    PreparedStatement stat =
+      conn.prepareStatement(
+        String.format("DELETE FROM %s WHERE job_id = ? AND job_lastModified = ? AND replaceTime = ?",
+                      retryTableName));
+    try {
+      int i = 1;
+      stat.setLong(i++, pj.getJobSpec().getId());
+      stat.setTimestamp(i++,
+        new Timestamp(pj.getJobSpec().getLastModified().getMillis()));
+      stat.setTimestamp(i++, new Timestamp(pj.getReplaceTime().getMillis()));
+      return stat.executeUpdate();
+    } finally {
+      stat.close();
+    }
+  }
+
+  @Override
+  public int deleteFromQueue(PlannedJob pj)
+    throws BackendException {
+    int toRet = 0;
+    Connection conn = null;
+    PreparedStatement stat = null;
+    try {
+      conn = newConnection();
+      stat =
         conn.prepareStatement(
           String.format("DELETE FROM %s WHERE job_id = ? AND job_lastModified = ? AND replaceTime = ?",
                         queueTableName));
@@ -647,53 +1627,548 @@ public class WithSql implements WithBackend {
   }
 
   public PlannedJob removeFromQueue() throws BackendException {
-    PlannedJob toRet = null;
+    List<PlannedJob> claimed = removeFromQueue(1);
+    return claimed.isEmpty() ? null : claimed.get(0);
+  }
+
+  public List<PlannedJob> removeFromQueue(int max) throws BackendException {
+    List<PlannedJob> toRet = new ArrayList<>();
+    for (QueuedJob qj : removeQueuedJobs(max)) {
+      toRet.add(qj.getPlannedJob());
+    }
+    return toRet;
+  }
+
+  /**
+   * Removes and returns up to max queued jobs, first in queue order, in a
+   * single transaction. A job belongs to the agent whose delete removed it,
+   * so rows another agent dequeues at the same time are skipped rather than
+   * handed out twice.
+   */
+  public List<QueuedJob> removeQueuedJobs(int max) throws BackendException {
+    List<QueuedJob> toRet = new ArrayList<>();
+    if (max <= 0) {
+      return toRet;
+    }
+    boolean skipLocked = supportsSkipLocked();
     Connection conn = null;
     PreparedStatement selStat = null;
-    PreparedStatement delStat = null;
     try {
       conn = newConnection();
       conn.setAutoCommit(false);
+      // with SKIP LOCKED the selected rows are locked for this agent and
+      // others pass over them, without it they may be raced for
       selStat =
         conn.prepareStatement(
           String.format("SELECT * FROM %s AS t1 "
             + "JOIN %s AS t2 ON t1.job_id = t2.id "
             + "AND t1.job_lastModified = t2.lastModified "
-            + "ORDER BY t1.insertTime ASC LIMIT 1",
+            + "ORDER BY " + queueOrder("t1.") + " LIMIT ?"
+            + (skipLocked ? " FOR UPDATE OF t1 SKIP LOCKED" : ""),
             queueTableName, jobTableName));
-
+      selStat.setInt(1, max);
+      List<QueuedJob> selected = new ArrayList<>();
       ResultSet rs = selStat.executeQuery();
-      if (rs != null && rs.next()) {
-        toRet = parsePlannedJob(rs);
+      while (rs != null && rs.next()) {
+        selected.add(parseQueuedJob(rs));
       }
       rs.close();
-      delStat =
-        conn.prepareStatement(
-          String.format("DELETE FROM %s "
-            + "WHERE job_id = ? AND job_lastModified = ? "
-            + "AND replaceTime = ? LIMIT 1",
-            queueTableName));
 
-      if (toRet != null) {
-        int i = 1;
-        delStat.setLong(i++, toRet.getJobSpec().getId());
-        Timestamp lm =
-          new Timestamp(toRet.getJobSpec().getLastModified().getMillis());
-        delStat.setTimestamp(i++, lm);
-        Timestamp rt =
-          new Timestamp(toRet.getReplaceTime().getMillis());
-        delStat.setTimestamp(i++, rt);
-        int rows = delStat.executeUpdate();
-        LOG.info(String.format("Dequeued: %d", rows));
+      List<PlannedJob> planned = new ArrayList<>();
+      for (QueuedJob qj : selected) {
+        planned.add(qj.getPlannedJob());
+      }
+      boolean[] deleted = deleteQueued(conn, planned);
+      for (int i = 0; i < deleted.length; i++) {
+        if (deleted[i]) {
+          toRet.add(selected.get(i));
+        }
       }
+      LOG.info(String.format("Dequeued: %d", toRet.size()));
 
       conn.commit();
     } catch (SQLException ex) {
+      rollback(conn);
       throw new BackendException(ex);
     } finally {
       closeConnections(conn, selStat);
-      closeConnections(conn, delStat);
     }
     return toRet;
   }
+
+  /**
+   * Deletes the given queued jobs in a single batch, in the transaction of
+   * conn. When the driver does not report a count per row the batch is
+   * rolled back and the jobs are deleted one at a time.
+   *
+   * @return for every job whether it was deleted, false when another agent
+   * dequeued it first
+   */
+  private static boolean[] deleteQueued(Connection conn,
+      List<PlannedJob> jobs) throws SQLException {
+    boolean[] toRet = new boolean[jobs.size()];
+    if (jobs.isEmpty()) {
+      return toRet;
+    }
+    PreparedStatement delStat =
+      conn.prepareStatement(
+        String.format("DELETE FROM %s "
+          + "WHERE job_id = ? AND job_lastModified = ? AND replaceTime = ?",
+          queueTableName));
+    try {
+      for (PlannedJob pj : jobs) {
+        setDeleteQueued(delStat, pj);
+        delStat.addBatch();
+      }
+      Savepoint beforeBatch = conn.setSavepoint();
+      int[] counts = delStat.executeBatch();
+      boolean counted = true;
+      for (int i = 0; i < toRet.length; i++) {
+        counted &= counts[i] != Statement.SUCCESS_NO_INFO;
+        toRet[i] = counts[i] > 0;
+      }
+      if (!counted) {
+        conn.rollback(beforeBatch);
+        for (int i = 0; i < toRet.length; i++) {
+          setDeleteQueued(delStat, jobs.get(i));
+          toRet[i] = delStat.executeUpdate() > 0;
+        }
+      }
+    } finally {
+      delStat.close();
+    }
+    return toRet;
+  }
+
+  private static void setDeleteQueued(PreparedStatement delStat,
+      PlannedJob pj) throws SQLException {
+    int i = 1;
+    delStat.setLong(i++, pj.getJobSpec().getId());
+    delStat.setTimestamp(i++,
+      new Timestamp(pj.getJobSpec().getLastModified().getMillis()));
+    delStat.setTimestamp(i++,
+      new Timestamp(pj.getReplaceTime().getMillis()));
+  }
+
+  /**
+   * @return up to limit of the queued jobs, first in queue order
+   */
+  public List<QueuedJob> getQueuedJobs(int limit,
+      Collection<Long> leaveOutBackfills) throws BackendException {
+    List<QueuedJob> toRet = new ArrayList<>();
+    StringBuilder params = new StringBuilder();
+    for (int c = 0; c < leaveOutBackfills.size(); c++) {
+      params.append(c == 0 ? "?" : ", ?");
+    }
+    String where = leaveOutBackfills.isEmpty() ? "" : String.format(
+      "WHERE (t1.backfill_id IS NULL OR t1.backfill_id NOT IN (%s)) ",
+      params);
+    Connection conn = null;
+    PreparedStatement stat = null;
+    try {
+      conn = newConnection();
+      stat =
+        conn.prepareStatement(
+          String.format("SELECT * FROM %s AS t1 "
+            + "JOIN %s t2 ON t1.job_id = t2.id "
+            + "AND t1.job_lastModified = t2.lastModified "
+            + where
+            + "ORDER BY " + queueOrder("t1.") + " LIMIT ?",
+            queueTableName, jobTableName));
+      int i = 1;
+      for (Long id : leaveOutBackfills) {
+        stat.setLong(i++, id);
+      }
+      stat.setInt(i++, limit);
+      ResultSet rs = stat.executeQuery();
+      while (rs.next()) {
+        toRet.add(parseQueuedJob(rs));
+      }
+      rs.close();
+    } catch (SQLException ex) {
+      throw new BackendException(ex);
+    } finally {
+      closeConnections(conn, stat);
+    }
+    return toRet;
+  }
+
+  /**
+   * Removes the given jobs from the queue in a single transaction.
+   *
+   * @return the jobs that were removed, in the given order, leaving out the
+   * ones no longer queued because another agent dequeued them
+   */
+  public List<PlannedJob> removeFromQueue(Collection<PlannedJob> jobs)
+      throws BackendException {
+    List<PlannedJob> toRet = new ArrayList<>();
+    if (jobs.isEmpty()) {
+      return toRet;
+    }
+    Connection conn = null;
+    try {
+      conn = newConnection();
+      conn.setAutoCommit(false);
+      List<PlannedJob> given = new ArrayList<>(jobs);
+      boolean[] deleted = deleteQueued(conn, given);
+      for (int i = 0; i < deleted.length; i++) {
+        if (deleted[i]) {
+          toRet.add(given.get(i));
+        }
+      }
+      LOG.info(String.format("Dequeued: %d of %d", toRet.size(),
+        jobs.size()));
+
+      conn.commit();
+    } catch (SQLException ex) {
+      rollback(conn);
+      throw new BackendException(ex);
+    } finally {
+      closeConnections(conn, null);
+    }
+    return toRet;
+  }
+
+  /**
+   * Raises the priority of every queued job by one, if it was
+   * queued or last raised before agedBefore and is less than maxRaise above
+   * the priority it was queued at. Runs of a backfill are never raised, they
+   * would otherwise come to outrank the scheduled runs of their job. A job is
+   * raised at most once however many agents call this at the same time.
+   *
+   * @return the number of jobs raised
+   */
+  public int ageQueue(DateTime agedBefore, int maxRaise)
+      throws BackendException {
+    Connection conn = null;
+    PreparedStatement stat = null;
+    try {
+      conn = newConnection();
+      stat =
+        conn.prepareStatement(
+          String.format("UPDATE %s "
+            + "SET queuePriority = queuePriority + 1, agedAt = ? "
+            + "WHERE COALESCE(agedAt, insertTime) < ? "
+            + "AND queuePriority < basePriority + ? "
+            + "AND backfill_id IS NULL", queueTableName));
+      int i = 1;
+      stat.setTimestamp(i++, new Timestamp(new DateTime().getMillis()));
+      stat.setTimestamp(i++, new Timestamp(agedBefore.getMillis()));
+      stat.setInt(i++, maxRaise);
+      int rows = stat.executeUpdate();
+      if (rows > 0) {
+        LOG.info(String.format("Aged queued jobs: %d", rows));
+      }
+      return rows;
+    } catch (SQLException ex) {
+      throw new BackendException(ex);
+    } finally {
+      closeConnections(conn, stat);
+    }
+  }
+
+  private void rollback(Connection conn) {
+    if (conn != null) {
+      try {
+        conn.rollback();
+      } catch (SQLException e) {
+        LOG.error(e);
+      }
+    }
+  }
+
+  /**
+   * Saves backfill, whose priority must be resolved, and sets its id and
+   * createTime.
+   */
+  public long createBackfill(Backfill backfill) throws BackendException {
+    long key = -1L;
+    Connection conn = null;
+    PreparedStatement stat = null;
+    try {
+      conn = newConnection();
+      stat =
+        conn.prepareStatement(
+          String.format("INSERT INTO %s (job_id, rangeStart, rangeEnd, "
+            + "stepMinutes, includeChildren, priority, maxInFlight, "
+            + "createTime) VALUES (?, ?, ?, ?, ?, ?, ?, ?)",
+            backfillTableName),
+          Statement.RETURN_GENERATED_KEYS);
+      DateTime now = new DateTime().withZone(DateTimeZone.UTC);
+      int i = 1;
+      stat.setLong(i++, backfill.getJobId());
+      stat.setTimestamp(i++, new Timestamp(backfill.getStart().getMillis()));
+      stat.setTimestamp(i++, new Timestamp(backfill.getEnd().getMillis()));
+      stat.setObject(i++, backfill.getStepMinutes(), Types.INTEGER);
+      stat.setBoolean(i++, backfill.isIncludeChildren());
+      stat.setInt(i++, backfill.getPriority());
+      stat.setInt(i++, backfill.getMaxInFlight());
+      stat.setTimestamp(i++, new Timestamp(now.getMillis()));
+      stat.executeUpdate();
+      ResultSet rs = stat.getGeneratedKeys();
+      if (rs != null && rs.next()) {
+        key = rs.getLong(1);
+      }
+      rs.close();
+      backfill.setId(key);
+      backfill.setCreateTime(now);
+    } catch (SQLException ex) {
+      throw new BackendException(ex);
+    } finally {
+      closeConnections(conn, stat);
+    }
+    return key;
+  }
+
+  public Backfill getBackfill(long id) throws BackendException {
+    List<Backfill> found = getBackfills(id, false);
+    return found.isEmpty() ? null : found.get(0);
+  }
+
+  /**
+   * @param active whether to leave out the backfills none of whose runs are
+   * queued anymore
+   * @return the backfills, newest first
+   */
+  public List<Backfill> getBackfills(boolean active) throws BackendException {
+    return getBackfills(null, active);
+  }
+
+  private List<Backfill> getBackfills(Long id, boolean active)
+      throws BackendException {
+    List<Backfill> toRet = new ArrayList<>();
+    Connection conn = null;
+    PreparedStatement stat = null;
+    try {
+      conn = newConnection();
+      String where = id != null ? "WHERE b.id = ? " : !active ? "" :
+        String.format("WHERE EXISTS (SELECT 1 FROM %s q "
+          + "WHERE q.backfill_id = b.id) ", queueTableName);
+      stat =
+        conn.prepareStatement(
+          String.format("SELECT b.*, "
+            + "(SELECT COUNT(*) FROM %s q WHERE q.backfill_id = b.id) "
+            + "AS queued FROM %s b "
+            + where
+            + "ORDER BY b.id DESC", queueTableName, backfillTableName));
+      if (id != null) {
+        stat.setLong(1, id);
+      }
+      ResultSet rs = stat.executeQuery();
+      while (rs.next()) {
+        toRet.add(parseBackfill(rs));
+      }
+      rs.close();
+    } catch (SQLException ex) {
+      throw new BackendException(ex);
+    } finally {
+      closeConnections(conn, stat);
+    }
+    return toRet;
+  }
+
+  private static Backfill parseBackfill(ResultSet rs) throws SQLException {
+    Backfill toRet = new Backfill(rs.getLong("job_id"),
+      new DateTime(rs.getTimestamp("rangeStart")).withZone(DateTimeZone.UTC),
+      new DateTime(rs.getTimestamp("rangeEnd")).withZone(DateTimeZone.UTC));
+    toRet.setId(rs.getLong("id"));
+    int stepMinutes = rs.getInt("stepMinutes");
+    toRet.setStepMinutes(rs.wasNull() ? null : stepMinutes);
+    toRet.setIncludeChildren(rs.getBoolean("includeChildren"));
+    toRet.setPriority(rs.getInt("priority"));
+    toRet.setMaxInFlight(rs.getInt("maxInFlight"));
+    toRet.setCreateTime(
+      new DateTime(rs.getTimestamp("createTime")).withZone(DateTimeZone.UTC));
+    toRet.setQueued(rs.getInt("queued"));
+    return toRet;
+  }
+
+  public DateTime getLastEvaluated() throws BackendException {
+    DateTime toRet = null;
+    Connection conn = null;
+    PreparedStatement stat = null;
+    try {
+      conn = newConnection();
+      stat =
+        conn.prepareStatement(
+          String.format("SELECT lastEvaluated FROM %s WHERE name = ?",
+            driverStateTableName));
+      stat.setString(1, DRIVER_STATE_NAME);
+      ResultSet rs = stat.executeQuery();
+      if (rs != null && rs.next() && rs.getTimestamp("lastEvaluated") != null) {
+        toRet = new DateTime(rs.getTimestamp("lastEvaluated"))
+          .withZone(DateTimeZone.UTC);
+      }
+      rs.close();
+    } catch (SQLException ex) {
+      throw new BackendException(ex);
+    } finally {
+      closeConnections(conn, stat);
+    }
+    return toRet;
+  }
+
+  /**
+   * Sets lastEvaluated, if fencingToken is still the one of the driver
+   * leadership.
+   *
+   * @return whether it was set
+   */
+  public boolean setLastEvaluated(DateTime dt, long fencingToken)
+      throws BackendException {
+    Connection conn = null;
+    PreparedStatement stat = null;
+    try {
+      conn = newConnection();
+      stat =
+        conn.prepareStatement(
+          String.format("UPDATE %s SET lastEvaluated = ? "
+            + "WHERE name = ? AND fencingToken = ?", driverStateTableName));
+      int i = 1;
+      stat.setTimestamp(i++, new Timestamp(dt.getMillis()));
+      stat.setString(i++, DRIVER_STATE_NAME);
+      stat.setLong(i++, fencingToken);
+      return stat.executeUpdate() > 0;
+    } catch (SQLException ex) {
+      throw new BackendException(ex);
+    } finally {
+      closeConnections(conn, stat);
+    }
+  }
+
+  /**
+   * Makes candidate the driver leader until leaseUntil, if there is no
+   * leader or the lease of the leader ran out before now.
+   *
+   * @return the fencing token of the new leadership, or null when another
+   * candidate leads
+   */
+  public Long acquireLeadership(String candidate, DateTime now,
+      DateTime leaseUntil) throws BackendException {
+    Connection conn = null;
+    PreparedStatement stat = null;
+    try {
+      conn = newConnection();
+      stat =
+        conn.prepareStatement(
+          String.format("INSERT INTO %s (name) SELECT ? FROM DUAL "
+            + "WHERE NOT EXISTS (SELECT 1 FROM %s WHERE name = ?)",
+            driverStateTableName, driverStateTableName));
+      stat.setString(1, DRIVER_STATE_NAME);
+      stat.setString(2, DRIVER_STATE_NAME);
+      try {
+        stat.executeUpdate();
+      } catch (SQLException ex) {
+        if (!isDuplicateKey(ex)) {
+          throw ex;
+        }
+      }
+      stat.close();
+
+      stat =
+        conn.prepareStatement(
+          String.format("UPDATE %s SET leader = ?, leaseUntil = ?, "
+            + "fencingToken = fencingToken + 1 "
+            + "WHERE name = ? AND (leader IS NULL OR leaseUntil IS NULL "
+            + "OR leaseUntil < ?)", driverStateTableName));
+      int i = 1;
+      stat.setString(i++, candidate);
+      stat.setTimestamp(i++, new Timestamp(leaseUntil.getMillis()));
+      stat.setString(i++, DRIVER_STATE_NAME);
+      stat.setTimestamp(i++, new Timestamp(now.getMillis()));
+      if (stat.executeUpdate() == 0) {
+        return null;
+      }
+      stat.close();
+
+      stat =
+        conn.prepareStatement(
+          String.format("SELECT fencingToken FROM %s "
+            + "WHERE name = ? AND leader = ?", driverStateTableName));
+      stat.setString(1, DRIVER_STATE_NAME);
+      stat.setString(2, candidate);
+      ResultSet rs = stat.executeQuery();
+      Long toRet = rs.next() ? rs.getLong("fencingToken") : null;
+      rs.close();
+      return toRet;
+    } catch (SQLException ex) {
+      throw new BackendException(ex);
+    } finally {
+      closeConnections(conn, stat);
+    }
+  }
+
+  /**
+   * Extends the lease of the leadership fencingToken of candidate.
+   *
+   * @return false when candidate is no longer the leader
+   */
+  public boolean renewLeadership(String candidate, long fencingToken,
+      DateTime leaseUntil) throws BackendException {
+    return updateLeadership(candidate, fencingToken, candidate, leaseUntil);
+  }
+
+  /**
+   * Ends the leadership fencingToken of candidate, so another candidate
+   * can take over without waiting for the lease to run out.
+   */
+  public void releaseLeadership(String candidate, long fencingToken)
+      throws BackendException {
+    updateLeadership(candidate, fencingToken, null, null);
+  }
+
+  private boolean updateLeadership(String candidate, long fencingToken,
+      String leader, DateTime leaseUntil) throws BackendException {
+    Connection conn = null;
+    PreparedStatement stat = null;
+    try {
+      conn = newConnection();
+      stat =
+        conn.prepareStatement(
+          String.format("UPDATE %s SET leader = ?, leaseUntil = ? "
+            + "WHERE name = ? AND leader = ? AND fencingToken = ?",
+            driverStateTableName));
+      int i = 1;
+      stat.setString(i++, leader);
+      stat.setTimestamp(i++, leaseUntil == null ? null :
+        new Timestamp(leaseUntil.getMillis()));
+      stat.setString(i++, DRIVER_STATE_NAME);
+      stat.setString(i++, candidate);
+      stat.setLong(i++, fencingToken);
+      return stat.executeUpdate() > 0;
+    } catch (SQLException ex) {
+      throw new BackendException(ex);
+    } finally {
+      closeConnections(conn, stat);
+    }
+  }
+
+  public void setLastEvaluated(DateTime dt) throws BackendException {
+    Connection conn = null;
+    PreparedStatement stat = null;
+    try {
+      conn = newConnection();
+      stat =
+        conn.prepareStatement(
+          String.format("UPDATE %s SET lastEvaluated = ? WHERE name = ?",
+            driverStateTableName));
+      stat.setTimestamp(1, new Timestamp(dt.getMillis()));
+      stat.setString(2, DRIVER_STATE_NAME);
+      int rows = stat.executeUpdate();
+      if (rows == 0) {
+        stat.close();
+        stat =
+          conn.prepareStatement(
+            String.format("INSERT INTO %s (name, lastEvaluated) VALUES (?, ?)",
+              driverStateTableName));
+        stat.setString(1, DRIVER_STATE_NAME);
+        stat.setTimestamp(2, new Timestamp(dt.getMillis()));
+        stat.executeUpdate();
+      }
+    } catch (SQLException ex) {
+      throw new BackendException(ex);
+    } finally {
+      closeConnections(conn, stat);
+    }
+  }
 }
@@ -25,6 +25,7 @@ import java.util.Locale;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.joda.time.Chronology;
 import org.joda.time.DateTime;
 import org.joda.time.LocalDate;
 import org.joda.time.MutableDateTime;
@@ -154,6 +155,12 @@ public class CronExpression {
     private final SimpleField monthField;
     private final DayOfMonthField dayOfMonthField;
 
+    // compiled form: bit n is set when value n matches the field
+    private final long secondBits;
+    private final long minuteBits;
+    private final long hourBits;
+    private final long monthBits;
+
     public CronExpression(final String expr) {
         this(expr, true);
     }
@@ -179,6 +186,11 @@ public class CronExpression {
         this.dayOfMonthField = new DayOfMonthField(parts[ix++]);
         this.monthField = new SimpleField(CronFieldType.MONTH, parts[ix++]);
         this.dayOfWeekField = new DayOfWeekField(parts[ix++]);
+
+        this.secondBits = secondField.toBits();
+        this.minuteBits = minuteField.toBits();
+        this.hourBits = hourField.toBits();
+        this.monthBits = monthField.toBits();
     }
 
     public static CronExpression create(final String expr) {
@@ -203,11 +215,118 @@ public class CronExpression {
         return nextTimeAfter(afterTime, afterTime.plus(durationInMillis));
     }
 
-    @CoverageIgnore
     public DateTime nextTimeAfter(DateTime afterTime, DateTime dateTimeBarrier) {
         MutableDateTime nextTime = new MutableDateTime(afterTime);
         nextTime.setMillisOfSecond(0);
         nextTime.secondOfDay().add(1);
+        Chronology chrono = nextTime.getChronology();
+
+        int maskYear = -1;
+        int maskMonth = -1;
+        int dayMask = 0;
+        while (true) {
+            int month = nextTime.getMonthOfYear();
+            int nextMonth = nextSetBit(monthBits, month);
+            if (nextMonth != month) {
+                int months = nextMonth < 0
+                        ? 12 - month + nextSetBit(monthBits, 1)
+                        : nextMonth - month;
+                nextTime.setDayOfMonth(1);
+                nextTime.setTime(0, 0, 0, 0);
+                nextTime.addMonths(months);
+                checkIfDateTimeBarrierIsReached(nextTime, dateTimeBarrier);
+                continue;
+            }
+
+            int year = nextTime.getYear();
+            if (year != maskYear || month != maskMonth) {
+                dayMask = dayMask(chrono, nextTime);
+                maskYear = year;
+                maskMonth = month;
+            }
+            int day = nextTime.getDayOfMonth();
+            int nextDay = nextSetBit(dayMask, day);
+            if (nextDay < 0) {
+                nextTime.setDayOfMonth(1);
+                nextTime.setTime(0, 0, 0, 0);
+                nextTime.addMonths(1);
+                checkIfDateTimeBarrierIsReached(nextTime, dateTimeBarrier);
+                continue;
+            } else if (nextDay != day) {
+                nextTime.setDayOfMonth(nextDay);
+                nextTime.setTime(0, 0, 0, 0);
+                checkIfDateTimeBarrierIsReached(nextTime, dateTimeBarrier);
+            }
+
+            int hour = nextTime.getHourOfDay();
+            int nextHour = nextSetBit(hourBits, hour);
+            if (nextHour < 0) {
+                nextTime.addDays(1);
+                nextTime.setTime(0, 0, 0, 0);
+                continue;
+            } else if (nextHour != hour) {
+                nextTime.setTime(nextHour, 0, 0, 0);
+            }
+
+            int minute = nextTime.getMinuteOfHour();
+            int nextMinute = nextSetBit(minuteBits, minute);
+            if (nextMinute < 0) {
+                nextTime.setTime(nextHour, 0, 0, 0);
+                nextTime.addHours(1);
+                continue;
+            } else if (nextMinute != minute) {
+                nextTime.setMinuteOfHour(nextMinute);
+                nextTime.setSecondOfMinute(0);
+            }
+
+            int second = nextTime.getSecondOfMinute();
+            int nextSecond = nextSetBit(secondBits, second);
+            if (nextSecond < 0) {
+                nextTime.setSecondOfMinute(0);
+                nextTime.addMinutes(1);
+                continue;
+            }
+            nextTime.setSecondOfMinute(nextSecond);
+            return nextTime.toDateTime();
+        }
+    }
+
+    /**
+     * Bit n of the result is set when day n of the month of the given time
+     * matches both the day-of-month and the day-of-week field.
+     */
+    private int dayMask(Chronology chrono, MutableDateTime time) {
+        long millis = time.getMillis();
+        int lengthOfMonth = chrono.dayOfMonth().getMaximumValue(millis);
+        int lengthOfPrevMonth =
+                chrono.dayOfMonth().getMaximumValue(chrono.monthOfYear().add(millis, -1));
+        // day of week (1-7) of the 1st of the month
+        int firstDayOfWeek = ((time.getDayOfWeek() - time.getDayOfMonth()) % DAYS_PER_WEEK + DAYS_PER_WEEK) % DAYS_PER_WEEK + 1;
+        int mask = 0;
+        for (int day = 1; day <= lengthOfMonth; day++) {
+            int dayOfWeek = (firstDayOfWeek - 1 + day - 1) % DAYS_PER_WEEK + 1;
+            if (dayOfMonthField.matches(day, dayOfWeek, lengthOfMonth, lengthOfPrevMonth)
+                    && dayOfWeekField.matches(day, dayOfWeek, lengthOfMonth)) {
+                mask |= 1 << day;
+            }
+        }
+        return mask;
+    }
+
+    private static int nextSetBit(long bits, int from) {
+        long candidates = bits & (-1L << from);
+        return candidates == 0 ? -1 : Long.numberOfTrailingZeros(candidates);
+    }
+
+    /**
+     * The original field-by-field walk, kept as the reference the compiled
+     * {@link #nextTimeAfter(DateTime, DateTime)} is tested against.
+     */
+    @CoverageIgnore
+    DateTime nextTimeAfterByScanning(DateTime afterTime, DateTime dateTimeBarrier) {
+        MutableDateTime nextTime = new MutableDateTime(afterTime);
+        nextTime.setMillisOfSecond(0);
+        nextTime.secondOfDay().add(1);
 
         while (true) { // day of week
             while (true) { // month
@@ -380,6 +499,19 @@ public class CronExpression {
             }
             return false;
         }
+
+        long toBits() {
+            long bits = 0L;
+            for (int val = fieldType.from; val <= fieldType.to; val++) {
+                for (FieldPart part : parts) {
+                    if (matches(val, part)) {
+                        bits |= 1L << val;
+                        break;
+                    }
+                }
+            }
+            return bits;
+        }
     }
 
     static class SimpleField extends BasicField {
@@ -422,6 +554,24 @@ public class CronExpression {
             return false;
         }
 
+        boolean matches(int dayOfMonth, int dayOfWeek, int lengthOfMonth) {
+            for (int i = 0; i < parts.size(); i++) {
+                FieldPart part = parts.get(i);
+                if ("L".equals(part.modifier)) {
+                    return dayOfWeek == part.from && dayOfMonth > (lengthOfMonth - DAYS_PER_WEEK);
+                } else if ("#".equals(part.incrementModifier)) {
+                    if (dayOfWeek == part.from) {
+                        int num = dayOfMonth / 7;
+                        return part.increment == (dayOfMonth % 7 == 0 ? num : num + 1);
+                    }
+                    return false;
+                } else if (matches(dayOfWeek, part)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
         @Override
         protected Integer mapValue(String value) {
             // Use 1-7 for weedays, but 0 will also represent sunday (linux practice)
@@ -469,6 +619,28 @@ public class CronExpression {
             return false;
         }
 
+        boolean matches(int dayOfMonth, int dayOfWeek, int lengthOfMonth, int lengthOfPrevMonth) {
+            for (int i = 0; i < parts.size(); i++) {
+                FieldPart part = parts.get(i);
+                if ("L".equals(part.modifier)) {
+                    return dayOfMonth == (lengthOfMonth - (part.from == null ? 0 : part.from));
+                } else if ("W".equals(part.modifier)) {
+                    if (dayOfWeek <= 5) {
+                        if (dayOfMonth == part.from) {
+                            return true;
+                        } else if (dayOfWeek == 5) {
+                            return (dayOfMonth == lengthOfMonth ? 1 : dayOfMonth + 1) == part.from;
+                        } else if (dayOfWeek == 1) {
+                            return (dayOfMonth == 1 ? lengthOfPrevMonth : dayOfMonth - 1) == part.from;
+                        }
+                    }
+                } else if (matches(dayOfMonth, part)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
         @Override
         protected void validatePart(FieldPart part) {
             if (part.modifier != null && Arrays.asList("L", "W", "?").indexOf(part.modifier) == -1) {
@@ -9,6 +9,7 @@ import java.util.List;
 
 import com.huffingtonpost.chronos.model.JobDaoImpl;
 import com.huffingtonpost.chronos.persist.BackendException;
+import com.huffingtonpost.chronos.persist.SchemaMigrations;
 import com.huffingtonpost.chronos.util.H2TestUtil;
 
 public class H2TestJobDaoImpl extends JobDaoImpl {
@@ -48,7 +49,14 @@ public class H2TestJobDaoImpl extends JobDaoImpl {
           String.format("DROP TABLE IF EXISTS %s", testTableName),
           String.format("DROP TABLE IF EXISTS %s", jobRunTableName),
           String.format("DROP TABLE IF EXISTS %s", queueTableName),
-          String.format("DROP TABLE IF EXISTS %s", jobTableName) }) {
+          String.format("DROP TABLE IF EXISTS %s", retryTableName),
+          String.format("DROP TABLE IF EXISTS %s", backfillTableName),
+          String.format("DROP TABLE IF EXISTS %s", pipelineJobTableName),
+          String.format("DROP TABLE IF EXISTS %s", driverStateTableName),
+          String.format("DROP TABLE IF EXISTS %s", jobCurrentTableName),
+          String.format("DROP TABLE IF EXISTS %s", jobTableName),
+          String.format("DROP TABLE IF EXISTS %s",
+            SchemaMigrations.schemaVersionTableName) }) {
         Statement stat = conn.createStatement();
         stat.execute(sql);
         stat.close();
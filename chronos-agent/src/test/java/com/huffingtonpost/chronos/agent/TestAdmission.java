@@ -0,0 +1,118 @@
+package com.huffingtonpost.chronos.agent;
+
+import com.huffingtonpost.chronos.model.JobSpec;
+import com.huffingtonpost.chronos.model.PlannedJob;
+import com.huffingtonpost.chronos.model.QueuedJob;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestAdmission {
+
+  Admission admission;
+  long nextId;
+
+  @Before
+  public void setUp() {
+    admission = new Admission();
+    nextId = 1;
+  }
+
+  private QueuedJob queuedJob(String driver, long jobId) {
+    JobSpec aJob = new JobSpec();
+    aJob.setId(jobId);
+    aJob.setName("job " + jobId);
+    aJob.setDriver(driver);
+    long t = nextId++;
+    return new QueuedJob(new PlannedJob(aJob, new DateTime(t * 1000)),
+      new DateTime(t));
+  }
+
+  private List<QueuedJob> queued(String driver, int count) {
+    List<QueuedJob> toRet = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      toRet.add(queuedJob(driver, nextId));
+    }
+    return toRet;
+  }
+
+  private static int countOf(List<QueuedJob> jobs, String driver) {
+    int count = 0;
+    for (QueuedJob qj : jobs) {
+      if (driver.equals(qj.getPlannedJob().getJobSpec().getDriver())) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Test
+  public void testWeightedShares() {
+    admission.setWeight(Admission.driverKey("Hive"), 2);
+    assertTrue(admission.isEnabled());
+    List<QueuedJob> candidates = queued("Hive", 10);
+    candidates.addAll(queued("MySQL", 10));
+
+    // the hive jobs are older, but only get their weighted share
+    List<QueuedJob> selected = admission.select(candidates, 6);
+    assertEquals(6, selected.size());
+    assertEquals(4, countOf(selected, "Hive"));
+    assertEquals(2, countOf(selected, "MySQL"));
+    // and within a driver jobs start in queue order
+    assertEquals(candidates.get(0), selected.get(0));
+  }
+
+  @Test
+  public void testNoCreditForIdleTime() {
+    admission.setWeight(Admission.driverKey("Hive"), 1);
+    for (int i = 0; i < 5; i++) {
+      admission.select(queued("Hive", 1), 1);
+    }
+    List<QueuedJob> candidates = queued("Hive", 3);
+    candidates.addAll(queued("MySQL", 3));
+    List<QueuedJob> selected = admission.select(candidates, 2);
+    assertEquals(1, countOf(selected, "Hive"));
+    assertEquals(1, countOf(selected, "MySQL"));
+  }
+
+  @Test
+  public void testMaxInFlight() {
+    assertFalse(admission.isEnabled());
+    admission.setMaxInFlight(Admission.driverKey("Hive"), 2);
+    admission.setMaxInFlight(Admission.jobKey(100), 1);
+    QueuedJob running = queuedJob("Hive", 200);
+    admission.started(running.getPlannedJob());
+    assertEquals(1, admission.getInFlight(Admission.driverKey("Hive")));
+
+    List<QueuedJob> candidates = new ArrayList<>();
+    candidates.add(queuedJob("MySQL", 100));
+    candidates.add(queuedJob("MySQL", 100));
+    candidates.add(queuedJob("Hive", 300));
+    candidates.add(queuedJob("Hive", 400));
+    candidates.add(queuedJob("MySQL", 500));
+    List<QueuedJob> selected = admission.select(candidates, 10);
+    // one run of job 100, one more hive job, and the job behind the
+    // second run of job 100
+    assertEquals(3, selected.size());
+    assertTrue(selected.contains(candidates.get(0)));
+    assertTrue(selected.contains(candidates.get(2)));
+    assertTrue(selected.contains(candidates.get(4)));
+
+    admission.started(candidates.get(2).getPlannedJob());
+    assertFalse(admission.hasCapacity(candidates.get(3).getPlannedJob()));
+    assertTrue(admission.isAtMax(Admission.driverKey("Hive")));
+    assertFalse(admission.isAtMax(Admission.driverKey("MySQL")));
+    admission.finished(running.getPlannedJob());
+    assertTrue(admission.hasCapacity(candidates.get(3).getPlannedJob()));
+    assertFalse(admission.isAtMax(Admission.driverKey("Hive")));
+    assertEquals(1, admission.getInFlight(Admission.driverKey("Hive")));
+  }
+
+}
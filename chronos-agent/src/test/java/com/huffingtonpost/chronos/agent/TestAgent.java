@@ -205,6 +205,151 @@ public class TestAgent {
     }
   }
 
+  @Test(timeout=2000)
+  public void testScheduleFollowsJobChanges() {
+    agentDriver.setCatchUpPolicy(CatchUpPolicy.NONE);
+    DateTime start = Utils.getCurrentTime();
+    JobSpec hourly = getTestJob("Hourly", dao);
+    dao.createJob(hourly);
+    runRunnable(agentDriver);
+    assertEquals(1, dao.getQueue(null).size());
+
+    // a second tick within the same minute must not enqueue the job again
+    runRunnable(agentDriver);
+    assertEquals(1, dao.getQueue(null).size());
+    dao.removeFromQueue();
+
+    hourly.setEnabled(false);
+    dao.updateJob(hourly);
+    JobSpec everyMinute = getTestJob("Every minute", dao);
+    everyMinute.setCronString("* * * * *");
+    dao.createJob(everyMinute);
+
+    when(Utils.getCurrentTime()).thenReturn(start.plusHours(1));
+    runRunnable(agentDriver);
+    List<PlannedJob> queue = dao.getQueue(null);
+    assertEquals(1, queue.size());
+    assertEquals(everyMinute.getId(), queue.get(0).getJobSpec().getId());
+    dao.removeFromQueue();
+
+    dao.deleteJob(everyMinute.getId());
+    when(Utils.getCurrentTime()).thenReturn(start.plusHours(1).plusMinutes(1));
+    runRunnable(agentDriver);
+    assertEquals(0, dao.getQueue(null).size());
+  }
+
+  @Test(timeout=5000)
+  public void testCatchUpPolicies() throws Exception {
+    DateTime start = Utils.getCurrentTime();
+    JobSpec everyMinute = getTestJob("Every minute", dao);
+    everyMinute.setCronString("* * * * *");
+    dao.createJob(everyMinute);
+
+    Map<CatchUpPolicy, List<DateTime>> expected = new HashMap<>();
+    expected.put(CatchUpPolicy.ALL, Arrays.asList(start.minusMinutes(2),
+      start.minusMinutes(1), start));
+    expected.put(CatchUpPolicy.LATEST, Arrays.asList(start));
+    expected.put(CatchUpPolicy.NONE, Arrays.asList(start));
+    for (Entry<CatchUpPolicy, List<DateTime>> e : expected.entrySet()) {
+      // the driver last evaluated three minutes ago and is now restarted
+      dao.setLastEvaluated(start.minusMinutes(3));
+      AgentDriver restarted = getMockedDriver(dao, reporting);
+      restarted.SLEEP_FOR = 10;
+      // the drivers of the earlier iterations still hold the leadership
+      restarted.setLeaderElection(false);
+      restarted.setCatchUpPolicy(e.getKey());
+      runRunnable(restarted);
+
+      List<DateTime> actual = new ArrayList<>();
+      PlannedJob pj;
+      while ((pj = dao.removeFromQueue()) != null) {
+        actual.add(pj.getReplaceTime());
+      }
+      Collections.sort(actual);
+      assertEquals(e.getKey().toString(), e.getValue(), actual);
+      assertEquals(start, dao.getLastEvaluated());
+    }
+
+    // fire times before the catch-up window are skipped
+    dao.setLastEvaluated(start.minusMinutes(3));
+    AgentDriver restarted = getMockedDriver(dao, reporting);
+    assertEquals(CatchUpPolicy.LATEST, restarted.getCatchUpPolicy());
+    restarted.SLEEP_FOR = 10;
+    restarted.setLeaderElection(false);
+    restarted.setCatchUpPolicy(CatchUpPolicy.ALL);
+    restarted.setMaxCatchUpMinutes(2);
+    runRunnable(restarted);
+    List<DateTime> actual = new ArrayList<>();
+    PlannedJob pj;
+    while ((pj = dao.removeFromQueue()) != null) {
+      actual.add(pj.getReplaceTime());
+    }
+    Collections.sort(actual);
+    assertEquals(Arrays.asList(start.minusMinutes(1), start), actual);
+  }
+
+  @Test(timeout=5000)
+  public void testLeaderElection() throws Exception {
+    JobSpec everyMinute = getTestJob("Every minute", dao);
+    everyMinute.setCronString("* * * * *");
+    dao.createJob(everyMinute);
+    AgentDriver first = getMockedDriver(dao, reporting);
+    AgentDriver second = getMockedDriver(dao, reporting);
+    for (AgentDriver driver : Arrays.asList(first, second)) {
+      driver.SLEEP_FOR = 10;
+      driver.LEADER_LEASE = 300;
+    }
+
+    runRunnable(first);
+    assertTrue(first.isLeader());
+    assertEquals(1, dao.getQueueSize());
+    runRunnable(second);
+    assertFalse(second.isLeader());
+    assertEquals(1, dao.getQueueSize());
+
+    // the first driver stops renewing, the second takes over
+    Thread.sleep(400);
+    runRunnable(second);
+    assertTrue(second.isLeader());
+    // and resumes where the first left off, without enqueueing again
+    assertEquals(1, dao.getQueueSize());
+    runRunnable(first);
+    assertFalse(first.isLeader());
+  }
+
+  @Test(timeout=5000)
+  public void testRegainedLeadershipDoesNotRefire() throws Exception {
+    DateTime start = Utils.getCurrentTime();
+    JobSpec everyMinute = getTestJob("Every minute", dao);
+    everyMinute.setCronString("* * * * *");
+    dao.createJob(everyMinute);
+    AgentDriver first = getMockedDriver(dao, reporting);
+    AgentDriver second = getMockedDriver(dao, reporting);
+    for (AgentDriver driver : Arrays.asList(first, second)) {
+      driver.SLEEP_FOR = 10;
+      driver.LEADER_LEASE = 300;
+    }
+
+    runRunnable(first);
+    assertTrue(first.isLeader());
+    assertEquals(start, dao.removeFromQueue().getReplaceTime());
+
+    // the first driver stalls, the second takes over for the next minute
+    when(Utils.getCurrentTime()).thenReturn(start.plusMinutes(1));
+    Thread.sleep(400);
+    runRunnable(second);
+    assertTrue(second.isLeader());
+    assertEquals(start.plusMinutes(1),
+      dao.removeFromQueue().getReplaceTime());
+
+    // the second stalls in turn and the first leads again within the same
+    // minute, it must not enqueue the fire the second already handled
+    Thread.sleep(400);
+    runRunnable(first);
+    assertTrue(first.isLeader());
+    assertEquals(0, dao.getQueueSize());
+  }
+
   @Test(timeout=2000)
   public void testBasicWithFail() throws Exception {
     String resultTable = "SHOULDNT_EXIST";
@@ -423,8 +568,10 @@ public class TestAgent {
 
     assertEquals(1, dao.getQueue(null).size());
     runRunnable(consumer);
-    Thread.sleep(100);
-    // child job should have been queued
+    // child job should have been queued once the parent finished
+    for (int i = 0; i < 50 && dao.getQueue(null).size() != 1; i++) {
+      Thread.sleep(100);
+    }
     assertEquals(1, dao.getQueue(null).size());
     runRunnable(consumer);
     waitUntilJobsFinished(consumer, 2);
@@ -294,23 +294,425 @@ public class TestAgentConsumer {
     assertEquals(0,
       consumer.getFinishedJobs(limit).get(nextId).getStatus().get());
   }
+
   @Test
-  public void testCleanupPreviouslyRunningJobs() {
-    JobSpec aJob = TestAgent.getTestJob("Mary Wollstonecraft", dao);
+  public void testRetryPolicy() {
+    RetryPolicy fixed = RetryPolicy.fixed(500);
+    assertEquals(500, fixed.getDelayMillis(1));
+    assertEquals(500, fixed.getDelayMillis(4));
+
+    RetryPolicy exponential = RetryPolicy.exponential(1000, 5000);
+    assertEquals(1000, exponential.getDelayMillis(1));
+    assertEquals(2000, exponential.getDelayMillis(2));
+    assertEquals(4000, exponential.getDelayMillis(3));
+    assertEquals(5000, exponential.getDelayMillis(4));
+    assertEquals(5000, exponential.getDelayMillis(40));
+
+    RetryPolicy jittered = RetryPolicy.jittered(exponential, 0.5);
+    for (int i = 0; i < 100; i++) {
+      long delay = jittered.getDelayMillis(2);
+      assertTrue(delay > 1000 && delay <= 2000);
+    }
+  }
+
+  @Test(timeout=10000)
+  public void testPendingRetryIsPersisted() throws Exception {
+    consumer.setRetryPolicy(RetryPolicy.fixed(60 * 1000));
+    JobSpec aJob = TestAgent.getTestJob("Ursula K. Le Guin", dao);
+    aJob.setCode("select * from table_dne");
+    aJob.setShouldRerun(true);
     long id = dao.createJob(aJob);
     PlannedJob pj = new PlannedJob(dao.getJob(id), Utils.getCurrentTime());
-    SleepyCallableQuery cj = new SleepyCallableQuery(
-      pj, dao, reporting, "example.com", mailInfo, null, null, drivers.get(0), 1,
-      10000);
-    consumer.submitJob(cj);
-    doSleep();
-    assertEquals(0, consumer.getFailedQueries(limit).size());
+    consumer.submitJob(new CallableQuery(pj, dao, reporting,
+      "example.com", mailInfo, null, drivers.get(0), null, 1));
+    TestAgent.waitForFail(consumer, 1);
+
+    TestAgent.runRunnable(consumer);
+    TestAgent.runRunnable(consumer);
+    List<PendingRetry> retries = dao.getPendingRetries();
+    assertEquals(1, retries.size());
+    assertEquals(pj, retries.get(0).getPlannedJob());
+    assertEquals(2, retries.get(0).getAttemptNumber());
+    assertTrue(retries.get(0).getDueTime().isAfterNow());
+    assertEquals(1, consumer.getFinishedJobs(limit).size());
+
+    // a consumer started later picks up the saved retry, due by now
+    dao.addPendingRetry(new PendingRetry(pj, 2, new DateTime()));
+    AgentConsumer restarted = new AgentConsumer(dao, reporting,
+        "testing.huffpo.com", new MailInfo("", "", "", ""),
+        Session.getDefaultInstance(new Properties()), drivers,
+        numOfConcurrentJobs, numOfConcurrentReruns, maxReruns, 0, 1);
+    try {
+      restarted.schedulePendingRetries();
+      TestAgent.waitUntilJobsFinished(restarted, 2);
+      assertEquals(2,
+        restarted.getLatestMatching(pj, limit).getAttemptNumber());
+      while (!dao.getPendingRetries().isEmpty()) {
+        doSleep();
+      }
+    } finally {
+      restarted.close();
+    }
+  }
+
+  @Test
+  public void testReconcileFailedRuns() {
+    consumer.setRetryPolicy(RetryPolicy.fixed(60 * 1000));
+    JobSpec aJob = TestAgent.getTestJob("Jorge Amado", dao);
+    aJob.setShouldRerun(true);
+    long id = dao.createJob(aJob);
+    PlannedJob pj = new PlannedJob(dao.getJob(id), Utils.getCurrentTime());
+    // failed without the consumer being handed the run
+    CallableJob cj = new CallableQuery(pj, dao, reporting,
+      "example.com", mailInfo, null, drivers.get(0), null, 1);
+    dao.createJobRun(cj);
+    cj.getStart().set(System.currentTimeMillis());
+    cj.getFinish().set(System.currentTimeMillis());
+    dao.updateJobRun(cj);
+
+    consumer.RECONCILE_EVERY = 60 * 60 * 1000;
+    TestAgent.runRunnable(consumer);
+    List<PendingRetry> retries = dao.getPendingRetries();
+    assertEquals(1, retries.size());
+    assertEquals(2, retries.get(0).getAttemptNumber());
+  }
+
+  @Test
+  public void testReconcileFailedRunsPastLimit() {
+    consumer.setRetryPolicy(RetryPolicy.fixed(60 * 1000));
+    JobSpec aJob = TestAgent.getTestJob("Clarice Lispector", dao);
+    aJob.setShouldRerun(true);
+    long id = dao.createJob(aJob);
+    int total = limit + 5;
+    long finish = System.currentTimeMillis();
+    for (int i = 0; i < total; i++) {
+      PlannedJob pj = new PlannedJob(dao.getJob(id),
+        Utils.getCurrentTime().plusMinutes(i));
+      CallableJob cj = new CallableQuery(pj, dao, reporting,
+        "example.com", mailInfo, null, drivers.get(0), null, 1);
+      dao.createJobRun(cj);
+      cj.getStart().set(finish);
+      // two runs per milli so a page ends inside one
+      cj.getFinish().set(finish + i / 2);
+      dao.updateJobRun(cj);
+    }
+
+    consumer.RECONCILE_EVERY = 60 * 60 * 1000;
+    TestAgent.runRunnable(consumer);
+    assertEquals(total, dao.getPendingRetries().size());
+  }
+
+  @Test
+  public void testReapExpiredLeases() {
+    consumer.setRetryPolicy(RetryPolicy.fixed(60 * 1000));
+    JobSpec aJob = TestAgent.getTestJob("Octavia E. Butler", dao);
+    aJob.setShouldRerun(true);
+    long id = dao.createJob(aJob);
+    PlannedJob pj = new PlannedJob(dao.getJob(id), Utils.getCurrentTime());
+    String ownerId = dao.getOwnerId();
+    // started by an agent that is gone now
+    dao.setOwnerId("gone.example.com");
+    CallableJob cj = new CallableQuery(pj, dao, reporting,
+      "example.com", mailInfo, null, drivers.get(0), null, 1);
+    dao.createJobRun(cj);
+    cj.getStart().set(System.currentTimeMillis());
+    dao.updateJobRun(cj);
+    dao.setOwnerId(ownerId);
+
+    TestAgent.runRunnable(consumer);
     assertEquals(1, dao.getRunningJobs().size());
+    assertEquals(0, dao.getPendingRetries().size());
 
-    AgentConsumer.cleanupPreviouslyRunningJobs(dao,
-      dao.getRunningJobs());
+    doSleep();
+    consumer.LEASE_FOR = 0;
+    TestAgent.runRunnable(consumer);
     assertEquals(0, dao.getRunningJobs().size());
-    assertEquals(1, consumer.getFailedQueries(limit).size());
+    CallableJob reaped = dao.getJobRuns(id, limit).get(cj.getJobId());
+    assertEquals(H2TestJobDaoImpl.LEASE_EXPIRED,
+      reaped.getExceptionMessage().get());
+    List<PendingRetry> retries = dao.getPendingRetries();
+    assertEquals(1, retries.size());
+    assertEquals(2, retries.get(0).getAttemptNumber());
+  }
+
+  @Test(timeout=10000)
+  public void testVirtualThreads() {
+    if (!JobThreads.isVirtualSupported()) {
+      try {
+        consumer.setVirtualThreads(true);
+        fail("virtual threads are not supported by this JDK");
+      } catch (UnsupportedOperationException expected) { }
+      assertFalse(consumer.isVirtualThreads());
+      return;
+    }
+    consumer.setVirtualThreads(true);
+    assertTrue(consumer.isVirtualThreads());
+    JobSpec aJob = TestAgent.getTestJob("Clarice Lispector", dao);
+    aJob.setType(JobType.Script);
+    aJob.setCode("echo \"virtual\"");
+    long id = dao.createJob(aJob);
+    PlannedJob pj = new PlannedJob(dao.getJob(id), Utils.getCurrentTime());
+    consumer.submitJob(consumer.assembleCallableJob(pj, 1));
+    TestAgent.waitUntilJobsFinished(consumer, 1);
+    assertEquals(1, consumer.getSuccesfulQueries(limit).size());
+  }
+
+  @Test(timeout=20000)
+  public void testMaxConcurrentJobsPerDriver() {
+    consumer.setMaxConcurrentJobs(H2TestUtil.H2_NAME, 1);
+    for (String name : new String[] { "Machado de Assis", "Lima Barreto" }) {
+      JobSpec aJob = TestAgent.getTestJob(name, dao);
+      aJob.setType(JobType.Script);
+      aJob.setCode("sleep 1");
+      long id = dao.createJob(aJob);
+      dao.addToQueue(new PlannedJob(dao.getJob(id), Utils.getCurrentTime()));
+    }
+    TestAgent.runRunnable(consumer);
+    doSleep();
+    assertEquals(1, dao.getRunningJobs().size());
+    assertEquals(1, dao.getQueueSize());
+    assertEquals(1, consumer.getAdmission().getInFlight(
+      Admission.driverKey(H2TestUtil.H2_NAME)));
+
+    TestAgent.waitUntilJobsFinished(consumer, 2);
+    List<CallableJob> runs =
+      new ArrayList<>(consumer.getFinishedJobs(limit).values());
+    CallableJob first = runs.get(0);
+    CallableJob second = runs.get(1);
+    assertTrue(second.getStart().get() >= first.getFinish().get() ||
+      first.getStart().get() >= second.getFinish().get());
+  }
+
+  @Test(timeout=30000)
+  public void testBackfillIsCapped() {
+    JobSpec aJob = TestAgent.getTestJob("Backfilled", dao);
+    aJob.setType(JobType.Script);
+    aJob.setCode("sleep 1");
+    aJob.setCronString("0 * * * *");
+    long id = dao.createJob(aJob);
+    JobSpec child = TestAgent.getTestJob("Child", dao);
+    child.setType(JobType.Script);
+    child.setCode("true");
+    child.setParent(id);
+    dao.createJob(child);
+
+    DateTime start = new DateTime(2016, 1, 1, 0, 0, DateTimeZone.UTC);
+    Backfill backfill = new Backfill(id, start, start.plusHours(2));
+    backfill.setIncludeChildren(true);
+    backfill = dao.queueBackfill(backfill);
+    assertEquals(2, backfill.getQueued());
+
+    TestAgent.runRunnable(consumer);
+    doSleep();
+    // only one of the free slots is taken by the backfill
+    assertEquals(1, dao.getRunningJobs().size());
+    assertEquals(1, consumer.getAdmission().getInFlight(
+      Admission.backfillKey(backfill.getId())));
+
+    // every run of the parent queues its child as part of the backfill
+    TestAgent.waitUntilJobsFinished(consumer, 4);
+    Set<Long> childRuns = new HashSet<>();
+    for (CallableJob cj : consumer.getFinishedJobs(limit).values()) {
+      if (cj.getPlannedJob().getJobSpec().getId() == child.getId()) {
+        childRuns.add(cj.getPlannedJob().getReplaceTime().getMillis());
+      }
+    }
+    assertEquals(new HashSet<>(Arrays.asList(start.getMillis(),
+      start.plusHours(1).getMillis())), childRuns);
+    assertEquals(0, dao.getBackfills(true).size());
+  }
+
+  private JobSpec createScript(String name, String code, Long parent,
+                               JobSpec.RunOn runOn) {
+    JobSpec aJob = TestAgent.getTestJob(name, dao);
+    aJob.setType(JobType.Script);
+    aJob.setCode(code);
+    aJob.setParent(parent);
+    aJob.setRunOn(runOn);
+    dao.createJob(aJob);
+    return aJob;
+  }
+
+  @Test(timeout=30000)
+  public void testPipeline() {
+    consumer.setPipelines(true);
+    JobSpec root = createScript("Root", "true", null, JobSpec.RunOn.ALWAYS);
+    JobSpec left = createScript("Left", "sleep 1", root.getId(),
+      JobSpec.RunOn.SUCCESS);
+    JobSpec right = createScript("Right", "sleep 1", root.getId(),
+      JobSpec.RunOn.SUCCESS);
+    JobSpec onFailure = createScript("OnFailure", "true", root.getId(),
+      JobSpec.RunOn.FAILURE);
+    JobSpec join = TestAgent.getTestJob("Join", dao);
+    join.setType(JobType.Script);
+    join.setCode("true");
+    join.setParent(left.getId());
+    join.setDependsOn(Arrays.asList(right.getId()));
+    dao.createJob(join);
+
+    dao.addToQueue(new PlannedJob(dao.getJob(root.getId()),
+      Utils.getCurrentTime()));
+    TestAgent.waitUntilJobsFinished(consumer, 4);
+    assertEquals(0, dao.getQueue(null).size());
+
+    Map<Long, CallableJob> runs = consumer.getFinishedJobs(limit);
+    String pipelineId = null;
+    Map<Long, CallableJob> byJob = new HashMap<>();
+    for (CallableJob cj : runs.values()) {
+      PlannedJob pj = cj.getPlannedJob();
+      assertNotNull(pj.getPipelineId());
+      if (pipelineId == null) {
+        pipelineId = pj.getPipelineId();
+      }
+      assertEquals(pipelineId, pj.getPipelineId());
+      byJob.put(pj.getJobSpec().getId(), cj);
+    }
+    assertFalse(byJob.containsKey(onFailure.getId()));
+    // the children of the root run side by side, the join after both
+    CallableJob leftRun = byJob.get(left.getId());
+    CallableJob rightRun = byJob.get(right.getId());
+    assertTrue(leftRun.getStart().get() < rightRun.getFinish().get());
+    assertTrue(rightRun.getStart().get() < leftRun.getFinish().get());
+    long joinStart = byJob.get(join.getId()).getStart().get();
+    assertTrue(joinStart >= leftRun.getFinish().get());
+    assertTrue(joinStart >= rightRun.getFinish().get());
+
+    assertEquals(4, dao.getPipelineRuns(pipelineId).size());
+  }
+
+  @Test(timeout=30000)
+  public void testPipelineJobsAreQueued() {
+    consumer.setPipelines(true);
+    JobSpec root = createScript("Root", "true", null, JobSpec.RunOn.ALWAYS);
+    JobSpec child = createScript("Child", "true", root.getId(),
+      JobSpec.RunOn.ALWAYS);
+    createScript("Grandchild", "true", child.getId(), JobSpec.RunOn.ALWAYS);
+
+    dao.addToQueue(new PlannedJob(dao.getJob(root.getId()),
+      Utils.getCurrentTime()));
+    TestAgent.runRunnable(consumer);
+    while (dao.getQueue(null).isEmpty()) {
+      doSleep();
+    }
+    // the ready child is kept in the queue, not in the consumer
+    List<PlannedJob> queued = dao.getQueue(null);
+    assertEquals(1, queued.size());
+    PlannedJob ready = queued.get(0);
+    assertEquals(child.getId(), ready.getJobSpec().getId());
+    String pipelineId = ready.getPipelineId();
+    assertNotNull(pipelineId);
+    assertEquals(1, dao.getPipelineRuns(pipelineId).size());
+    // it is queued once however often the root is handed on
+    assertEquals(0, dao.queuePipelineJobs(pipelineId,
+      Arrays.asList(new PlannedJob(dao.getJob(child.getId()),
+        Utils.getCurrentTime())), consumer.PIPELINE_PRIORITY).size());
+
+    TestAgent.waitUntilJobsFinished(consumer, 3);
+    assertEquals(0, dao.getQueue(null).size());
+    assertEquals(3, dao.getPipelineRuns(pipelineId).size());
+  }
+
+  @Test(timeout=30000)
+  public void testPipelineTakesInQueuedJob() {
+    consumer.setPipelines(true);
+    // the child cannot start before the root ended
+    consumer.setMaxConcurrentJobs(H2TestUtil.H2_NAME, 1);
+    JobSpec root = createScript("Root", "sleep 1", null,
+      JobSpec.RunOn.ALWAYS);
+    JobSpec child = createScript("Child", "true", root.getId(),
+      JobSpec.RunOn.ALWAYS);
+    DateTime replaceTime = Utils.getCurrentTime();
+
+    dao.addToQueue(new PlannedJob(dao.getJob(root.getId()), replaceTime));
+    TestAgent.runRunnable(consumer);
+    // the child is queued for the same replace time outside the pipeline
+    dao.addToQueue(new PlannedJob(dao.getJob(child.getId()), replaceTime));
+    TestAgent.waitUntilJobsFinished(consumer, 2);
+    assertEquals(0, dao.getQueue(null).size());
+
+    String pipelineId = null;
+    for (CallableJob cj : consumer.getFinishedJobs(limit).values()) {
+      assertNotNull(cj.getPlannedJob().getPipelineId());
+      if (pipelineId == null) {
+        pipelineId = cj.getPlannedJob().getPipelineId();
+      }
+      assertEquals(pipelineId, cj.getPlannedJob().getPipelineId());
+    }
+    assertEquals(2, dao.getPipelineRuns(pipelineId).size());
+    // the pipeline ended and forgot its jobs
+    assertFalse(dao.endPipeline(pipelineId));
+  }
+
+  @Test(timeout=30000)
+  public void testJobOfTwoPipelinesRunsOnce() {
+    consumer.setPipelines(true);
+    JobSpec first = createScript("First", "true", null, JobSpec.RunOn.ALWAYS);
+    createScript("After First", "true", first.getId(), JobSpec.RunOn.ALWAYS);
+    JobSpec second = createScript("Second", "true", null,
+      JobSpec.RunOn.ALWAYS);
+    createScript("After Second", "true", second.getId(),
+      JobSpec.RunOn.ALWAYS);
+    JobSpec both = TestAgent.getTestJob("After Both", dao);
+    both.setType(JobType.Script);
+    both.setCode("true");
+    both.setParent(first.getId());
+    both.setDependsOn(Arrays.asList(second.getId()));
+    dao.createJob(both);
+
+    dao.addToQueue(new PlannedJob(dao.getJob(first.getId()),
+      Utils.getCurrentTime()));
+    dao.addToQueue(new PlannedJob(dao.getJob(second.getId()),
+      Utils.getCurrentTime()));
+    TestAgent.waitUntilJobsFinished(consumer, 5);
+    doSleep();
+    TestAgent.runRunnable(consumer);
+    doSleep();
+
+    int bothRuns = 0;
+    for (CallableJob cj : consumer.getFinishedJobs(limit).values()) {
+      if (cj.getPlannedJob().getJobSpec().getId() == both.getId()) {
+        bothRuns++;
+        // it is queued by its parent, outside either pipeline
+        assertNull(cj.getPlannedJob().getPipelineId());
+      }
+    }
+    assertEquals(1, bothRuns);
+    assertEquals(5, consumer.getFinishedJobs(limit).size());
+  }
+
+  @Test(timeout=10000)
+  public void testLostLease() {
+    consumer.setRetryPolicy(RetryPolicy.fixed(60 * 1000));
+    JobSpec aJob = TestAgent.getTestJob("Mary Wollstonecraft", dao);
+    aJob.setType(JobType.Script);
+    aJob.setCode("sleep 1");
+    aJob.setShouldRerun(true);
+    long id = dao.createJob(aJob);
+    JobSpec child = TestAgent.getTestJob("Mary Shelley", dao);
+    child.setParent(id);
+    dao.createJob(child);
+    PlannedJob pj = new PlannedJob(dao.getJob(id), Utils.getCurrentTime());
+    CallableJob cj = consumer.assembleCallableJob(pj, 1);
+    consumer.submitJob(cj);
+    doSleep();
+    assertEquals(0, consumer.renewLeases());
+
+    // another agent took the run over while it was still running
+    dao.execute(String.format("UPDATE %s SET owner = 'gone.example.com', "
+      + "finish = start WHERE id = %d", H2TestJobDaoImpl.jobRunTableName,
+      cj.getJobId()));
+    assertEquals(1, consumer.renewLeases());
+    while (!cj.isDone()) {
+      doSleep();
+    }
+    doSleep();
+    TestAgent.runRunnable(consumer);
+    // its children and retries are left to that agent
+    assertEquals(0, dao.getQueueSize());
+    assertEquals(0, dao.getPendingRetries().size());
+    // and the finish it wrote is kept
+    CallableJob stored = consumer.getFinishedJobs(limit).get(cj.getJobId());
+    assertEquals(stored.getStart().get(), stored.getFinish().get());
   }
 
   @Test
@@ -355,6 +757,31 @@ public class TestAgentConsumer {
     assertEquals(0, consumer.getFailedQueries(limit).size());
   }
 
+  @Test(timeout=10000)
+  public void testQueueingWakesConsumer() throws Exception {
+    consumer.SLEEP_FOR = 60 * 1000;
+    consumer.POLL_FOR = 60 * 1000;
+    Thread waiting = new Thread() {
+      public void run() {
+        TestAgent.runRunnable(consumer);
+      }
+    };
+    waiting.start();
+    doSleep();
+    assertTrue(waiting.isAlive());
+
+    JobSpec aJob = TestAgent.getTestJob("Octavia Butler", dao);
+    long id = dao.createJob(aJob);
+    dao.addToQueue(new PlannedJob(dao.getJob(id), Utils.getCurrentTime()));
+    waiting.join(2000);
+    assertFalse(waiting.isAlive());
+
+    TestAgent.runRunnable(consumer);
+    TestAgent.waitUntilJobsFinished(consumer, 1);
+    assertEquals(0, dao.getQueue(null).size());
+    assertEquals(1, consumer.getSuccesfulQueries(limit).size());
+  }
+
   /**
    * NOTE: sometimes the underlying OS is not happy with creating the script
    * jobs and returns "Resource temporarily unavailable"
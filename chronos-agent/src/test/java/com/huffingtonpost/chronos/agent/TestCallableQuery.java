@@ -6,13 +6,21 @@ import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
 import java.util.Arrays;
 import java.util.List;
 
@@ -23,6 +31,9 @@ import static org.mockito.Mockito.when;
 @PrepareForTest({Utils.class})
 public class TestCallableQuery {
 
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
   JobDao dao;
   List<SupportedDriver> drivers = H2TestUtil.createDriverForTesting();
 
@@ -110,4 +121,37 @@ public class TestCallableQuery {
       results.getData().get(1).get(0), results.getData().get(1).get(1));
     Assert.assertEquals(expected, actual);
   }
+
+  @Test
+  public void testStreamReport() throws Exception {
+    File local = new File(folder.getRoot(), "1/report.tsv");
+    InlineHtmlSink inline = new InlineHtmlSink(2);
+    try (Connection conn = ((H2TestJobDaoImpl) dao).newConnection();
+         Statement stat = conn.createStatement();
+         ResultSet rs = stat.executeQuery(String.format(
+           "SELECT url, time FROM %s ORDER BY time",
+           H2TestJobDaoImpl.testTableName));
+         SpooledAttachmentSink attachment = new SpooledAttachmentSink();
+         TsvFileSink tsv = new TsvFileSink(local)) {
+      CallableQuery.streamReport(rs,
+        Arrays.<ReportSink>asList(inline, attachment, tsv));
+
+      String url = "http://huffingtonpost.com/";
+      Assert.assertEquals(Arrays.asList("URL\tTIME\t",
+        url + "\t1374100685\t", url + "\t1374100900\t",
+        url + "\t1374101000\t"),
+        Files.readAllLines(local.toPath(), StandardCharsets.UTF_8));
+      Assert.assertEquals(Arrays.asList("URL(VARCHAR)\tTIME(INTEGER)",
+        url + "\t1374100685", url + "\t1374100900", url + "\t1374101000"),
+        Files.readAllLines(attachment.getFile().toPath(),
+          StandardCharsets.UTF_8));
+      String html = inline.getHtml().toString();
+      Assert.assertTrue(html.contains("1374100900"));
+      Assert.assertFalse(html.contains("1374101000"));
+      Assert.assertTrue(html.endsWith("</table>\n"));
+
+      attachment.close();
+      Assert.assertFalse(attachment.getFile().exists());
+    }
+  }
 }
@@ -0,0 +1,131 @@
+package com.huffingtonpost.chronos.agent;
+
+import com.huffingtonpost.chronos.model.JobSpec;
+import com.huffingtonpost.chronos.model.PlannedJob;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestPipeline {
+
+  List<JobSpec> jobs;
+  DateTime replaceTime;
+
+  @Before
+  public void setUp() {
+    jobs = new ArrayList<>();
+    replaceTime = new DateTime(2016, 1, 1, 0, 0);
+  }
+
+  private JobSpec job(long id, Long parent, Long... dependsOn) {
+    JobSpec aJob = new JobSpec();
+    aJob.setId(id);
+    aJob.setName("job " + id);
+    aJob.setParent(parent);
+    aJob.setDependsOn(Arrays.asList(dependsOn));
+    jobs.add(aJob);
+    return aJob;
+  }
+
+  private Pipeline pipeline(JobSpec root) {
+    return new Pipeline("p", new PlannedJob(root, replaceTime), jobs, 0);
+  }
+
+  private static Set<Long> idsOf(List<PlannedJob> pjs) {
+    Set<Long> toRet = new HashSet<>();
+    for (PlannedJob pj : pjs) {
+      toRet.add(pj.getJobSpec().getId());
+    }
+    return toRet;
+  }
+
+  @Test
+  public void testFanOutAndFanIn() {
+    JobSpec root = job(1, null);
+    job(2, 1L);
+    job(3, 1L);
+    job(4, 2L, 3L);
+    job(5, null);
+    Pipeline pipeline = pipeline(root);
+    assertEquals(4, pipeline.size());
+
+    List<PlannedJob> ready = pipeline.ended(1, true);
+    assertEquals(new HashSet<>(Arrays.asList(2L, 3L)), idsOf(ready));
+    for (PlannedJob pj : ready) {
+      assertEquals("p", pj.getPipelineId());
+      assertEquals(replaceTime, pj.getReplaceTime());
+    }
+    // job 4 waits on both of its parents
+    assertEquals(0, pipeline.ended(2, true).size());
+    assertFalse(pipeline.isDone());
+    assertEquals(new HashSet<>(Arrays.asList(4L)),
+      idsOf(pipeline.ended(3, true)));
+    // ending a job twice changes nothing
+    assertEquals(0, pipeline.ended(3, true).size());
+    pipeline.ended(4, true);
+    assertTrue(pipeline.isDone());
+    assertTrue(pipeline.isSuccess());
+  }
+
+  @Test
+  public void testRunOnEdges() {
+    JobSpec root = job(1, null);
+    job(2, 1L).setRunOn(JobSpec.RunOn.SUCCESS);
+    job(3, 1L).setRunOn(JobSpec.RunOn.FAILURE);
+    job(4, 1L);
+    job(5, 2L);
+    Pipeline pipeline = pipeline(root);
+
+    // the children of a skipped job are skipped too
+    assertEquals(new HashSet<>(Arrays.asList(3L, 4L)),
+      idsOf(pipeline.ended(1, false)));
+    assertEquals(2, pipeline.getSkipped());
+    pipeline.ended(3, true);
+    pipeline.ended(4, true);
+    assertTrue(pipeline.isDone());
+    assertFalse(pipeline.isSuccess());
+  }
+
+  @Test
+  public void testCyclesAreLeftOut() {
+    JobSpec root = job(1, null);
+    job(2, 1L, 3L);
+    job(3, 2L);
+    job(4, 1L);
+    Pipeline pipeline = pipeline(root);
+    assertEquals(2, pipeline.size());
+    assertEquals(new HashSet<>(Arrays.asList(4L)),
+      idsOf(pipeline.ended(1, true)));
+    pipeline.ended(4, true);
+    assertTrue(pipeline.isDone());
+  }
+
+  @Test
+  public void testPartlyReachedJobsAreLeftOut() {
+    JobSpec root = job(1, null);
+    job(2, 1L);
+    job(3, null);
+    job(4, 2L, 3L);
+    job(5, 4L);
+    Pipeline pipeline = pipeline(root);
+    // job 4 also waits on job 3, which is a root of its own
+    assertEquals(2, pipeline.size());
+    assertFalse(pipeline.contains(4));
+    assertFalse(pipeline.contains(5));
+    assertEquals(new HashSet<>(Arrays.asList(2L)),
+      idsOf(pipeline.ended(1, true)));
+    assertEquals(0, pipeline.ended(2, true).size());
+    assertTrue(pipeline.isDone());
+  }
+
+}
@@ -0,0 +1,123 @@
+package com.huffingtonpost.chronos.agent;
+
+import com.huffingtonpost.chronos.model.JobSpec;
+import com.huffingtonpost.chronos.model.PersistentResultSet;
+import com.huffingtonpost.chronos.model.PlannedJob;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestRunRetention {
+
+  int limit = AgentConsumer.LIMIT_JOB_RUNS;
+  H2TestJobDaoImpl dao;
+  RunRetention retention;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Before
+  public void setUp() throws Exception {
+    dao = new H2TestJobDaoImpl();
+    dao.init();
+    retention = new RunRetention(dao, new NoReporting());
+  }
+
+  @After
+  public void cleanup() throws Exception {
+    retention.close();
+    dao.close();
+  }
+
+  private CallableJob createRun(JobSpec aJob, boolean finished) {
+    PlannedJob pj = new PlannedJob(aJob, Utils.getCurrentTime());
+    CallableJob cj = new CallableQuery(pj, dao, null,
+      "example.com", null, null, null, null, 1);
+    dao.createJobRun(cj);
+    cj.getStart().set(System.currentTimeMillis());
+    if (finished) {
+      cj.getFinish().set(System.currentTimeMillis());
+    }
+    dao.updateJobRun(cj);
+    return cj;
+  }
+
+  @Test
+  public void testKeepPerJob() {
+    JobSpec a = TestAgent.getTestJob("Clarice Lispector", dao);
+    dao.createJob(a);
+    JobSpec b = TestAgent.getTestJob("Machado de Assis", dao);
+    dao.createJob(b);
+    CallableJob running = createRun(a, false);
+    List<Long> finished = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      finished.add(createRun(a, true).getJobId());
+    }
+    CallableJob other = createRun(b, true);
+
+    retention.setKeepPerJob(2);
+    assertEquals(3, retention.purge());
+    assertEquals(3, retention.getLastReclaimed());
+    assertEquals(3, retention.getTotalReclaimed());
+
+    Set<Long> expected = new HashSet<>(Arrays.asList(running.getJobId(),
+      finished.get(3), finished.get(4), other.getJobId()));
+    assertEquals(expected, dao.getJobRuns(null, limit).keySet());
+
+    assertEquals(0, retention.purge());
+    assertEquals(3, retention.getTotalReclaimed());
+  }
+
+  @Test
+  public void testMaxAgeWithArchive() throws Exception {
+    JobSpec aJob = TestAgent.getTestJob("Jorge Amado", dao);
+    dao.createJob(aJob);
+    List<Long> old = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      old.add(createRun(aJob, true).getJobId());
+    }
+    CallableJob recent = createRun(aJob, true);
+    for (Long id : old) {
+      dao.execute(String.format(
+        "UPDATE %s SET dt = '2000-01-01 00:00:00' WHERE id = %d",
+        H2TestJobDaoImpl.jobRunTableName, id));
+    }
+
+    File archive = folder.newFolder("archive");
+    retention.setMaxAgeDays(30);
+    retention.setBatchSize(2);
+    retention.setArchiveDir(archive);
+    assertEquals(3, retention.purge());
+    assertEquals(new HashSet<>(Arrays.asList(recent.getJobId())),
+      dao.getJobRuns(null, limit).keySet());
+
+    File[] files = archive.listFiles();
+    assertEquals(2, files.length);
+    Set<Long> archived = new HashSet<>();
+    for (File file : files) {
+      assertTrue(file.getName().startsWith(RunRetention.ARCHIVE_PREFIX));
+      PersistentResultSet rs = TypedBinarySink.read(file);
+      assertEquals(RunRetention.ARCHIVE_COLUMNS, rs.getColumnNames());
+      for (List<Object> row : rs.getData()) {
+        archived.add((Long) row.get(0));
+        assertEquals(aJob.getId(), row.get(1));
+        assertEquals(aJob.getName(), row.get(2));
+        assertEquals(aJob.getCode(), row.get(9));
+        assertTrue(((String) row.get(10)).contains(aJob.getName()));
+      }
+    }
+    assertEquals(new HashSet<>(old), archived);
+  }
+}
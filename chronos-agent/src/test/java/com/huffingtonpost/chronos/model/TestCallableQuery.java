@@ -4,9 +4,13 @@ import static com.huffingtonpost.chronos.agent.TestAgent.getTestJob;
 import static org.junit.Assert.*;
 
 import java.io.*;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 import junit.framework.Assert;
 
@@ -19,6 +23,8 @@ import org.junit.Rule;
 import org.junit.Test;
 
 import com.huffingtonpost.chronos.agent.CallableQuery;
+import com.huffingtonpost.chronos.agent.TsvFileSink;
+import com.huffingtonpost.chronos.agent.TypedBinarySink;
 import org.junit.rules.TemporaryFolder;
 
 public class TestCallableQuery {
@@ -94,4 +100,76 @@ public class TestCallableQuery {
     br.close();
     resultReader.close();
   }
+
+  @Test
+  public void testWriteGzippedReportToLocal() throws IOException {
+    String rootPath = folder.getRoot().getPath();
+    PersistentResultSet result = new PersistentResultSet();
+    result.setColumnNames(Arrays.asList("entry_id", "title"));
+    result.setColumnTypes(Arrays.asList("String", "String"));
+    result.setData(Arrays.asList(Arrays.asList((Object)"1", "Video"),
+                                 Arrays.asList((Object)"2", null)));
+    JobSpec jobSpec = getTestJob("ajob", new JobDaoImpl());
+    jobSpec.setReportFormat(ReportFormat.TSV_GZIP);
+    PlannedJob plannedJob = new PlannedJob(jobSpec, new DateTime());
+
+    CallableQuery.writeReportToLocal(result, rootPath, plannedJob);
+
+    File report = CallableQuery.getJobReportFile(rootPath, plannedJob);
+    assertTrue(report.getName().endsWith(".tsv.gz"));
+    assertArrayEquals(new String[] { report.getName() },
+      report.getParentFile().list());
+    try (BufferedReader br = new BufferedReader(new InputStreamReader(
+      new GZIPInputStream(new FileInputStream(report)),
+      StandardCharsets.UTF_8))) {
+      assertEquals("entry_id\ttitle\t", br.readLine());
+      assertEquals("1\tVideo\t", br.readLine());
+      assertEquals("2\tNULL\t", br.readLine());
+      assertNull(br.readLine());
+    }
+  }
+
+  @Test
+  public void testWriteBinaryReportToLocal() throws IOException {
+    String rootPath = folder.getRoot().getPath();
+    PersistentResultSet result = new PersistentResultSet();
+    result.setColumnNames(Arrays.asList("id", "title", "score", "price",
+      "created", "ok"));
+    result.setColumnTypes(Arrays.asList("INTEGER", "VARCHAR", "DOUBLE",
+      "DECIMAL", "TIMESTAMP", "BOOLEAN"));
+    Timestamp created = new Timestamp(1467331200000L);
+    result.setData(Arrays.asList(
+      Arrays.asList((Object)1, "Vid\u00e9o", 0.5, new BigDecimal("9.99"),
+        created, true),
+      Arrays.asList((Object)2L, null, null, null, null, false)));
+    JobSpec jobSpec = getTestJob("ajob", new JobDaoImpl());
+    jobSpec.setReportFormat(ReportFormat.BINARY);
+    PlannedJob plannedJob = new PlannedJob(jobSpec, new DateTime());
+
+    CallableQuery.writeReportToLocal(result, rootPath, plannedJob);
+
+    File report = CallableQuery.getJobReportFile(rootPath, plannedJob);
+    assertTrue(report.getName().endsWith(".bin.gz"));
+    PersistentResultSet actual = TypedBinarySink.read(report);
+    assertEquals(result.getColumnNames(), actual.getColumnNames());
+    assertEquals(result.getColumnTypes(), actual.getColumnTypes());
+    assertEquals(Arrays.asList(
+      Arrays.asList((Object)1L, "Vid\u00e9o", 0.5, new BigDecimal("9.99"),
+        created, true),
+      Arrays.asList((Object)2L, null, null, null, null, false)),
+      actual.getData());
+  }
+
+  @Test
+  public void testUnfinishedReportIsDiscarded() throws IOException {
+    File dir = new File(folder.getRoot(), "1");
+    File report = new File(dir, "2016010100.tsv");
+    try (TsvFileSink sink = new TsvFileSink(report)) {
+      sink.start(Arrays.asList("a"), Arrays.asList("String"));
+      sink.row(new Object[] { "b" });
+      assertFalse(report.exists());
+    }
+    assertFalse(report.exists());
+    assertEquals(0, dir.list().length);
+  }
 }
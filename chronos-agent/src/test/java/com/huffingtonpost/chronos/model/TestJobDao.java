@@ -1,10 +1,17 @@
 package com.huffingtonpost.chronos.model;
 
 import com.huffingtonpost.chronos.agent.*;
+import com.huffingtonpost.chronos.persist.SchemaMigrations;
+import com.huffingtonpost.chronos.util.H2TestUtil;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
@@ -12,6 +19,12 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class TestJobDao {
 
@@ -46,6 +59,11 @@ public class TestJobDao {
     try {
       dao.createJob(expected);
       expected.setDescription("The Woodcutters");
+      expected.setReportFormat(ReportFormat.BINARY);
+      expected.setPriority(3);
+      expected.setDeadlineMinutes(30);
+      expected.setRunOn(JobSpec.RunOn.FAILURE);
+      expected.setDependsOn(Arrays.asList(7L, 8L));
       Thread.sleep(10);
       dao.updateJob(expected);
     } catch (Exception ex) { ex.printStackTrace(); }
@@ -159,6 +177,297 @@ public class TestJobDao {
     assertEquals(sorted, actual);
   }
 
+  private List<PlannedJob> queueJobs(int count) {
+    List<PlannedJob> toRet = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      JobSpec aJob = TestAgent.getTestJob("Italo Calvino " + i, dao);
+      long id = dao.createJob(aJob);
+      PlannedJob pj = new PlannedJob(dao.getJob(id), Utils.getCurrentTime());
+      dao.addToQueue(pj);
+      toRet.add(pj);
+    }
+    return toRet;
+  }
+
+  @Test
+  public void testBatchDequeue() {
+    List<PlannedJob> expected = queueJobs(5);
+
+    List<PlannedJob> actual = new ArrayList<>(dao.removeFromQueue(3));
+    assertEquals(3, actual.size());
+    assertEquals(2, dao.getQueueSize());
+    actual.addAll(dao.removeFromQueue(3));
+    assertEquals(0, dao.getQueueSize());
+    assertEquals(0, dao.removeFromQueue(3).size());
+
+    Collections.sort(expected);
+    Collections.sort(actual);
+    assertEquals(expected, actual);
+  }
+
+  @Test
+  public void testDequeueSelected() {
+    List<PlannedJob> expected = queueJobs(3);
+    List<QueuedJob> queued =
+      dao.getQueuedJobs(10, Collections.<Long>emptySet());
+    assertEquals(3, queued.size());
+    for (QueuedJob qj : queued) {
+      assertTrue(qj.getInsertTime() != null);
+    }
+    assertEquals(2,
+      dao.getQueuedJobs(2, Collections.<Long>emptySet()).size());
+
+    List<PlannedJob> wanted = Arrays.asList(expected.get(0), expected.get(2));
+    assertEquals(new HashSet<>(wanted),
+      new HashSet<>(dao.removeFromQueue(wanted)));
+    // already removed
+    assertEquals(0, dao.removeFromQueue(wanted).size());
+    assertEquals(1, dao.getQueueSize());
+    assertEquals(expected.get(1), dao.getQueuedJobs(10,
+      Collections.<Long>emptySet()).get(0).getPlannedJob());
+  }
+
+  private PlannedJob queueJob(String name, int priority,
+                              Integer deadlineMinutes, DateTime replaceTime) {
+    JobSpec aJob = TestAgent.getTestJob(name, dao);
+    aJob.setPriority(priority);
+    aJob.setDeadlineMinutes(deadlineMinutes);
+    long id = dao.createJob(aJob);
+    PlannedJob pj = new PlannedJob(dao.getJob(id), replaceTime);
+    dao.addToQueue(pj);
+    return pj;
+  }
+
+  @Test
+  public void testBackfill() {
+    JobSpec aJob = TestAgent.getTestJob("Backfilled", dao);
+    aJob.setCronString("0 * * * *");
+    aJob.setPriority(2);
+    long id = dao.createJob(aJob);
+    JobSpec saved = dao.getJob(id);
+    DateTime start = new DateTime(2016, 1, 1, 0, 0, DateTimeZone.UTC);
+    PlannedJob live = new PlannedJob(saved, start.plusHours(1));
+    dao.addToQueue(live);
+
+    // the hour already queued is left out, end is not included
+    Backfill backfill = dao.queueBackfill(
+      new Backfill(id, start.plusMinutes(-30), start.plusHours(3)));
+    assertTrue(backfill.getId() != null);
+    assertEquals(Integer.valueOf(1), backfill.getPriority());
+    assertEquals(2, backfill.getQueued());
+    assertEquals(1, dao.getBackfills(true).size());
+    assertEquals(2, dao.getBackfill(backfill.getId()).getQueued());
+
+    // the live run comes first, backfill runs are queued a priority lower
+    List<PlannedJob> queued = dao.getQueue(id);
+    assertEquals(live, queued.get(0));
+    assertEquals(null, queued.get(0).getBackfillId());
+    assertEquals(new HashSet<>(Arrays.asList(new PlannedJob(saved, start),
+      new PlannedJob(saved, start.plusHours(2)))),
+      new HashSet<>(queued.subList(1, 3)));
+    assertEquals(backfill.getId(), queued.get(1).getBackfillId());
+
+    // queueing the backfill again queues nothing
+    assertEquals(0,
+      dao.queueBackfill(backfill, dao.getQueue(id)).size());
+    assertEquals(3, dao.getQueueSize());
+
+    // backfill runs are not aged, and can be left out of the window
+    assertEquals(1, dao.ageQueue(new DateTime().plusMinutes(1), 5));
+    assertEquals(live, dao.getQueue(id).get(0));
+    List<QueuedJob> window =
+      dao.getQueuedJobs(10, Arrays.asList(backfill.getId()));
+    assertEquals(1, window.size());
+    assertEquals(live, window.get(0).getPlannedJob());
+
+    List<QueuedJob> removed = dao.removeQueuedJobs(3);
+    assertEquals(backfill.getId(),
+      removed.get(2).getPlannedJob().getBackfillId());
+    assertEquals(0, dao.getBackfills(true).size());
+    assertEquals(1, dao.getBackfills(false).size());
+  }
+
+  @Test
+  public void testBackfillReplaceTimes() {
+    DateTime start = new DateTime(2016, 1, 1, 0, 0, DateTimeZone.UTC);
+    Backfill backfill = new Backfill(1, start.plusSeconds(1), start.plusDays(1));
+    assertEquals(Arrays.asList(start.plusHours(6), start.plusHours(18)),
+      backfill.getReplaceTimes("0 6,18 * * *"));
+    backfill.setStepMinutes(8 * 60);
+    assertEquals(Arrays.asList(start.plusMinutes(1), start.plusMinutes(481),
+      start.plusMinutes(961)), backfill.getReplaceTimes(null));
+
+    for (Backfill invalid : new Backfill[] {
+        new Backfill(1, start, start),
+        new Backfill(1, start, start.plusDays(1)),
+        new Backfill(1, start, start.plusYears(2)) }) {
+      try {
+        invalid.getReplaceTimes(invalid.getEnd().isAfter(start.plusDays(1)) ?
+          "* * * * *" : null);
+        fail("Expected " + invalid + " to be rejected");
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+  }
+
+  @Test
+  public void testDriverLeadership() {
+    DateTime now = new DateTime();
+    Long first = dao.acquireLeadership("a", now, now.plusSeconds(15));
+    assertTrue(first != null);
+    assertEquals(null, dao.acquireLeadership("b", now, now.plusSeconds(15)));
+    assertTrue(dao.renewLeadership("a", first, now.plusSeconds(30)));
+
+    // a stopped renewing, b takes over once the lease ran out
+    assertEquals(null,
+      dao.acquireLeadership("b", now.plusSeconds(29), now.plusSeconds(45)));
+    Long second =
+      dao.acquireLeadership("b", now.plusSeconds(31), now.plusSeconds(45));
+    assertTrue(second > first);
+    assertFalse(dao.renewLeadership("a", first, now.plusSeconds(60)));
+
+    // the writes of the deposed leader are fenced off
+    assertFalse(dao.setLastEvaluated(now, first));
+    assertTrue(dao.setLastEvaluated(now, second));
+    JobSpec aJob = TestAgent.getTestJob("Italo Calvino", dao);
+    PlannedJob pj = new PlannedJob(dao.getJob(dao.createJob(aJob)),
+      Utils.getCurrentTime());
+    assertFalse(dao.addToQueue(pj, first));
+    assertEquals(0, dao.getQueueSize());
+    assertTrue(dao.addToQueue(pj, second));
+    // enqueueing again is a no-op
+    assertFalse(dao.addToQueue(pj, second));
+    assertFalse(dao.addToQueue(pj));
+    assertEquals(1, dao.getQueueSize());
+
+    dao.releaseLeadership("b", second);
+    Long third = dao.acquireLeadership("a", now, now.plusSeconds(15));
+    assertTrue(third > second);
+  }
+
+  @Test
+  public void testPriorityQueueOrder() {
+    DateTime replaceTime = new DateTime(DateTimeZone.UTC).withMillisOfSecond(0);
+    PlannedJob low = queueJob("Low", 0, null, replaceTime);
+    PlannedJob high = queueJob("High", 5, null, replaceTime);
+    PlannedJob late = queueJob("High, due later", 5, 10, replaceTime);
+    PlannedJob soon = queueJob("High, due soon", 5, 5, replaceTime);
+    assertEquals(replaceTime.plusMinutes(5), soon.getDeadline());
+    assertEquals(null, high.getDeadline());
+
+    List<PlannedJob> expected = Arrays.asList(soon, late, high, low);
+    assertEquals(expected, dao.getQueue(null));
+    List<PlannedJob> queued = new ArrayList<>();
+    for (QueuedJob qj :
+           dao.getQueuedJobs(10, Collections.<Long>emptySet())) {
+      queued.add(qj.getPlannedJob());
+    }
+    assertEquals(expected, queued);
+    assertEquals(expected.subList(0, 2), dao.removeFromQueue(2));
+    List<QueuedJob> rest = dao.removeQueuedJobs(2);
+    assertEquals(high, rest.get(0).getPlannedJob());
+    assertEquals(low, rest.get(1).getPlannedJob());
+    assertTrue(rest.get(0).getInsertTime() != null);
+  }
+
+  @Test
+  public void testAgeQueue() {
+    DateTime replaceTime = new DateTime(DateTimeZone.UTC).withMillisOfSecond(0);
+    PlannedJob low = queueJob("Low", 0, null, replaceTime);
+    PlannedJob high = queueJob("High", 1, null, replaceTime);
+    assertEquals(Arrays.asList(high, low), dao.getQueue(null));
+
+    // only the low priority job has waited for an hour
+    ((H2TestJobDaoImpl) dao).execute(String.format(
+      "UPDATE %s SET insertTime = DATEADD('HOUR', -1, insertTime) "
+      + "WHERE job_id = %d", H2TestJobDaoImpl.queueTableName,
+      low.getJobSpec().getId()));
+    DateTime halfHourAgo = new DateTime().minusMinutes(30);
+    assertEquals(1, dao.ageQueue(halfHourAgo, 2));
+    // a job is raised once per period, not on every call
+    assertEquals(0, dao.ageQueue(halfHourAgo, 2));
+    // same priority now, the low one was queued first
+    assertEquals(Arrays.asList(low, high), dao.getQueue(null));
+
+    assertEquals(2, dao.ageQueue(new DateTime().plusMinutes(1), 2));
+    assertEquals(Arrays.asList(low, high), dao.getQueue(null));
+    // the low one is 2 above its own priority and stops there
+    assertEquals(1, dao.ageQueue(new DateTime().plusMinutes(2), 2));
+    assertEquals(0, dao.ageQueue(new DateTime().plusMinutes(3), 2));
+    assertEquals(Arrays.asList(high, low), dao.removeFromQueue(2));
+  }
+
+  @Test(timeout=10000)
+  public void testConcurrentBatchDequeue() throws Exception {
+    final int count = 100;
+    List<PlannedJob> expected = queueJobs(count);
+    final List<PlannedJob> actual = new CopyOnWriteArrayList<>();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    for (int t = 0; t < 4; t++) {
+      executor.submit(new Runnable() {
+        public void run() {
+          List<PlannedJob> batch;
+          while (!(batch = dao.removeFromQueue(7)).isEmpty()) {
+            actual.addAll(batch);
+          }
+        }
+      });
+    }
+    executor.shutdown();
+    executor.awaitTermination(9, TimeUnit.SECONDS);
+
+    List<PlannedJob> sorted = new ArrayList<>(actual);
+    Collections.sort(expected);
+    Collections.sort(sorted);
+    assertEquals(expected, sorted);
+  }
+
+  @Test
+  public void testConnectionPoolDefaults() throws Exception {
+    SupportedDriver driver = H2TestUtil.createDriverForTesting().get(0);
+    ConnectionPools pools = new ConnectionPools();
+    try {
+      // no limit on open connections, and a few kept once returned
+      List<Connection> open = new ArrayList<>();
+      for (int i = 0; i < 10; i++) {
+        open.add(pools.getConnection(driver, null, null));
+      }
+      assertEquals(Long.valueOf(10),
+        pools.getStats().get(driver.getName()).get("active"));
+      String catalog = open.get(0).getCatalog();
+      for (Connection conn : open) {
+        conn.close();
+      }
+      assertEquals(Long.valueOf(8),
+        pools.getStats().get(driver.getName()).get("idle"));
+
+      // a reused connection is in the catalog it started in
+      Connection reused = pools.getConnection(driver, null, null);
+      assertEquals(Long.valueOf(7),
+        pools.getStats().get(driver.getName()).get("idle"));
+      assertEquals(catalog, reused.getCatalog());
+      reused.close();
+    } finally {
+      pools.close();
+    }
+  }
+
+  @Test
+  public void testJobResultsUsePool() throws Exception {
+    dao.setDrivers(H2TestUtil.createDriverForTesting());
+    JobSpec aJob = TestAgent.getTestJob("Jorge Luis Borges", dao);
+    aJob.setResultTable(H2TestJobDaoImpl.testTableName);
+    for (int i = 0; i < 3; i++) {
+      assertEquals(2, dao.getJobResults(aJob, 2).size());
+    }
+    Map<String, Long> stats =
+      dao.getConnectionPools().getStats().get(H2TestUtil.H2_NAME);
+    assertEquals(Long.valueOf(1), stats.get("pools"));
+    assertEquals(Long.valueOf(3), stats.get("borrowed"));
+    assertEquals(Long.valueOf(0), stats.get("active"));
+    assertEquals(Long.valueOf(1), stats.get("idle"));
+  }
+
   @Test
   public void testGetJobVersions() {
     JobSpec expected = TestAgent.getTestJob("Franz Kafka", dao);
@@ -175,6 +484,22 @@ public class TestJobDao {
     assertEquals(2, versions.size());
   }
 
+  @Test
+  public void testJobVersionsStayUnique() {
+    JobSpec aJob = TestAgent.getTestJob("Italo Calvino", dao);
+    dao.createJob(aJob);
+    JobSpec stale = dao.getJob(aJob.getId());
+    // updates made in quick succession from the same read
+    for (int i = 0; i < 5; i++) {
+      dao.updateJob(stale);
+    }
+    Set<DateTime> versions = new HashSet<>();
+    for (JobSpec version : dao.getJobVersions(aJob.getId())) {
+      versions.add(version.getLastModified());
+    }
+    assertEquals(6, versions.size());
+  }
+
   @Test
   public void testQueueLarge() {
     int count = 1000;
@@ -217,6 +542,165 @@ public class TestJobDao {
     assertEquals(expected, got);
   }
 
+  @Test
+  public void testJobRunColumns() throws Exception {
+    JobSpec aJob = TestAgent.getTestJob("Italo Calvino", dao);
+    aJob.setResultQuery("SELECT '${YYYY}'");
+    dao.createJob(aJob);
+    aJob = dao.getJob(aJob.getId());
+    PlannedJob pj = new PlannedJob(aJob, Utils.getCurrentTime());
+    CallableQuery cj = new CallableQuery(pj, dao, null,
+      "example.com", null, null, null, null, 2);
+    dao.createJobRun(cj);
+    cj.getStart().set(1000L);
+    cj.setExceptionMessage("Cosmicomics");
+    dao.updateJobRun(cj);
+
+    H2TestJobDaoImpl impl = (H2TestJobDaoImpl) dao;
+    try (Connection conn = impl.newConnection();
+         Statement stat = conn.createStatement();
+         ResultSet rs = stat.executeQuery(String.format(
+           "SELECT callable_job, `code` FROM %s",
+           H2TestJobDaoImpl.jobRunTableName))) {
+      assertTrue(rs.next());
+      assertEquals(null, rs.getString("callable_job"));
+      assertEquals(null, rs.getString("code"));
+    }
+    CallableQuery actual =
+      (CallableQuery) dao.getJobRuns(aJob.getId(), limit).get(cj.getJobId());
+    assertEquals(cj, actual);
+    assertEquals(cj.getReplacedQuery(), actual.getReplacedQuery());
+    assertEquals(cj.getReplacedReportQuery(), actual.getReplacedReportQuery());
+    assertEquals("Cosmicomics", actual.getExceptionMessage().get());
+    assertEquals(cj, dao.getRunningJobs().get(cj.getJobId()));
+
+    // rows written with the JSON blob and without a version still load
+    impl.setStoreRunJson(true);
+    dao.updateJobRun(cj);
+    impl.execute(String.format("UPDATE %s SET job_lastModified = NULL",
+      H2TestJobDaoImpl.jobRunTableName));
+    assertEquals(cj, dao.getJobRuns(aJob.getId(), limit).get(cj.getJobId()));
+    impl.setStoreRunJson(false);
+
+    // runs of deleted jobs keep their name
+    dao.updateJobRun(cj);
+    dao.deleteJob(aJob.getId());
+    CallableJob deleted = dao.getJobRuns(null, limit).get(cj.getJobId());
+    assertEquals("Italo Calvino", deleted.getPlannedJob().getJobSpec().getName());
+    assertEquals(pj.getReplaceTime(), deleted.getPlannedJob().getReplaceTime());
+    assertEquals(2, deleted.getAttemptNumber());
+  }
+
+  private CallableJob finishRun(PlannedJob pj, int attemptNumber,
+                                int status) {
+    CallableJob cj = new CallableQuery(pj, dao, null,
+      "example.com", null, null, null, null, attemptNumber);
+    dao.createJobRun(cj);
+    cj.getStart().set(System.currentTimeMillis());
+    cj.getFinish().set(System.currentTimeMillis());
+    cj.setStatus(status);
+    dao.updateJobRun(cj);
+    return cj;
+  }
+
+  @Test
+  public void testGetFailedJobRuns() {
+    JobSpec aJob = TestAgent.getTestJob("Clarice Lispector", dao);
+    dao.createJob(aJob);
+    aJob = dao.getJob(aJob.getId());
+    DateTime before = new DateTime().minusMinutes(1);
+    PlannedJob first = new PlannedJob(aJob, Utils.getCurrentTime());
+    PlannedJob second =
+      new PlannedJob(aJob, Utils.getCurrentTime().plusHours(1));
+    PlannedJob third =
+      new PlannedJob(aJob, Utils.getCurrentTime().plusHours(2));
+
+    // only the latest run of every planned job counts
+    finishRun(first, 1, 1);
+    CallableJob retried = finishRun(first, 2, 1);
+    finishRun(second, 1, 1);
+    finishRun(second, 2, 0);
+    finishRun(third, 1, 1);
+    CallableJob running = new CallableQuery(third, dao, null,
+      "example.com", null, null, null, null, 2);
+    dao.createJobRun(running);
+    running.getStart().set(System.currentTimeMillis());
+    dao.updateJobRun(running);
+
+    Map<Long, CallableJob> actual = dao.getFailedJobRuns(before, limit);
+    assertEquals(Collections.singleton(retried.getJobId()), actual.keySet());
+    assertEquals(2, actual.get(retried.getJobId()).getAttemptNumber());
+    assertEquals(first, actual.get(retried.getJobId()).getPlannedJob());
+    assertEquals(0,
+      dao.getFailedJobRuns(new DateTime().plusMinutes(1), limit).size());
+  }
+
+  @Test
+  public void testRunLeases() {
+    JobSpec aJob = TestAgent.getTestJob("Octavia E. Butler", dao);
+    dao.createJob(aJob);
+    aJob = dao.getJob(aJob.getId());
+    dao.setOwnerId("a.example.com");
+    CallableJob running = new CallableQuery(
+      new PlannedJob(aJob, Utils.getCurrentTime()), dao, null,
+      "example.com", null, null, null, null, 1);
+    dao.createJobRun(running);
+    running.getStart().set(System.currentTimeMillis());
+    dao.updateJobRun(running);
+    DateTime later = new DateTime().plusMinutes(1);
+    DateTime earlier = new DateTime().minusMinutes(1);
+
+    // an agent never reaps its own runs
+    assertEquals(0, dao.reapExpiredLeases(later, limit).size());
+    assertEquals(1, dao.renewLeases(new DateTime()));
+
+    dao.setOwnerId("b.example.com");
+    assertEquals(0, dao.renewLeases(new DateTime()));
+    assertEquals(0, dao.reapExpiredLeases(earlier, limit).size());
+    Map<Long, CallableJob> reaped = dao.reapExpiredLeases(later, limit);
+    assertEquals(Collections.singleton(running.getJobId()), reaped.keySet());
+    assertTrue(reaped.get(running.getJobId()).getFinish().get() > 0);
+    assertEquals(0, dao.getRunningJobs().size());
+    assertEquals(0, dao.reapExpiredLeases(later, limit).size());
+
+    // the failed run is found whoever owns it, also by a restarted agent
+    assertEquals(reaped.keySet(),
+      dao.getFailedJobRuns(earlier, limit).keySet());
+    dao.setOwnerId("a.example.com:restarted");
+    assertEquals(reaped.keySet(),
+      dao.getFailedJobRuns(earlier, limit).keySet());
+    dao.setOwnerId("a.example.com");
+    // but its first agent can no longer write it
+    running.getFinish().set(System.currentTimeMillis());
+    assertFalse(dao.updateJobRun(running));
+  }
+
+  @Test
+  public void testPipelineJobs() {
+    JobSpec aJob = TestAgent.getTestJob("Ursula K. Le Guin", dao);
+    dao.createJob(aJob);
+    PlannedJob pj = new PlannedJob(dao.getJob(aJob.getId()),
+      Utils.getCurrentTime());
+    assertEquals(1,
+      dao.queuePipelineJobs("p", Arrays.asList(pj), 100).size());
+    PlannedJob queued = dao.getQueuedJobs(10, Collections.<Long>emptySet())
+      .get(0).getPlannedJob();
+    assertEquals("p", queued.getPipelineId());
+    // a job is queued once per pipeline, even after it left the queue
+    dao.removeFromQueue(Arrays.asList(queued));
+    assertEquals(0,
+      dao.queuePipelineJobs("p", Arrays.asList(pj), 100).size());
+    assertEquals(0, dao.getQueueSize());
+
+    // its retries stay in the pipeline
+    dao.addPendingRetry(new PendingRetry(queued, 2, new DateTime()));
+    assertEquals("p",
+      dao.getPendingRetries().get(0).getPlannedJob().getPipelineId());
+
+    assertTrue(dao.endPipeline("p"));
+    assertFalse(dao.endPipeline("p"));
+  }
+
   @Test
   public void testGetTree() {
     JobSpec parent = TestAgent.getTestJob("A", dao);
@@ -248,5 +732,144 @@ public class TestJobDao {
     expected.getChildren().add(eChildChild);
     actual = dao.getTree(childJob.getId(), null);
     assertEquals(expected, actual);
+    assertNull(dao.getTree(-1, null));
+
+    // the graph is read once and shared until a job changes
+    JobGraph graph = dao.getJobGraph();
+    assertSame(graph, dao.getJobGraph());
+    assertEquals(4, graph.size());
+    assertEquals(Arrays.asList(childJob, childJob2),
+      graph.getChildren(parent.getId()));
+    JobSpec leaf = TestAgent.getTestJob("E", dao);
+    leaf.setParent(childChildJob.getId());
+    dao.createJob(leaf);
+    assertNotSame(graph, dao.getJobGraph());
+    eChildChild.getChildren().add(
+      new JobNode(leaf.getName(), childChildJob.getName()));
+    assertEquals(expected, dao.getTree(childJob.getId(), null));
+  }
+
+  @Test
+  public void testJobCache() throws Exception {
+    final Map<String, Integer> marks = new HashMap<>();
+    dao.setReporting(new NoReporting() {
+      @Override
+      public void mark(String name) {
+        Integer count = marks.get(name);
+        marks.put(name, count == null ? 1 : count + 1);
+      }
+    });
+    dao.getJobCache().setTtlMillis(1000);
+    JobSpec parent = TestAgent.getTestJob("Italo Calvino", dao);
+    dao.createJob(parent);
+
+    JobSpec first = dao.getJob(parent.getId());
+    first.setName("Mutated");
+    JobSpec second = dao.getJob(parent.getId());
+    assertEquals(parent, second);
+    assertEquals(Integer.valueOf(1), marks.get(JobSpecCache.METRIC_PREFIX + "miss"));
+    assertEquals(Integer.valueOf(1), marks.get(JobSpecCache.METRIC_PREFIX + "hit"));
+
+    parent.setDescription("Invisible Cities");
+    Thread.sleep(10);
+    dao.updateJob(parent);
+    assertEquals("Invisible Cities", dao.getJob(parent.getId()).getDescription());
+    assertEquals(Arrays.asList(parent), dao.getJobs());
+
+    assertEquals(0, dao.getChildren(parent.getId()).size());
+    JobSpec child = TestAgent.getTestJob("Marcovaldo", dao);
+    child.setParent(parent.getId());
+    dao.createJob(child);
+    assertEquals(Arrays.asList(child), dao.getChildren(parent.getId()));
+
+    // changes made by another process show up once the entry expires
+    JobDaoImpl other = new JobDaoImpl();
+    other.setDataSource(H2TestUtil.getDataSource());
+    parent.setDescription("If on a winter's night a traveler");
+    Thread.sleep(10);
+    other.updateJob(parent);
+    assertEquals("Invisible Cities", dao.getJob(parent.getId()).getDescription());
+    Thread.sleep(1100);
+    assertEquals(parent.getDescription(), dao.getJob(parent.getId()).getDescription());
+    assertEquals(Integer.valueOf(1), marks.get(JobSpecCache.METRIC_PREFIX + "eviction"));
+  }
+
+  private int countCurrentVersions() throws Exception {
+    try (Connection conn = ((H2TestJobDaoImpl) dao).newConnection();
+         Statement stat = conn.createStatement();
+         ResultSet rs = stat.executeQuery(String.format(
+           "SELECT COUNT(*) FROM %s", H2TestJobDaoImpl.jobCurrentTableName))) {
+      rs.next();
+      return rs.getInt(1);
+    }
+  }
+
+  @Test
+  public void testCurrentVersionPointer() throws Exception {
+    dao.getJobCache().setTtlMillis(0);
+    JobSpec parent = TestAgent.getTestJob("Ursula K. Le Guin", dao);
+    dao.createJob(parent);
+    JobSpec aJob = TestAgent.getTestJob("The Dispossessed", dao);
+    dao.createJob(aJob);
+    for (String description : new String[] { "Anarres", "Urras" }) {
+      Thread.sleep(10);
+      aJob.setDescription(description);
+      aJob.setParent(parent.getId());
+      dao.updateJob(aJob);
+    }
+    assertEquals(3, dao.getJobVersions(aJob.getId()).size());
+    assertEquals("Urras", dao.getJob(aJob.getId()).getDescription());
+    assertEquals(Arrays.asList(aJob), dao.getChildren(parent.getId()));
+    assertEquals(2, countCurrentVersions());
+
+    // pointers missing after an upgrade are backfilled by the migration
+    ((H2TestJobDaoImpl) dao).execute(String.format("DELETE FROM %s",
+      H2TestJobDaoImpl.jobCurrentTableName));
+    ((H2TestJobDaoImpl) dao).execute(String.format(
+      "DELETE FROM %s WHERE version = 5",
+      SchemaMigrations.schemaVersionTableName));
+    assertEquals(null, dao.getJob(aJob.getId()));
+    ((H2TestJobDaoImpl) dao).initBackend();
+    assertEquals(2, countCurrentVersions());
+    assertEquals("Urras", dao.getJob(aJob.getId()).getDescription());
+    assertEquals(Arrays.asList(aJob), dao.getChildren(parent.getId()));
+
+    dao.deleteJob(aJob.getId());
+    assertEquals(1, countCurrentVersions());
+    assertEquals(0, dao.getChildren(parent.getId()).size());
+  }
+
+  @Test
+  public void testSchemaMigrations() throws Exception {
+    Set<Integer> expected = new HashSet<>();
+    for (int i = 1; i <= SchemaMigrations.getLatestVersion(); i++) {
+      expected.add(i);
+    }
+    try (Connection conn = ((H2TestJobDaoImpl) dao).newConnection()) {
+      assertEquals(expected, SchemaMigrations.getAppliedVersions(conn));
+
+      // every migration can be applied again, e.g. on an unversioned schema
+      ((H2TestJobDaoImpl) dao).execute(String.format("DELETE FROM %s",
+        SchemaMigrations.schemaVersionTableName));
+      ((H2TestJobDaoImpl) dao).initBackend();
+      assertEquals(expected, SchemaMigrations.getAppliedVersions(conn));
+
+      Set<String> indexes = new HashSet<>();
+      for (String table : new String[] { H2TestJobDaoImpl.jobRunTableName,
+          H2TestJobDaoImpl.queueTableName }) {
+        try (ResultSet rs = conn.getMetaData().getIndexInfo(null, null,
+               table.toUpperCase(), false, true)) {
+          while (rs.next()) {
+            indexes.add(rs.getString("INDEX_NAME").toLowerCase());
+          }
+        }
+      }
+      assertTrue(indexes.containsAll(Arrays.asList("job_runs_job_dt",
+        "job_runs_dt", "job_runs_finish_start", "torun_queue_insert",
+        "torun_queue_priority", "job_runs_owner",
+        "job_runs_finish_heartbeat", "torun_queue_backfill",
+        "job_runs_pipeline")));
+      assertFalse(indexes.contains("torun_queue_claim"));
+    }
   }
 }
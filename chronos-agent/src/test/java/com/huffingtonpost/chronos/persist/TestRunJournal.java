@@ -0,0 +1,157 @@
+package com.huffingtonpost.chronos.persist;
+
+import com.huffingtonpost.chronos.agent.AgentConsumer;
+import com.huffingtonpost.chronos.agent.CallableJob;
+import com.huffingtonpost.chronos.agent.CallableQuery;
+import com.huffingtonpost.chronos.agent.H2TestJobDaoImpl;
+import com.huffingtonpost.chronos.agent.NoReporting;
+import com.huffingtonpost.chronos.agent.TestAgent;
+import com.huffingtonpost.chronos.agent.Utils;
+import com.huffingtonpost.chronos.model.JobSpec;
+import com.huffingtonpost.chronos.model.PlannedJob;
+import com.huffingtonpost.chronos.model.RunState;
+import com.huffingtonpost.chronos.model.RunStateListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestRunJournal {
+
+  int limit = AgentConsumer.LIMIT_JOB_RUNS;
+  H2TestJobDaoImpl dao;
+  RunJournal journal;
+  File file;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Before
+  public void setUp() throws Exception {
+    file = new File(folder.getRoot(), "runs.journal");
+    journal = new RunJournal(file);
+    // only flush when asked to
+    journal.SLEEP_FOR = 60 * 1000;
+    dao = new H2TestJobDaoImpl();
+    dao.setRunJournal(journal);
+    dao.init();
+  }
+
+  @After
+  public void cleanup() throws Exception {
+    dao.close();
+  }
+
+  private CallableJob createRun(String name) {
+    JobSpec aJob = TestAgent.getTestJob(name, dao);
+    dao.createJob(aJob);
+    PlannedJob pj = new PlannedJob(aJob, Utils.getCurrentTime());
+    CallableJob cj = new CallableQuery(pj, dao, null,
+      "example.com", null, null, null, null, 1);
+    dao.createJobRun(cj);
+    return cj;
+  }
+
+  private long getStored(String column, long runId) throws Exception {
+    try (Connection conn = dao.newConnection();
+         Statement stat = conn.createStatement();
+         ResultSet rs = stat.executeQuery(String.format(
+           "SELECT %s FROM %s WHERE id = %d", column,
+           H2TestJobDaoImpl.jobRunTableName, runId))) {
+      assertTrue(rs.next());
+      return rs.getTimestamp(column).getTime();
+    }
+  }
+
+  @Test
+  public void testWriteBehind() throws Exception {
+    CallableJob cj = createRun("Chinua Achebe");
+    cj.getStart().set(1000L);
+    dao.updateJobRun(cj);
+    cj.getStart().set(1500L);
+    dao.updateJobRun(cj);
+
+    // journaled and coalesced, but not written yet
+    assertEquals(0L, getStored("start", cj.getJobId()));
+    assertEquals(1, journal.getPendingCount());
+    assertTrue(file.length() > 0);
+
+    // reading runs writes what is pending first
+    CallableJob actual = dao.getJobRuns(null, limit).get(cj.getJobId());
+    assertEquals(1500L, actual.getStart().get());
+    assertEquals(1500L, getStored("start", cj.getJobId()));
+    assertEquals(0, journal.getPendingCount());
+    assertEquals(0L, file.length());
+  }
+
+  @Test
+  public void testFinishIsHandedOffOnceWritten() throws Exception {
+    CallableJob cj = createRun("Ngugi wa Thiong'o");
+    cj.getStart().set(1000L);
+    dao.updateJobRun(cj);
+    cj.getFinish().set(2000L);
+    cj.setStatus(0);
+    final List<Boolean> written = new ArrayList<>();
+    dao.finishJobRun(cj, new RunStateListener() {
+      @Override
+      public void stateWritten(boolean held) {
+        written.add(held);
+      }
+    });
+
+    // nothing follows the run before other agents can see it finished
+    assertEquals(0L, getStored("finish", cj.getJobId()));
+    assertEquals(1, journal.getPendingCount());
+    assertTrue(written.isEmpty());
+
+    journal.flush();
+    assertEquals(2000L, getStored("finish", cj.getJobId()));
+    assertEquals(Collections.singletonList(true), written);
+    assertTrue(dao.getJobRuns(null, limit).get(cj.getJobId()).isSuccess());
+
+    // a state journaled late does not undo the finish
+    cj.getFinish().set(0L);
+    dao.updateJobRun(cj);
+    journal.flush();
+    assertEquals(2000L, getStored("finish", cj.getJobId()));
+  }
+
+  @Test
+  public void testReplay() throws Exception {
+    CallableJob cj = createRun("Wole Soyinka");
+    cj.getStart().set(1000L);
+    dao.updateJobRun(cj);
+    // a record the process died while writing
+    try (FileOutputStream out = new FileOutputStream(file, true)) {
+      out.write(new byte[] { 0, 0, 0, 40, 1, 2, 3 });
+    }
+    assertEquals(0L, getStored("start", cj.getJobId()));
+
+    // as if the process had died, a new journal replays the file
+    RunJournal replayed = new RunJournal(file);
+    replayed.open(dao, new NoReporting());
+    try {
+      assertEquals(1000L, getStored("start", cj.getJobId()));
+      assertEquals(0L, file.length());
+      assertTrue(replayed.append(new RunState(cj.getJobId(), 0L, 0, null,
+        1000L, 4000L)));
+      replayed.flush();
+      assertEquals(4000L, getStored("finish", cj.getJobId()));
+    } finally {
+      replayed.close();
+    }
+  }
+}
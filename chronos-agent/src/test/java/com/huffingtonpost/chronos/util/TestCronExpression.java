@@ -0,0 +1,167 @@
+package com.huffingtonpost.chronos.util;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TestCronExpression {
+
+  private static final String[] MONTHS = { "JAN", "FEB", "MAR", "APR", "MAY",
+    "JUN", "JUL", "AUG", "SEP", "OCT", "NOV", "DEC" };
+  private static final String[] DAYS = { "MON", "TUE", "WED", "THU", "FRI",
+    "SAT", "SUN" };
+
+  private final Random random = new Random(8675309L);
+
+  private int between(int from, int to) {
+    return from + random.nextInt(to - from + 1);
+  }
+
+  private String simpleField(int from, int to, String[] names) {
+    switch (random.nextInt(6)) {
+      case 0:
+        return "*";
+      case 1: {
+        int a = between(from, to);
+        return names != null && random.nextBoolean() ?
+          names[a - from] : String.valueOf(a);
+      }
+      case 2: {
+        int a = between(from, to);
+        return a + "-" + between(a, to);
+      }
+      case 3:
+        return between(from, to) + "," + between(from, to) + "," +
+          between(from, to);
+      case 4:
+        return "*/" + between(1, to - from + 1);
+      default: {
+        int a = between(from, to);
+        return a + "-" + between(a, to) + "/" + between(1, 7);
+      }
+    }
+  }
+
+  private String dayOfMonthField() {
+    switch (random.nextInt(5)) {
+      case 0:
+        return "L";
+      case 1:
+        return between(0, 6) + "L";
+      case 2:
+        return between(1, 31) + "W";
+      case 3:
+        return "?";
+      default:
+        return simpleField(1, 31, null);
+    }
+  }
+
+  private String dayOfWeekField() {
+    switch (random.nextInt(5)) {
+      case 0:
+        return between(1, 7) + "L";
+      case 1:
+        return between(1, 7) + "#" + between(1, 5);
+      case 2:
+        return "?";
+      case 3:
+        return simpleField(1, 7, DAYS) + "," + simpleField(1, 7, null);
+      default:
+        return simpleField(1, 7, DAYS);
+    }
+  }
+
+  private String randomExpression() {
+    return simpleField(0, 59, null) + " " + simpleField(0, 59, null) + " " +
+      simpleField(0, 23, null) + " " + dayOfMonthField() + " " +
+      simpleField(1, 12, MONTHS) + " " + dayOfWeekField();
+  }
+
+  private static DateTime scan(CronExpression ce, DateTime after) {
+    try {
+      return ce.nextTimeAfterByScanning(after, after.plusYears(4));
+    } catch (IllegalArgumentException ex) {
+      return null;
+    }
+  }
+
+  private static DateTime compiled(CronExpression ce, DateTime after) {
+    try {
+      return ce.nextTimeAfter(after);
+    } catch (IllegalArgumentException ex) {
+      return null;
+    }
+  }
+
+  @Test
+  public void testMatchesScanningForRandomExpressions() {
+    DateTime start = new DateTime(2000, 1, 1, 0, 0, DateTimeZone.UTC);
+    int compared = 0;
+    while (compared < 500) {
+      String expr = randomExpression();
+      CronExpression ce;
+      try {
+        ce = CronExpression.create(expr);
+      } catch (IllegalArgumentException ex) {
+        continue; // e.g. a list that ends up out of range
+      }
+      DateTime after = start.plusSeconds(random.nextInt(30 * 365 * 24 * 3600))
+        .plusMillis(random.nextInt(1000));
+      for (int i = 0; i < 3; i++) {
+        DateTime expected = scan(ce, after);
+        assertEquals(expr + " after " + after, expected, compiled(ce, after));
+        if (expected == null) {
+          break;
+        }
+        after = expected;
+      }
+      compared++;
+    }
+  }
+
+  @Test
+  public void testMatchesScanningInOtherZone() {
+    DateTimeZone zone = DateTimeZone.forOffsetHours(-5);
+    DateTime after = new DateTime(2016, 2, 28, 23, 59, 59, zone);
+    for (String expr : new String[] { "0 0 0 29 2 ?", "0 0 0 L * ?", "0 30 1 1W * ?",
+      "0 0 12 ? * 5#5", "0 0 12 ? * 7L", "0 59 23 31 12 ?" }) {
+      CronExpression ce = CronExpression.create(expr);
+      assertEquals(expr, scan(ce, after), compiled(ce, after));
+    }
+  }
+
+  @Test
+  public void testNextTimeAfter() {
+    DateTime after = new DateTime(2016, 3, 15, 10, 30, DateTimeZone.UTC);
+    assertEquals(new DateTime(2016, 3, 15, 10, 31, DateTimeZone.UTC),
+      CronExpression.createWithoutSeconds("* * * * *").nextTimeAfter(after));
+    assertEquals(new DateTime(2017, 1, 1, 0, 0, DateTimeZone.UTC),
+      CronExpression.createWithoutSeconds("0 0 1 1 *").nextTimeAfter(after));
+    assertEquals(new DateTime(2016, 3, 31, 0, 0, DateTimeZone.UTC),
+      CronExpression.createWithoutSeconds("0 0 L * ?").nextTimeAfter(after));
+    // the 1st of October 2016 is a Saturday and the closest weekday falls in
+    // September, so the next match is Monday the 2nd of October 2017
+    assertEquals(new DateTime(2017, 10, 2, 9, 0, DateTimeZone.UTC),
+      CronExpression.createWithoutSeconds("0 9 1W 10 ?").nextTimeAfter(after));
+    assertEquals(new DateTime(2016, 5, 27, 0, 0, DateTimeZone.UTC),
+      CronExpression.createWithoutSeconds("0 0 ? MAY 5L").nextTimeAfter(after));
+    assertEquals(new DateTime(2016, 4, 21, 0, 0, DateTimeZone.UTC),
+      CronExpression.createWithoutSeconds("0 0 ? APR 4#3").nextTimeAfter(after));
+  }
+
+  @Test
+  public void testImpossibleExpression() {
+    DateTime after = new DateTime(2016, 3, 15, 10, 30, DateTimeZone.UTC);
+    try {
+      CronExpression.createWithoutSeconds("0 0 30 2 *").nextTimeAfter(after);
+      fail("February 30th should never match");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
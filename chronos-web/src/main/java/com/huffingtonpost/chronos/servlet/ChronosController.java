@@ -3,6 +3,7 @@ package com.huffingtonpost.chronos.servlet;
 import com.huffingtonpost.chronos.agent.AgentConsumer;
 import com.huffingtonpost.chronos.agent.AgentDriver;
 import com.huffingtonpost.chronos.agent.CallableJob;
+import com.huffingtonpost.chronos.agent.LocalReportSink;
 import com.huffingtonpost.chronos.model.*;
 import com.huffingtonpost.chronos.util.CronExpression;
 import org.apache.log4j.Logger;
@@ -16,6 +17,7 @@ import org.springframework.web.bind.annotation.*;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.File;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.*;
@@ -71,6 +73,17 @@ public class ChronosController {
     return new ArrayList<>(toRet.values());
   }
 
+  @RequestMapping(value="/pipeline/{id}", method=RequestMethod.GET)
+  public @ResponseBody List<CallableJob> getPipelineRuns(
+      @PathVariable("id") String id) throws NotFoundException {
+    Map<Long, CallableJob> toRet = jobDao.getPipelineRuns(id);
+    if (toRet.isEmpty()) {
+      throw new NotFoundException(
+        String.format("Pipeline with id \"%s\" was not found", id));
+    }
+    return new ArrayList<>(toRet.values());
+  }
+
   @RequestMapping(value="/jobs/future", method=RequestMethod.GET)
   public @ResponseBody List<FutureRunInfo>
   future(@RequestParam(value="id", required=false) Long id,
@@ -90,24 +103,26 @@ public class ChronosController {
     return toRet.withMillisOfSecond(0).withSecondOfMinute(0);
   }
 
-  public void innerJobFuture(List<FutureRunInfo> toRet,
-                             DateTime from, List<JobSpec> iterJobs) {
+  public static void innerJobFuture(List<FutureRunInfo> toRet,
+                                    DateTime from, List<JobSpec> iterJobs,
+                                    JobGraph graph) {
     for (JobSpec parent : iterJobs) {
       String jobName = parent.getName();
       DateTime nextRun = calcNextRunTime(from, parent);
       FutureRunInfo fri =
         new FutureRunInfo(jobName, nextRun);
       toRet.add(fri);
-      List<JobSpec> children = jobDao.getChildren(parent.getId());
-      innerJobFuture(toRet, nextRun, children);
+      List<JobSpec> children = graph.getChildren(parent.getId());
+      innerJobFuture(toRet, nextRun, children, graph);
     }
   }
 
   public List<FutureRunInfo> getJobFuture(Long id, int limit) {
     List<FutureRunInfo> toRet = new ArrayList<>();
+    JobGraph graph = jobDao.getJobGraph();
     List<JobSpec> iterJobs;
     if (id == null) {
-      iterJobs = jobDao.getJobs();
+      iterJobs = graph.getJobs();
     } else {
       iterJobs = Arrays.asList(new JobSpec[]{ jobDao.getJob(id) });
     }
@@ -118,7 +133,7 @@ public class ChronosController {
 
     DateTime from = new DateTime().withZone(DateTimeZone.UTC);
     while (toRet.size() < limit) {
-      innerJobFuture(toRet, from, iterJobs);
+      innerJobFuture(toRet, from, iterJobs, graph);
       Collections.sort(toRet);
       from = toRet.get(toRet.size() - 1).getTime();
     }
@@ -174,6 +189,11 @@ public class ChronosController {
     return drivers;
   }
 
+  @RequestMapping(value="/sources/pools", method=RequestMethod.GET)
+  public @ResponseBody Map<String, Map<String, Long>> getDataSourcePools() {
+    return jobDao.getConnectionPools().getStats();
+  }
+
   private void verifyJob(JobSpec aJob){
     if (aJob.getResultQuery() != null && !aJob.getResultQuery().isEmpty() &&
         !aJob.getResultQuery().toLowerCase().contains("limit")){
@@ -289,6 +309,34 @@ public class ChronosController {
     }
   }
 
+  /**
+   * Queues a run of the job for every replace time of the backfill.
+   */
+  @RequestMapping(value="/backfill", method=RequestMethod.POST)
+  public @ResponseBody Backfill backfill(@RequestBody final Backfill aBackfill)
+    throws NotFoundException {
+    getJob(aBackfill.getJobId());
+    return jobDao.queueBackfill(aBackfill);
+  }
+
+  @RequestMapping(value="/backfill/{id}", method=RequestMethod.GET)
+  public @ResponseBody Backfill getBackfill(@PathVariable("id") Long id)
+    throws NotFoundException {
+    Backfill toRet = jobDao.getBackfill(id);
+    if (toRet == null) {
+      throw new NotFoundException(
+        String.format("Backfill with id \"%d\" was not found", id));
+    }
+    return toRet;
+  }
+
+  @RequestMapping(value="/backfills", method=RequestMethod.GET)
+  public @ResponseBody List<Backfill> getBackfills(
+      @RequestParam(value="active", required=false, defaultValue="false")
+      boolean active) {
+    return jobDao.getBackfills(active);
+  }
+
   public List<String> getReportsList(String root, Long id) {
     String path;
     if (id == null) {
@@ -298,7 +346,14 @@ public class ChronosController {
     }
     File file = new File(path);
     if (file.exists()) {
-      return Arrays.asList(file.list());
+      // reports that are still being written are hidden
+      return Arrays.asList(file.list(new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String name) {
+          return !(name.startsWith(LocalReportSink.TEMP_PREFIX) &&
+                   name.endsWith(LocalReportSink.TEMP_SUFFIX));
+        }
+      }));
     } else {
       return null;
     }
@@ -318,4 +373,43 @@ public class ChronosController {
       throw new NotFoundException("Job id " + id + " was not found in report file system");
     }
   }
+
+  /**
+   * Downloads a report listed by /report-list. A gzipped copy of the report
+   * is sent instead when one exists and the client accepts gzip.
+   */
+  @RequestMapping(value="/report",
+    method={RequestMethod.GET, RequestMethod.HEAD})
+  public void getReport(@RequestParam(value="id") Long id,
+    @RequestParam(value="name") String name,
+    HttpServletRequest request, HttpServletResponse response)
+    throws NotFoundException, IOException {
+    if (reportRootPath == null) {
+      throw new NotFoundException("Report Root Path is not set, check your Chronos configuration.");
+    }
+    getReportSender(reportRootPath, id, name, request)
+      .send(request, response);
+  }
+
+  public static ReportSender getReportSender(String root, Long id,
+    String name, HttpServletRequest request) throws NotFoundException {
+    if (name.isEmpty() || name.startsWith(".") || name.contains("/") ||
+        name.contains(File.separator)) {
+      throw new NotFoundException("Report " + name + " was not found");
+    }
+    File dir = new File(root, String.valueOf(id));
+    File plain = new File(dir, name);
+    File gzipped = new File(dir, name + ReportSender.GZIP_EXTENSION);
+    boolean hasGzipped = !name.endsWith(ReportSender.GZIP_EXTENSION) &&
+      gzipped.isFile();
+    if (hasGzipped && ReportSender.acceptsGzip(request)) {
+      return new ReportSender(gzipped, ReportSender.GZIP,
+        ReportSender.getContentType(name), plain.isFile());
+    } else if (plain.isFile()) {
+      return new ReportSender(plain, null,
+        ReportSender.getContentType(name), hasGzipped);
+    }
+    throw new NotFoundException("Report " + name + " of job " + id +
+      " was not found in report file system");
+  }
 }
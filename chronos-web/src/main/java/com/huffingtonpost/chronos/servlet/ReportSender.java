@@ -0,0 +1,242 @@
+package com.huffingtonpost.chronos.servlet;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Sends a saved report over HTTP without reading it into the heap. When the
+ * container supports it (Tomcat with sendfile enabled) the file is handed to
+ * the container, otherwise it is copied with FileChannel.transferTo.
+ *
+ * Supports conditional requests on ETag and Last-Modified, a single byte
+ * Range (optionally guarded by If-Range) so interrupted downloads can be
+ * resumed, and serves report.gz with Content-Encoding gzip for report when
+ * the client accepts gzip.
+ */
+public class ReportSender {
+
+  public static final String GZIP = "gzip";
+  public static final String GZIP_EXTENSION = ".gz";
+
+  private static final String SENDFILE_SUPPORT =
+    "org.apache.tomcat.sendfile.support";
+  private static final String SENDFILE_FILENAME =
+    "org.apache.tomcat.sendfile.filename";
+  private static final String SENDFILE_START =
+    "org.apache.tomcat.sendfile.start";
+  private static final String SENDFILE_END =
+    "org.apache.tomcat.sendfile.end";
+
+  private final File file;
+  private final String encoding;
+  private final String contentType;
+  private final boolean hasVariants;
+
+  /**
+   * @param file the file to send
+   * @param encoding the Content-Encoding of file, or null
+   * @param contentType the type of the decoded content
+   * @param hasVariants whether other encodings of the same report exist
+   */
+  public ReportSender(File file, String encoding, String contentType,
+                      boolean hasVariants) {
+    this.file = file;
+    this.encoding = encoding;
+    this.contentType = contentType;
+    this.hasVariants = hasVariants;
+  }
+
+  public static boolean acceptsGzip(HttpServletRequest request) {
+    String accept = request.getHeader("Accept-Encoding");
+    if (accept == null) {
+      return false;
+    }
+    for (String part : accept.split(",")) {
+      String[] params = part.trim().split(";");
+      String coding = params[0].trim();
+      if (coding.equalsIgnoreCase(GZIP) || coding.equals("*")) {
+        for (int i = 1; i < params.length; i++) {
+          String param = params[i].replace(" ", "");
+          if (param.matches("q=0(\\.0*)?")) {
+            return false;
+          }
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public static String getContentType(String name) {
+    if (name.endsWith(".tsv")) {
+      return "text/tab-separated-values; charset=UTF-8";
+    } else if (name.endsWith(GZIP_EXTENSION)) {
+      return "application/gzip";
+    }
+    return "application/octet-stream";
+  }
+
+  public String getETag() {
+    return "\"" + Long.toHexString(file.length()) + "-" +
+      Long.toHexString(file.lastModified()) +
+      (encoding == null ? "" : "-" + encoding) + "\"";
+  }
+
+  public void send(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    long length = file.length();
+    long lastModified = file.lastModified();
+    String etag = getETag();
+
+    response.setHeader("ETag", etag);
+    response.setDateHeader("Last-Modified", lastModified);
+    response.setHeader("Accept-Ranges", "bytes");
+    if (hasVariants) {
+      response.setHeader("Vary", "Accept-Encoding");
+    }
+
+    if (notModified(request, etag, lastModified)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
+    long start = 0;
+    long end = length;
+    String range = request.getHeader("Range");
+    if (range != null && ifRangeMatches(request, etag, lastModified)) {
+      long[] bounds = parseRange(range, length);
+      if (bounds == null) {
+        response.setHeader("Content-Range", "bytes */" + length);
+        response.sendError(
+          HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        return;
+      }
+      if (bounds.length == 2) {
+        start = bounds[0];
+        end = bounds[1];
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setHeader("Content-Range",
+          "bytes " + start + "-" + (end - 1) + "/" + length);
+      }
+    }
+
+    response.setContentType(contentType);
+    if (encoding != null) {
+      response.setHeader("Content-Encoding", encoding);
+    }
+    response.setHeader("Content-Length", String.valueOf(end - start));
+    if ("HEAD".equals(request.getMethod()) || start == end) {
+      return;
+    }
+
+    if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+      request.setAttribute(SENDFILE_FILENAME, file.getCanonicalPath());
+      request.setAttribute(SENDFILE_START, start);
+      request.setAttribute(SENDFILE_END, end);
+      return;
+    }
+    try (FileChannel channel =
+           FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      WritableByteChannel out =
+        Channels.newChannel(response.getOutputStream());
+      long position = start;
+      while (position < end) {
+        long sent = channel.transferTo(position, end - position, out);
+        if (sent <= 0) {
+          throw new IOException(file + " was truncated while it was sent");
+        }
+        position += sent;
+      }
+    }
+    response.flushBuffer();
+  }
+
+  private static boolean notModified(HttpServletRequest request, String etag,
+                                     long lastModified) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      for (String candidate : ifNoneMatch.split(",")) {
+        candidate = candidate.trim();
+        if (candidate.startsWith("W/")) {
+          candidate = candidate.substring(2);
+        }
+        if (candidate.equals("*") || candidate.equals(etag)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    long since = getDateHeader(request, "If-Modified-Since");
+    return since != -1 && lastModified / 1000 <= since / 1000;
+  }
+
+  private static boolean ifRangeMatches(HttpServletRequest request,
+                                        String etag, long lastModified) {
+    String ifRange = request.getHeader("If-Range");
+    if (ifRange == null) {
+      return true;
+    }
+    if (ifRange.trim().startsWith("\"")) {
+      return ifRange.trim().equals(etag);
+    }
+    long date = getDateHeader(request, "If-Range");
+    return date != -1 && lastModified / 1000 == date / 1000;
+  }
+
+  private static long getDateHeader(HttpServletRequest request, String name) {
+    try {
+      return request.getDateHeader(name);
+    } catch (IllegalArgumentException ex) {
+      return -1;
+    }
+  }
+
+  /**
+   * @return {start, end exclusive} for a single satisfiable range, an empty
+   * array when the whole file should be sent instead (malformed or multiple
+   * ranges), or null when the range cannot be satisfied.
+   */
+  static long[] parseRange(String range, long length) {
+    if (!range.startsWith("bytes=") || range.indexOf(',') != -1) {
+      return new long[0];
+    }
+    String spec = range.substring("bytes=".length()).trim();
+    int dash = spec.indexOf('-');
+    if (dash == -1) {
+      return new long[0];
+    }
+    try {
+      String first = spec.substring(0, dash).trim();
+      String last = spec.substring(dash + 1).trim();
+      long start;
+      long end;
+      if (first.isEmpty()) {
+        long suffix = Long.parseLong(last);
+        if (suffix <= 0) {
+          return null;
+        }
+        start = Math.max(0, length - suffix);
+        end = length;
+      } else {
+        start = Long.parseLong(first);
+        end = last.isEmpty() ? length :
+          Math.min(length, Long.parseLong(last) + 1);
+        if (end <= start) {
+          return start >= length ? null : new long[0];
+        }
+      }
+      if (start >= length) {
+        return null;
+      }
+      return new long[] { start, end };
+    } catch (NumberFormatException ex) {
+      return new long[0];
+    }
+  }
+}
@@ -5,6 +5,7 @@ import com.huffingtonpost.chronos.agent.AgentConsumer;
 import com.huffingtonpost.chronos.agent.AgentDriver;
 import com.huffingtonpost.chronos.agent.NoReporting;
 import com.huffingtonpost.chronos.agent.Reporting;
+import com.huffingtonpost.chronos.agent.RunRetention;
 import com.huffingtonpost.chronos.model.JobDao;
 import com.huffingtonpost.chronos.model.JobDaoImpl;
 import com.huffingtonpost.chronos.model.MailInfo;
@@ -164,6 +165,8 @@ public class TestConfig extends WebMvcConfigurerAdapter {
     JobDao dao = new JobDaoImpl();
     dao.setDrivers(drivers());
     dao.setDataSource(ds());
+    dao.setReporting(reporting());
+    //dao.setRunJournal(new RunJournal(new File("/tmp/chronos-runs.journal"))); //uncomment this line to write run updates behind
     return dao;
   }
 
@@ -216,6 +219,11 @@ public class TestConfig extends WebMvcConfigurerAdapter {
         relaySession(), drivers(), numOfConcurrentJobs,
         numOfConcurrentReruns, maxReruns, waitBeforeRetrySeconds, minAttemptsForNotification);
     //agentConsumer.writeReportToLocal(reportRootPath()); //uncomment this line to write report to localhost
+    //agentConsumer.setRetryPolicy(RetryPolicy.jittered(RetryPolicy.exponential(60 * 1000, 3600 * 1000), 0.2)); //uncomment this line to back off exponentially between reruns
+    //agentConsumer.setVirtualThreads(true); //uncomment this line to run every job on a virtual thread, needs JDK 21 or later
+    //agentConsumer.setMaxConcurrentJobs("Hive", 2); //uncomment this line to limit how many jobs of a driver run at once
+    //agentConsumer.getAdmission().setWeight(Admission.driverKey("MySQL"), 2); //uncomment this line to give a driver a larger share of free slots
+    //agentConsumer.setPipelines(true); //uncomment this line to run the children of a job straight away and in parallel instead of queueing them
     return agentConsumer;
   }
 
@@ -224,5 +232,15 @@ public class TestConfig extends WebMvcConfigurerAdapter {
   public AgentDriver agent() {
     return new AgentDriver(jobDao(), reporting());
   }
+
+  @DependsOn(value="jobDao")
+  @Bean(initMethod="init", destroyMethod="close", name="runRetention")
+  public RunRetention runRetention() {
+    RunRetention runRetention = new RunRetention(jobDao(), reporting());
+    //runRetention.setMaxAgeDays(365); //uncomment this line to delete runs older than a year
+    //runRetention.setKeepPerJob(1000); //uncomment this line to delete all but the newest 1000 runs of every job
+    //runRetention.setArchiveDir(new File(reportRootPath(), "archive")); //uncomment this line to archive expired runs before they are deleted
+    return runRetention;
+  }
  
 }
@@ -11,6 +11,7 @@ import com.huffingtonpost.chronos.spring.ChronosMapper;
 import com.huffingtonpost.chronos.util.H2TestUtil;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Rule;
@@ -28,7 +29,10 @@ import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilde
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
 
 import javax.mail.Session;
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.*;
 import java.util.concurrent.ConcurrentSkipListMap;
 
@@ -36,6 +40,7 @@ import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.*;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -115,6 +120,23 @@ public class TestChronosController {
                     "\"resultQuery\":\"SELECT * FROM %s limit %d\",\"connectionUrl\":\"jdbc:h2:mem:test;MODE=MySQL\"}]"));
   }
 
+  @Test
+  public void testGetDriverPools() throws Exception {
+    ConnectionPools pools = new ConnectionPools();
+    pools.setMaxIdle(1);
+    when(jobDao.getConnectionPools()).thenReturn(pools);
+    mockMvc.perform(get("/api/sources/pools"))
+            .andExpect(status().isOk())
+            .andExpect(content().string("{}"));
+
+    pools.getConnection(drivers.get(0), null, null).close();
+    mockMvc.perform(get("/api/sources/pools"))
+            .andExpect(status().isOk())
+            .andExpect(content().string(
+              "{\"H2\":{\"active\":0,\"borrowed\":1,\"idle\":1,\"pools\":1}}"));
+    pools.close();
+  }
+
   @Test
   public void testGetJobs() throws Exception {
     mockMvc.perform(get("/api/jobs"))
@@ -413,6 +435,42 @@ public class TestChronosController {
     verify(jobDao, times(1)).addToQueue(aJob);
   }
 
+  @Test
+  public void testBackfill() throws Exception {
+    JobSpec aJob = getTestJob("Backfilled");
+    aJob.setId(7L);
+    DateTime start = new DateTime(2016, 1, 1, 0, 0, DateTimeZone.UTC);
+    Backfill aBackfill = new Backfill(aJob.getId(), start, start.plusDays(90));
+    Backfill queued = new Backfill(aJob.getId(), start, start.plusDays(90));
+    queued.setId(1L);
+    queued.setQueued(90);
+
+    MockHttpServletRequestBuilder request = post("/api/backfill")
+      .contentType(MediaType.APPLICATION_JSON)
+      .content(OM.writeValueAsString(aBackfill));
+    mockMvc.perform(request)
+      .andExpect(status().isNotFound());
+
+    when(jobDao.getJob(aJob.getId())).thenReturn(aJob);
+    when(jobDao.queueBackfill(any(Backfill.class))).thenReturn(queued);
+    mockMvc.perform(request)
+      .andExpect(status().isOk())
+      .andExpect(content().string(OM.writeValueAsString(queued)));
+    verify(jobDao, times(1)).queueBackfill(any(Backfill.class));
+
+    when(jobDao.getBackfill(1L)).thenReturn(queued);
+    mockMvc.perform(get("/api/backfill/1"))
+      .andExpect(status().isOk());
+    mockMvc.perform(get("/api/backfill/2"))
+      .andExpect(status().isNotFound());
+
+    when(jobDao.getBackfills(true)).thenReturn(Arrays.asList(queued));
+    mockMvc.perform(get("/api/backfills?active=true"))
+      .andExpect(status().isOk())
+      .andExpect(content().string(
+        OM.writeValueAsString(Arrays.asList(queued))));
+  }
+
   @Test
   public void testJobHistory() throws Exception {
     JobSpec aJob = getTestJob("4 8 15 16 23 42");
@@ -540,7 +598,7 @@ public class TestChronosController {
     jobs.add(job2);
     jobs.add(job1);
 
-    when(jobDao.getJobs()).thenReturn(jobs);
+    when(jobDao.getJobGraph()).thenReturn(new JobGraph(jobs));
 
     List<FutureRunInfo> expected = new ArrayList<>();
     FutureRunInfo fri1 =
@@ -605,6 +663,8 @@ public class TestChronosController {
   @Ignore
   public void testGetReportsList() throws Exception {
     setupTestReports();
+    // a report that is still being written
+    folder.newFile("1/.2016010300.tsv.tmp");
 
     MockHttpServletRequestBuilder request = get(String.format("/api/report-list"));
     List<String> expectResult = new ArrayList<>();
@@ -659,4 +719,107 @@ public class TestChronosController {
       .andExpect(content().string(OM.writeValueAsString(expected)));
     verify(jobDao, times(1)).getTree(1, null);
   }
+
+  private static File writeReport(String name, String content)
+      throws IOException {
+    File dir = new File(folder.getRoot(), "42");
+    dir.mkdirs();
+    File report = new File(dir, name);
+    Files.write(report.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    return report;
+  }
+
+  @Test
+  public void testGetReport() throws Exception {
+    File report = writeReport("2016010100.tsv", "A\tB\t\n1\t2\t\n");
+    String etag = new ReportSender(report, null, null, false).getETag();
+
+    mockMvc.perform(get("/api/report?id=42&name=2016010100.tsv"))
+      .andExpect(status().isOk())
+      .andExpect(header().string("ETag", etag))
+      .andExpect(header().string("Accept-Ranges", "bytes"))
+      .andExpect(header().string("Content-Length", "10"))
+      .andExpect(header().string("Last-Modified",
+        DateTimeFormat.forPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'")
+          .withZoneUTC().withLocale(Locale.US).print(report.lastModified())))
+      .andExpect(content().string("A\tB\t\n1\t2\t\n"));
+
+    mockMvc.perform(get("/api/report?id=42&name=2016010100.tsv")
+        .header("If-None-Match", etag))
+      .andExpect(status().isNotModified())
+      .andExpect(content().string(""));
+
+    mockMvc.perform(get("/api/report?id=42&name=2016010100.tsv")
+        .header("If-Modified-Since", report.lastModified() + 1000))
+      .andExpect(status().isNotModified());
+
+    mockMvc.perform(get("/api/report?id=42&name=2016010101.tsv"))
+      .andExpect(status().isNotFound());
+    mockMvc.perform(get("/api/report?id=42&name=..%2F42%2F2016010100.tsv"))
+      .andExpect(status().isNotFound());
+    writeReport(".2016010102.tsv.tmp", "partial");
+    mockMvc.perform(get("/api/report?id=42&name=.2016010102.tsv.tmp"))
+      .andExpect(status().isNotFound());
+  }
+
+  @Test
+  public void testGetReportRange() throws Exception {
+    File report = writeReport("2016010100.tsv", "0123456789");
+    String etag = new ReportSender(report, null, null, false).getETag();
+
+    mockMvc.perform(get("/api/report?id=42&name=2016010100.tsv")
+        .header("Range", "bytes=2-4"))
+      .andExpect(status().isPartialContent())
+      .andExpect(header().string("Content-Range", "bytes 2-4/10"))
+      .andExpect(header().string("Content-Length", "3"))
+      .andExpect(content().string("234"));
+
+    mockMvc.perform(get("/api/report?id=42&name=2016010100.tsv")
+        .header("Range", "bytes=7-").header("If-Range", etag))
+      .andExpect(status().isPartialContent())
+      .andExpect(content().string("789"));
+
+    mockMvc.perform(get("/api/report?id=42&name=2016010100.tsv")
+        .header("Range", "bytes=-4"))
+      .andExpect(status().isPartialContent())
+      .andExpect(header().string("Content-Range", "bytes 6-9/10"))
+      .andExpect(content().string("6789"));
+
+    // the report changed since the client started downloading it
+    mockMvc.perform(get("/api/report?id=42&name=2016010100.tsv")
+        .header("Range", "bytes=7-").header("If-Range", "\"stale\""))
+      .andExpect(status().isOk())
+      .andExpect(content().string("0123456789"));
+
+    mockMvc.perform(get("/api/report?id=42&name=2016010100.tsv")
+        .header("Range", "bytes=10-"))
+      .andExpect(status().is(416))
+      .andExpect(header().string("Content-Range", "bytes */10"));
+  }
+
+  @Test
+  public void testGetPrecompressedReport() throws Exception {
+    writeReport("2016010100.tsv", "plain");
+    File gzipped = writeReport("2016010100.tsv.gz", "gzipped");
+
+    mockMvc.perform(get("/api/report?id=42&name=2016010100.tsv")
+        .header("Accept-Encoding", "deflate, gzip"))
+      .andExpect(status().isOk())
+      .andExpect(header().string("Content-Encoding", "gzip"))
+      .andExpect(header().string("Vary", "Accept-Encoding"))
+      .andExpect(header().string("ETag",
+        new ReportSender(gzipped, "gzip", null, true).getETag()))
+      .andExpect(content().string("gzipped"));
+
+    mockMvc.perform(get("/api/report?id=42&name=2016010100.tsv")
+        .header("Accept-Encoding", "gzip;q=0"))
+      .andExpect(status().isOk())
+      .andExpect(header().doesNotExist("Content-Encoding"))
+      .andExpect(content().string("plain"));
+
+    mockMvc.perform(get("/api/report?id=42&name=2016010100.tsv.gz"))
+      .andExpect(status().isOk())
+      .andExpect(header().doesNotExist("Content-Encoding"))
+      .andExpect(content().string("gzipped"));
+  }
 }
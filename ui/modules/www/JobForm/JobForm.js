@@ -30,7 +30,7 @@ const requiredFields = ['driver', 'name'];
 
 @reduxForm({
   form: 'job',
-  fields: ['enabled', 'shouldRerun', 'name', 'type', 'description', 'driver', 'user', 'password', 'resultEmail', 'statusEmail', 'id', 'lastModified', 'code', 'resultQuery', 'cronString', 'parent', 'children'],
+  fields: ['enabled', 'shouldRerun', 'name', 'type', 'description', 'driver', 'user', 'password', 'resultEmail', 'statusEmail', 'id', 'lastModified', 'code', 'resultQuery', 'cronString', 'parent', 'children', 'reportFormat', 'priority', 'deadlineMinutes', 'runOn'],
   validate(vals) {
     const errors = {};
     const required = requiredFields.slice();
@@ -98,6 +98,9 @@ export default class JobForm extends Component {
 
     this.props.initializeForm({
       shouldRerun: true,
+      reportFormat: 'TSV',
+      priority: 0,
+      runOn: 'ALWAYS',
       startDay: 1,
       code: '',
       resultQuery: '',
@@ -239,7 +242,7 @@ export default class JobForm extends Component {
   }
 
   render() {
-    const {fields: {enabled, shouldRerun, type, name, description, driver, user, password, cronString, resultEmail, statusEmail, id, lastModified, code, resultQuery, parent}, handleSubmit, hideSidebar, useLocalTime} = this.props;
+    const {fields: {enabled, shouldRerun, type, name, description, driver, user, password, cronString, resultEmail, statusEmail, id, lastModified, code, resultQuery, parent, reportFormat, priority, deadlineMinutes, runOn}, handleSubmit, hideSidebar, useLocalTime} = this.props;
 
     const thisQuery = this.state.thisQuery === 'code' ? code : resultQuery;
 
@@ -314,6 +317,14 @@ export default class JobForm extends Component {
 
                 <label className={formStyles.label}>Database Password (optional)</label>
                 <input {...password} type="password" className={this.fieldClass(password)}/>
+
+                <label className={formStyles.label}>Saved Report Format</label>
+                <div className={formStyles.selectOverlay}/>
+                <select {...reportFormat} className={this.fieldClass(reportFormat)} defaultValue="TSV" style={this.selectStyle(reportFormat.value)}>
+                  <option value="TSV">TSV</option>
+                  <option value="TSV_GZIP">Gzipped TSV</option>
+                  <option value="BINARY">Typed binary (gzipped)</option>
+                </select>
               </div>
             ) : null}
 
@@ -326,6 +337,18 @@ export default class JobForm extends Component {
               {this.getDependsDOM()}
             </select>
 
+            {this.hasParent() ? (
+              <div className={styles.fullWidth}>
+                <label className={formStyles.label}>Run When The Parent</label>
+                <div className={formStyles.selectOverlay}/>
+                <select {...runOn} className={this.fieldClass(runOn)} defaultValue="ALWAYS" style={this.selectStyle(runOn.value)}>
+                  <option value="ALWAYS">Finished</option>
+                  <option value="SUCCESS">Succeeded</option>
+                  <option value="FAILURE">Failed</option>
+                </select>
+              </div>
+            ) : null}
+
             <label className={formStyles.label}><a className={styles.link} href="https://en.wikipedia.org/wiki/Cron#Format" target="_blank">CRON String</a></label>
             <input {...cronString} type="text" disabled={this.hasParent()} value={this.hasParent() ? '' : cronString.value} className={this.fieldClass(cronString)}/>
 
@@ -335,6 +358,12 @@ export default class JobForm extends Component {
               </div>
             ) : null}
 
+            <label className={formStyles.label}>Priority (higher runs first)</label>
+            <input {...priority} type="number" className={this.fieldClass(priority)}/>
+
+            <label className={formStyles.label}>Deadline (minutes after scheduled time, optional)</label>
+            <input {...deadlineMinutes} type="number" min="0" className={this.fieldClass(deadlineMinutes)}/>
+
             <hr/>
 
             {type.value === 'Query' ? (